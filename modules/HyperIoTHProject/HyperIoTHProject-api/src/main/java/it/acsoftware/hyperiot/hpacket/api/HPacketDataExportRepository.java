@@ -20,6 +20,8 @@ package it.acsoftware.hyperiot.hpacket.api;
 import it.acsoftware.hyperiot.base.api.entity.HyperIoTBaseRepository;
 import it.acsoftware.hyperiot.hpacket.model.HPacketDataExport;
 
+import java.util.Collection;
+
 /**
  * @author Aristide Cittadino Interface component for HPacketDataExport Repository.
  * It is used for CRUD operations,
@@ -27,4 +29,21 @@ import it.acsoftware.hyperiot.hpacket.model.HPacketDataExport;
  */
 public interface HPacketDataExportRepository extends HyperIoTBaseRepository<HPacketDataExport> {
     HPacketDataExport findByExportId(String exportId);
+
+    /**
+     * @return exports which have neither been completed nor failed yet
+     */
+    Collection<HPacketDataExport> findUncompleted();
+
+    /**
+     * Claims a running export for a node, with a single conditional update: it succeeds only if the export
+     * is not owned by another node or the lease of its owner has expired.
+     * The owner renews its lease claiming the export again.
+     *
+     * @param exportId        export id
+     * @param ownerNode       node claiming the export
+     * @param leaseExpiration epoch millis until the claim is valid
+     * @return true if the export has been claimed
+     */
+    boolean claim(String exportId, String ownerNode, long leaseExpiration);
 }
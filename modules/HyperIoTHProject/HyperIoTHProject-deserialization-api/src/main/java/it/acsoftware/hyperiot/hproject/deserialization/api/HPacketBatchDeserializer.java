@@ -0,0 +1,46 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hproject.deserialization.api;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Deserializer accepting batch payloads: a single message carrying many readings of the same packet,
+ * each one with its own timestamp. Payloads with a single reading are still accepted.
+ */
+public interface HPacketBatchDeserializer extends HPacketDeserializer {
+
+    /**
+     * Max number of readings inside a single batch
+     */
+    int MAX_BATCH_READINGS = 10000;
+
+    /**
+     * @param rawHPackets batch or single reading payload
+     * @param hPacketInfo packet definition
+     * @return one HPacket for each reading, in the order they have been received
+     * @throws IOException if the payload cannot be parsed or the batch is not valid
+     */
+    List<HPacket> deserializeBatch(byte[] rawHPackets, HPacketInfo hPacketInfo) throws IOException;
+
+}
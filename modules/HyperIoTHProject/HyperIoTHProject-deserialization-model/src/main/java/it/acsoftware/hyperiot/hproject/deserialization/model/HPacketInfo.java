@@ -25,10 +25,12 @@ public class HPacketInfo {
     private String name;
     private String type;
     private String trafficPlan;
+    private String compression;
     private boolean unixTimestamp;
     private boolean unixTimestampFormatSeconds;
     private HPacketSchema schema;
     private HPacketTimestamp timestamp;
+    private long receivedTimestamp;
 
     public long getHProjectId() {
         return hProjectId;
@@ -78,6 +80,17 @@ public class HPacketInfo {
         this.trafficPlan = trafficPlan;
     }
 
+    /**
+     * @return payload compression name, null if payloads are not compressed
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
     public HPacketSchema getSchema() {
         return schema;
     }
@@ -94,6 +107,18 @@ public class HPacketInfo {
         this.timestamp = timestamp;
     }
 
+    /**
+     * @return time (millis) at which the message has been received by the platform, 0 if unknown.
+     * It is the default timestamp of packets without a timestamp field, so that a message processed twice gets the same timestamp
+     */
+    public long getReceivedTimestamp() {
+        return receivedTimestamp;
+    }
+
+    public void setReceivedTimestamp(long receivedTimestamp) {
+        this.receivedTimestamp = receivedTimestamp;
+    }
+
     public boolean isUnixTimestamp() {
         return unixTimestamp;
     }
@@ -119,10 +144,12 @@ public class HPacketInfo {
             ", name='" + name + '\'' +
             ", type='" + type + '\'' +
             ", trafficPlan='" + trafficPlan + '\'' +
+            ", compression='" + compression + '\'' +
             ", unixTimestamp=" + unixTimestamp +
             ", unixTimestampFormatSeconds=" + unixTimestampFormatSeconds +
             ", schema=" + schema +
             ", timestamp=" + timestamp +
+            ", receivedTimestamp=" + receivedTimestamp +
             '}';
     }
 }
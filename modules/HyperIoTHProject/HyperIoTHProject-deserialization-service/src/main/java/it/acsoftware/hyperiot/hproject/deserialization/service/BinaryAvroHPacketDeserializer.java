@@ -0,0 +1,75 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.deserialization.service;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketAvroCellFormat;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+
+import java.io.IOException;
+
+/**
+ * Deserializes HPacket cells read from HBase hproject tables.
+ * Binary cells (see HPacketAvroCellFormat) are decoded directly, legacy JSON Avro cells
+ * are delegated to JsonAvroHPacketDeserializer, so both formats can coexist inside the same table.
+ */
+public class BinaryAvroHPacketDeserializer implements HPacketDeserializer {
+
+    private static BinaryAvroHPacketDeserializer instance;
+
+    private final JsonAvroHPacketDeserializer jsonAvroHPacketDeserializer;
+
+    /**
+     * Datum readers and decoders are not thread-safe, each thread reuses its own ones
+     */
+    private final ThreadLocal<AvroReader> readers;
+
+    private BinaryAvroHPacketDeserializer() {
+        this.jsonAvroHPacketDeserializer = JsonAvroHPacketDeserializer.getInstance();
+        this.readers = ThreadLocal.withInitial(AvroReader::new);
+    }
+
+    public static synchronized BinaryAvroHPacketDeserializer getInstance() {
+        if (instance == null)
+            instance = new BinaryAvroHPacketDeserializer();
+        return instance;
+    }
+
+    @Override
+    public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
+        if (!HPacketAvroCellFormat.isBinary(rawHPacket))
+            return jsonAvroHPacketDeserializer.deserialize(rawHPacket, hPacketInfo);
+        byte version = HPacketAvroCellFormat.getVersion(rawHPacket);
+        if (version != HPacketAvroCellFormat.BINARY_FORMAT_VERSION)
+            throw new IOException("Unsupported HPacket binary format version " + version);
+        AvroReader avroReader = readers.get();
+        avroReader.decoder = DecoderFactory.get().binaryDecoder(rawHPacket, HPacketAvroCellFormat.HEADER_LENGTH,
+                rawHPacket.length - HPacketAvroCellFormat.HEADER_LENGTH, avroReader.decoder);
+        return avroReader.reader.read(null, avroReader.decoder);
+    }
+
+    private static final class AvroReader {
+        private final SpecificDatumReader<HPacket> reader = new SpecificDatumReader<>(new HPacket().getSchema());
+        private BinaryDecoder decoder;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hproject.deserialization.service;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketCompression;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDecompressor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decompresses payloads and then delegates to the deserializer of the packet format.
+ * Batch payloads are supported if the format deserializer supports them.
+ */
+public class CompressedHPacketDeserializer implements HPacketBatchDeserializer {
+
+    private final HPacketDeserializer deserializer;
+    private final HPacketCompression compression;
+
+    public CompressedHPacketDeserializer(HPacketDeserializer deserializer, HPacketCompression compression) {
+        this.deserializer = deserializer;
+        this.compression = compression;
+    }
+
+    public HPacketDeserializer getDeserializer() {
+        return deserializer;
+    }
+
+    public HPacketCompression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
+        return deserializer.deserialize(HPacketDecompressor.decompress(rawHPacket, compression), hPacketInfo);
+    }
+
+    @Override
+    public List<HPacket> deserializeBatch(byte[] rawHPackets, HPacketInfo hPacketInfo) throws IOException {
+        byte[] payload = HPacketDecompressor.decompress(rawHPackets, compression);
+        if (deserializer instanceof HPacketBatchDeserializer)
+            return ((HPacketBatchDeserializer) deserializer).deserializeBatch(payload, hPacketInfo);
+        return Collections.singletonList(deserializer.deserialize(payload, hPacketInfo));
+    }
+
+}
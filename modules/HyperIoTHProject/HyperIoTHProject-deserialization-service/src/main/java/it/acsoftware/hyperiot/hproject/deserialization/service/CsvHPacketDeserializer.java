@@ -18,23 +18,36 @@
 package it.acsoftware.hyperiot.hproject.deserialization.service;
 
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
-import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
 import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDeserializerUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class CsvHPacketDeserializer implements HPacketDeserializer {
+public class CsvHPacketDeserializer implements HPacketBatchDeserializer {
 
     private static CsvHPacketDeserializer instance;
 
     private static final Logger log = LoggerFactory.getLogger(CsvHPacketDeserializer.class);
 
+    /**
+     * Compiled once, Pattern instances are immutable and thread-safe
+     */
+    /**
+     * First line of CSV batches: without it, line breaks are separators between name/value pairs of a single reading
+     */
+    public static final String BATCH_MARKER = "#batch";
+
+    private static final Pattern CSV_PATTERN = Pattern.compile("(\"(?:[^\"]|\"\")*\"|[^,\"\\n\\r]*)(,|\\r?\\n|\\r|$)");
+
     private CsvHPacketDeserializer() {
     }
 
@@ -46,30 +59,100 @@ public class CsvHPacketDeserializer implements HPacketDeserializer {
 
     @Override
     public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
-        HashMap<String, Object> message;
         // example CSV input packet
         /*
         "id","Multisensor 2","temperature",22.34,humidity,56.44,"gps.latitude",45.23,"gps.longitude",87.23
          */
-        message = new HashMap<>();
-        Pattern pattern = Pattern.compile("(\"(?:[^\"]|\"\")*\"|[^,\"\\n\\r]*)(,|\\r?\\n|\\r|$)");
-        Matcher matcher = pattern.matcher(new String(rawHPacket));
+        HashMap<String, Object> message = parseRecord(new String(rawHPacket), hPacketInfo.getSchema().getFields());
+        log.debug("CSV Data : {}", message);
+        return HPacketDeserializerUtil.createHPacket(hPacketInfo, message);
+    }
+
+    @Override
+    public List<HPacket> deserializeBatch(byte[] rawHPackets, HPacketInfo hPacketInfo) throws IOException {
+        // example CSV input batch, marker line followed by one reading per line
+        /*
+        #batch
+        "temperature",22.34,"humidity",56.44,"timestamp",1672531200000
+        "temperature",22.38,"humidity",56.40,"timestamp",1672531201000
+         */
+        List<String> records = splitRecords(new String(rawHPackets));
+        if (records.isEmpty() || !records.get(0).trim().equals(BATCH_MARKER))
+            return Collections.singletonList(deserialize(rawHPackets, hPacketInfo));
+        HashMap<String, Object> schemaFields = hPacketInfo.getSchema().getFields();
+        List<HashMap<String, Object>> readings = new ArrayList<>(records.size() - 1);
+        for (String record : records.subList(1, records.size()))
+            readings.add(parseRecord(record, schemaFields));
+        log.debug("CSV batch with {} readings", readings.size());
+        return HPacketDeserializerUtil.createHPackets(hPacketInfo, readings);
+    }
+
+    /**
+     * @param record       CSV record in the form name,value,name,value...
+     * @param schemaFields packet fields
+     * @return values of packet fields
+     */
+    private static HashMap<String, Object> parseRecord(String record, HashMap<String, Object> schemaFields) {
+        HashMap<String, Object> message = new HashMap<>();
+        Matcher matcher = CSV_PATTERN.matcher(record);
         String match;
         String currentField = null;
         while (matcher.find()) {
             match = matcher.group(1);
             if (match != null) {
-                match = match.trim().replaceAll("^\"|\"$", "").trim();
+                match = unquote(match.trim()).trim();
                 if (currentField != null) {
                     message.put(currentField, match);
                     currentField = null;
-                } else if (hPacketInfo.getSchema().getFields().containsKey(match)) {
+                } else if (schemaFields.containsKey(match)) {
                     currentField = match;
                 }
             }
         }
-        log.debug("CSV Data : {}", message);
-        return HPacketDeserializerUtil.createHPacket(hPacketInfo, message);
+        return message;
+    }
+
+    /**
+     * Splits a payload into its non blank records, line breaks inside quoted values do not end a record
+     *
+     * @param payload CSV payload
+     * @return records
+     */
+    private static List<String> splitRecords(String payload) {
+        List<String> records = new ArrayList<>();
+        boolean quoted = false;
+        int begin = 0;
+        for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '\n' || c == '\r')) {
+                addRecord(records, payload, begin, i);
+                begin = i + 1;
+            }
+        }
+        addRecord(records, payload, begin, payload.length());
+        return records;
+    }
+
+    private static void addRecord(List<String> records, String payload, int begin, int end) {
+        String record = payload.substring(begin, end);
+        if (!record.trim().isEmpty())
+            records.add(record);
+    }
+
+    /**
+     * Removes leading and trailing double quotes
+     *
+     * @param value
+     * @return
+     */
+    private static String unquote(String value) {
+        int begin = (value.length() > 0 && value.charAt(0) == '"') ? 1 : 0;
+        int end = value.length();
+        if (end > begin && value.charAt(end - 1) == '"')
+            end--;
+        return value.substring(begin, end);
     }
 
 }
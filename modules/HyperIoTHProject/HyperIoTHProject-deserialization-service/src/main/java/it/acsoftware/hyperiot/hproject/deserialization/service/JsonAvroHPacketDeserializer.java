@@ -18,9 +18,10 @@
 package it.acsoftware.hyperiot.hproject.deserialization.service;
 
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
-import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
-import org.apache.avro.io.DatumReader;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDeserializerUtil;
+import org.apache.avro.Schema;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.JsonDecoder;
 import org.apache.avro.specific.SpecificDatumReader;
@@ -29,14 +30,31 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-public class JsonAvroHPacketDeserializer implements HPacketDeserializer {
+public class JsonAvroHPacketDeserializer implements HPacketBatchDeserializer {
 
     private static JsonAvroHPacketDeserializer instance;
 
     private static final Logger log = LoggerFactory.getLogger(JsonAvroHPacketDeserializer.class);
 
-    private JsonAvroHPacketDeserializer() { }
+    /**
+     * HPacket Avro schema, it changes only when the model bundle is updated
+     */
+    private final Schema schema;
+
+    /**
+     * Datum readers and decoders are not thread-safe, so each thread keeps its own ones and reconfigures them
+     * for every message instead of creating new instances.
+     */
+    private final ThreadLocal<AvroReader> readers;
+
+    private JsonAvroHPacketDeserializer() {
+        this.schema = new HPacket().getSchema();
+        this.readers = ThreadLocal.withInitial(() -> new AvroReader(schema));
+    }
 
     public static synchronized JsonAvroHPacketDeserializer getInstance() {
         if (instance == null)
@@ -46,13 +64,43 @@ public class JsonAvroHPacketDeserializer implements HPacketDeserializer {
 
     @Override
     public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
-        HPacket hPacket = new HPacket();
-        DatumReader<HPacket> reader = new SpecificDatumReader<>(hPacket.getSchema());
-        JsonDecoder decoder =
-                DecoderFactory.get().jsonDecoder(hPacket.getSchema(), new String(rawHPacket, StandardCharsets.UTF_8));
+        AvroReader avroReader = readers.get();
 //        reader.setSchema(oldSchema);  read data with old schemas
-        hPacket = reader.read(null, decoder);
-        return hPacket;
+        JsonDecoder decoder = avroReader.decoder.configure(new String(rawHPacket, StandardCharsets.UTF_8));
+        return avroReader.reader.read(null, decoder);
+    }
+
+    /**
+     * Avro batches are JSON encoded Avro arrays of HPacket records
+     */
+    @Override
+    public List<HPacket> deserializeBatch(byte[] rawHPackets, HPacketInfo hPacketInfo) throws IOException {
+        if (!HPacketDeserializerUtil.isJsonArray(rawHPackets))
+            return Collections.singletonList(deserialize(rawHPackets, hPacketInfo));
+        AvroReader avroReader = readers.get();
+        JsonDecoder decoder = avroReader.batchDecoder.configure(new String(rawHPackets, StandardCharsets.UTF_8));
+        List<HPacket> packets = new ArrayList<>(avroReader.batchReader.read(null, decoder));
+        HPacketDeserializerUtil.checkBatchSize(packets.size());
+        return packets;
+    }
+
+    private static final class AvroReader {
+        private final SpecificDatumReader<HPacket> reader;
+        private final JsonDecoder decoder;
+        private final SpecificDatumReader<List<HPacket>> batchReader;
+        private final JsonDecoder batchDecoder;
+
+        private AvroReader(Schema schema) {
+            this.reader = new SpecificDatumReader<>(schema);
+            Schema batchSchema = Schema.createArray(schema);
+            this.batchReader = new SpecificDatumReader<>(batchSchema);
+            try {
+                this.decoder = DecoderFactory.get().jsonDecoder(schema, "{}");
+                this.batchDecoder = DecoderFactory.get().jsonDecoder(batchSchema, "[]");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
     }
 
 }
@@ -21,21 +21,28 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
-import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
 import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDeserializerUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
-public class JsonHPacketDeserializer implements HPacketDeserializer {
+public class JsonHPacketDeserializer implements HPacketBatchDeserializer {
 
     private static JsonHPacketDeserializer instance;
 
     private static final Logger log = LoggerFactory.getLogger(JsonHPacketDeserializer.class);
 
+    private static final TypeReference<HashMap<String, Object>> MESSAGE_TYPE_REF = new TypeReference<HashMap<String, Object>>() {
+    };
+    private static final TypeReference<List<HashMap<String, Object>>> BATCH_TYPE_REF = new TypeReference<List<HashMap<String, Object>>>() {
+    };
+
     private final ObjectMapper objectMapper;
 
     private JsonHPacketDeserializer() {
@@ -52,8 +59,6 @@ public class JsonHPacketDeserializer implements HPacketDeserializer {
     @Override
     public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
         HashMap<String, Object> message;
-        TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>() {
-        };
         // example input JSON packet
         /*
         {
@@ -73,10 +78,26 @@ public class JsonHPacketDeserializer implements HPacketDeserializer {
           …
         }
         */
-        message = objectMapper.readValue(rawHPacket, typeRef);
+        message = objectMapper.readValue(rawHPacket, MESSAGE_TYPE_REF);
         log.debug("JSON Data : {}", message);
         // create and return the HPacket
         return HPacketDeserializerUtil.createHPacket(hPacketInfo, message);
     }
 
+    @Override
+    public List<HPacket> deserializeBatch(byte[] rawHPackets, HPacketInfo hPacketInfo) throws IOException {
+        // example input JSON batch, each reading has the same format of a single packet
+        /*
+        [
+          {"temperature": 30.28, "humidity": 33.75, "timestamp": 1672531200000},
+          {"temperature": 30.31, "humidity": 33.70, "timestamp": 1672531201000}
+        ]
+        */
+        if (!HPacketDeserializerUtil.isJsonArray(rawHPackets))
+            return Collections.singletonList(deserialize(rawHPackets, hPacketInfo));
+        List<HashMap<String, Object>> readings = objectMapper.readValue(rawHPackets, BATCH_TYPE_REF);
+        log.debug("JSON batch with {} readings", readings.size());
+        return HPacketDeserializerUtil.createHPackets(hPacketInfo, readings);
+    }
+
 }
@@ -35,7 +35,17 @@ public class XmlHPacketDeserializer implements HPacketDeserializer {
 
     private static final Logger log = LoggerFactory.getLogger(XmlHPacketDeserializer.class);
 
+    private static final TypeReference<HashMap<String, Object>> MESSAGE_TYPE_REF = new TypeReference<HashMap<String, Object>>() {
+    };
+
+    /**
+     * Configured once, mapper is thread-safe after configuration
+     */
+    private final XmlMapper xmlMapper;
+
     private XmlHPacketDeserializer() {
+        xmlMapper = new XmlMapper();
+        xmlMapper.setDefaultUseWrapper(false);
     }
 
     public static synchronized XmlHPacketDeserializer getInstance() {
@@ -47,8 +57,6 @@ public class XmlHPacketDeserializer implements HPacketDeserializer {
     @Override
     public HPacket deserialize(byte[] rawHPacket, HPacketInfo hPacketInfo) throws IOException {
         HashMap<String, Object> message;
-        TypeReference<HashMap<String, Object>> typeRef = new TypeReference<HashMap<String, Object>>() {
-        };
         // example input XML packet
         /*
         <?xml version="1.0" encoding="UTF-8"?>
@@ -69,9 +77,7 @@ public class XmlHPacketDeserializer implements HPacketDeserializer {
           …
         </fields>
         */
-        XmlMapper xmlMapper = new XmlMapper();
-        xmlMapper.setDefaultUseWrapper(false);
-        message = xmlMapper.readValue(rawHPacket, typeRef);
+        message = xmlMapper.readValue(rawHPacket, MESSAGE_TYPE_REF);
         log.debug("XML Data : {}", message);
         // create and return the HPacket
         return HPacketDeserializerUtil.createHPacket(hPacketInfo, message);
@@ -18,8 +18,10 @@
 package it.acsoftware.hyperiot.hproject.deserialization.service.builder;
 
 import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
+import it.acsoftware.hyperiot.hpacket.model.HPacketCompression;
 import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
 import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.CompressedHPacketDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.service.CsvHPacketDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.service.JsonHPacketDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.service.XmlHPacketDeserializer;
@@ -30,12 +32,22 @@ import java.util.Map;
 public final class HPacketDeserializerBuilder {
 
     private static final Map<HPacketFormat, HPacketDeserializer> deserializerMap;
+    private static final Map<HPacketCompression, Map<HPacketFormat, HPacketDeserializer>> compressedDeserializerMap;
 
     static {
         deserializerMap = new EnumMap<>(HPacketFormat.class);
         deserializerMap.put(HPacketFormat.CSV, CsvHPacketDeserializer.getInstance());
         deserializerMap.put(HPacketFormat.JSON, JsonHPacketDeserializer.getInstance());
         deserializerMap.put(HPacketFormat.XML, XmlHPacketDeserializer.getInstance());
+        compressedDeserializerMap = new EnumMap<>(HPacketCompression.class);
+        for (HPacketCompression compression : HPacketCompression.values()) {
+            if (compression == HPacketCompression.NONE)
+                continue;
+            Map<HPacketFormat, HPacketDeserializer> deserializers = new EnumMap<>(HPacketFormat.class);
+            deserializerMap.forEach((format, deserializer) ->
+                    deserializers.put(format, new CompressedHPacketDeserializer(deserializer, compression)));
+            compressedDeserializerMap.put(compression, deserializers);
+        }
     }
 
     private HPacketDeserializerBuilder() {
@@ -48,4 +60,18 @@ public final class HPacketDeserializerBuilder {
         return deserializerMap.get(format);
     }
 
+    /**
+     * @param format      packet format
+     * @param compression payload compression, null or NONE if payloads are not compressed
+     * @return deserializer which decompresses payloads before parsing them
+     */
+    public static HPacketDeserializer getDeserializer(HPacketFormat format, HPacketCompression compression) {
+        if (compression == null || compression == HPacketCompression.NONE)
+            return getDeserializer(format);
+        Map<HPacketFormat, HPacketDeserializer> deserializers = compressedDeserializerMap.get(compression);
+        if (deserializers == null || !deserializers.containsKey(format))
+            throw new HyperIoTRuntimeException("Deserializer not found");
+        return deserializers.get(format);
+    }
+
 }
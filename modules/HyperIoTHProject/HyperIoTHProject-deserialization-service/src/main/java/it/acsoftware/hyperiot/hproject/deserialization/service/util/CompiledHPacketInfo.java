@@ -0,0 +1,39 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.deserialization.service.util;
+
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+
+/**
+ * HPacketInfo carrying the field plan already compiled from its packet definition,
+ * so deserializers do not compile it again for each message.
+ * Schema and timestamp definitions must be the ones the plan has been compiled from.
+ */
+public class CompiledHPacketInfo extends HPacketInfo {
+
+    private final HPacketFieldPlan fieldPlan;
+
+    public CompiledHPacketInfo(HPacketFieldPlan fieldPlan) {
+        this.fieldPlan = fieldPlan;
+    }
+
+    public HPacketFieldPlan getFieldPlan() {
+        return fieldPlan;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hproject.deserialization.service.util;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import it.acsoftware.hyperiot.hpacket.model.HPacketCompression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses device payloads before they reach format deserializers.
+ * Inflaters and zstd contexts hold native memory and are expensive to create: each thread reuses its own instances.
+ * Decompressed payloads are bounded by a max size, so a small compressed payload cannot expand
+ * into an unbounded amount of memory (zip bomb).
+ * Max size can be changed with the it.acsoftware.hyperiot.deserialization.max.decompressed.size system property.
+ */
+public final class HPacketDecompressor {
+
+    public static final String MAX_DECOMPRESSED_SIZE_PROPERTY = "it.acsoftware.hyperiot.deserialization.max.decompressed.size";
+    public static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_DECOMPRESSED_SIZE = Integer.getInteger(MAX_DECOMPRESSED_SIZE_PROPERTY, DEFAULT_MAX_DECOMPRESSED_SIZE);
+
+    /**
+     * Deflate cannot expand data more than about 1032 times, larger size hints are not trusted
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+    private static final int GZIP_DEFLATE = 8;
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+    private static final ThreadLocal<ZstdDecompressCtx> zstdContexts = ThreadLocal.withInitial(ZstdDecompressCtx::new);
+
+    private HPacketDecompressor() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return max size of a decompressed payload
+     */
+    public static int getMaxDecompressedSize() {
+        return MAX_DECOMPRESSED_SIZE;
+    }
+
+    /**
+     * @param rawHPacket  payload as received from the device
+     * @param compression payload compression, null or NONE if payload is not compressed
+     * @return decompressed payload
+     * @throws IOException if payload is not valid or its decompressed size exceeds getMaxDecompressedSize()
+     */
+    public static byte[] decompress(byte[] rawHPacket, HPacketCompression compression) throws IOException {
+        return decompress(rawHPacket, compression, MAX_DECOMPRESSED_SIZE);
+    }
+
+    /**
+     * @param rawHPacket  payload as received from the device
+     * @param compression payload compression, null or NONE if payload is not compressed
+     * @param maxSize     max size of the decompressed payload
+     * @return decompressed payload
+     * @throws IOException if payload is not valid or its decompressed size exceeds maxSize
+     */
+    public static byte[] decompress(byte[] rawHPacket, HPacketCompression compression, int maxSize) throws IOException {
+        if (compression == null)
+            return rawHPacket;
+        switch (compression) {
+            case GZIP:
+                return gunzip(rawHPacket, maxSize);
+            case ZSTD:
+                return unzstd(rawHPacket, maxSize);
+            default:
+                return rawHPacket;
+        }
+    }
+
+    private static byte[] gunzip(byte[] raw, int maxSize) throws IOException {
+        int offset = skipGzipHeader(raw);
+        if (raw.length - offset < GZIP_TRAILER_SIZE)
+            throw new IOException("Truncated gzip payload");
+        // ISIZE trailer is used only as a hint for the output buffer size
+        long sizeHint = readIntLE(raw, raw.length - 4) & 0xffffffffL;
+        long maxExpected = Math.min(maxSize, (long) raw.length * MAX_DEFLATE_RATIO);
+        byte[] out = new byte[(int) Math.max(64, Math.min(sizeHint, maxExpected))];
+        int size = 0;
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(raw, offset, raw.length - offset);
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (size >= maxSize)
+                        throw tooLarge(maxSize);
+                    out = Arrays.copyOf(out, (int) Math.min((long) out.length * 2, maxSize));
+                }
+                int read = inflater.inflate(out, size, out.length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated gzip payload");
+                size += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid gzip payload", e);
+        }
+        int trailer = raw.length - inflater.getRemaining();
+        if (inflater.getRemaining() < GZIP_TRAILER_SIZE)
+            throw new IOException("Truncated gzip payload");
+        if (inflater.getRemaining() > GZIP_TRAILER_SIZE)
+            throw new IOException("Gzip payload must contain exactly one member");
+        CRC32 crc = checksums.get();
+        crc.reset();
+        crc.update(out, 0, size);
+        if ((readIntLE(raw, trailer) & 0xffffffffL) != crc.getValue())
+            throw new IOException("Corrupted gzip payload: CRC mismatch");
+        if ((readIntLE(raw, trailer + 4) & 0xffffffffL) != (size & 0xffffffffL))
+            throw new IOException("Corrupted gzip payload: size mismatch");
+        return size == out.length ? out : Arrays.copyOf(out, size);
+    }
+
+    /**
+     * @param raw gzip payload
+     * @return offset of deflate data
+     * @throws IOException if header is not valid
+     */
+    private static int skipGzipHeader(byte[] raw) throws IOException {
+        if (raw.length < GZIP_HEADER_SIZE || (raw[0] & 0xff) != GZIP_MAGIC_1 || (raw[1] & 0xff) != GZIP_MAGIC_2)
+            throw new IOException("Not a gzip payload");
+        if (raw[2] != GZIP_DEFLATE)
+            throw new IOException("Unsupported gzip compression method " + raw[2]);
+        int flags = raw[3];
+        int offset = GZIP_HEADER_SIZE;
+        try {
+            if ((flags & FEXTRA) != 0)
+                offset += 2 + ((raw[offset] & 0xff) | (raw[offset + 1] & 0xff) << 8);
+            if ((flags & FNAME) != 0)
+                offset = skipZeroTerminated(raw, offset);
+            if ((flags & FCOMMENT) != 0)
+                offset = skipZeroTerminated(raw, offset);
+            if ((flags & FHCRC) != 0)
+                offset += 2;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated gzip header");
+        }
+        if (offset > raw.length)
+            throw new IOException("Truncated gzip header");
+        return offset;
+    }
+
+    private static int skipZeroTerminated(byte[] raw, int offset) {
+        while (raw[offset] != 0)
+            offset++;
+        return offset + 1;
+    }
+
+    private static byte[] unzstd(byte[] raw, int maxSize) throws IOException {
+        long contentSize;
+        try {
+            contentSize = Zstd.getFrameContentSize(raw);
+        } catch (ZstdException e) {
+            throw new IOException("Invalid zstd payload", e);
+        }
+        // frames written by streaming compressors may not declare their content size
+        if (contentSize < 0)
+            return unzstdStream(raw, maxSize);
+        if (contentSize > maxSize)
+            throw tooLarge(maxSize);
+        byte[] out = new byte[(int) contentSize];
+        try {
+            int size = zstdContexts.get().decompressByteArray(out, 0, out.length, raw, 0, raw.length);
+            return size == out.length ? out : Arrays.copyOf(out, size);
+        } catch (ZstdException e) {
+            throw new IOException("Invalid zstd payload", e);
+        }
+    }
+
+    private static byte[] unzstdStream(byte[] raw, int maxSize) throws IOException {
+        try (InputStream in = new ZstdInputStreamNoFinalizer(new ByteArrayInputStream(raw), RecyclingBufferPool.INSTANCE)) {
+            byte[] out = new byte[(int) Math.min(Math.max(64L, (long) raw.length * 4), maxSize)];
+            int size = 0;
+            while (true) {
+                if (size == out.length) {
+                    // payload fills the buffer: it is valid only if the stream ends here
+                    if (size >= maxSize) {
+                        if (in.read() != -1)
+                            throw tooLarge(maxSize);
+                        return out;
+                    }
+                    out = Arrays.copyOf(out, (int) Math.min((long) out.length * 2, maxSize));
+                }
+                int read = in.read(out, size, out.length - size);
+                if (read < 0)
+                    return Arrays.copyOf(out, size);
+                size += read;
+            }
+        } catch (ZstdException e) {
+            throw new IOException("Invalid zstd payload", e);
+        }
+    }
+
+    private static int readIntLE(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+    }
+
+    private static IOException tooLarge(int maxSize) {
+        return new IOException("Decompressed payload exceeds max size of " + maxSize + " bytes");
+    }
+
+}
@@ -21,6 +21,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.acsoftware.hyperiot.hdevice.model.HDevice;
 import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
@@ -31,18 +32,31 @@ import it.acsoftware.hyperiot.hproject.model.HProject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAccessor;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
 
 public final class HPacketDeserializerUtil {
 
     private static final Logger log = LoggerFactory.getLogger(HPacketDeserializerUtil.class);
 
+    /**
+     * Shared mapper, used to parse array values
+     */
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final TypeReference<List<Boolean>> BOOLEAN_LIST = new TypeReference<List<Boolean>>() {
+    };
+    private static final TypeReference<List<Double>> DOUBLE_LIST = new TypeReference<List<Double>>() {
+    };
+    private static final TypeReference<List<Float>> FLOAT_LIST = new TypeReference<List<Float>>() {
+    };
+    private static final TypeReference<List<Integer>> INTEGER_LIST = new TypeReference<List<Integer>>() {
+    };
+
     private HPacketDeserializerUtil() {
         throw new IllegalStateException("Utility class");
     }
@@ -62,6 +76,8 @@ public final class HPacketDeserializerUtil {
         info.setUnixTimestamp(packet.isUnixTimestamp());
         info.setUnixTimestampFormatSeconds(packet.isUnixTimestampFormatSeconds());
         info.setTrafficPlan(packet.getTrafficPlan().toString());
+        if (packet.getCompression() != null && packet.getCompression() != HPacketCompression.NONE)
+            info.setCompression(packet.getCompression().getName());
         info.setHProjectId(packet.getDevice().getProject().getId());
         HPacketSchema schema = new HPacketSchema();
         schema.setType(packet.getType().toString());
@@ -74,6 +90,23 @@ public final class HPacketDeserializerUtil {
         return info;
     }
 
+    /**
+     * Returns the field plan for the given packet definition.
+     * The plan carried by a CompiledHPacketInfo is reused as long as it refers to the same definitions,
+     * otherwise it is compiled.
+     *
+     * @param hPacketInfo packet definition
+     * @return compiled field plan
+     */
+    public static HPacketFieldPlan getFieldPlan(HPacketInfo hPacketInfo) {
+        if (hPacketInfo instanceof CompiledHPacketInfo) {
+            HPacketFieldPlan plan = ((CompiledHPacketInfo) hPacketInfo).getFieldPlan();
+            if (plan.isCompiledFrom(hPacketInfo))
+                return plan;
+        }
+        return HPacketFieldPlan.compile(hPacketInfo);
+    }
+
     /**
      * Add a field specified by `path` from the source `node` tree to the
      * HPacketField `fields` collection belonging to the given `packet`.
@@ -86,148 +119,119 @@ public final class HPacketDeserializerUtil {
      */
     public static void addField(HPacket packet, Set<HPacketField> fields, HashMap<String, Object> node, String path,
                                 Object innerFieldDataObj) throws Exception {
-        if (log.isDebugEnabled()) {
-            log.debug("ADDING FIELD DEBUG INFO \n PATH: {}", path);
-            log.debug("------ NODE MAP------");
-            AtomicReference<HashMap> atomicReference = new AtomicReference<>(node);
-            node.keySet().forEach(key -> log.debug("{} : {}", key, atomicReference.get().get(key)));
-            log.debug("------ FIELDS------");
-            fields.forEach(field -> log.debug("{}", field));
-            log.debug("------ INNER FIELDS------");
-            log.debug("{}", innerFieldDataObj);
-        }
-        HashMap<String, Object> innerFieldData = (HashMap<String, Object>) innerFieldDataObj;
-        String p = path;
-        int dotIndex = path.indexOf(".");
-        if (dotIndex > 0) {
-            p = path.substring(0, dotIndex);
-            path = path.substring(dotIndex + 1);
-        }
-        if (node.containsKey(p)) {
-            log.debug("node contains {}", p);
-            if (node.get(p) instanceof LinkedHashMap) {
-                log.debug("field is array");
-                final String cp = p;
-                HPacketField field = fields.stream().filter((f) -> f.getName().equals(cp)).findFirst().orElse(null);
-                if (field == null) {
-                    log.debug("field found, create packet field");
-                    field = new HPacketField();
-                    Date now = new Date();
-                    field.setEntityCreateDate(now);
-                    field.setEntityModifyDate(now);
-                    field.setName(p);
-                    field.setMultiplicity(HPacketFieldMultiplicity.ARRAY);
-                    field.setType(HPacketFieldType.OBJECT);
-                    field.setCategoryIds(new long[0]);
-                    field.setTagIds(new long[0]);
-                    field.setPacket(packet);
-                    fields.add(field);
-                }
-                Set<HPacketField> innerFields = field.getInnerFields();
-                if (innerFields == null) {
-                    innerFields = new HashSet<>();
-                    field.setInnerFields(innerFields);
-                }
-                node = (HashMap<String, Object>) node.get(p);
-                addField(packet, innerFields, node, path, innerFieldData);
-            } else {
-                log.debug("field is not array");
-                String value = node.get(p).toString();
-                log.debug("[METHOD] addField -> parsing field \"{}\" with value \"{}\"", p, value);
-                int multiplicity = guessMultiplicity(value);
-                ObjectMapper mapper = new ObjectMapper();
-                HPacketField field = new HPacketField();
-                Date now = new Date();
+        HPacketFieldPlan.FieldSpec fieldSpec = HPacketFieldPlan.FieldSpec.compile(path, innerFieldDataObj);
+        addField(packet, fields, new HashMap<>(), node, fieldSpec, new Date());
+    }
+
+    /**
+     * Add a field described by a compiled field definition from the source `node` tree to the
+     * HPacketField `fields` collection belonging to the given `packet`.
+     *
+     * @param packet       target packet (required to set a reference to in newly added fields)
+     * @param fields       output fields collection where to add parsed key/value
+     * @param objectFields object fields already created for this packet, indexed by path
+     * @param node         input node where to search for path
+     * @param fieldSpec    compiled field definition
+     * @param now          creation date for the new fields
+     */
+    @SuppressWarnings("unchecked")
+    private static void addField(HPacket packet, Set<HPacketField> fields, Map<String, HPacketField> objectFields,
+                                 Map<String, Object> node, HPacketFieldPlan.FieldSpec fieldSpec, Date now) throws IOException {
+        int depth = fieldSpec.getDepth();
+        int i = 0;
+        String objectPath = null;
+        while (true) {
+            String p = fieldSpec.getSegment(i);
+            Object nodeValue = node.get(p);
+            if (nodeValue == null && !node.containsKey(p)) {
+                log.debug("path not found for {}", p);
+                return;
+            }
+            if (!(nodeValue instanceof LinkedHashMap)) {
+                fields.add(createLeafField(packet, p, nodeValue, fieldSpec, now));
+                return;
+            }
+            log.debug("field is array");
+            objectPath = (objectPath == null) ? p : objectPath + "." + p;
+            HPacketField field = objectFields.get(objectPath);
+            if (field == null) {
+                field = new HPacketField();
                 field.setEntityCreateDate(now);
                 field.setEntityModifyDate(now);
                 field.setName(p);
-                Number fieldId = null;
-
-                if (innerFieldData.get("id") instanceof String)
-                    fieldId = Long.parseLong((String) innerFieldData.get("id"));
-                else if (innerFieldData.get("id") instanceof Number)
-                    fieldId = (Number) innerFieldData.get("id");
-
-                field.setId(fieldId.longValue());
-                if (multiplicity == 1) {
-                    field.setMultiplicity(HPacketFieldMultiplicity.ARRAY);
-                } else if (multiplicity > 1) {
-                    throw new UnsupportedOperationException();
-                } else {
-                    field.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
-                }
-                field.setType(HPacketFieldType.valueOf(innerFieldData.get("type").toString().toUpperCase()));
-                switch (field.getType()) {
-                    case BOOLEAN:
-                        if (multiplicity == 1) {
-                            // Array
-                            TypeReference<List<Boolean>> typeRef = new TypeReference<List<Boolean>>() {
-                            };
-                            List<Boolean> valueArray = mapper.readValue(value, typeRef);
-                            field.setValue(valueArray);
-                        } else {
-                            // Single value
-                            field.setValue(Boolean.valueOf(value));
-                        }
-                        break;
-                    case DOUBLE:
-                        if (multiplicity == 1) {
-                            // Array
-                            TypeReference<List<Double>> typeRef = new TypeReference<List<Double>>() {
-                            };
-                            List<Double> valueArray = mapper.readValue(value, typeRef);
-                            field.setValue(valueArray);
-                        } else {
-                            // Single value
-                            field.setValue(Double.valueOf(value));
-                        }
-                        break;
-                    case FLOAT:
-                        if (multiplicity == 1) {
-                            // Array
-                            TypeReference<List<Float>> typeRef = new TypeReference<List<Float>>() {
-                            };
-                            List<Float> valueArray = mapper.readValue(value, typeRef);
-                            field.setValue(valueArray);
-                        } else {
-                            // Single value
-                            field.setValue(Float.valueOf(value));
-                        }
-                        break;
-                    case INTEGER:
-                        if (multiplicity == 1) {
-                            // Array
-                            TypeReference<List<Integer>> typeRef = new TypeReference<List<Integer>>() {
-                            };
-                            List<Integer> valueArray = mapper.readValue(value, typeRef);
-                            field.setValue(valueArray);
-                        } else {
-                            // Single value
-                            field.setValue(Integer.valueOf(value));
-                        }
-                        break;
-                    case DATE:
-                        DateTimeFormatter timeFormatter = DateTimeFormatter.ISO_DATE_TIME;
-                        TemporalAccessor accessor = timeFormatter.parse(value);
-                        field.setValue(Date.from(Instant.from(accessor)));
-                        break;
-                    case TIMESTAMP:
-                        field.setValue(Long.valueOf(value));
-                        break;
-                    default:
-                        field.setValue(node.get(p));
-                }
+                field.setMultiplicity(HPacketFieldMultiplicity.ARRAY);
+                field.setType(HPacketFieldType.OBJECT);
                 field.setCategoryIds(new long[0]);
                 field.setTagIds(new long[0]);
                 field.setPacket(packet);
+                field.setInnerFields(new HashSet<>());
                 fields.add(field);
+                objectFields.put(objectPath, field);
+            } else if (field.getInnerFields() == null) {
+                field.setInnerFields(new HashSet<>());
             }
+            fields = field.getInnerFields();
+            node = (Map<String, Object>) nodeValue;
+            //the last segment is searched again inside the nested node
+            if (i < depth - 1)
+                i++;
+        }
+    }
+
+    /**
+     * @param packet    target packet
+     * @param name      field name
+     * @param nodeValue raw value
+     * @param fieldSpec compiled field definition
+     * @param now       creation date
+     * @return HPacketField with converted value
+     * @throws IOException
+     */
+    private static HPacketField createLeafField(HPacket packet, String name, Object nodeValue,
+                                                HPacketFieldPlan.FieldSpec fieldSpec, Date now) throws IOException {
+        String value = nodeValue.toString();
+        log.debug("[METHOD] addField -> parsing field \"{}\" with value \"{}\"", name, value);
+        int multiplicity = guessMultiplicity(value);
+        HPacketField field = new HPacketField();
+        field.setEntityCreateDate(now);
+        field.setEntityModifyDate(now);
+        field.setName(name);
+        field.setId(fieldSpec.getId());
+        if (multiplicity == 1) {
+            field.setMultiplicity(HPacketFieldMultiplicity.ARRAY);
+        } else if (multiplicity > 1) {
+            throw new UnsupportedOperationException();
         } else {
-            log.debug("path not found for {}", p);
-            StringBuilder sb = new StringBuilder();
-            fields.forEach(hPacketField -> sb.append(hPacketField.getName()));
-            log.debug("Print fields {}", sb);
+            field.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        }
+        field.setType(fieldSpec.getType());
+        switch (field.getType()) {
+            case BOOLEAN:
+                field.setValue(multiplicity == 1 ? mapper.readValue(value, BOOLEAN_LIST) : Boolean.valueOf(value));
+                break;
+            case DOUBLE:
+                field.setValue(multiplicity == 1 ? mapper.readValue(value, DOUBLE_LIST) : Double.valueOf(value));
+                break;
+            case FLOAT:
+                field.setValue(multiplicity == 1 ? mapper.readValue(value, FLOAT_LIST) : Float.valueOf(value));
+                break;
+            case INTEGER:
+                field.setValue(multiplicity == 1 ? mapper.readValue(value, INTEGER_LIST) : Integer.valueOf(value));
+                break;
+            case DATE:
+                TemporalAccessor accessor = DateTimeFormatter.ISO_DATE_TIME.parse(value);
+                field.setValue(Date.from(Instant.from(accessor)));
+                break;
+            case TIMESTAMP:
+                field.setValue(Long.valueOf(value));
+                break;
+            default:
+                field.setValue(nodeValue);
         }
+        field.setCategoryIds(new long[0]);
+        field.setTagIds(new long[0]);
+        field.setPacket(packet);
+        return field;
     }
 
     /**
@@ -258,6 +262,57 @@ public final class HPacketDeserializerUtil {
         return HPacketDeserializerUtil.createHPacket(packetId, device, hPacketInfo, message);
     }
 
+    /**
+     * Creates one HPacket for each reading of a batch, readings share the same device and project instances.
+     * Every reading must carry its own timestamp field.
+     *
+     * @param hPacketInfo packet definition
+     * @param readings    batch readings
+     * @return HPackets, in the same order of readings
+     * @throws IOException if the batch is not valid
+     */
+    public static List<HPacket> createHPackets(HPacketInfo hPacketInfo, List<HashMap<String, Object>> readings) throws IOException {
+        checkBatchSize(readings.size());
+        String timestampField = hPacketInfo.getTimestamp().getField();
+        HDevice device = HPacketDeserializerUtil.createHDevice(hPacketInfo.getHDeviceId(),
+                HPacketDeserializerUtil.createHProject(hPacketInfo.getHProjectId()));
+        HPacketFieldPlan plan = getFieldPlan(hPacketInfo);
+        List<HPacket> packets = new ArrayList<>(readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            HashMap<String, Object> reading = readings.get(i);
+            if (reading == null || !reading.containsKey(timestampField))
+                throw new IOException("Reading " + i + " of batch has no timestamp field " + timestampField);
+            packets.add(createHPacket(hPacketInfo.getHPacketId(), device, hPacketInfo, plan, reading));
+        }
+        return packets;
+    }
+
+    /**
+     * @param readings number of readings inside a batch
+     * @throws IOException if the batch is empty or exceeds HPacketBatchDeserializer.MAX_BATCH_READINGS
+     */
+    public static void checkBatchSize(int readings) throws IOException {
+        if (readings == 0)
+            throw new IOException("Batch contains no readings");
+        if (readings > HPacketBatchDeserializer.MAX_BATCH_READINGS)
+            throw new IOException("Batch contains " + readings + " readings, max allowed is "
+                    + HPacketBatchDeserializer.MAX_BATCH_READINGS);
+    }
+
+    /**
+     * JSON batches are arrays of readings, while single readings are JSON objects
+     *
+     * @param rawHPacket payload
+     * @return true if the first non blank character is '['
+     */
+    public static boolean isJsonArray(byte[] rawHPacket) {
+        for (byte b : rawHPacket) {
+            if (!Character.isWhitespace(b))
+                return b == '[';
+        }
+        return false;
+    }
+
     /**
      * Creates HPacket instance starting from HPacketInfo,Device and packetId
      *
@@ -268,6 +323,10 @@ public final class HPacketDeserializerUtil {
      * @return
      */
     public static HPacket createHPacket(long packetId, HDevice device, HPacketInfo hPacketInfo, HashMap<String, Object> message) {
+        return createHPacket(packetId, device, hPacketInfo, getFieldPlan(hPacketInfo), message);
+    }
+
+    private static HPacket createHPacket(long packetId, HDevice device, HPacketInfo hPacketInfo, HPacketFieldPlan plan, HashMap<String, Object> message) {
         Date now = new Date();
         HPacket packet = new HPacket();
         packet.setEntityCreateDate(now);
@@ -277,25 +336,24 @@ public final class HPacketDeserializerUtil {
         packet.setTimestampField(hPacketInfo.getTimestamp().getField());
         packet.setUnixTimestamp(hPacketInfo.isUnixTimestamp());
         packet.setUnixTimestampFormatSeconds(hPacketInfo.isUnixTimestampFormatSeconds());
-        packet.setTrafficPlan(HPacketTrafficPlan.valueOf(hPacketInfo.getTrafficPlan().toUpperCase()));
+        packet.setTrafficPlan(plan.getTrafficPlan());
         packet.setId(packetId);
         packet.setDevice(device);
-        packet.setType(HPacketType.valueOf(hPacketInfo.getType().toUpperCase()));
+        packet.setType(plan.getType());
         packet.setCategoryIds(new long[0]);
         packet.setTagIds(new long[0]);
         Set<HPacketField> packetFields = new HashSet<>();
-        final HashMap<String, Object> m = message;
-        hPacketInfo.getSchema().getFields().forEach((key, innerFieldData) -> {
+        Map<String, HPacketField> objectFields = new HashMap<>();
+        //Timestamp field has already been excluded by the plan, it is added manually later
+        for (HPacketFieldPlan.FieldSpec fieldSpec : plan.getFields()) {
             try {
-                //Timestamp field is added manually later
-                if (!key.equalsIgnoreCase(packet.getTimestampField()))
-                    HPacketDeserializerUtil.addField(packet, packetFields, m, key, innerFieldData);
+                HPacketDeserializerUtil.addField(packet, packetFields, objectFields, message, fieldSpec, now);
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Could not add field {} to packet {}: {}", fieldSpec.getPath(), packetId, e.getMessage());
             }
-        });
+        }
         //finally we always add timestamp field
-        HPacketField convertedTimestamp = createTimestampField(packet, hPacketInfo, m);
+        HPacketField convertedTimestamp = createTimestampField(packet, hPacketInfo, plan, message);
         packetFields.add(convertedTimestamp);
         if (packetFields.size() > 0)
             packet.defineFields(new ArrayList<>(packetFields));
@@ -319,20 +377,20 @@ public final class HPacketDeserializerUtil {
         return project;
     }
 
-    private static long createHPacketTimestamp(HPacket packet, HPacketInfo hPacketInfo, HashMap<String, Object> fields) {
+    private static long createHPacketTimestamp(HPacket packet, HPacketInfo hPacketInfo, HPacketFieldPlan plan, HashMap<String, Object> fields) {
         long timestamp = 0L;
         try {
-            timestamp = getConvertedTimestamp(packet, fields);
+            timestamp = getConvertedTimestamp(packet, plan, fields);
             log.debug("Converted timestamp is: {}", timestamp);
         } catch (TimestampFieldNotFoundException e) {
             if (hPacketInfo.getTimestamp().isCreateDefaultIfNotExists()) {
-                timestamp = setHPacketDefaultTimestamp(packet);
+                timestamp = setHPacketDefaultTimestamp(packet, hPacketInfo);
             } else {
-                timestamp = Instant.now().toEpochMilli();
+                timestamp = getDefaultTimestamp(hPacketInfo);
             }
         } catch (Exception e1) {
             //in case of error we add default timestamp
-            timestamp = setHPacketDefaultTimestamp(packet);
+            timestamp = setHPacketDefaultTimestamp(packet, hPacketInfo);
         }
         //After the conversion packet has always UNIX timestamp in MILLISECONDS
         packet.setUnixTimestamp(true);
@@ -346,21 +404,30 @@ public final class HPacketDeserializerUtil {
      * timestamp values submitted by user. However, during streaming process,
      * there isn't timestamp field, so we need a default value.
      *
-     * @param packet Received HPacket
+     * @param packet      Received HPacket
+     * @param hPacketInfo HPacketInfo
      * @return Default timestamp, i.e. The number of milliseconds from the epoch of 1970-01-01T00:00:00Z.
      */
-    private static long setHPacketDefaultTimestamp(HPacket packet) {
+    private static long setHPacketDefaultTimestamp(HPacket packet, HPacketInfo hPacketInfo) {
         log.debug("Error during conversion, or timestamp field \"{}\" isn't present in raw message: add timestamp default values",
                 packet.getTimestampField());
         packet.setUnixTimestamp(true);
         packet.setUnixTimestampFormatSeconds(false);
         packet.setTimestampField("timestamp-default");
         packet.setTimestampFormat("UTC-default");
-        long timestamp = Instant.now().toEpochMilli();
-        log.debug("Current timestamp: {}", timestamp);
+        long timestamp = getDefaultTimestamp(hPacketInfo);
+        log.debug("Default timestamp: {}", timestamp);
         return timestamp;
     }
 
+    /**
+     * @param hPacketInfo HPacketInfo
+     * @return time at which the message has been received, if known, current time otherwise
+     */
+    private static long getDefaultTimestamp(HPacketInfo hPacketInfo) {
+        return (hPacketInfo.getReceivedTimestamp() > 0) ? hPacketInfo.getReceivedTimestamp() : Instant.now().toEpochMilli();
+    }
+
 
     /**
      * It returns packet timestamp. It can be a number (millis Unix Epoch time) or a String,
@@ -372,6 +439,10 @@ public final class HPacketDeserializerUtil {
      * @return The number of milliseconds from the epoch of 1970-01-01T00:00:00Z.
      */
     public static long getConvertedTimestamp(HPacket packet, HashMap<String, Object> fields) throws TimestampFieldNotFoundException, TimestampFormatException, TimestampConversionException {
+        return getConvertedTimestamp(packet, null, fields);
+    }
+
+    private static long getConvertedTimestamp(HPacket packet, HPacketFieldPlan plan, HashMap<String, Object> fields) throws TimestampFieldNotFoundException, TimestampFormatException, TimestampConversionException {
         if (!fields.containsKey(packet.getTimestampField())) {
             throw new TimestampFieldNotFoundException();
         }
@@ -382,6 +453,13 @@ public final class HPacketDeserializerUtil {
             if (timestamp instanceof Integer) {
                 log.debug("Timestamp received as Integer, converting to long");
                 timestamp = ((Integer) timestamp).longValue();
+            } else if (timestamp instanceof String) {
+                //text formats (eg. CSV) carry numbers as strings
+                try {
+                    timestamp = Long.valueOf(((String) timestamp).trim());
+                } catch (NumberFormatException e) {
+                    log.debug("Unix timestamp {} is not a number", timestamp);
+                }
             }
 
             //not inserting else because it must enter in the second if
@@ -397,7 +475,7 @@ public final class HPacketDeserializerUtil {
             }
         } else if (timestamp instanceof String) {
             log.debug("Timestamp received is String parsing....");
-            return timestampConversion((String) timestamp, packet);
+            return timestampConversion((String) timestamp, packet, plan);
         }
         //timestamp isn't number or String, invalid value: add default value
         log.debug("Invalid received timestamp {}. returning -1", timestamp);
@@ -413,7 +491,11 @@ public final class HPacketDeserializerUtil {
      * @return
      */
     public static HPacketField createTimestampField(HPacket packet, HPacketInfo hPacketInfo, HashMap<String, Object> fields) {
-        long timestamp = createHPacketTimestamp(packet, hPacketInfo, fields);
+        return createTimestampField(packet, hPacketInfo, getFieldPlan(hPacketInfo), fields);
+    }
+
+    private static HPacketField createTimestampField(HPacket packet, HPacketInfo hPacketInfo, HPacketFieldPlan plan, HashMap<String, Object> fields) {
+        long timestamp = createHPacketTimestamp(packet, hPacketInfo, plan, fields);
         Date now = new Date();
         HPacketField timestampField = new HPacketField();
         timestampField.setEntityCreateDate(now);
@@ -434,12 +516,15 @@ public final class HPacketDeserializerUtil {
      *
      * @param timestamp Received String timestamp
      * @param packet    HPacket
+     * @param plan      compiled field plan, if available its timestamp parser is used
      * @return The number of milliseconds from the epoch of 1970-01-01T00:00:00Z.
      */
-    private static long timestampConversion(String timestamp, HPacket packet) throws TimestampConversionException {
+    private static long timestampConversion(String timestamp, HPacket packet, HPacketFieldPlan plan) throws TimestampConversionException {
         log.debug("Convert timestamp. HPacket timestamp format: {}", packet.getTimestampFormat());
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(packet.getTimestampFormat());
         try {
+            if (plan != null)
+                return plan.parseTimestamp(timestamp);
+            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(packet.getTimestampFormat());
             Date date = simpleDateFormat.parse(timestamp);
             return date.toInstant().toEpochMilli();
         } catch (ParseException e) {
@@ -453,12 +538,22 @@ public final class HPacketDeserializerUtil {
      * @return
      */
     private static int guessMultiplicity(String value) {
-        value = value.replaceAll("\\s", "");
-        if (value.charAt(0) == '[') {
-            if (value.charAt(1) == '[') return 2;
+        int i = nextNonWhitespace(value, 0);
+        if (i == value.length())
+            throw new IllegalArgumentException("Empty field value");
+        if (value.charAt(i) == '[') {
+            int j = nextNonWhitespace(value, i + 1);
+            if (j < value.length() && value.charAt(j) == '[') return 2;
             return 1;
         }
         return 0;
     }
 
+    private static int nextNonWhitespace(String value, int from) {
+        int i = from;
+        while (i < value.length() && Character.isWhitespace(value.charAt(i)))
+            i++;
+        return i;
+    }
+
 }
@@ -0,0 +1,248 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.deserialization.service.util;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacketFieldType;
+import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
+import it.acsoftware.hyperiot.hpacket.model.HPacketType;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
+import java.util.*;
+
+/**
+ * Immutable deserialization plan compiled once from an HPacketInfo.
+ * It holds everything that depends only on the packet definition (resolved enums, field paths, timestamp parser),
+ * so that the per message work is reduced to reading values.
+ */
+public final class HPacketFieldPlan {
+
+    private static final Logger log = LoggerFactory.getLogger(HPacketFieldPlan.class);
+
+    /**
+     * Pattern letters whose semantic is the same in SimpleDateFormat and DateTimeFormatter.
+     * Patterns using other letters (eg. 'u', 'Y', 'h' without 'a') are parsed with SimpleDateFormat as before.
+     */
+    private static final String SAFE_PATTERN_LETTERS = "yMdHmsSX";
+
+    private final HPacketSchema schema;
+    private final HPacketTimestamp timestamp;
+    private final String typeName;
+    private final String trafficPlanName;
+    private final HPacketType type;
+    private final HPacketTrafficPlan trafficPlan;
+    private final List<FieldSpec> fields;
+    private final DateTimeFormatter timestampFormatter;
+
+    private HPacketFieldPlan(HPacketInfo hPacketInfo) {
+        this.schema = hPacketInfo.getSchema();
+        this.timestamp = hPacketInfo.getTimestamp();
+        this.typeName = hPacketInfo.getType();
+        this.trafficPlanName = hPacketInfo.getTrafficPlan();
+        this.type = HPacketType.valueOf(typeName.toUpperCase());
+        this.trafficPlan = HPacketTrafficPlan.valueOf(trafficPlanName.toUpperCase());
+        String timestampField = timestamp.getField();
+        List<FieldSpec> fieldList = new ArrayList<>();
+        schema.getFields().forEach((path, innerFieldData) -> {
+            //Timestamp field is added manually later
+            if (path.equalsIgnoreCase(timestampField))
+                return;
+            try {
+                fieldList.add(FieldSpec.compile(path, innerFieldData));
+            } catch (RuntimeException e) {
+                log.warn("Invalid definition for field {}, it will be skipped: {}", path, e.getMessage());
+            }
+        });
+        this.fields = Collections.unmodifiableList(fieldList);
+        this.timestampFormatter = createTimestampFormatter(timestamp.getFormat());
+    }
+
+    /**
+     * @param hPacketInfo packet definition
+     * @return compiled plan
+     */
+    public static HPacketFieldPlan compile(HPacketInfo hPacketInfo) {
+        return new HPacketFieldPlan(hPacketInfo);
+    }
+
+    /**
+     * A plan is valid for an HPacketInfo if it has been compiled from the very same schema and timestamp definitions.
+     *
+     * @param hPacketInfo
+     * @return
+     */
+    public boolean isCompiledFrom(HPacketInfo hPacketInfo) {
+        return schema == hPacketInfo.getSchema()
+                && timestamp == hPacketInfo.getTimestamp()
+                && Objects.equals(typeName, hPacketInfo.getType())
+                && Objects.equals(trafficPlanName, hPacketInfo.getTrafficPlan());
+    }
+
+    public HPacketType getType() {
+        return type;
+    }
+
+    public HPacketTrafficPlan getTrafficPlan() {
+        return trafficPlan;
+    }
+
+    /**
+     * @return compiled schema fields, excluding the timestamp field
+     */
+    public List<FieldSpec> getFields() {
+        return fields;
+    }
+
+    /**
+     * Parses a String timestamp with the packet timestamp format
+     *
+     * @param value
+     * @return The number of milliseconds from the epoch of 1970-01-01T00:00:00Z.
+     * @throws ParseException
+     */
+    public long parseTimestamp(String value) throws ParseException {
+        if (timestampFormatter != null) {
+            try {
+                return Instant.from(timestampFormatter.parse(value)).toEpochMilli();
+            } catch (DateTimeException e) {
+                //falling back to SimpleDateFormat which is more lenient
+            }
+        }
+        return new SimpleDateFormat(timestamp.getFormat()).parse(value).toInstant().toEpochMilli();
+    }
+
+    private static DateTimeFormatter createTimestampFormatter(String format) {
+        String strictPattern = (format == null || format.isEmpty()) ? null : toStrictPattern(format);
+        if (strictPattern == null)
+            return null;
+        try {
+            return DateTimeFormatter.ofPattern(strictPattern)
+                    .withResolverStyle(ResolverStyle.STRICT)
+                    .withZone(ZoneId.systemDefault());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts a SimpleDateFormat pattern into an equivalent strict DateTimeFormatter pattern.
+     * Year is mapped to 'u' since 'y' (year of era) cannot be resolved strictly without an era.
+     *
+     * @param format SimpleDateFormat pattern
+     * @return DateTimeFormatter pattern or null if the pattern cannot be safely converted
+     */
+    private static String toStrictPattern(String format) {
+        StringBuilder sb = new StringBuilder(format.length());
+        boolean quoted = false;
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+                sb.append(c);
+                i++;
+                continue;
+            }
+            if (quoted || !Character.isLetter(c)) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            int count = 1;
+            while (i + count < format.length() && format.charAt(i + count) == c)
+                count++;
+            if (SAFE_PATTERN_LETTERS.indexOf(c) < 0
+                    || (c == 'y' && count != 4)
+                    || (c == 'S' && count != 3))
+                return null;
+            char target = (c == 'y') ? 'u' : c;
+            for (int j = 0; j < count; j++)
+                sb.append(target);
+            i += count;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiled definition of a single leaf field: dotted path already split,
+     * field id and field type already resolved.
+     */
+    public static final class FieldSpec {
+        private final String path;
+        private final String[] segments;
+        private final long id;
+        private final HPacketFieldType type;
+
+        private FieldSpec(String path, long id, HPacketFieldType type) {
+            this.path = path;
+            this.segments = path.split("\\.");
+            this.id = id;
+            this.type = type;
+        }
+
+        /**
+         * @param path              field path (supports dotted notation, eg. 'gps.latitude')
+         * @param innerFieldDataObj Map containing field id and type
+         * @return compiled field definition
+         */
+        @SuppressWarnings("unchecked")
+        public static FieldSpec compile(String path, Object innerFieldDataObj) {
+            Map<String, Object> innerFieldData = (Map<String, Object>) innerFieldDataObj;
+            Object idValue = innerFieldData.get("id");
+            long fieldId;
+            if (idValue instanceof String)
+                fieldId = Long.parseLong((String) idValue);
+            else if (idValue instanceof Number)
+                fieldId = ((Number) idValue).longValue();
+            else
+                throw new IllegalArgumentException("missing field id");
+            HPacketFieldType fieldType = HPacketFieldType.valueOf(innerFieldData.get("type").toString().toUpperCase());
+            return new FieldSpec(path, fieldId, fieldType);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getDepth() {
+            return segments.length;
+        }
+
+        public String getSegment(int i) {
+            return segments[i];
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public HPacketFieldType getType() {
+            return type;
+        }
+    }
+}
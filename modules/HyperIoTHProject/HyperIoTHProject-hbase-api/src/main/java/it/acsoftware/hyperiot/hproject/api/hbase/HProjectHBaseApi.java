@@ -56,6 +56,25 @@ public interface HProjectHBaseApi extends HyperIoTBaseApi {
                       long rowKeyLowerBound, long rowKeyUpperBound, int limit, String alarmState, OutputStream outputStream)
             throws IOException, HyperIoTUnauthorizedException;
 
+    /**
+     * Scans rows of a single HPacket, event or error table and streams them as a JSON object while they are read.
+     * If there are more rows than limit, JSON object contains a continuation token to resume the scan.
+     *
+     * @param context           HyperIoTContext
+     * @param hProjectId        HProject ID
+     * @param hPacketId         HPacket ID, or event or error identifier
+     * @param rowKeyLowerBound  Scanning start time (i.e. an HBase row key)
+     * @param rowKeyUpperBound  Scanning end time (i.e. an HBase row key)
+     * @param limit             limit to results, 0 or less to get the server side maximum
+     * @param continuationToken token returned by a previous scan, null to start from the lower bound
+     * @param outputStream      Stream on which it sends data
+     * @throws IOException                   IOException
+     * @throws HyperIoTUnauthorizedException HyperIoTUnauthorizedException
+     */
+    void scanHProject(HyperIoTContext context, long hProjectId, String hPacketId, long rowKeyLowerBound, long rowKeyUpperBound,
+                      int limit, String continuationToken, OutputStream outputStream)
+            throws IOException, HyperIoTUnauthorizedException;
+
     /**
      * It counts HPacket event number between start time and end time, depending on pagination delta,
      * which must be lower or equal than HBase max scan page size
@@ -41,7 +41,7 @@ public interface HProjectHBaseSystemApi extends HyperIoTBaseSystemApi {
      * @param alarmState Alarm State
      * @param rowKeyLowerBound Scanning start time (i.e. an HBase row key)
      * @param rowKeyUpperBound Scanning end time (i.e. an HBase row key)
-     * @param limit limit to results
+     * @param limit limit to results, 0 or less to get all rows of the interval
      * @param outputStream Stream on which it sends data
      * @throws IOException IOException
      */
@@ -49,6 +49,25 @@ public interface HProjectHBaseSystemApi extends HyperIoTBaseSystemApi {
                       String alarmState, OutputStream outputStream)
             throws IOException;
 
+    /**
+     * Scans rows of a single HPacket, event or error table and streams them as a JSON object while they are read,
+     * so memory usage does not depend on interval size.
+     * Returned rows are bounded by limit and by the server side maximum rows of a scan: if there are more rows,
+     * JSON object contains a continuation token which can be passed to resume the scan from the next row.
+     * @param hProjectId HProject ID
+     * @param hPacketId HPacket ID, or event or error identifier
+     * @param rowKeyLowerBound Scanning start time (i.e. an HBase row key)
+     * @param rowKeyUpperBound Scanning end time (i.e. an HBase row key)
+     * @param limit limit to results, 0 or less to get the server side maximum
+     * @param continuationToken token returned by a previous scan of the same interval, null to start from the lower bound
+     * @param outputStream Stream on which it sends data
+     * @throws IOException IOException
+     * @throws IllegalArgumentException if continuation token is not valid
+     */
+    void scanHProject(long hProjectId, String hPacketId, long rowKeyLowerBound, long rowKeyUpperBound, int limit,
+                      String continuationToken, OutputStream outputStream)
+            throws IOException;
+
     /**
      *
      * @param hProjectId
@@ -56,6 +75,7 @@ public interface HProjectHBaseSystemApi extends HyperIoTBaseSystemApi {
      * @param rowKeyLowerBound
      * @param rowKeyUpperBound
      * @param function
+     * @throws java.io.UncheckedIOException if the scan cannot be completed
      */
     void scanHProject(long hProjectId, long packetId, long rowKeyLowerBound, long rowKeyUpperBound, Consumer<HPacket> function);
 
@@ -74,6 +94,19 @@ public interface HProjectHBaseSystemApi extends HyperIoTBaseSystemApi {
     List<HPacketCount> timelineEventCount(long projectId, List<String> packetIds, List<String> deviceIds, long startTime, long endTime)
             throws Throwable;
 
+    /**
+     * It estimates HPacket event number between start time and end time, reading hourly counters of timeline table
+     * instead of counting rows of HPacket table: count is exact for whole hours and approximated at interval bounds
+     * @param projectId HProject ID
+     * @param packetId HPacket ID
+     * @param startTime Scanning start time
+     * @param endTime Scanning end time
+     * @return Estimated event number
+     * @throws Exception Exception
+     */
+    long timelineEventCountEstimate(long projectId, String packetId, long startTime, long endTime)
+            throws Exception;
+
     /**
      * Service scans and returns data from timeline table
      * @param tableName Table name
@@ -50,6 +50,7 @@ public class HProjectScan {
     private long hPacketId;
     private List<TimelineHPacket> values;
     private long rowKeyUpperBound;
+    private String continuationToken;
 
     /**
      * TODO we cannot move these constants inside HProjectHBaseConstants class due to circular dependency
@@ -97,12 +98,33 @@ public class HProjectScan {
         this.rowKeyUpperBound = rowKeyUpperBound;
     }
 
+    /**
+     * @return token to resume the scan from the row next to the last returned one, null if there are no more rows
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
     /**
      * Method to add ordinary packet or event
      *
      * @param hPacket hpacket
      */
     public void addValue(HPacket hPacket) {
+        values.add(toTimelineHPacket(hPacket));
+    }
+
+    /**
+     * Converts ordinary packet or event into its timeline representation, without adding it to values
+     *
+     * @param hPacket hpacket
+     * @return TimelineHPacket
+     */
+    public TimelineHPacket toTimelineHPacket(HPacket hPacket) {
         TimelineHPacket timelineHPacket = new TimelineHPacket();
         if (hPacket.getId() == 0 && hPacket.getName().endsWith(EVENT_PACKET_NAME_SUFFIX)) {
             // it is a event packet: create its representation for Timeline
@@ -154,7 +176,7 @@ public class HProjectScan {
             List timelineHPacketFields = getFieldsHierarchy(hPacket.getFieldsMap());
             timelineHPacket.setFields(timelineHPacketFields);
         }
-        values.add(timelineHPacket);
+        return timelineHPacket;
     }
 
     private List<TimelineHPacketField> getFieldsHierarchy(final Map<String,HPacketField> fields) {
@@ -173,6 +195,17 @@ public class HProjectScan {
      * @param timestamp timestamp
      */
     public void addValue(Map<String, Object> error, long timestamp) {
+        values.add(toTimelineHPacket(error, timestamp));
+    }
+
+    /**
+     * Converts error into its timeline representation, without adding it to values
+     *
+     * @param error     error
+     * @param timestamp timestamp
+     * @return TimelineHPacket
+     */
+    public TimelineHPacket toTimelineHPacket(Map<String, Object> error, long timestamp) {
         TimelineHPacket timelineHPacket = new TimelineHPacket();
         TimelineHPacketField timestampField = new TimelineHPacketField();
         timestampField.setName(TIMESTAMP_DEFAULT_FIELD_NAME);
@@ -189,7 +222,7 @@ public class HProjectScan {
         fields.add(errorField);
         fields.add(errorPacketField);
         timelineHPacket.setFields(fields);
-        values.add(timelineHPacket);
+        return timelineHPacket;
     }
 
     private TimelineHPacketField createEventTimelineHPacketField(HPacket originalHPacket, String fieldName) {
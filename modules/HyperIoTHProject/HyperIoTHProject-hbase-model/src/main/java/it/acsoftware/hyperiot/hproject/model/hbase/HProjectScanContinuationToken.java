@@ -0,0 +1,71 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hproject.model.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Opaque token returned by a truncated HProject scan and used to resume it.
+ * It contains the HPacket ID the scan refers to and the first row key which has not been returned yet,
+ * encoded as URL safe Base64 so it can be sent back as query parameter.
+ */
+public final class HProjectScanContinuationToken {
+
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 1 + Long.BYTES;
+
+    private HProjectScanContinuationToken() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param hPacketId HPacket ID
+     * @param lastRow   last row key returned by the scan
+     * @return token pointing to the smallest row key greater than lastRow
+     */
+    public static String encode(long hPacketId, byte[] lastRow) {
+        // lastRow followed by a zero byte is the smallest row key greater than lastRow
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + lastRow.length + 1);
+        buffer.put(VERSION).putLong(hPacketId).put(lastRow).put((byte) 0);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * @param hPacketId HPacket ID the scan is resumed for
+     * @param token     token returned by a previous scan
+     * @return row key the scan must start from
+     * @throws IllegalArgumentException if token is malformed or it has been issued for another HPacket
+     */
+    public static byte[] decode(long hPacketId, String token) {
+        byte[] decoded;
+        try {
+            decoded = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid continuation token");
+        }
+        if (decoded.length <= HEADER_LENGTH || decoded[0] != VERSION)
+            throw new IllegalArgumentException("Invalid continuation token");
+        if (ByteBuffer.wrap(decoded, 1, Long.BYTES).getLong() != hPacketId)
+            throw new IllegalArgumentException("Continuation token does not refer to hpacket " + hPacketId);
+        return Arrays.copyOfRange(decoded, HEADER_LENGTH, decoded.length);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hproject.model.hbase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes an HProjectScan as JSON while rows are read from HBase, instead of collecting its values in memory.
+ * Output has the same structure of a serialized HProjectScan, so clients read both in the same way.
+ * JsonGenerator must have an ObjectMapper as codec.
+ */
+public class HProjectScanStreamWriter {
+
+    public static final int DEFAULT_FLUSH_ROWS = 1000;
+
+    private final JsonGenerator jsonGenerator;
+    private final HProjectScan converter;
+    private final int flushRows;
+    private long writtenValues;
+
+    /**
+     * @param jsonGenerator JsonGenerator on which values are written
+     * @param hPacketId     HPacket ID
+     * @param flushRows     number of values after which the generator is flushed to the underlying stream
+     */
+    public HProjectScanStreamWriter(JsonGenerator jsonGenerator, long hPacketId, int flushRows) {
+        if (flushRows <= 0)
+            throw new IllegalArgumentException("Flush rows must be greater than 0");
+        this.jsonGenerator = jsonGenerator;
+        this.converter = new HProjectScan(hPacketId);
+        this.flushRows = flushRows;
+    }
+
+    public void writeStart() throws IOException {
+        jsonGenerator.writeStartObject();
+        jsonGenerator.writeNumberField("hPacketId", converter.gethPacketId());
+        jsonGenerator.writeArrayFieldStart("values");
+    }
+
+    /**
+     * Writes ordinary packet or event
+     *
+     * @param hPacket hpacket
+     */
+    public void writeValue(HPacket hPacket) throws IOException {
+        write(converter.toTimelineHPacket(hPacket));
+    }
+
+    /**
+     * Writes error
+     *
+     * @param error     error
+     * @param timestamp timestamp
+     */
+    public void writeValue(Map<String, Object> error, long timestamp) throws IOException {
+        write(converter.toTimelineHPacket(error, timestamp));
+    }
+
+    private void write(Object timelineHPacket) throws IOException {
+        jsonGenerator.writeObject(timelineHPacket);
+        if (++writtenValues % flushRows == 0)
+            jsonGenerator.flush();
+    }
+
+    /**
+     * @param rowKeyUpperBound  last row key returned
+     * @param continuationToken token to resume the scan, null if it has not been truncated
+     */
+    public void writeEnd(long rowKeyUpperBound, String continuationToken) throws IOException {
+        jsonGenerator.writeEndArray();
+        jsonGenerator.writeNumberField("rowKeyUpperBound", rowKeyUpperBound);
+        jsonGenerator.writeStringField("continuationToken", continuationToken);
+        jsonGenerator.writeEndObject();
+        jsonGenerator.flush();
+    }
+
+    public long getWrittenValues() {
+        return writtenValues;
+    }
+
+}
@@ -50,6 +50,14 @@ public class HProjectHBaseServiceImpl extends HyperIoTBaseServiceImpl implements
         systemService.scanHProject(hProjectId, hPacketIds, hDeviceIds, rowKeyLowerBound, rowKeyUpperBound, limit, alarmState, outputStream);
     }
 
+    @Override
+    @AllowPermissions(actions = HyperIoTHProjectAction.Names.SCAN_HBASE_DATA, checkById = true, idParamIndex = 1, systemApiRef = "it.acsoftware.hyperiot.hproject.api.HProjectSystemApi")
+    public void scanHProject(HyperIoTContext context, long hProjectId, String hPacketId, long rowKeyLowerBound,
+                             long rowKeyUpperBound, int limit, String continuationToken, OutputStream outputStream)
+            throws IOException {
+        systemService.scanHProject(hProjectId, hPacketId, rowKeyLowerBound, rowKeyUpperBound, limit, continuationToken, outputStream);
+    }
+
     @Override
     @AllowPermissions(actions = HyperIoTHProjectAction.Names.SCAN_HBASE_DATA, checkById = true, idParamIndex = 1, systemApiRef = "it.acsoftware.hyperiot.hproject.api.HProjectSystemApi")
     public List<HPacketCount> timelineEventCount(HyperIoTContext context, long projectId,
@@ -22,6 +22,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import it.acsoftware.hyperiot.algorithm.model.AlgorithmIOField;
 import it.acsoftware.hyperiot.base.exception.HyperIoTEntityNotFound;
 import it.acsoftware.hyperiot.base.service.HyperIoTBaseSystemServiceImpl;
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
 import it.acsoftware.hyperiot.hbase.connector.api.HBaseConnectorSystemApi;
 import it.acsoftware.hyperiot.hdevice.api.HDeviceRepository;
 import it.acsoftware.hyperiot.hdevice.model.HDevice;
@@ -35,10 +36,12 @@ import it.acsoftware.hyperiot.hproject.api.HProjectRepository;
 import it.acsoftware.hyperiot.hproject.api.hbase.HProjectHBaseSystemApi;
 import it.acsoftware.hyperiot.hproject.api.hbase.timeline.HProjectTimelineUtil;
 import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
-import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.BinaryAvroHPacketDeserializer;
 import it.acsoftware.hyperiot.hproject.model.ModelType;
 import it.acsoftware.hyperiot.hproject.model.hbase.HPacketCount;
 import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScan;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanContinuationToken;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanStreamWriter;
 import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineColumnFamily;
 import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineElement;
 import it.acsoftware.hyperiot.hproject.util.hbase.AlarmState;
@@ -55,6 +58,7 @@ import org.slf4j.LoggerFactory;
 import javax.persistence.NoResultException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
@@ -63,6 +67,7 @@ import java.time.ZoneOffset;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static it.acsoftware.hyperiot.hproject.model.hbase.HProjectScan.PACKET_COLUMN;
 import static it.acsoftware.hyperiot.hproject.model.hbase.HProjectScan.RECEIVED_PACKET_COLUMN;
@@ -71,7 +76,14 @@ import static java.time.temporal.TemporalAdjusters.firstDayOfYear;
 @Component(service = HProjectHBaseSystemApi.class, immediate = true)
 public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImpl implements HProjectHBaseSystemApi {
     private Logger log = LoggerFactory.getLogger(HProjectHBaseSystemServiceImpl.class);
+    /**
+     * Maximum number of rows returned by a single paginated scan of an HPacket, event or error table,
+     * further rows can be read through the returned continuation token
+     */
+    private static final String HPROJECT_SCAN_MAX_ROWS = "it.acsoftware.hyperiot.hproject.hbase.scan.max.rows";
+    private static final int DEFAULT_SCAN_MAX_ROWS = 100000;
     private HPacketDeserializer hPacketDeserializer;
+    private Function<String, Object> properties = HyperIoTUtil::getHyperIoTProperty;
 
     private HDeviceRepository hDeviceRepository;
 
@@ -122,30 +134,7 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
         setColumnFamilies();
         setColumns();
         objectMapper = new ObjectMapper();
-        hPacketDeserializer = JsonAvroHPacketDeserializer.getInstance();
-    }
-
-    private void addValueToScanResults(String packetId, List<Result> hBaseResults, byte[] columnFamily, byte[] column, HProjectScan hProjectScan) throws IOException {
-        if (packetId.equals(HProjectHBaseConstants.ERROR_IDENTIFIER)) {
-            for (Result result : hBaseResults) {
-                // error
-                HashMap<String, Object> error = objectMapper.readValue(new String(result.getValue(columnFamily, column), StandardCharsets.UTF_8), HashMap.class);
-                String packetAsString = new String(result.getValue(columnFamily, Bytes.toBytes(RECEIVED_PACKET_COLUMN)), StandardCharsets.UTF_8);
-                try {
-                    Object packet = objectMapper.readValue(packetAsString, Object.class);
-                    error.put(PACKET_COLUMN, objectMapper.writeValueAsString(packet));
-                } catch (Exception e) {
-                    log.warn("Error while trying to read data as JSON, returning a string", e.getMessage());
-                    error.put(PACKET_COLUMN, packetAsString);
-                }
-                hProjectScan.addValue(error, result.rawCells()[0].getTimestamp());
-            }
-        } else {
-            for (Result result : hBaseResults) {
-                // packet or event
-                hProjectScan.addValue(decodeAvroHPacket(result.getValue(columnFamily, column)));
-            }
-        }
+        hPacketDeserializer = BinaryAvroHPacketDeserializer.getInstance();
     }
 
     private void countOnHBase(List<HPacketCount> countList, String tableName, String hPacketId, long startTime, long endTime) throws Throwable {
@@ -319,16 +308,8 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
             jsonGenerator.writeStartArray();
             for (String packetId : hPacketIds) {
                 String tableName = getTableNamePrefix(packetId) + hProjectId;
-                byte[] rowKeyLowBound;
-                byte[] rowKeyUppBound;
-                if (packetId.equals(HProjectHBaseConstants.EVENT_IDENTIFIER)) {
-                    rowKeyLowBound = serializeTimeStampFieldAsString(rowKeyLowerBound, false);
-                    rowKeyUppBound = serializeTimeStampFieldAsString(rowKeyUpperBound, true);
-                } else {
-                    rowKeyLowBound = Bytes.toBytes(rowKeyLowerBound);
-                    rowKeyUppBound = Bytes.toBytes(rowKeyUpperBound);
-                }
-                writeJsonObject(packetId, tableName, rowKeyLowBound, rowKeyUppBound, limit, objectMapper, jsonGenerator);
+                writeJsonObject(packetId, tableName, getRowKeyLowerBound(packetId, rowKeyLowerBound),
+                        getRowKeyUpperBound(packetId, rowKeyUpperBound), limit, false, jsonGenerator);
             }
             if (hDeviceIds.isEmpty()) {
                 if (alarmState != null && !alarmState.isEmpty()) {
@@ -369,8 +350,7 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
         byte[] rowKeyLowBound = Bytes.toBytes(rowKeyLowerBound);
         byte[] rowKeyUppBound = Bytes.toBytes(rowKeyUpperBound);
         Map<byte[], List<byte[]>> targetColumns = getScannerColumns(String.valueOf(packetId), columnFamily, column);
-        try {
-            ResultScanner rs = hBaseConnectorSystemApi.getScanner(tableName, targetColumns, rowKeyLowBound, rowKeyUppBound, -1);
+        try (ResultScanner rs = hBaseConnectorSystemApi.getScanner(tableName, targetColumns, rowKeyLowBound, rowKeyUppBound, -1)) {
             Iterator<Result> it = rs.iterator();
             while (it.hasNext()) {
                 Result res = it.next();
@@ -385,27 +365,112 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
                 }
             }
         } catch (IOException e) {
-            log.error(e.getMessage(), e);
+            //callers must know the scan did not complete, eg. an export chunk must not be considered done
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void scanHProject(long hProjectId, String hPacketId, long rowKeyLowerBound, long rowKeyUpperBound, int limit,
+                             String continuationToken, OutputStream outputStream) throws IOException {
+        String tableName = getTableNamePrefix(hPacketId) + hProjectId;
+        byte[] rowKeyLowBound = getRowKeyLowerBound(hPacketId, rowKeyLowerBound);
+        byte[] rowKeyUppBound = getRowKeyUpperBound(hPacketId, rowKeyUpperBound);
+        if (continuationToken != null && !continuationToken.isEmpty()) {
+            byte[] resumeRowKey = HProjectScanContinuationToken.decode(Long.parseLong(hPacketId), continuationToken);
+            if (Bytes.compareTo(resumeRowKey, rowKeyLowBound) < 0 || Bytes.compareTo(resumeRowKey, rowKeyUppBound) > 0)
+                throw new IllegalArgumentException("Continuation token is outside of the requested interval");
+            rowKeyLowBound = resumeRowKey;
+        }
+        try (JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(outputStream)) {
+            writeJsonObject(hPacketId, tableName, rowKeyLowBound, rowKeyUppBound, limit, true, jsonGenerator);
         }
     }
 
-    private void writeJsonObject(String packetId, String tableName, byte[] rowKeyLowerBound, byte[] rowKeyUpperBound, int limit, ObjectMapper objectMapper, JsonGenerator jsonGenerator) throws IOException {
+    /**
+     * Streams rows of an HPacket, an event or an error table on the JSON generator as they are returned
+     * by the HBase scanner: no more than one row is kept in memory, whatever the interval is.
+     * Paginated scans are bounded by the server side scan limit: if there are more rows, a continuation token
+     * is written inside the object. Other scans return all rows up to the client limit, as they always did.
+     *
+     * @param limit     limit requested by the client, 0 or less means no limit
+     * @param paginated true if rows are bounded by the server side scan limit
+     */
+    private void writeJsonObject(String packetId, String tableName, byte[] rowKeyLowerBound, byte[] rowKeyUpperBound, int limit, boolean paginated, JsonGenerator jsonGenerator) throws IOException {
         long hPacketId = Long.parseLong(packetId);
-        HProjectScan hProjectScan = new HProjectScan(hPacketId);
+        int scanLimit = paginated ? getScanLimit(limit) : Math.max(limit, 0);
+        // one more row is requested to know whether a paginated scan has been truncated
+        int requestedRows = paginated ? scanLimit + 1 : (scanLimit > 0 ? scanLimit : -1);
         // specify column families and columns on which perform scan
         byte[] columnFamily = getColumnFamily(packetId);
         byte[] column = getColumn(packetId);
+        byte[] receivedPacketColumn = Bytes.toBytes(RECEIVED_PACKET_COLUMN);
+        boolean isError = packetId.equals(HProjectHBaseConstants.ERROR_IDENTIFIER);
         Map<byte[], List<byte[]>> targetColumns = getScannerColumns(packetId, columnFamily, column);
+        HProjectScanStreamWriter writer = new HProjectScanStreamWriter(jsonGenerator, hPacketId, HProjectScanStreamWriter.DEFAULT_FLUSH_ROWS);
         long startingTime = System.currentTimeMillis();
-        List<Result> hBaseResults = hBaseConnectorSystemApi.scanWithCompleteResult(tableName, targetColumns, rowKeyLowerBound, rowKeyUpperBound, limit);
-        long deserializationTime = System.currentTimeMillis();
-        // construct frontend output
-        addValueToScanResults(packetId, hBaseResults, columnFamily, column, hProjectScan);
-        if (!hBaseResults.isEmpty())
-            hProjectScan.setRowKeyUpperBound(Bytes.toLong(hBaseResults.get(hBaseResults.size() - 1).getRow()));
-        objectMapper.writeValue(jsonGenerator, hProjectScan);
-        long finalTime = System.currentTimeMillis();
-        log.debug("Duration for hbase scan with packetId {} , total Duration: {}, hbase scan Duration: {}, response construction time:{}", packetId, (finalTime - startingTime), (deserializationTime - startingTime), (finalTime - deserializationTime));
+        byte[] lastRow = null;
+        String continuationToken = null;
+        writer.writeStart();
+        try (ResultScanner scanner = hBaseConnectorSystemApi.getScanner(tableName, targetColumns, rowKeyLowerBound, rowKeyUpperBound, requestedRows)) {
+            for (Result result : scanner) {
+                if (paginated && writer.getWrittenValues() == scanLimit) {
+                    continuationToken = HProjectScanContinuationToken.encode(hPacketId, lastRow);
+                    break;
+                }
+                if (isError)
+                    writer.writeValue(readError(result, columnFamily, column, receivedPacketColumn), result.rawCells()[0].getTimestamp());
+                else
+                    writer.writeValue(decodeAvroHPacket(result.getValue(columnFamily, column)));
+                lastRow = result.getRow();
+            }
+        }
+        writer.writeEnd(lastRow != null ? Bytes.toLong(lastRow) : 0, continuationToken);
+        log.debug("Duration for hbase scan with packetId {}: {} ms, rows: {}, truncated: {}", packetId,
+                (System.currentTimeMillis() - startingTime), writer.getWrittenValues(), continuationToken != null);
+    }
+
+    private Map<String, Object> readError(Result result, byte[] columnFamily, byte[] column, byte[] receivedPacketColumn) throws IOException {
+        HashMap<String, Object> error = objectMapper.readValue(new String(result.getValue(columnFamily, column), StandardCharsets.UTF_8), HashMap.class);
+        String packetAsString = new String(result.getValue(columnFamily, receivedPacketColumn), StandardCharsets.UTF_8);
+        try {
+            Object packet = objectMapper.readValue(packetAsString, Object.class);
+            error.put(PACKET_COLUMN, objectMapper.writeValueAsString(packet));
+        } catch (Exception e) {
+            log.warn("Error while trying to read data as JSON, returning a string", e.getMessage());
+            error.put(PACKET_COLUMN, packetAsString);
+        }
+        return error;
+    }
+
+    /**
+     * @param limit limit requested by the client, 0 or less means no limit
+     * @return limit bounded by the server side maximum number of rows returned by a single scan
+     */
+    private int getScanLimit(int limit) {
+        int maxRows = getScanMaxRows();
+        return (limit <= 0) ? maxRows : Math.min(limit, maxRows);
+    }
+
+    private int getScanMaxRows() {
+        Object maxRows = properties.apply(HPROJECT_SCAN_MAX_ROWS);
+        if (maxRows == null)
+            return DEFAULT_SCAN_MAX_ROWS;
+        int value = Integer.parseInt(maxRows.toString().trim());
+        // one more row than the limit is always requested to HBase
+        return (value > 0) ? Math.min(value, Integer.MAX_VALUE - 1) : DEFAULT_SCAN_MAX_ROWS;
+    }
+
+    private byte[] getRowKeyLowerBound(String packetId, long rowKeyLowerBound) {
+        if (packetId.equals(HProjectHBaseConstants.EVENT_IDENTIFIER))
+            return serializeTimeStampFieldAsString(rowKeyLowerBound, false);
+        return Bytes.toBytes(rowKeyLowerBound);
+    }
+
+    private byte[] getRowKeyUpperBound(String packetId, long rowKeyUpperBound) {
+        if (packetId.equals(HProjectHBaseConstants.EVENT_IDENTIFIER))
+            return serializeTimeStampFieldAsString(rowKeyUpperBound, true);
+        return Bytes.toBytes(rowKeyUpperBound);
     }
 
     public byte[] getHPacketAttachment(long hProjectId, long packetId, long fieldId, long rowKeyLowerBound, long rowKeyUpperBound) throws IOException {
@@ -484,6 +549,16 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
         return countList;
     }
 
+    @Override
+    public long timelineEventCountEstimate(long projectId, String packetId, long startTime, long endTime) throws Exception {
+        String tableName = HProjectHBaseConstants.TIMELINE_TABLE_NAME_PREFIX + projectId;
+        long count = 0;
+        for (TimelineElement element : timelineScan(tableName, Collections.singletonList(packetId), Collections.emptyList(),
+                TimelineColumnFamily.HOUR, startTime, endTime, "UTC"))
+            count += element.getCount();
+        return count;
+    }
+
     @Override
     public List<TimelineElement> timelineScan(String tableName, List<String> packetIds, List<String> deviceIds, TimelineColumnFamily step, long startTime, long endTime, String timezone) throws Exception {
         TreeMap<Long, Long> events = new TreeMap<>();
@@ -541,6 +616,13 @@ public class HProjectHBaseSystemServiceImpl extends HyperIoTBaseSystemServiceImp
         return result;
     }
 
+    /**
+     * @param properties HyperIoT properties, read from HyperIoTUtil unless tests replace them
+     */
+    void setProperties(Function<String, Object> properties) {
+        this.properties = properties;
+    }
+
     @Reference
     public void setHBaseConnectorSystemApi(HBaseConnectorSystemApi hBaseConnectorSystemApi) {
         this.hBaseConnectorSystemApi = hBaseConnectorSystemApi;
@@ -0,0 +1,155 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.service.hbase.migration;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketAvroCellFormat;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.serialization.service.BinaryAvroHPacketSerializer;
+import it.acsoftware.hyperiot.hproject.util.hbase.HProjectHBaseConstants;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Rewrites, in place, legacy JSON Avro cells of an hproject table into the binary Avro cell format.
+ * Cells keep their row key, column and timestamp; cells already in binary format are skipped,
+ * so the migration can be executed while the topology is running and can be safely repeated.
+ * <p>
+ * It can be run from command line, with hbase-site.xml inside classpath:
+ * HProjectHBaseCellFormatMigration &lt;hProjectId&gt; [batchSize]
+ */
+public final class HProjectHBaseCellFormatMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(HProjectHBaseCellFormatMigration.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Connection connection;
+    private final int batchSize;
+    private final JsonAvroHPacketDeserializer jsonAvroHPacketDeserializer;
+    private final BinaryAvroHPacketSerializer binaryAvroHPacketSerializer;
+
+    /**
+     * @param connection HBase connection, it is not closed by the migration
+     * @param batchSize  number of rows fetched and written per round trip
+     */
+    public HProjectHBaseCellFormatMigration(Connection connection, int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("Batch size must be greater than 0");
+        this.connection = connection;
+        this.batchSize = batchSize;
+        this.jsonAvroHPacketDeserializer = JsonAvroHPacketDeserializer.getInstance();
+        this.binaryAvroHPacketSerializer = BinaryAvroHPacketSerializer.getInstance();
+    }
+
+    /**
+     * Migrates hproject table of the given project
+     *
+     * @param hProjectId HProject id
+     * @return migration result
+     * @throws IOException if HBase cannot be read or written
+     */
+    public MigrationResult migrate(long hProjectId) throws IOException {
+        TableName tableName = TableName.valueOf(HProjectHBaseConstants.HPROJECT_TABLE_NAME_PREFIX + hProjectId);
+        byte[] columnFamily = Bytes.toBytes(HProjectHBaseConstants.HPACKET_COLUMN_FAMILY);
+        Scan scan = new Scan();
+        scan.addFamily(columnFamily);
+        scan.setCaching(batchSize);
+        MigrationResult result = new MigrationResult();
+        BufferedMutatorParams params = new BufferedMutatorParams(tableName)
+                .listener((e, mutator) -> log.error("Error while writing migrated cells: {}", e.getMessage(), e));
+        try (Table table = connection.getTable(tableName);
+             ResultScanner scanner = table.getScanner(scan);
+             BufferedMutator mutator = connection.getBufferedMutator(params)) {
+            for (Result row : scanner) {
+                Put put = null;
+                for (Cell cell : row.rawCells()) {
+                    byte[] value = CellUtil.cloneValue(cell);
+                    if (HPacketAvroCellFormat.isBinary(value)) {
+                        result.skipped++;
+                        continue;
+                    }
+                    try {
+                        HPacket hPacket = jsonAvroHPacketDeserializer.deserialize(value, null);
+                        if (put == null)
+                            put = new Put(row.getRow());
+                        put.addColumn(columnFamily, CellUtil.cloneQualifier(cell), cell.getTimestamp(),
+                                binaryAvroHPacketSerializer.serialize(hPacket));
+                        result.migrated++;
+                    } catch (Exception e) {
+                        log.warn("Cell of row {} in table {} cannot be migrated: {}", Bytes.toStringBinary(row.getRow()), tableName, e.getMessage());
+                        result.failed++;
+                    }
+                }
+                if (put != null)
+                    mutator.mutate(put);
+            }
+            mutator.flush();
+        }
+        log.info("Table {} migrated: {}", tableName, result);
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HProjectHBaseCellFormatMigration <hProjectId> [batchSize]");
+            System.exit(1);
+        }
+        long hProjectId = Long.parseLong(args[0]);
+        int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BATCH_SIZE;
+        try (Connection connection = ConnectionFactory.createConnection(HBaseConfiguration.create())) {
+            MigrationResult result = new HProjectHBaseCellFormatMigration(connection, batchSize).migrate(hProjectId);
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * Migration counters
+     */
+    public static final class MigrationResult {
+        private long migrated;
+        private long skipped;
+        private long failed;
+
+        public long getMigrated() {
+            return migrated;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "migrated=" + migrated + ", already binary=" + skipped + ", failed=" + failed;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.service.hbase;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.acsoftware.hyperiot.hbase.connector.api.HBaseConnectorSystemApi;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanContinuationToken;
+import it.acsoftware.hyperiot.hproject.serialization.service.BinaryAvroHPacketSerializer;
+import it.acsoftware.hyperiot.hproject.util.hbase.HProjectHBaseConstants;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Paginated scans on an in memory HBase table: a scan stops at the scan limit asking HBase one more row
+ * to know it has been truncated, following continuation tokens returns every row once,
+ * tokens outside of the requested interval are rejected.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HProjectHBaseSystemServiceImplTest {
+    private static final long PROJECT_ID = 1;
+    private static final long PACKET_ID = 5;
+    private static final long FIRST_ROW = 1672531200000L;
+    private static final long ROW_INTERVAL = 1000;
+    private static final int ROWS = 10;
+    private static final long LOWER_BOUND = FIRST_ROW - ROW_INTERVAL;
+    private static final long UPPER_BOUND = FIRST_ROW + ROWS * ROW_INTERVAL;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private TreeMap<Long, Result> table;
+    private List<Integer> requestedRows;
+    private HProjectHBaseSystemServiceImpl service;
+
+    @Before
+    public void init() throws IOException {
+        table = new TreeMap<>();
+        byte[] family = Bytes.toBytes(HProjectHBaseConstants.HPACKET_COLUMN_FAMILY);
+        byte[] column = Bytes.toBytes(PACKET_ID);
+        for (int i = 0; i < ROWS; i++) {
+            long row = FIRST_ROW + i * ROW_INTERVAL;
+            byte[] cell = BinaryAvroHPacketSerializer.getInstance().serialize(createHPacket(i));
+            List<Cell> cells = Collections.singletonList(new KeyValue(Bytes.toBytes(row), family, column, row, cell));
+            table.put(row, Result.create(cells));
+        }
+        requestedRows = new ArrayList<>();
+        service = new HProjectHBaseSystemServiceImpl();
+        service.setProperties(name -> null);
+        service.onActivate();
+        service.setHBaseConnectorSystemApi(createHBaseConnector());
+    }
+
+    @Test
+    public void test00_scanIsTruncatedAtScanLimit() throws IOException {
+        JsonNode scan = scan(4, null);
+        Assert.assertEquals(Collections.singletonList(5), requestedRows);
+        Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L), valuesOf(scan));
+        Assert.assertEquals(FIRST_ROW + 3 * ROW_INTERVAL, scan.get("rowKeyUpperBound").asLong());
+        Assert.assertFalse(scan.get("continuationToken").isNull());
+    }
+
+    @Test
+    public void test01_scanLimitIsBoundedByMaxRows() throws IOException {
+        service.setProperties(name -> "3");
+        JsonNode scan = scan(0, null);
+        Assert.assertEquals(Collections.singletonList(4), requestedRows);
+        Assert.assertEquals(3, scan.get("values").size());
+    }
+
+    @Test
+    public void test02_continuationTokensReturnEveryRowOnce() throws IOException {
+        List<Long> values = new ArrayList<>();
+        String continuationToken = null;
+        int pages = 0;
+        do {
+            JsonNode scan = scan(4, continuationToken);
+            values.addAll(valuesOf(scan));
+            continuationToken = scan.get("continuationToken").isNull() ? null : scan.get("continuationToken").asText();
+            pages++;
+        } while (continuationToken != null);
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(LongStream.range(0, ROWS).boxed().collect(Collectors.toList()), values);
+    }
+
+    @Test
+    public void test03_lastPageHasNoContinuationToken() throws IOException {
+        //exactly the remaining rows: the extra row is missing, so the scan is not truncated
+        String continuationToken = scan(5, null).get("continuationToken").asText();
+        JsonNode scan = scan(5, continuationToken);
+        Assert.assertEquals(Arrays.asList(5L, 6L, 7L, 8L, 9L), valuesOf(scan));
+        Assert.assertTrue(scan.get("continuationToken").isNull());
+    }
+
+    @Test
+    public void test04_continuationTokenOutsideOfIntervalFails() throws IOException {
+        String beforeInterval = HProjectScanContinuationToken.encode(PACKET_ID, Bytes.toBytes(LOWER_BOUND - ROW_INTERVAL));
+        String afterInterval = HProjectScanContinuationToken.encode(PACKET_ID, Bytes.toBytes(UPPER_BOUND));
+        for (String continuationToken : Arrays.asList(beforeInterval, afterInterval)) {
+            try {
+                scan(4, continuationToken);
+                Assert.fail("Continuation token outside of the interval accepted");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+        Assert.assertTrue(requestedRows.isEmpty());
+    }
+
+    private JsonNode scan(int limit, String continuationToken) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.scanHProject(PROJECT_ID, String.valueOf(PACKET_ID), LOWER_BOUND, UPPER_BOUND, limit, continuationToken, out);
+        return objectMapper.readTree(out.toByteArray());
+    }
+
+    /**
+     * @return sequence numbers of the packets returned by the scan
+     */
+    private List<Long> valuesOf(JsonNode scan) {
+        List<Long> values = new ArrayList<>();
+        for (JsonNode value : scan.get("values"))
+            for (JsonNode field : value.get("fields"))
+                if (field.get("name").asText().equals("sequence"))
+                    values.add(field.get("value").asLong());
+        return values;
+    }
+
+    /**
+     * Scans rows of the table between the bounds, up to the requested rows
+     */
+    private HBaseConnectorSystemApi createHBaseConnector() {
+        return (HBaseConnectorSystemApi) Proxy.newProxyInstance(HBaseConnectorSystemApi.class.getClassLoader(), new Class[]{HBaseConnectorSystemApi.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("getScanner"))
+                        throw new UnsupportedOperationException(method.getName());
+                    byte[] lowerBound = (byte[]) args[2];
+                    byte[] upperBound = (byte[]) args[3];
+                    int limit = (int) args[4];
+                    requestedRows.add(limit);
+                    List<Result> rows = table.values().stream()
+                            .filter(result -> Bytes.compareTo(result.getRow(), lowerBound) >= 0 && Bytes.compareTo(result.getRow(), upperBound) <= 0)
+                            .limit(limit > 0 ? limit : Long.MAX_VALUE)
+                            .collect(Collectors.toList());
+                    return createResultScanner(rows);
+                });
+    }
+
+    private ResultScanner createResultScanner(List<Result> rows) {
+        return (ResultScanner) Proxy.newProxyInstance(ResultScanner.class.getClassLoader(), new Class[]{ResultScanner.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "iterator":
+                            return rows.iterator();
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private HPacket createHPacket(long sequence) {
+        HProject project = new HProject();
+        project.setId(PROJECT_ID);
+        HDevice device = new HDevice();
+        device.setId(1);
+        device.setDeviceName("device");
+        device.setProject(project);
+        HPacket hpacket = new HPacket();
+        hpacket.setId(PACKET_ID);
+        hpacket.setName("scanPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        hpacket.setDevice(device);
+        HPacketField field = new HPacketField();
+        field.setId(1);
+        field.setName("sequence");
+        field.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        field.setType(HPacketFieldType.LONG);
+        field.setValue(sequence);
+        field.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(field));
+        return hpacket;
+    }
+}
@@ -75,6 +75,10 @@ public class HProjectAlgorithmJob extends HyperIoTSparkJob {
         hadoopConfig.put("hbaseZookeeperQuorum", hBaseConnectorUtil.getZookeeperQuorum());
         hadoopConfig.put("hdfsWriteDir",
                 (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.hproject.hdfs.write.dir"));
+        // Packets are written once, below nested year/month/day/hour directories:
+        // year directories must be read recursively, or only low traffic packets are found
+        hadoopConfig.put("hdfsRecursiveRead", "true");
+        hadoopConfig.put("mapreduce.input.fileinputformat.input.dir.recursive", "true");
         ObjectMapper objectMapper = new ObjectMapper();
         try {
             return objectMapper.writeValueAsString(hadoopConfig);
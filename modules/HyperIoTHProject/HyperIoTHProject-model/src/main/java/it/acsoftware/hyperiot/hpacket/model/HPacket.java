@@ -81,6 +81,11 @@ public class HPacket extends HyperIoTAbstractEntity
      */
     @JsonView({HyperIoTJSONView.Public.class, HyperIoTJSONView.Extended.class, HProjectJSONView.Export.class})
     private HPacketSerialization serialization;
+    /**
+     * Compression applied to payloads, es. none, gzip or zstd
+     */
+    @JsonView({HyperIoTJSONView.Public.class, HyperIoTJSONView.Extended.class, HProjectJSONView.Export.class})
+    private HPacketCompression compression;
 
     /**
      * The related device which sends the packet
@@ -102,10 +107,22 @@ public class HPacket extends HyperIoTAbstractEntity
     private Set<HPacketField> fields;
 
     /**
-     * runtime copy of fields
+     * runtime index of leaf fields by dotted path
      */
     private HashMap<String, HPacketField> fieldsMap;
 
+    /**
+     * runtime index of leaf fields by id
+     */
+    private HashMap<Long, HPacketField> fieldsIdMap;
+
+    /**
+     * fields set and its size at the time the indexes were built, a last resort check for fields
+     * added or removed directly on the set returned by getFields(): addField and removeField must be used instead
+     */
+    private Set<HPacketField> indexedFields;
+    private int indexedFieldsSize;
+
     /**
      * Transient boolean which indicates the current packet is valid. Not persistent
      * because it's related to data streaming not data definition
@@ -218,6 +235,21 @@ public class HPacket extends HyperIoTAbstractEntity
         this.serialization = serialization;
     }
 
+    /**
+     * @return payload compression, null means payloads are not compressed
+     */
+    @Enumerated(EnumType.STRING)
+    public HPacketCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression payload compression
+     */
+    public void setCompression(HPacketCompression compression) {
+        this.compression = compression;
+    }
+
     /**
      * Get packet version.
      *
@@ -258,6 +290,7 @@ public class HPacket extends HyperIoTAbstractEntity
      */
     public void setFields(Set<HPacketField> fields) {
         this.fields = fields;
+        this.invalidateFieldsIndex();
     }
 
     /**
@@ -424,6 +457,18 @@ public class HPacket extends HyperIoTAbstractEntity
         this.trafficPlan = trafficPlan;
     }
 
+    /**
+     * Adds a top level packet field
+     *
+     * @param field
+     */
+    public void addField(HPacketField field) {
+        if (this.fields == null)
+            this.fields = new HashSet<>();
+        this.fields.add(field);
+        this.invalidateFieldsIndex();
+    }
+
     /**
      * Removes a packet field regardless its position inside fields hierarchy
      *
@@ -431,6 +476,7 @@ public class HPacket extends HyperIoTAbstractEntity
      */
     public void removeField(HPacketField toRemove) {
         removeHPacketFieldFromInnerFields(getFields(), toRemove);
+        this.invalidateFieldsIndex();
     }
 
     private boolean removeHPacketFieldFromInnerFields(Set<HPacketField> fields, HPacketField toRemove) {
@@ -449,16 +495,45 @@ public class HPacket extends HyperIoTAbstractEntity
     }
 
     /**
-     * Reload fields map
+     * Returns the index of leaf fields by dotted path.
+     * The index is built lazily and rebuilt only after fields have been changed, so it must not be modified.
+     *
+     * @return leaf fields by path
      */
     @Transient
     @JsonIgnore
     public HashMap<String, HPacketField> getFieldsMap() {
-        //TODO find more effiecient way, no post load because it breaks the hpacket field loading
-        this.reloadFields(true);
+        this.reloadFields(false);
         return fieldsMap;
     }
 
+    /**
+     * @param fieldId field id
+     * @return leaf field with the given id, null if not found
+     */
+    @Transient
+    @JsonIgnore
+    public HPacketField getFieldById(long fieldId) {
+        this.reloadFields(false);
+        HPacketField field = fieldsIdMap.get(fieldId);
+        //a miss, or a field whose id has changed, means fields changed without going through their setters
+        if (field == null || field.getId() != fieldId) {
+            this.reloadFields(true);
+            field = fieldsIdMap.get(fieldId);
+        }
+        return field;
+    }
+
+    /**
+     * Marks fields indexes as stale, they will be rebuilt on next access.
+     * Invoked by HPacket and HPacketField setters which change fields hierarchy or ids.
+     */
+    void invalidateFieldsIndex() {
+        this.fieldsMap = null;
+        this.fieldsIdMap = null;
+        this.indexedFields = null;
+    }
+
     /**
      * Recalculates fields map based on field values
      */
@@ -470,13 +545,22 @@ public class HPacket extends HyperIoTAbstractEntity
     }
 
     /**
-     * Recalculates fieldsMap
+     * Recalculates fields indexes if they are stale
      */
     private void reloadFields(boolean forceRecalculation) {
-        if (fieldsMap == null || forceRecalculation) {
-            fieldsMap = new HashMap<>();
-            for (HPacketField field : fields)
-                getInnerFields(field, field.getName(), fieldsMap);
+        if (forceRecalculation || fieldsMap == null || indexedFields != fields
+                || (fields != null && indexedFieldsSize != fields.size())) {
+            HashMap<String, HPacketField> pathIndex = new HashMap<>();
+            HashMap<Long, HPacketField> idIndex = new HashMap<>();
+            if (fields != null) {
+                for (HPacketField field : fields)
+                    getInnerFields(field, field.getName(), pathIndex);
+                pathIndex.values().forEach(field -> idIndex.putIfAbsent(field.getId(), field));
+            }
+            fieldsMap = pathIndex;
+            fieldsIdMap = idIndex;
+            indexedFields = fields;
+            indexedFieldsSize = (fields != null) ? fields.size() : 0;
         }
     }
 
@@ -488,8 +572,9 @@ public class HPacket extends HyperIoTAbstractEntity
     @Transient
     @JsonIgnore
     public HashMap<String, Object> getFlatFieldsMapWithValues() {
-        HashMap<String, Object> fields = new HashMap<String, Object>();
-        this.getFieldsMap().forEach((k, f) -> {
+        HashMap<String, HPacketField> fieldsMap = this.getFieldsMap();
+        HashMap<String, Object> fields = new HashMap<String, Object>((int) (fieldsMap.size() / 0.75f) + 1);
+        fieldsMap.forEach((k, f) -> {
             if (f.getType() == HPacketFieldType.OBJECT) {
                 HashMap<String, Object> innerFieldData = getFlatInnerFieldsValues(f);
                 fields.put(k, innerFieldData);
@@ -526,10 +611,11 @@ public class HPacket extends HyperIoTAbstractEntity
     @Transient
     @JsonIgnore
     public HashMap<String, Object> getFlatFieldsMap() {
-        HashMap<String, Object> fields = new HashMap<String, Object>();
-        this.getFieldsMap().forEach((k, f) -> {
-            HashMap<String, Object> innerFieldData = new HashMap<>();
+        HashMap<String, HPacketField> fieldsMap = this.getFieldsMap();
+        HashMap<String, Object> fields = new HashMap<String, Object>((int) (fieldsMap.size() / 0.75f) + 1);
+        fieldsMap.forEach((k, f) -> {
             if (f.getType() != HPacketFieldType.OBJECT) {
+                HashMap<String, Object> innerFieldData = new HashMap<>(4);
                 innerFieldData.put("id", f.getId());
                 innerFieldData.put("type", f.getType().toString().toLowerCase());
                 fields.put(k, innerFieldData);
@@ -555,15 +641,14 @@ public class HPacket extends HyperIoTAbstractEntity
     public Object getFieldValue(String fieldPath) {
         fieldPath = fieldPath.trim().replace("packet.", "");
         HPacketField field = null;
-        try {
-            long hPacketFieldId = Long.parseLong(fieldPath);
-            // get hPacketField having its id
-            field = this.getFieldsMap().values().stream()
-                    .filter(hPacketField -> hPacketField.getId() == hPacketFieldId)
-                    .findFirst()
-                    .orElse(null);
-
-        } catch (NumberFormatException e) {
+        if (isFieldId(fieldPath)) {
+            try {
+                // get hPacketField having its id
+                field = this.getFieldById(Long.parseLong(fieldPath));
+            } catch (NumberFormatException e) {
+                field = this.getFieldsMap().get(fieldPath);
+            }
+        } else {
             // retro-compatibility: get hPacketField from its value
             field = this.getFieldsMap().get(fieldPath);
         }
@@ -572,6 +657,22 @@ public class HPacket extends HyperIoTAbstractEntity
         return null;
     }
 
+    /**
+     * @param fieldPath
+     * @return true if the path has the same form accepted by Long.parseLong
+     */
+    private static boolean isFieldId(String fieldPath) {
+        int length = fieldPath.length();
+        int start = (length > 0 && (fieldPath.charAt(0) == '-' || fieldPath.charAt(0) == '+')) ? 1 : 0;
+        if (start == length)
+            return false;
+        for (int i = start; i < length; i++) {
+            if (!Character.isDigit(fieldPath.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -833,25 +934,23 @@ public class HPacket extends HyperIoTAbstractEntity
         }
     }
 
-    @SuppressWarnings("resource")
+    /**
+     * @return HPacket Avro schema, parsed once per JVM
+     */
     @Override
     @Transient
     @JsonIgnore
     public Schema getSchema() {
-        Schema.Parser parser = new Schema.Parser();
-        return parser.parse(getJsonSchema());
+        return HPacketAvroSchemas.getHPacketSchema();
     }
 
+    /**
+     * @return HPacket JSON schema, read once per JVM
+     */
     @Transient
     @JsonIgnore
     public String getJsonSchema() {
-        String hPacketSchema = null;
-        String hPacketFieldSchema = null;
-        hPacketSchema = new Scanner(HPacketField.class.getClassLoader().getResourceAsStream("HPacket.avsc"), "UTF-8").useDelimiter("\\A").next();
-        hPacketFieldSchema = new Scanner(HPacketField.class.getClassLoader().getResourceAsStream("HPacketField.avsc"), "UTF-8").useDelimiter("\\A").next();
-        // manual replace of "it.acsoftware.hyperiot.hpacket.model.HPacketField" with its schema
-        hPacketSchema = hPacketSchema.replace(HPacketField.class.getName(), hPacketFieldSchema);
-        return hPacketSchema;
+        return HPacketAvroSchemas.getHPacketJsonSchema();
     }
 
 }
@@ -0,0 +1,61 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.model;
+
+/**
+ * Layout of HPacket cells stored inside HBase hproject tables.
+ * Binary cells start with a two bytes header: a format marker followed by the format version,
+ * then the Avro binary encoding of the HPacket.
+ * Legacy cells contain the JSON Avro encoding, which always starts with '{', so they can never
+ * be confused with binary ones.
+ */
+public final class HPacketAvroCellFormat {
+
+    /**
+     * First byte of binary cells, it is not a valid first byte for a JSON document
+     */
+    public static final byte BINARY_FORMAT_MARKER = 0x00;
+
+    /**
+     * Current binary format version
+     */
+    public static final byte BINARY_FORMAT_VERSION = 0x01;
+
+    public static final int HEADER_LENGTH = 2;
+
+    private HPacketAvroCellFormat() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param cell HBase cell value
+     * @return true if the cell has been written with the binary format
+     */
+    public static boolean isBinary(byte[] cell) {
+        return cell != null && cell.length >= HEADER_LENGTH && cell[0] == BINARY_FORMAT_MARKER;
+    }
+
+    /**
+     * @param cell HBase cell value
+     * @return binary format version, it must be invoked only on binary cells
+     */
+    public static byte getVersion(byte[] cell) {
+        return cell[1];
+    }
+
+}
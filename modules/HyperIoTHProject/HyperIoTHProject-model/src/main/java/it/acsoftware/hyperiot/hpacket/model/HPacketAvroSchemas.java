@@ -0,0 +1,77 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.model;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+/**
+ * Process wide holder of HPacket and HPacketField Avro schemas.
+ * Schemas are read from the model bundle resources only once, lazily, on first access:
+ * initialization on demand holders make the first access thread-safe without synchronization.
+ */
+final class HPacketAvroSchemas {
+
+    private HPacketAvroSchemas() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @return HPacket JSON schema, with the HPacketField schema inlined
+     */
+    static String getHPacketJsonSchema() {
+        return HPacketSchemaHolder.JSON_SCHEMA;
+    }
+
+    /**
+     * @return HPacket Avro schema
+     */
+    static Schema getHPacketSchema() {
+        return HPacketSchemaHolder.SCHEMA;
+    }
+
+    /**
+     * @return HPacketField Avro schema
+     */
+    static Schema getHPacketFieldSchema() {
+        return HPacketFieldSchemaHolder.SCHEMA;
+    }
+
+    private static String readResource(String name) {
+        InputStream is = HPacketField.class.getClassLoader().getResourceAsStream(name);
+        if (is == null)
+            throw new AvroRuntimeException("Resource " + name + " not found");
+        try (Scanner scanner = new Scanner(is, "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    private static final class HPacketSchemaHolder {
+        // manual replace of "it.acsoftware.hyperiot.hpacket.model.HPacketField" with its schema
+        private static final String JSON_SCHEMA = readResource("HPacket.avsc")
+                .replace(HPacketField.class.getName(), readResource("HPacketField.avsc"));
+        private static final Schema SCHEMA = new Schema.Parser().parse(JSON_SCHEMA);
+    }
+
+    private static final class HPacketFieldSchemaHolder {
+        private static final Schema SCHEMA = new Schema.Parser().parse(readResource("HPacketField.avsc"));
+    }
+}
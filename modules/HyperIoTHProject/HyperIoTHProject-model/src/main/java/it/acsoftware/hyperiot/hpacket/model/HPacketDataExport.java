@@ -44,6 +44,13 @@ public class HPacketDataExport extends HyperIoTAbstractEntity {
     private boolean completed;
     @JsonView({HyperIoTJSONView.Public.class})
     private boolean downloaded;
+    @JsonView({HyperIoTJSONView.Public.class})
+    private boolean failed;
+    //node running the export and end of its lease, see HPacketDataExportRepository.claim
+    @JsonView({HyperIoTJSONView.Compact.class})
+    private String ownerNode;
+    @JsonView({HyperIoTJSONView.Compact.class})
+    private long leaseExpiration;
     @JsonView({HyperIoTJSONView.Compact.class})
     private String filePath;
 
@@ -104,6 +111,34 @@ public class HPacketDataExport extends HyperIoTAbstractEntity {
         this.downloaded = downloaded;
     }
 
+    @Column(columnDefinition = "BOOLEAN DEFAULT FALSE")
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    @NoMalitiusCode
+    @Length(max = 255)
+    public String getOwnerNode() {
+        return ownerNode;
+    }
+
+    public void setOwnerNode(String ownerNode) {
+        this.ownerNode = ownerNode;
+    }
+
+    @Column(columnDefinition = "BIGINT DEFAULT 0")
+    public long getLeaseExpiration() {
+        return leaseExpiration;
+    }
+
+    public void setLeaseExpiration(long leaseExpiration) {
+        this.leaseExpiration = leaseExpiration;
+    }
+
     @NotNull
     @NotNullOnPersist
     @NoMalitiusCode
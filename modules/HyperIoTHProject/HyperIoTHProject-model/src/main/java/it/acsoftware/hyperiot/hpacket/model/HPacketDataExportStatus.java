@@ -33,6 +33,7 @@ public class HPacketDataExportStatus {
     private String exportId;
     private boolean started;
     private boolean completed;
+    private boolean failed;
     private String fileName;
     private List<String> errorMessages;
 
@@ -49,6 +50,14 @@ public class HPacketDataExportStatus {
         this.errorMessages = errorMessages;
     }
 
+    /**
+     * @param failed true if the export has not been completed because of errors, its file is not available
+     */
+    public HPacketDataExportStatus(String fileName, String exportId, boolean started, boolean completed, boolean failed, long currentRecord, long totalRecords, List<String> errorMessages) {
+        this(fileName, exportId, started, completed, currentRecord, totalRecords, errorMessages);
+        this.failed = failed;
+    }
+
     public long getProcessedRecords() {
         return processedRecords;
     }
@@ -69,6 +78,10 @@ public class HPacketDataExportStatus {
         return completed;
     }
 
+    public boolean isFailed() {
+        return failed;
+    }
+
     @JsonProperty("hasErrors")
     public boolean hasErrors() {
         return this.errorMessages != null && !this.errorMessages.isEmpty();
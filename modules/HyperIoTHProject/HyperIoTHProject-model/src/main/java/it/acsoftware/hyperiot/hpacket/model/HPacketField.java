@@ -37,7 +37,6 @@ import org.slf4j.LoggerFactory;
 import javax.persistence.*;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.Size;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
@@ -119,6 +118,7 @@ public class HPacketField extends HyperIoTAbstractEntity implements GenericRecor
      */
     public void setName(String name) {
         this.name = name;
+        this.invalidatePacketFieldsIndex();
     }
 
     /**
@@ -195,7 +195,9 @@ public class HPacketField extends HyperIoTAbstractEntity implements GenericRecor
      * @param packet the related packet
      */
     public void setPacket(HPacket packet) {
+        this.invalidatePacketFieldsIndex();
         this.packet = packet;
+        this.invalidatePacketFieldsIndex();
     }
 
 
@@ -207,6 +209,7 @@ public class HPacketField extends HyperIoTAbstractEntity implements GenericRecor
 
     public void setParentField(HPacketField parentField) {
         this.parentField = parentField;
+        this.invalidatePacketFieldsIndex();
     }
 
     // Eager because it needs inner fields info immediately
@@ -217,6 +220,30 @@ public class HPacketField extends HyperIoTAbstractEntity implements GenericRecor
 
     public void setInnerFields(Set<HPacketField> innerFields) {
         this.innerFields = innerFields;
+        this.invalidatePacketFieldsIndex();
+    }
+
+    /**
+     * Ids are assigned on persist, packet fields indexes must be rebuilt
+     *
+     * @param id field id
+     */
+    @Override
+    public void setId(long id) {
+        super.setId(id);
+        this.invalidatePacketFieldsIndex();
+    }
+
+    /**
+     * Field hierarchy changed, packet fields indexes must be rebuilt.
+     * Inner fields may have no packet, the one of their root field is used.
+     */
+    private void invalidatePacketFieldsIndex() {
+        HPacketField field = this;
+        while (field.packet == null && field.parentField != null && field.parentField != this)
+            field = field.parentField;
+        if (field.packet != null)
+            field.packet.invalidateFieldsIndex();
     }
 
     @Transient
@@ -424,14 +451,7 @@ public class HPacketField extends HyperIoTAbstractEntity implements GenericRecor
     @Transient
     @JsonIgnore
     public Schema getSchema() {
-        Schema.Parser parser = new Schema.Parser();
-        try {
-            return parser.parse(
-                    HPacketField.class.getClassLoader().getResourceAsStream("HPacketField.avsc"));
-        } catch (IOException e) {
-            log.error( e.getMessage(), e);
-        }
-        return null;
+        return HPacketAvroSchemas.getHPacketFieldSchema();
     }
 
 }
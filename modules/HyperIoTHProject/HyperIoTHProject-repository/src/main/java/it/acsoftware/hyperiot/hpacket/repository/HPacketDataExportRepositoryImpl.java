@@ -23,9 +23,12 @@ import it.acsoftware.hyperiot.hpacket.api.HPacketDataExportRepository;
 import it.acsoftware.hyperiot.hpacket.model.HPacketDataExport;
 import it.acsoftware.hyperiot.query.util.filter.HyperIoTQueryBuilder;
 import org.apache.aries.jpa.template.JpaTemplate;
+import org.apache.aries.jpa.template.TransactionType;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 
+import java.util.Collection;
+
 /**
  * @author Aristide Cittadino Implementation class of the HProject. This
  * class is used to interact with the persistence layer.
@@ -69,4 +72,24 @@ public class HPacketDataExportRepositoryImpl extends HyperIoTBaseRepositoryImpl<
         HyperIoTQuery q = HyperIoTQueryBuilder.newQuery().equals("exportId", exportId);
         return this.find(q, null);
     }
+
+    @Override
+    public Collection<HPacketDataExport> findUncompleted() {
+        HyperIoTQuery q = HyperIoTQueryBuilder.newQuery().equals("completed", false).and(HyperIoTQueryBuilder.newQuery().equals("failed", false));
+        return this.findAll(q);
+    }
+
+    @Override
+    public boolean claim(String exportId, String ownerNode, long leaseExpiration) {
+        long now = System.currentTimeMillis();
+        return this.jpa.txExpr(TransactionType.Required, entityManager -> entityManager.createQuery(
+                        "update HPacketDataExport e set e.ownerNode = :ownerNode, e.leaseExpiration = :leaseExpiration " +
+                                "where e.exportId = :exportId and e.completed = false and e.failed = false " +
+                                "and (e.ownerNode is null or e.ownerNode = :ownerNode or e.leaseExpiration < :now)")
+                .setParameter("ownerNode", ownerNode)
+                .setParameter("leaseExpiration", leaseExpiration)
+                .setParameter("exportId", exportId)
+                .setParameter("now", now)
+                .executeUpdate() == 1);
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hproject.serialization.service;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketAvroCellFormat;
+import it.acsoftware.hyperiot.hproject.serialization.api.HPacketSerializer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Serializes HPacket into the versioned binary Avro format stored inside HBase hproject tables.
+ * See HPacketAvroCellFormat for the cell layout.
+ */
+public final class BinaryAvroHPacketSerializer implements HPacketSerializer {
+
+    private static BinaryAvroHPacketSerializer instance;
+
+    /**
+     * Writers and encoders are reused by the same thread across packets
+     */
+    private final ThreadLocal<AvroWriter> writers;
+
+    private BinaryAvroHPacketSerializer() {
+        this.writers = ThreadLocal.withInitial(AvroWriter::new);
+    }
+
+    public static synchronized BinaryAvroHPacketSerializer getInstance() {
+        if (instance == null)
+            instance = new BinaryAvroHPacketSerializer();
+        return instance;
+    }
+
+    @Override
+    public byte[] serialize(HPacket hPacket) throws IOException {
+        AvroWriter avroWriter = writers.get();
+        avroWriter.outputStream.reset();
+        avroWriter.outputStream.write(HPacketAvroCellFormat.BINARY_FORMAT_MARKER);
+        avroWriter.outputStream.write(HPacketAvroCellFormat.BINARY_FORMAT_VERSION);
+        avroWriter.encoder = EncoderFactory.get().binaryEncoder(avroWriter.outputStream, avroWriter.encoder);
+        avroWriter.writer.write(hPacket, avroWriter.encoder);
+        avroWriter.encoder.flush();
+        return avroWriter.outputStream.toByteArray();
+    }
+
+    /**
+     * Binary Avro has no separate raw representation: the versioned cell is returned, readable by
+     * BinaryAvroHPacketDeserializer outside HyperIoT too
+     */
+    @Override
+    public byte[] serializeRaw(HPacket hPacket) throws IOException {
+        return serialize(hPacket);
+    }
+
+    private static final class AvroWriter {
+        private final SpecificDatumWriter<HPacket> writer = new SpecificDatumWriter<>(new HPacket().getSchema());
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        private BinaryEncoder encoder;
+    }
+
+}
@@ -45,6 +45,7 @@ import it.acsoftware.hyperiot.hproject.api.HProjectApi;
 import it.acsoftware.hyperiot.hproject.api.hadoop.HProjectHadoopApi;
 import it.acsoftware.hyperiot.hproject.api.hbase.HProjectHBaseApi;
 import it.acsoftware.hyperiot.hproject.model.*;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanContinuationToken;
 import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineColumnFamily;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.osgi.service.component.annotations.Component;
@@ -511,6 +512,38 @@ public class HProjectRestApi extends HyperIoTBaseEntityRestApi<HProject> impleme
         }
     }
 
+    @GET
+    @Path("/{hProjectId}/hpackets/{hPacketId}/stream/{rowKeyLowerBound}/{rowKeyUpperBound}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @LoggedIn
+    @ApiOperation(value = "/hyperiot/hprojects/{hProjectId}/hpackets/{hPacketId}/stream/{rowKeyLowerBound}/{rowKeyUpperBound}", notes = "Service for streaming scan of HPacket data, resumable through continuation token", httpMethod = "GET", produces = "application/json", authorizations = @Authorization("jwt-auth"))
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "Successful operation"),
+            @ApiResponse(code = 403, message = "Not authorized"), @ApiResponse(code = 422, message = "Not validated"),
+            @ApiResponse(code = 500, message = "Internal error")})
+    @JsonView(HyperIoTJSONView.Public.class)
+    public Response streamHPacketScan(
+            @ApiParam(value = "HProject ID from retrieve HPackets in Avro format and events", required = true) @PathParam("hProjectId") long hProjectId,
+            @ApiParam(value = "HPacket ID, -1 for events, -2 for errors", required = true) @PathParam("hPacketId") long hPacketId,
+            @ApiParam(value = "HBase row key lower bound", required = true) @PathParam("rowKeyLowerBound") long rowKeyLowerBound,
+            @ApiParam(value = "HBase row key upper bound", required = true) @PathParam("rowKeyUpperBound") long rowKeyUpperBound,
+            @ApiParam(value = "Limit, maximum number of records, bounded by server side maximum", required = false) @QueryParam("maxResults") Integer maxResults,
+            @ApiParam(value = "Token returned by the previous scan, to get next records", required = false) @QueryParam("continuationToken") String continuationToken) {
+        getLog().debug("In Rest Service GET hyperiot/hprojects/{}/hpackets/{}/stream/{}/{}", hProjectId, hPacketId, rowKeyLowerBound, rowKeyUpperBound);
+        final int limit = (maxResults == null) ? 0 : maxResults;
+        try {
+            if (rowKeyLowerBound > rowKeyUpperBound)
+                throw new IllegalArgumentException("startTime must be prior or equal to endTime");
+            // validate token before response is committed
+            if (continuationToken != null && !continuationToken.isEmpty())
+                HProjectScanContinuationToken.decode(hPacketId, continuationToken);
+            StreamingOutput stream = out -> hProjectHBaseApi.scanHProject(getHyperIoTContext(), hProjectId,
+                    String.valueOf(hPacketId), rowKeyLowerBound, rowKeyUpperBound, limit, continuationToken, out);
+            return Response.ok(stream).build();
+        } catch (IllegalArgumentException e) {
+            return handleException(e);
+        }
+    }
+
     @GET
     @Path("/{hProjectId}/hpacket/{hPacketId}/attachments/{fieldId}/{rowKeyLowerBound}/{rowKeyUpperBound}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
@@ -636,6 +669,8 @@ public class HProjectRestApi extends HyperIoTBaseEntityRestApi<HProject> impleme
             if (dataExport.isDownloaded())
                 throw new HyperIoTRuntimeException("Export already downloaded");
             HPacketDataExportStatus status = HPacketDataExportStatus.fromJsonBytes(this.entityService.exportStatus(exportId, dataExport.gethProjectId(), getHyperIoTContext()).getBytes());
+            if (status.isFailed())
+                throw new HyperIoTRuntimeException("Export failed: " + status.getErrorMessages());
             if (!status.isCompleted())
                 throw new HyperIoTRuntimeException("Exporting not completed yet...");
             StreamingOutput streamingOutput = (output -> {
@@ -0,0 +1,162 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hpacket.service.export;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Export definition and completed chunks, stored on zookeeper.
+ * It is written when export starts and every time a chunk has been completed,
+ * so an export interrupted by a container restart can be resumed from its missing chunks.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HPacketDataExportCheckpoint {
+    private static ObjectMapper mapper = new ObjectMapper();
+    private String exportId;
+    private String exportName;
+    private long hProjectId;
+    private long hPacketId;
+    private HPacketFormat format;
+    private boolean prettifyTimestamp;
+    private String timestampPattern;
+    private long from;
+    private long to;
+    private int chunks;
+    private long totalRecords;
+    private long completedChunksRecords;
+    private Set<Integer> completedChunks = new TreeSet<>();
+
+    private HPacketDataExportCheckpoint() {
+        //do nothing just for jackson
+    }
+
+    public HPacketDataExportCheckpoint(String exportId, String exportName, long hProjectId, long hPacketId, HPacketFormat format, boolean prettifyTimestamp, String timestampPattern) {
+        this.exportId = exportId;
+        this.exportName = exportName;
+        this.hProjectId = hProjectId;
+        this.hPacketId = hPacketId;
+        this.format = format;
+        this.prettifyTimestamp = prettifyTimestamp;
+        this.timestampPattern = timestampPattern;
+    }
+
+    public String getExportId() {
+        return exportId;
+    }
+
+    public String getExportName() {
+        return exportName;
+    }
+
+    public long gethProjectId() {
+        return hProjectId;
+    }
+
+    public long gethPacketId() {
+        return hPacketId;
+    }
+
+    public HPacketFormat getFormat() {
+        return format;
+    }
+
+    public boolean isPrettifyTimestamp() {
+        return prettifyTimestamp;
+    }
+
+    public String getTimestampPattern() {
+        return timestampPattern;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public void setTo(long to) {
+        this.to = to;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(int chunks) {
+        this.chunks = chunks;
+    }
+
+    public long getTotalRecords() {
+        return totalRecords;
+    }
+
+    public void setTotalRecords(long totalRecords) {
+        this.totalRecords = totalRecords;
+    }
+
+    public long getCompletedChunksRecords() {
+        return completedChunksRecords;
+    }
+
+    public Set<Integer> getCompletedChunks() {
+        return completedChunks;
+    }
+
+    public boolean isChunkCompleted(int chunk) {
+        return completedChunks.contains(chunk);
+    }
+
+    /**
+     * @param chunk   chunk index
+     * @param records records exported by the chunk
+     */
+    public void chunkCompleted(int chunk, long records) {
+        if (completedChunks.add(chunk))
+            completedChunksRecords += records;
+    }
+
+    public String toJson() {
+        try {
+            return mapper.writeValueAsString(this);
+        } catch (Exception e) {
+            return "{}";
+        }
+    }
+
+    public static HPacketDataExportCheckpoint fromJsonBytes(byte[] jsonData) {
+        try {
+            return mapper.readValue(jsonData, HPacketDataExportCheckpoint.class);
+        } catch (IOException e) {
+            throw new HyperIoTRuntimeException("Impossibile to get export checkpoint...");
+        }
+    }
+}
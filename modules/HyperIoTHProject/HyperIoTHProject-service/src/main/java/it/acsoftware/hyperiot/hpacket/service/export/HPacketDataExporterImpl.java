@@ -15,6 +15,7 @@
 
  */
 
+
 package it.acsoftware.hyperiot.hpacket.service.export;
 
 import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
@@ -25,28 +26,50 @@ import it.acsoftware.hyperiot.hpacket.model.HPacketDataExportInterruptedExceptio
 import it.acsoftware.hyperiot.hpacket.model.HPacketDataExportStatus;
 import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
 import it.acsoftware.hyperiot.hproject.api.hbase.HProjectHBaseSystemApi;
-import it.acsoftware.hyperiot.hproject.model.hbase.HPacketCount;
 import it.acsoftware.hyperiot.hproject.serialization.api.HPacketSerializer;
 import it.acsoftware.hyperiot.zookeeper.connector.api.ZookeeperConnectorSystemApi;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * Exports HPacket data between from and to into a file on HDFS.
+ * Time range is split into chunks which are exported concurrently into part files, merged in order at the end.
+ * Progress is written on zookeeper every progress rows or progress interval, whichever comes first;
+ * completed chunks are written on a checkpoint node, so the export can be resumed after a container restart.
+ * A chunk which cannot be exported is retried; if it keeps failing the export fails and its parts are not merged.
+ */
 public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.api.HPacketDataExporter, Runnable {
     private static Logger log = LoggerFactory.getLogger(HPacketDataExporterImpl.class);
+    private static final String HPACKET_EXPORT_CHUNKS = "it.acsoftware.hyperiot.hpacket.export.chunks";
+    private static final String HPACKET_EXPORT_PROGRESS_ROWS = "it.acsoftware.hyperiot.hpacket.export.progress.rows";
+    private static final String HPACKET_EXPORT_PROGRESS_INTERVAL_MS = "it.acsoftware.hyperiot.hpacket.export.progress.interval.ms";
+    private static final String HPACKET_EXPORT_CHUNK_ATTEMPTS = "it.acsoftware.hyperiot.hpacket.export.chunk.attempts";
+    private static final int DEFAULT_EXPORT_CHUNKS = 4;
+    private static final long DEFAULT_PROGRESS_ROWS = 10000;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 2000;
+    private static final int DEFAULT_CHUNK_ATTEMPTS = 3;
+    //shorter intervals are not worth a dedicated scan
+    private static final long MIN_CHUNK_INTERVAL_MS = 3600000;
+    private static final String PART_FILE_SUFFIX = ".part-";
     private HProjectHBaseSystemApi hProjectHBaseSystemApi;
     private HadoopManagerSystemApi hadoopManagerSystemApi;
     private HPacketDataExportRepository hPacketDataExportRepository;
     //using zookeeper to store export state
     private ZookeeperConnectorSystemApi zookeeperConnectorSystemApi;
-    private HPacketSerializer hPacketSerializer;
+    //each chunk needs its own serializer, since serializers can keep state (i.e. csv header)
+    private Supplier<HPacketSerializer> hPacketSerializerSupplier;
     private HPacketFormat hPacketFormat;
     private long hProjectId;
     private long hPacketId;
@@ -55,48 +78,80 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
     private String fileName;
     private String hadoopCompletePath;
     private String zookeeperPath;
-    private boolean started;
-    private boolean completed;
-    private boolean forceStop;
-    private AtomicReference<Long> currentCount;
+    private String checkpointPath;
+    private volatile boolean started;
+    private volatile boolean completed;
+    private volatile boolean forceStop;
+    private volatile boolean suspended;
+    private volatile boolean failed;
+    private AtomicLong currentCount;
     private String exportName;
     private String exportId;
-    private long totalCount;
-    private Executor executor;
+    private volatile long totalCount;
+    private ExecutorService executor;
     private Set<String> errorMessages;
     private HPacketDataExport hPacketDataExport;
+    private HPacketDataExportCheckpoint checkpoint;
+    private int maxChunks;
+    private int chunkAttempts;
+    private long progressRows;
+    private long progressIntervalMs;
+    private final Object progressLock = new Object();
+    private volatile long lastReportedCount;
+    private volatile long lastReportTime;
+
+    public HPacketDataExporterImpl(HPacketDataExportCheckpoint checkpoint, String zookeeperPath, String checkpointPath, Supplier<HPacketSerializer> hPacketSerializerSupplier) {
+        this(checkpoint, zookeeperPath, checkpointPath, hPacketSerializerSupplier,
+                (HProjectHBaseSystemApi) HyperIoTUtil.getService(HProjectHBaseSystemApi.class),
+                (HadoopManagerSystemApi) HyperIoTUtil.getService(HadoopManagerSystemApi.class),
+                (HPacketDataExportRepository) HyperIoTUtil.getService(HPacketDataExportRepository.class),
+                (ZookeeperConnectorSystemApi) HyperIoTUtil.getService(ZookeeperConnectorSystemApi.class),
+                HyperIoTUtil::getHyperIoTProperty);
+    }
 
-    public HPacketDataExporterImpl(String exportId, String exportName, String zookeeperPath, long hProjectId, long hPacketId, HPacketSerializer hPacketSerializer, HPacketFormat hPacketFormat) {
-        this.exportId = exportId;
-        this.exportName = exportName;
-        this.hProjectId = hProjectId;
-        this.hPacketId = hPacketId;
-        this.hPacketSerializer = hPacketSerializer;
-        this.hPacketFormat = hPacketFormat;
+    HPacketDataExporterImpl(HPacketDataExportCheckpoint checkpoint, String zookeeperPath, String checkpointPath, Supplier<HPacketSerializer> hPacketSerializerSupplier,
+                            HProjectHBaseSystemApi hProjectHBaseSystemApi, HadoopManagerSystemApi hadoopManagerSystemApi,
+                            HPacketDataExportRepository hPacketDataExportRepository, ZookeeperConnectorSystemApi zookeeperConnectorSystemApi,
+                            Function<String, Object> properties) {
+        this.checkpoint = checkpoint;
+        this.exportId = checkpoint.getExportId();
+        this.exportName = checkpoint.getExportName();
+        this.hProjectId = checkpoint.gethProjectId();
+        this.hPacketId = checkpoint.gethPacketId();
+        this.hPacketFormat = checkpoint.getFormat();
+        this.hPacketSerializerSupplier = hPacketSerializerSupplier;
         this.started = false;
         this.completed = false;
         this.forceStop = false;
-        this.currentCount = new AtomicReference<>();
-        this.currentCount.set(0l);
+        this.suspended = false;
+        this.failed = false;
+        this.currentCount = new AtomicLong(0);
         this.totalCount = 0;
 
         this.fileName = exportId + "." + hPacketFormat.getName();
         this.hadoopCompletePath = getHadoopPath(fileName);
         this.zookeeperPath = zookeeperPath;
+        this.checkpointPath = checkpointPath;
         this.executor = Executors.newSingleThreadExecutor();
         //default is now
         this.from = System.currentTimeMillis();
         this.to = System.currentTimeMillis();
         this.hPacketDataExport = createHPacketDataExport();
-        this.errorMessages = new HashSet<>();
-        this.hProjectHBaseSystemApi = (HProjectHBaseSystemApi) HyperIoTUtil.getService(HProjectHBaseSystemApi.class);
-        this.hadoopManagerSystemApi = (HadoopManagerSystemApi) HyperIoTUtil.getService(HadoopManagerSystemApi.class);
-        this.hPacketDataExportRepository = (HPacketDataExportRepository) HyperIoTUtil.getService(HPacketDataExportRepository.class);
-        this.zookeeperConnectorSystemApi = (ZookeeperConnectorSystemApi) HyperIoTUtil.getService(ZookeeperConnectorSystemApi.class);
+        this.errorMessages = ConcurrentHashMap.newKeySet();
+        this.maxChunks = (int) getPositiveProperty(properties, HPACKET_EXPORT_CHUNKS, DEFAULT_EXPORT_CHUNKS);
+        this.progressRows = getPositiveProperty(properties, HPACKET_EXPORT_PROGRESS_ROWS, DEFAULT_PROGRESS_ROWS);
+        this.progressIntervalMs = getPositiveProperty(properties, HPACKET_EXPORT_PROGRESS_INTERVAL_MS, DEFAULT_PROGRESS_INTERVAL_MS);
+        this.chunkAttempts = (int) getPositiveProperty(properties, HPACKET_EXPORT_CHUNK_ATTEMPTS, DEFAULT_CHUNK_ATTEMPTS);
+        this.hProjectHBaseSystemApi = hProjectHBaseSystemApi;
+        this.hadoopManagerSystemApi = hadoopManagerSystemApi;
+        this.hPacketDataExportRepository = hPacketDataExportRepository;
+        this.zookeeperConnectorSystemApi = zookeeperConnectorSystemApi;
     }
 
     private HPacketDataExportStatus createStatus() {
-        return new HPacketDataExportStatus(fileName, exportId, started, completed, currentCount.get(), totalCount, Collections.unmodifiableList(new ArrayList<>(this.errorMessages)));
+        long processed = currentCount.get();
+        //total is estimated, it must never be lower than the processed records
+        return new HPacketDataExportStatus(fileName, exportId, started, completed, failed, processed, Math.max(totalCount, processed), Collections.unmodifiableList(new ArrayList<>(this.errorMessages)));
     }
 
     @Override
@@ -112,10 +167,9 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
         this.to = to;
     }
 
-    protected long countResults(long hProjectId, long hPacketId) {
+    protected long estimateResults(long hProjectId, long hPacketId) {
         try {
-            List<HPacketCount> count = hProjectHBaseSystemApi.timelineEventCount(hProjectId, Collections.singletonList(String.valueOf(hPacketId)), Collections.emptyList(), from, to);
-            if (count.size() > 0) return count.get(0).getTotalCount();
+            return hProjectHBaseSystemApi.timelineEventCountEstimate(hProjectId, String.valueOf(hPacketId), from, to);
         } catch (Throwable e) {
             log.error(e.getMessage(), e);
         }
@@ -124,39 +178,242 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
 
     @Override
     public void run() {
-        hPacketDataExport = hPacketDataExportRepository.save(createHPacketDataExport());
-        final BufferedOutputStream exportOutputStreamWriter = getFileOutputStream(hadoopCompletePath);
+        if (hPacketDataExport.getId() == 0)
+            hPacketDataExport = hPacketDataExportRepository.save(hPacketDataExport);
+        List<Integer> pendingChunks = new ArrayList<>();
+        for (int chunk = 0; chunk < checkpoint.getChunks(); chunk++) {
+            if (!checkpoint.isChunkCompleted(chunk))
+                pendingChunks.add(chunk);
+        }
+        ExecutorService chunkExecutor = Executors.newFixedThreadPool(Math.max(1, pendingChunks.size()));
+        try {
+            List<Future<?>> chunkResults = new ArrayList<>();
+            for (int chunk : pendingChunks)
+                chunkResults.add(chunkExecutor.submit(() -> {
+                    exportChunkWithRetries(chunk);
+                    return null;
+                }));
+            for (int i = 0; i < chunkResults.size(); i++) {
+                try {
+                    chunkResults.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Export {}, chunk {} failed: {}", exportId, pendingChunks.get(i), e.getCause().getMessage(), e.getCause());
+                    this.errorMessages.add(String.valueOf(e.getCause().getMessage()));
+                    this.failed = true;
+                }
+            }
+            if (suspended) {
+                log.info("Export {} suspended, it will be resumed from its missing chunks", exportId);
+                return;
+            }
+            //a failed chunk would leave a hole in exported data
+            if (!failed)
+                mergeChunks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error(e.getMessage(), e);
+            this.errorMessages.add("Export interrupted");
+            this.failed = true;
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            this.errorMessages.add(String.valueOf(ex.getMessage()));
+            this.failed = true;
+        } finally {
+            chunkExecutor.shutdownNow();
+            if (failed)
+                updateExportFailed();
+            else if (!suspended)
+                updateExportCompleted();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Exports a chunk, retrying it from scratch if it fails
+     *
+     * @param chunk chunk index
+     * @throws IOException if the chunk cannot be exported within the configured attempts
+     */
+    private void exportChunkWithRetries(int chunk) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                exportChunk(chunk);
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= chunkAttempts || forceStop || suspended)
+                    throw e;
+                log.warn("Export {}, chunk {} failed at attempt {}, retrying: {}", exportId, chunk, attempt, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exports packets of a chunk into its own part file, then marks it as completed on the checkpoint.
+     * Packets which cannot be serialized are skipped, reporting the error; if the part cannot be written the chunk fails.
+     *
+     * @param chunk chunk index
+     * @throws IOException if the part file cannot be written
+     */
+    private void exportChunk(int chunk) throws IOException {
+        String partPath = getPartPath(chunk);
+        //removing data written by an interrupted run of the same chunk
+        deleteFile(partPath);
+        final BufferedOutputStream exportOutputStreamWriter = getFileOutputStream(partPath);
+        final HPacketSerializer hPacketSerializer = hPacketSerializerSupplier.get();
+        final long[] chunkCount = {0};
+        final IOException[] writeError = {null};
         try {
-            this.hProjectHBaseSystemApi.scanHProject(this.hProjectId, this.hPacketId, from, to, hPacket -> {
-                if (forceStop) throw new HPacketDataExportInterruptedException();
+            this.hProjectHBaseSystemApi.scanHProject(this.hProjectId, this.hPacketId, getChunkLowerBound(chunk), getChunkUpperBound(chunk), hPacket -> {
+                if (forceStop || suspended || writeError[0] != null) throw new HPacketDataExportInterruptedException();
                 //add packet to the final result
+                byte[] data;
                 try {
-                    byte[] data = this.hPacketSerializer.serialize(hPacket);
-                    exportOutputStreamWriter.write(data);
-                    zookeeperConnectorSystemApi.update(zookeeperPath, this.createStatus().toJson().getBytes());
+                    data = hPacketSerializer.serialize(hPacket);
                 } catch (Exception e) {
                     log.error(e.getMessage(), e);
-                    this.errorMessages.add(e.getMessage());
+                    this.errorMessages.add(String.valueOf(e.getMessage()));
+                    return;
                 } finally {
-                    currentCount.getAndUpdate(current -> current + 1);
+                    chunkCount[0]++;
+                    reportProgress(currentCount.incrementAndGet());
+                }
+                try {
+                    exportOutputStreamWriter.write(data);
+                } catch (IOException e) {
+                    //stopping the scan, the chunk has to be exported again
+                    writeError[0] = e;
+                    throw new HPacketDataExportInterruptedException();
                 }
             });
-        } catch (Exception ex) {
-            log.error(ex.getMessage(), ex);
-        } finally {
+            exportOutputStreamWriter.close();
+            if (writeError[0] != null)
+                throw writeError[0];
+        } catch (IOException | RuntimeException e) {
             closeOutputStream(exportOutputStreamWriter);
-            updateExportCompleted();
+            //packets of a failed attempt are counted again by the next one
+            currentCount.addAndGet(-chunkCount[0]);
+            throw e;
+        }
+        if (!forceStop && !suspended)
+            checkpointChunk(chunk, chunkCount[0]);
+    }
+
+    /**
+     * Row key upper bound is excluded from scan, so adjacent chunks share their bound without duplicates
+     */
+    private long getChunkLowerBound(int chunk) {
+        return from + (to - from) * chunk / checkpoint.getChunks();
+    }
+
+    private long getChunkUpperBound(int chunk) {
+        return (chunk == checkpoint.getChunks() - 1) ? to : getChunkLowerBound(chunk + 1);
+    }
+
+    private int computeChunks() {
+        long chunks = (to - from) / MIN_CHUNK_INTERVAL_MS;
+        return (int) Math.max(1, Math.min(maxChunks, chunks));
+    }
+
+    private String getPartPath(int chunk) {
+        return hadoopCompletePath + PART_FILE_SUFFIX + chunk;
+    }
+
+    /**
+     * Appends part files, in chunk order, to the export file and removes them.
+     * Csv parts begin with header: it is kept only for the first part containing data.
+     * Parts can be missing only if export has been stopped.
+     */
+    private void mergeChunks() throws IOException {
+        //removing data written by an interrupted merge
+        deleteFile(hadoopCompletePath);
+        boolean skipHeader = false;
+        try (OutputStream exportOutputStream = new BufferedOutputStream(hadoopManagerSystemApi.appendToFile(hadoopCompletePath))) {
+            for (int chunk = 0; chunk < checkpoint.getChunks(); chunk++) {
+                String partPath = getPartPath(chunk);
+                try (InputStream partInputStream = new BufferedInputStream(hadoopManagerSystemApi.readFile(partPath))) {
+                    long copied = copyPart(partInputStream, exportOutputStream, skipHeader);
+                    skipHeader = skipHeader || (copied > 0 && hPacketFormat == HPacketFormat.CSV);
+                } catch (Exception e) {
+                    //part is missing when export has been stopped before the chunk started
+                    if (!forceStop)
+                        throw new IOException("Export " + exportId + ", part " + chunk + " cannot be merged", e);
+                    log.warn("Export {}, part {} cannot be merged: {}", exportId, chunk, e.getMessage());
+                }
+                deleteFile(partPath);
+            }
+        }
+    }
+
+    private long copyPart(InputStream in, OutputStream out, boolean skipFirstLine) throws IOException {
+        long copied = 0;
+        int b;
+        if (skipFirstLine) {
+            while ((b = in.read()) != -1) {
+                copied++;
+                if (b == '\n')
+                    break;
+            }
+        }
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Writes status on zookeeper if progress rows have been processed or progress interval has elapsed since last update
+     *
+     * @param processed records processed so far
+     */
+    private void reportProgress(long processed) {
+        long now = System.currentTimeMillis();
+        if (processed - lastReportedCount < progressRows && now - lastReportTime < progressIntervalMs)
+            return;
+        synchronized (progressLock) {
+            //another chunk could have just reported
+            if (processed - lastReportedCount < progressRows && now - lastReportTime < progressIntervalMs)
+                return;
+            lastReportedCount = processed;
+            lastReportTime = now;
+            updateStatus();
+        }
+    }
+
+    private void updateStatus() {
+        try {
+            zookeeperConnectorSystemApi.update(zookeeperPath, this.createStatus().toJson().getBytes());
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void checkpointChunk(int chunk, long records) {
+        synchronized (checkpoint) {
+            checkpoint.chunkCompleted(chunk, records);
+            try {
+                zookeeperConnectorSystemApi.update(checkpointPath, checkpoint.toJson().getBytes());
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
         }
     }
 
     @Override
     public HPacketDataExportStatus start() {
         this.started = true;
-        this.totalCount = countResults(hProjectId, hPacketId);
-        this.completed = totalCount > 0 ? false:true;
+        this.totalCount = estimateResults(hProjectId, hPacketId);
+        this.checkpoint.setFrom(from);
+        this.checkpoint.setTo(to);
+        this.checkpoint.setChunks(computeChunks());
+        this.checkpoint.setTotalRecords(totalCount);
         try {
             HPacketDataExportStatus initialStatus = createStatus();
             this.zookeeperConnectorSystemApi.createPersistent(zookeeperPath, initialStatus.toJson().getBytes(), true);
+            this.zookeeperConnectorSystemApi.createPersistent(checkpointPath, checkpoint.toJson().getBytes(), true);
+            this.lastReportTime = System.currentTimeMillis();
             executor.execute(this);
             return initialStatus;
         } catch (Exception e) {
@@ -167,11 +424,56 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
         return this.createStatus();
     }
 
+    /**
+     * Resumes an export interrupted by a container restart, exporting chunks which have not been completed
+     *
+     * @param hPacketDataExport export entity saved when export started
+     * @return current status
+     */
+    public HPacketDataExportStatus resume(HPacketDataExport hPacketDataExport) {
+        this.hPacketDataExport = hPacketDataExport;
+        this.from = checkpoint.getFrom();
+        this.to = checkpoint.getTo();
+        this.totalCount = checkpoint.getTotalRecords();
+        this.currentCount.set(checkpoint.getCompletedChunksRecords());
+        this.lastReportedCount = currentCount.get();
+        this.lastReportTime = System.currentTimeMillis();
+        this.started = true;
+        updateStatus();
+        executor.execute(this);
+        return createStatus();
+    }
+
     @Override
     public void stop() {
         this.forceStop = true;
     }
 
+    /**
+     * @return true if the export has been saved and it is running on this node
+     */
+    public boolean isRunning() {
+        return started && hPacketDataExport.getId() != 0 && !completed && !failed && !suspended;
+    }
+
+    /**
+     * Sets the node running a new export, before it is saved
+     *
+     * @param ownerNode       node id
+     * @param leaseExpiration epoch millis until the claim is valid
+     */
+    public void setOwner(String ownerNode, long leaseExpiration) {
+        this.hPacketDataExport.setOwnerNode(ownerNode);
+        this.hPacketDataExport.setLeaseExpiration(leaseExpiration);
+    }
+
+    /**
+     * Interrupts the export without completing it, so it can be resumed later
+     */
+    public void suspend() {
+        this.suspended = true;
+    }
+
     private HPacketDataExport createHPacketDataExport() {
         Date now = new Date(Instant.now().toEpochMilli());
         HPacketDataExport hPacketDataExport = new HPacketDataExport();
@@ -187,14 +489,13 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
         return hPacketDataExport;
     }
 
-    private BufferedOutputStream getFileOutputStream(String filePath) {
+    private BufferedOutputStream getFileOutputStream(String filePath) throws IOException {
         try {
             OutputStream exportOutputStream = hadoopManagerSystemApi.appendToFile(filePath);
             return new BufferedOutputStream(exportOutputStream);
         } catch (Exception e) {
-            log.error(e.getMessage(), e);
+            throw new IOException("Impossible to create export file " + filePath, e);
         }
-        return null;
     }
 
     private void closeOutputStream(BufferedOutputStream bufferedOutputStream) {
@@ -205,10 +506,54 @@ public class HPacketDataExporterImpl implements it.acsoftware.hyperiot.hpacket.a
         }
     }
 
+    private void deleteFile(String filePath) {
+        try {
+            hadoopManagerSystemApi.deleteFile(filePath);
+        } catch (Exception e) {
+            log.debug("File {} not deleted: {}", filePath, e.getMessage());
+        }
+    }
+
     private void updateExportCompleted() {
         this.hPacketDataExport.setCompleted(true);
         this.completed = true;
         hPacketDataExportRepository.update(this.hPacketDataExport);
+        updateStatus();
+        try {
+            zookeeperConnectorSystemApi.delete(checkpointPath);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Failed exports are not resumed: parts and checkpoint are removed, the error is kept on the status
+     */
+    private void updateExportFailed() {
+        log.error("Export {} failed: {}", exportId, errorMessages);
+        for (int chunk = 0; chunk < checkpoint.getChunks(); chunk++)
+            deleteFile(getPartPath(chunk));
+        deleteFile(hadoopCompletePath);
+        this.hPacketDataExport.setFailed(true);
+        try {
+            hPacketDataExportRepository.update(this.hPacketDataExport);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        updateStatus();
+        try {
+            zookeeperConnectorSystemApi.delete(checkpointPath);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private static long getPositiveProperty(Function<String, Object> properties, String propertyName, long defaultValue) {
+        Object value = properties.apply(propertyName);
+        if (value == null)
+            return defaultValue;
+        long parsed = Long.parseLong(value.toString().trim());
+        return (parsed > 0) ? parsed : defaultValue;
     }
 
     public static String getHadoopPath(String fileName) {
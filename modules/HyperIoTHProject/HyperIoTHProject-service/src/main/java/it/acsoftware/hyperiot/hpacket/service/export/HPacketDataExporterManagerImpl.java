@@ -33,6 +33,7 @@ import it.acsoftware.hyperiot.hproject.serialization.api.HPacketSerializer;
 import it.acsoftware.hyperiot.hproject.serialization.service.builder.HPacketSerializerBuilder;
 import it.acsoftware.hyperiot.zookeeper.connector.api.ZookeeperConnectorSystemApi;
 import it.acsoftware.hyperiot.zookeeper.connector.util.HyperIoTZookeeperConstants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
@@ -42,19 +43,34 @@ import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+/**
+ * Creates exporters and resumes exports interrupted by a container restart.
+ * Every node can resume an export, so it is claimed on the database with a lease before resuming it:
+ * the node running an export renews its lease while the export runs.
+ * Uncompleted exports are looked for at every lease interval, so the ones left by a node that went down
+ * are taken over by the others without waiting for a restart.
+ */
 @Component(service = HPacketDataExportManager.class, immediate = true)
 public class HPacketDataExporterManagerImpl implements HPacketDataExportManager {
     private static Logger log = LoggerFactory.getLogger(HPacketDataExporterManagerImpl.class);
     private static final String DATE_DEFAULT_PATTERN = "yyyy-MM-dd HH:mm:ss";
+    private static final String HPACKET_EXPORT_LEASE_MS = "it.acsoftware.hyperiot.hpacket.export.lease.ms";
+    private static final long DEFAULT_LEASE_MS = 60000;
     private HPacketSystemApi hPacketSystemApi;
     private ZookeeperConnectorSystemApi zookeeperConnectorSystemApi;
     private HPacketDataExportRepository hPacketDataExportRepository;
     private HadoopManagerSystemApi hadoopManagerSystemApi;
-    private Map<String, HPacketDataExporter> localRunningExports = new HashMap<>();
+    private Map<String, HPacketDataExporterImpl> localRunningExports = new ConcurrentHashMap<>();
+    private ScheduledExecutorService resumeExecutor;
+    private long leaseMs = DEFAULT_LEASE_MS;
 
 
     @Reference
@@ -79,33 +95,104 @@ public class HPacketDataExporterManagerImpl implements HPacketDataExportManager
         this.hadoopManagerSystemApi = hadoopManagerSystemApi;
     }
 
+    @Activate
+    public void onActivate() {
+        Object leaseProperty = HyperIoTUtil.getHyperIoTProperty(HPACKET_EXPORT_LEASE_MS);
+        if (leaseProperty != null)
+            this.leaseMs = Math.max(1000, Long.parseLong(leaseProperty.toString().trim()));
+        //resuming exports interrupted by a previous shutdown or orphaned by another node, without blocking activation
+        this.resumeExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.resumeExecutor.scheduleWithFixedDelay(this::resumeExports, 0, leaseMs, TimeUnit.MILLISECONDS);
+        this.resumeExecutor.scheduleAtFixedRate(this::renewLeases, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);
+    }
+
     @Deactivate
     public void onDeactivate() {
-        //forcing stop on all exports
-        this.localRunningExports.keySet().iterator().forEachRemaining(exportId -> this.localRunningExports.get(exportId).stop());
+        this.resumeExecutor.shutdownNow();
+        //suspending all exports, they will be resumed on next activation
+        this.localRunningExports.values().forEach(HPacketDataExporterImpl::suspend);
     }
 
     @Override
     public HPacketDataExporter createExporter(HPacketFormat exportFormat, String exportName, long hProjectId, long hPacketId, boolean prettifyTimestamp, String timestampPattern) {
         String exportId = UUID.randomUUID().toString();
-        HPacket hPacketDefinition = hPacketSystemApi.find(hPacketId, null);
+        HPacketDataExportCheckpoint checkpoint = new HPacketDataExportCheckpoint(exportId, exportName, hProjectId, hPacketId, exportFormat, prettifyTimestamp, timestampPattern);
+        HPacketDataExporterImpl exporter = new HPacketDataExporterImpl(checkpoint, getZookeeperPath(exportId), getZookeeperCheckpointPath(exportId), createSerializerSupplier(checkpoint));
+        exporter.setOwner(HyperIoTUtil.getNodeId(), System.currentTimeMillis() + leaseMs);
+        localRunningExports.put(exportId, exporter);
+        return exporter;
+    }
+
+    private Supplier<HPacketSerializer> createSerializerSupplier(HPacketDataExportCheckpoint checkpoint) {
+        HPacket hPacketDefinition = hPacketSystemApi.find(checkpoint.gethPacketId(), null);
         HPacketSerializerBuilder hPacketSerializerBuilder = HPacketSerializerBuilder.newBuilder()
-                .withFormat(exportFormat)
+                .withFormat(checkpoint.getFormat())
                 .withTimestampField(true)
                 .withHPacketDefinition(hPacketDefinition);
-        if (prettifyTimestamp) {
+        if (checkpoint.isPrettifyTimestamp()) {
             DateTimeFormatter dateTimeFormatter = null;
-            if (timestampPattern == null)
+            if (checkpoint.getTimestampPattern() == null)
                 dateTimeFormatter = DateTimeFormatter.ofPattern(DATE_DEFAULT_PATTERN);
             else
-                dateTimeFormatter = DateTimeFormatter.ofPattern(timestampPattern);
+                dateTimeFormatter = DateTimeFormatter.ofPattern(checkpoint.getTimestampPattern());
             hPacketSerializerBuilder.withPrettyTimestamp(true)
                     .withDateTimeFormatter(dateTimeFormatter);
         }
-        HPacketSerializer serializer = hPacketSerializerBuilder.build();
-        HPacketDataExporter exporter = new HPacketDataExporterImpl(exportId, exportName, getZookeeperPath(exportId), hProjectId, hPacketId, serializer, exportFormat);
-        localRunningExports.put(exportId, exporter);
-        return exporter;
+        return hPacketSerializerBuilder::build;
+    }
+
+    /**
+     * Resumes uncompleted exports of this layer which have a checkpoint on zookeeper and are not claimed by another node,
+     * an export whose lease has expired is taken over
+     */
+    private void resumeExports() {
+        //repository is not available on mqtt server
+        if (hPacketDataExportRepository == null || hadoopManagerSystemApi == null)
+            return;
+        try {
+            for (HPacketDataExport dataExport : hPacketDataExportRepository.findUncompleted()) {
+                String exportId = dataExport.getExportId();
+                try {
+                    String checkpointPath = getZookeeperCheckpointPath(exportId);
+                    if (localRunningExports.containsKey(exportId) || !zookeeperConnectorSystemApi.checkExists(checkpointPath))
+                        continue;
+                    if (!hPacketDataExportRepository.claim(exportId, HyperIoTUtil.getNodeId(), System.currentTimeMillis() + leaseMs)) {
+                        log.debug("Export {} is running on another node", exportId);
+                        continue;
+                    }
+                    HPacketDataExportCheckpoint checkpoint = HPacketDataExportCheckpoint.fromJsonBytes(zookeeperConnectorSystemApi.read(checkpointPath, true));
+                    HPacketDataExporterImpl exporter = new HPacketDataExporterImpl(checkpoint, getZookeeperPath(exportId), checkpointPath, createSerializerSupplier(checkpoint));
+                    localRunningExports.put(exportId, exporter);
+                    exporter.resume(dataExport);
+                    log.info("Export {} resumed, completed chunks: {}", exportId, checkpoint.getCompletedChunks());
+                } catch (Exception e) {
+                    log.error("Export {} cannot be resumed: {}", exportId, e.getMessage(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Impossible to resume exports: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Renews leases of exports running on this node, an export claimed meanwhile by another node is suspended here
+     */
+    private void renewLeases() {
+        if (hPacketDataExportRepository == null)
+            return;
+        localRunningExports.forEach((exportId, exporter) -> {
+            if (!exporter.isRunning())
+                return;
+            try {
+                if (!hPacketDataExportRepository.claim(exportId, HyperIoTUtil.getNodeId(), System.currentTimeMillis() + leaseMs)) {
+                    log.warn("Export {} has been claimed by another node, suspending it", exportId);
+                    exporter.suspend();
+                    localRunningExports.remove(exportId);
+                }
+            } catch (Exception e) {
+                log.error("Lease of export {} not renewed: {}", exportId, e.getMessage(), e);
+            }
+        });
     }
 
     @Override
@@ -129,7 +216,7 @@ public class HPacketDataExporterManagerImpl implements HPacketDataExportManager
     @Override
     public InputStream getExportStream(String exportId) {
         HPacketDataExportStatus status = getStatus(exportId);
-        if (status != null && status.isStarted() && status.isCompleted()) {
+        if (status != null && status.isStarted() && status.isCompleted() && !status.isFailed()) {
             try {
                 String hadoopFilePath = HPacketDataExporterImpl.getHadoopPath(status.getFileName());
                 return hadoopManagerSystemApi.readFile(hadoopFilePath);
@@ -174,6 +261,11 @@ public class HPacketDataExporterManagerImpl implements HPacketDataExportManager
         return HyperIoTZookeeperConstants.HYPERIOT_ZOOKEEPER_BASE_PATH + "/" + layer + "/hprojects/exports/" + exportId;
     }
 
+    private String getZookeeperCheckpointPath(String exportId) {
+        String layer = HyperIoTUtil.getLayer();
+        return HyperIoTZookeeperConstants.HYPERIOT_ZOOKEEPER_BASE_PATH + "/" + layer + "/hprojects/exports-checkpoints/" + exportId;
+    }
+
     private byte[] readHPacketDataExportStatus(String exportId) {
         try {
             return this.zookeeperConnectorSystemApi.read(getZookeeperPath(exportId), true);
@@ -0,0 +1,325 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.service.export;
+
+import it.acsoftware.hyperiot.hadoopmanager.api.HadoopManagerSystemApi;
+import it.acsoftware.hyperiot.hpacket.api.HPacketDataExportRepository;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketDataExport;
+import it.acsoftware.hyperiot.hpacket.model.HPacketDataExportStatus;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
+import it.acsoftware.hyperiot.hproject.api.hbase.HProjectHBaseSystemApi;
+import it.acsoftware.hyperiot.hproject.serialization.api.HPacketSerializer;
+import it.acsoftware.hyperiot.zookeeper.connector.api.ZookeeperConnectorSystemApi;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Exporter on in memory hbase, hdfs, zookeeper and repository: chunks run concurrently,
+ * their parts must be merged in time order; failed chunks are retried, a chunk failing every attempt fails the export;
+ * a resumed export scans only the chunks missing from its checkpoint.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HPacketDataExporterImplTest {
+    private static final long HOUR = 3600000;
+    private static final long FROM = 1672531200000L;
+    //4 hours, so 4 chunks of one hour
+    private static final long TO = FROM + 4 * HOUR;
+    private static final long PACKET_INTERVAL = 10 * 60000;
+    private static final String ZOOKEEPER_PATH = "/exports/status";
+    private static final String CHECKPOINT_PATH = "/exports/checkpoint";
+
+    private Map<String, ByteArrayOutputStream> files;
+    private Map<String, byte[]> zookeeperNodes;
+    private Map<String, HPacketDataExport> exports;
+    private List<Long> scannedChunks;
+    //chunk lower bound -> failures before the scan succeeds
+    private Map<Long, AtomicInteger> scanFailures;
+
+    @Before
+    public void init() {
+        files = new ConcurrentHashMap<>();
+        zookeeperNodes = new ConcurrentHashMap<>();
+        exports = new ConcurrentHashMap<>();
+        scannedChunks = Collections.synchronizedList(new ArrayList<>());
+        scanFailures = new ConcurrentHashMap<>();
+    }
+
+    @Test
+    public void test00_chunksAreMergedInTimeOrder() throws Exception {
+        HPacketDataExporterImpl exporter = createExporter(createCheckpoint());
+        exporter.setFrom(FROM);
+        exporter.setTo(TO);
+        exporter.start();
+        HPacketDataExportStatus status = awaitEnd(exporter);
+        Assert.assertTrue(status.isCompleted());
+        Assert.assertFalse(status.isFailed());
+        Assert.assertEquals(4, scannedChunks.size());
+        Assert.assertEquals(expectedLines(), exportedLines(status));
+        Assert.assertEquals(expectedLines().size(), status.getProcessedRecords());
+        assertOnlyExportFileLeft(status);
+        Assert.assertTrue(exports.get(status.getExportId()).isCompleted());
+    }
+
+    @Test
+    public void test01_failedChunkIsRetried() throws Exception {
+        scanFailures.put(FROM + 2 * HOUR, new AtomicInteger(2));
+        HPacketDataExporterImpl exporter = createExporter(createCheckpoint());
+        exporter.setFrom(FROM);
+        exporter.setTo(TO);
+        exporter.start();
+        HPacketDataExportStatus status = awaitEnd(exporter);
+        Assert.assertTrue(status.isCompleted());
+        Assert.assertFalse(status.isFailed());
+        //4 chunks, third one scanned 3 times
+        Assert.assertEquals(6, scannedChunks.size());
+        Assert.assertEquals(expectedLines(), exportedLines(status));
+        //packets of failed attempts are not counted twice
+        Assert.assertEquals(expectedLines().size(), status.getProcessedRecords());
+    }
+
+    @Test
+    public void test02_chunkFailingEveryAttemptFailsTheExport() throws Exception {
+        scanFailures.put(FROM + 2 * HOUR, new AtomicInteger(Integer.MAX_VALUE));
+        HPacketDataExporterImpl exporter = createExporter(createCheckpoint());
+        exporter.setFrom(FROM);
+        exporter.setTo(TO);
+        exporter.start();
+        HPacketDataExportStatus status = awaitEnd(exporter);
+        Assert.assertTrue(status.isFailed());
+        Assert.assertFalse(status.isCompleted());
+        Assert.assertTrue(status.hasErrors());
+        HPacketDataExport export = exports.get(status.getExportId());
+        Assert.assertTrue(export.isFailed());
+        Assert.assertFalse(export.isCompleted());
+        //neither the export file nor parts are left, failed exports are not resumed
+        Assert.assertTrue(files.isEmpty());
+        Assert.assertTrue(HPacketDataExportStatus.fromJsonBytes(zookeeperNodes.get(ZOOKEEPER_PATH)).isFailed());
+    }
+
+    @Test
+    public void test03_resumedExportScansOnlyMissingChunks() throws Exception {
+        HPacketDataExportCheckpoint checkpoint = createCheckpoint();
+        checkpoint.setFrom(FROM);
+        checkpoint.setTo(TO);
+        checkpoint.setChunks(4);
+        //export interrupted after the first two chunks
+        String exportFile = HPacketDataExporterImpl.getHadoopPath(checkpoint.getExportId() + "." + HPacketFormat.JSON.getName());
+        List<String> lines = expectedLines();
+        int completedLines = (int) (2 * HOUR / PACKET_INTERVAL);
+        writeFile(exportFile + ".part-0", lines.subList(0, completedLines / 2));
+        writeFile(exportFile + ".part-1", lines.subList(completedLines / 2, completedLines));
+        checkpoint.chunkCompleted(0, completedLines / 2);
+        checkpoint.chunkCompleted(1, completedLines / 2);
+        zookeeperNodes.put(CHECKPOINT_PATH, checkpoint.toJson().getBytes(StandardCharsets.UTF_8));
+        HPacketDataExport export = new HPacketDataExport();
+        export.setId(1);
+        export.setExportId(checkpoint.getExportId());
+        exports.put(checkpoint.getExportId(), export);
+
+        HPacketDataExporterImpl resumed = createExporter(HPacketDataExportCheckpoint.fromJsonBytes(zookeeperNodes.get(CHECKPOINT_PATH)));
+        resumed.resume(export);
+        HPacketDataExportStatus status = awaitEnd(resumed);
+        Assert.assertTrue(status.isCompleted());
+        Assert.assertEquals(Arrays.asList(FROM + 2 * HOUR, FROM + 3 * HOUR), scannedChunks.stream().sorted().collect(Collectors.toList()));
+        Assert.assertEquals(lines, exportedLines(status));
+        Assert.assertEquals(lines.size(), status.getProcessedRecords());
+        assertOnlyExportFileLeft(status);
+        Assert.assertTrue(export.isCompleted());
+    }
+
+    private HPacketDataExportCheckpoint createCheckpoint() {
+        return new HPacketDataExportCheckpoint("export-" + System.nanoTime(), "test export", 1, 2, HPacketFormat.JSON, false, null);
+    }
+
+    private HPacketDataExporterImpl createExporter(HPacketDataExportCheckpoint checkpoint) {
+        return new HPacketDataExporterImpl(checkpoint, ZOOKEEPER_PATH, CHECKPOINT_PATH, LineSerializer::new,
+                proxy(HProjectHBaseSystemApi.class, this::hbase), proxy(HadoopManagerSystemApi.class, this::hadoop),
+                proxy(HPacketDataExportRepository.class, this::repository), proxy(ZookeeperConnectorSystemApi.class, this::zookeeper),
+                name -> null);
+    }
+
+    /**
+     * Checkpoint node is removed as last step, both when export completes and when it fails
+     */
+    private HPacketDataExportStatus awaitEnd(HPacketDataExporterImpl exporter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (zookeeperNodes.containsKey(CHECKPOINT_PATH) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertFalse(zookeeperNodes.containsKey(CHECKPOINT_PATH));
+        return exporter.getStatus();
+    }
+
+    private List<String> expectedLines() {
+        List<String> lines = new ArrayList<>();
+        for (long timestamp = FROM; timestamp < TO; timestamp += PACKET_INTERVAL)
+            lines.add(String.valueOf(timestamp));
+        return lines;
+    }
+
+    private List<String> exportedLines(HPacketDataExportStatus status) {
+        ByteArrayOutputStream file = files.get(HPacketDataExporterImpl.getHadoopPath(status.getFileName()));
+        Assert.assertNotNull(file);
+        return Arrays.asList(new String(file.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+    }
+
+    private void assertOnlyExportFileLeft(HPacketDataExportStatus status) {
+        Assert.assertEquals(Collections.singleton(HPacketDataExporterImpl.getHadoopPath(status.getFileName())), files.keySet());
+    }
+
+    private void writeFile(String path, List<String> lines) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (String line : lines) {
+            byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            file.write(data, 0, data.length);
+        }
+        files.put(path, file);
+    }
+
+    /**
+     * Packets every 10 minutes, the timestamp is the packet name; the first chunk is the slowest one
+     */
+    private Object hbase(String method, Object[] args) throws Exception {
+        if (method.equals("timelineEventCountEstimate"))
+            return 0L;
+        if (!method.equals("scanHProject") || args.length != 5)
+            throw new UnsupportedOperationException(method);
+        long lowerBound = (Long) args[2];
+        long upperBound = (Long) args[3];
+        @SuppressWarnings("unchecked")
+        Consumer<HPacket> consumer = (Consumer<HPacket>) args[4];
+        scannedChunks.add(lowerBound);
+        if (lowerBound == FROM)
+            Thread.sleep(200);
+        AtomicInteger failures = scanFailures.get(lowerBound);
+        for (long timestamp = FROM; timestamp < TO; timestamp += PACKET_INTERVAL) {
+            if (timestamp < lowerBound || timestamp >= upperBound)
+                continue;
+            //region server lost in the middle of the chunk
+            if (failures != null && timestamp >= lowerBound + HOUR / 2 && failures.getAndDecrement() > 0)
+                throw new UncheckedIOException(new IOException("Region server not available"));
+            HPacket packet = new HPacket();
+            packet.setName(String.valueOf(timestamp));
+            consumer.accept(packet);
+        }
+        return null;
+    }
+
+    private Object hadoop(String method, Object[] args) throws IOException {
+        String path = (String) args[0];
+        switch (method) {
+            case "appendToFile":
+                return files.computeIfAbsent(path, p -> new ByteArrayOutputStream());
+            case "readFile":
+                ByteArrayOutputStream file = files.get(path);
+                if (file == null)
+                    throw new FileNotFoundException(path);
+                return new ByteArrayInputStream(file.toByteArray());
+            case "deleteFile":
+                files.remove(path);
+                return null;
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private Object repository(String method, Object[] args) {
+        HPacketDataExport export = (HPacketDataExport) args[0];
+        switch (method) {
+            case "save":
+                export.setId(exports.size() + 1);
+                //saved entity is stored as updated ones
+            case "update":
+                exports.put(export.getExportId(), export);
+                return export;
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private Object zookeeper(String method, Object[] args) {
+        String path = (String) args[0];
+        switch (method) {
+            case "createPersistent":
+            case "update":
+                zookeeperNodes.put(path, (byte[]) args[1]);
+                return null;
+            case "delete":
+                zookeeperNodes.remove(path);
+                return null;
+            case "checkExists":
+                return zookeeperNodes.containsKey(path);
+            case "read":
+                return zookeeperNodes.get(path);
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private interface Fake {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    /**
+     * @return implementation of the methods the exporter uses, others are not supported
+     */
+    private static <T> T proxy(Class<T> type, Fake fake) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            Object result = fake.invoke(method.getName(), args);
+            if (result == null && method.getReturnType() == boolean.class)
+                return true;
+            return result;
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, handler));
+    }
+
+    private static class LineSerializer implements HPacketSerializer {
+
+        @Override
+        public byte[] serialize(HPacket hPacket) {
+            return (hPacket.getName() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] serializeRaw(HPacket hPacket) {
+            return serialize(hPacket);
+        }
+    }
+
+}
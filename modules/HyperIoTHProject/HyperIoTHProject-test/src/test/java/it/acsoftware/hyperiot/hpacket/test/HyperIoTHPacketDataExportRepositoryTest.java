@@ -0,0 +1,114 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.test;
+
+import it.acsoftware.hyperiot.hpacket.api.HPacketDataExportRepository;
+import it.acsoftware.hyperiot.hpacket.model.HPacketDataExport;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
+import it.acsoftware.hyperiot.services.util.HyperIoTServicesTestUtil;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Exports are resumed by a single node: a node claims an export only if it is not owned by another node
+ * or the lease of its owner has expired.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHPacketDataExportRepositoryTest extends KarafTestSupport {
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Before
+    public void initPlatformContainers() {
+        HyperIoTServicesTestUtil.initPlatformContainers();
+    }
+
+    @Test
+    public void test01_exportOwnedByAnotherNodeCannotBeClaimed() {
+        HPacketDataExportRepository repository = getOsgiService(HPacketDataExportRepository.class);
+        HPacketDataExport export = saveExport(repository);
+        long leaseExpiration = System.currentTimeMillis() + 60000;
+        Assert.assertTrue(repository.claim(export.getExportId(), "node-a", leaseExpiration));
+        Assert.assertFalse(repository.claim(export.getExportId(), "node-b", leaseExpiration));
+        //owner renews its lease
+        Assert.assertTrue(repository.claim(export.getExportId(), "node-a", leaseExpiration + 60000));
+        Assert.assertEquals("node-a", repository.findByExportId(export.getExportId()).getOwnerNode());
+    }
+
+    @Test
+    public void test02_exportWithExpiredLeaseCanBeClaimed() {
+        HPacketDataExportRepository repository = getOsgiService(HPacketDataExportRepository.class);
+        HPacketDataExport export = saveExport(repository);
+        Assert.assertTrue(repository.claim(export.getExportId(), "node-a", System.currentTimeMillis() - 1000));
+        Assert.assertTrue(repository.claim(export.getExportId(), "node-b", System.currentTimeMillis() + 60000));
+        Assert.assertFalse(repository.claim(export.getExportId(), "node-a", System.currentTimeMillis() + 60000));
+        Assert.assertEquals("node-b", repository.findByExportId(export.getExportId()).getOwnerNode());
+    }
+
+    @Test
+    public void test03_completedOrFailedExportCannotBeClaimed() {
+        HPacketDataExportRepository repository = getOsgiService(HPacketDataExportRepository.class);
+        HPacketDataExport completed = saveExport(repository);
+        completed.setCompleted(true);
+        repository.update(completed);
+        Assert.assertFalse(repository.claim(completed.getExportId(), "node-a", System.currentTimeMillis() + 60000));
+        HPacketDataExport failed = saveExport(repository);
+        failed.setFailed(true);
+        repository.update(failed);
+        Assert.assertFalse(repository.claim(failed.getExportId(), "node-a", System.currentTimeMillis() + 60000));
+        Assert.assertFalse(repository.findUncompleted().stream()
+                .anyMatch(export -> export.getId() == completed.getId() || export.getId() == failed.getId()));
+    }
+
+    @Test
+    public void test04_unknownExportCannotBeClaimed() {
+        HPacketDataExportRepository repository = getOsgiService(HPacketDataExportRepository.class);
+        Assert.assertFalse(repository.claim(UUID.randomUUID().toString(), "node-a", System.currentTimeMillis() + 60000));
+    }
+
+    private HPacketDataExport saveExport(HPacketDataExportRepository repository) {
+        Date now = new Date();
+        HPacketDataExport export = new HPacketDataExport();
+        export.setExportId(UUID.randomUUID().toString());
+        export.setExportName("export");
+        export.setExportFormat(HPacketFormat.JSON);
+        export.setFilePath("/exports/" + export.getExportId() + ".json");
+        export.setEntityCreateDate(now);
+        export.setEntityModifyDate(now);
+        return repository.save(export);
+    }
+
+}
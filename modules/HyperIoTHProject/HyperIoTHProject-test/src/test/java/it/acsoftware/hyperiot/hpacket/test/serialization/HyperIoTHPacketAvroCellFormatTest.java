@@ -0,0 +1,168 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.test.serialization;
+
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.service.BinaryAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.serialization.service.BinaryAvroHPacketSerializer;
+import it.acsoftware.hyperiot.hproject.serialization.service.JsonAvroHPacketSerializer;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the binary Avro cell format stored inside hproject HBase tables.
+ * Benchmarks print bytes per row and rows per second decode rate for both binary and legacy JSON cells.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHPacketAvroCellFormatTest extends KarafTestSupport {
+
+    private static final int BENCHMARK_ROWS = 20000;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_binaryCellRoundTrip() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] cell = BinaryAvroHPacketSerializer.getInstance().serialize(packet);
+        Assert.assertTrue(HPacketAvroCellFormat.isBinary(cell));
+        Assert.assertEquals(HPacketAvroCellFormat.BINARY_FORMAT_VERSION, HPacketAvroCellFormat.getVersion(cell));
+        HPacket deserialized = BinaryAvroHPacketDeserializer.getInstance().deserialize(cell, null);
+        Assert.assertEquals(packet.getName(), deserialized.getName());
+        Assert.assertEquals(22.34d, deserialized.getFieldsMap().get("temperature").getValue());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), deserialized.getFieldsMap().get("samples").getValue());
+    }
+
+    @Test
+    public void test00a_rawSerializationIsVersionedBinaryCell() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] raw = BinaryAvroHPacketSerializer.getInstance().serializeRaw(packet);
+        Assert.assertArrayEquals(BinaryAvroHPacketSerializer.getInstance().serialize(packet), raw);
+        Assert.assertTrue(HPacketAvroCellFormat.isBinary(raw));
+        HPacket deserialized = BinaryAvroHPacketDeserializer.getInstance().deserialize(raw, null);
+        Assert.assertEquals(22.34d, deserialized.getFieldsMap().get("temperature").getValue());
+    }
+
+    @Test
+    public void test01_legacyJsonCellIsReadable() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] cell = JsonAvroHPacketSerializer.getInstance().serialize(packet);
+        Assert.assertFalse(HPacketAvroCellFormat.isBinary(cell));
+        HPacket deserialized = BinaryAvroHPacketDeserializer.getInstance().deserialize(cell, null);
+        Assert.assertEquals(packet.getName(), deserialized.getName());
+        Assert.assertEquals(22.34d, deserialized.getFieldsMap().get("temperature").getValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void test02_unsupportedBinaryVersionFails() throws IOException {
+        byte[] cell = BinaryAvroHPacketSerializer.getInstance().serialize(createHPacket());
+        cell[1] = (byte) (HPacketAvroCellFormat.BINARY_FORMAT_VERSION + 1);
+        BinaryAvroHPacketDeserializer.getInstance().deserialize(cell, null);
+    }
+
+    @Test
+    public void test03_cellFormatBenchmark() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] jsonCell = JsonAvroHPacketSerializer.getInstance().serialize(packet);
+        byte[] binaryCell = BinaryAvroHPacketSerializer.getInstance().serialize(packet);
+        double jsonRowsPerSecond = decodeRate(jsonCell);
+        double binaryRowsPerSecond = decodeRate(binaryCell);
+        System.out.println(String.format("JSON Avro cell: %d bytes/row, %.0f rows/s decode", jsonCell.length, jsonRowsPerSecond));
+        System.out.println(String.format("Binary Avro cell: %d bytes/row, %.0f rows/s decode", binaryCell.length, binaryRowsPerSecond));
+        Assert.assertTrue(binaryCell.length < jsonCell.length);
+    }
+
+    private double decodeRate(byte[] cell) throws IOException {
+        BinaryAvroHPacketDeserializer deserializer = BinaryAvroHPacketDeserializer.getInstance();
+        for (int i = 0; i < BENCHMARK_ROWS / 4; i++) {
+            deserializer.deserialize(cell, null);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROWS; i++) {
+            deserializer.deserialize(cell, null);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        return BENCHMARK_ROWS * 1_000_000_000d / elapsed;
+    }
+
+    private HPacket createHPacket() {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setDeviceName("device");
+        device.setId(1);
+        device.setProject(project);
+        project.setDevices(Arrays.asList(device));
+        HPacket hpacket = new HPacket();
+        hpacket.setName("cellFormatPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setDevice(device);
+        hpacket.setId(1);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setCategoryIds(new long[]{12, 14});
+        hpacket.setTagIds(new long[]{1, 2});
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        HPacketField temperature = new HPacketField();
+        temperature.setId(1);
+        temperature.setName("temperature");
+        temperature.setCategoryIds(new long[]{12});
+        temperature.setTagIds(new long[]{14});
+        temperature.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        temperature.setType(HPacketFieldType.DOUBLE);
+        temperature.setValue(22.34d);
+        temperature.setPacket(hpacket);
+        HPacketField samples = new HPacketField();
+        samples.setId(2);
+        samples.setName("samples");
+        samples.setCategoryIds(new long[]{12});
+        samples.setTagIds(new long[]{14});
+        samples.setMultiplicity(HPacketFieldMultiplicity.ARRAY);
+        samples.setType(HPacketFieldType.INTEGER);
+        List<Integer> values = new ArrayList<>(Arrays.asList(1, 2, 3));
+        samples.setValue(values);
+        samples.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(temperature, samples));
+        device.setPackets(Arrays.asList(hpacket));
+        return hpacket;
+    }
+}
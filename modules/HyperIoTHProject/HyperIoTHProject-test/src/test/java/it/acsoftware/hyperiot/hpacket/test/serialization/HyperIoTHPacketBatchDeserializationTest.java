@@ -0,0 +1,275 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hpacket.test.serialization;
+
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
+import it.acsoftware.hyperiot.hproject.deserialization.service.CsvHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.serialization.service.AvroHPacketSerializer;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests for batch payloads, carrying many readings of the same packet inside a single message.
+ * Benchmark prints the deserialization cost per reading of single reading messages and of batches.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHPacketBatchDeserializationTest extends KarafTestSupport {
+
+    private static final long FIRST_TIMESTAMP = 1672531200000L;
+    private static final int BATCH_READINGS = 100;
+    private static final int BENCHMARK_READINGS = 50000;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_jsonBatchIsExploded() throws IOException {
+        List<HPacket> packets = JsonHPacketDeserializer.getInstance()
+                .deserializeBatch(jsonBatch(3), createHPacketInfo(101, "json"));
+        assertReadings(packets, 3);
+    }
+
+    @Test
+    public void test01_csvBatchIsExploded() throws IOException {
+        StringBuilder batch = new StringBuilder(CsvHPacketDeserializer.BATCH_MARKER).append("\r\n");
+        for (int i = 0; i < 3; i++)
+            batch.append("\"temperature\",").append(20 + i).append(".5,\"humidity\",56.44,\"timestamp\",")
+                    .append(FIRST_TIMESTAMP + i).append("\r\n");
+        List<HPacket> packets = CsvHPacketDeserializer.getInstance()
+                .deserializeBatch(batch.toString().getBytes(StandardCharsets.UTF_8), createHPacketInfo(102, "csv"));
+        assertReadings(packets, 3);
+    }
+
+    @Test
+    public void test02_avroBatchIsExploded() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] batch = avroJsonBatch(Arrays.asList(packet, packet, packet));
+        List<HPacket> packets = JsonAvroHPacketDeserializer.getInstance().deserializeBatch(batch, createHPacketInfo(4, "json"));
+        Assert.assertEquals(3, packets.size());
+        packets.forEach(p -> Assert.assertEquals(22.34d, p.getFieldsMap().get("temperature").getValue()));
+    }
+
+    @Test
+    public void test03_singleReadingsAreStillAccepted() throws IOException {
+        byte[] json = "{\"temperature\":22.5,\"timestamp\":1672531200000}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(1, JsonHPacketDeserializer.getInstance().deserializeBatch(json, createHPacketInfo(103, "json")).size());
+        byte[] csv = "\"temperature\",22.5,\"timestamp\",1672531200000\n".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(1, CsvHPacketDeserializer.getInstance().deserializeBatch(csv, createHPacketInfo(104, "csv")).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void test04_readingWithoutTimestampIsRejected() throws IOException {
+        byte[] batch = "[{\"temperature\":22.5,\"timestamp\":1672531200000},{\"temperature\":22.6}]".getBytes(StandardCharsets.UTF_8);
+        JsonHPacketDeserializer.getInstance().deserializeBatch(batch, createHPacketInfo(105, "json"));
+    }
+
+    @Test(expected = IOException.class)
+    public void test05_emptyBatchIsRejected() throws IOException {
+        JsonHPacketDeserializer.getInstance().deserializeBatch("[]".getBytes(StandardCharsets.UTF_8), createHPacketInfo(106, "json"));
+    }
+
+    @Test(expected = IOException.class)
+    public void test06_batchOverLimitIsRejected() throws IOException {
+        JsonHPacketDeserializer.getInstance().deserializeBatch(jsonBatch(HPacketBatchDeserializer.MAX_BATCH_READINGS + 1),
+                createHPacketInfo(107, "json"));
+    }
+
+    @Test(expected = IOException.class)
+    public void test07_batchOfNonObjectsIsRejected() throws IOException {
+        JsonHPacketDeserializer.getInstance().deserializeBatch("[1,2,3]".getBytes(StandardCharsets.UTF_8), createHPacketInfo(108, "json"));
+    }
+
+    @Test
+    public void test08_batchBenchmark() throws IOException {
+        HPacketInfo hPacketInfo = createHPacketInfo(109, "json");
+        JsonHPacketDeserializer deserializer = JsonHPacketDeserializer.getInstance();
+        byte[] single = "{\"temperature\":22.34,\"humidity\":56.44,\"gps\":{\"latitude\":45.23,\"longitude\":87.23},\"timestamp\":1672531200000}"
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] batch = jsonBatch(BATCH_READINGS);
+        double singleNanos = Double.MAX_VALUE;
+        double batchNanos = Double.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_READINGS; i++)
+                deserializer.deserializeBatch(single, hPacketInfo);
+            singleNanos = Math.min(singleNanos, (System.nanoTime() - start) / (double) BENCHMARK_READINGS);
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_READINGS / BATCH_READINGS; i++)
+                deserializer.deserializeBatch(batch, hPacketInfo);
+            batchNanos = Math.min(batchNanos, (System.nanoTime() - start) / (double) BENCHMARK_READINGS);
+        }
+        System.out.println(String.format("JSON deserialization cost per reading: single reading messages %.0f ns, batches of %d readings %.0f ns",
+                singleNanos, BATCH_READINGS, batchNanos));
+        Assert.assertTrue(batchNanos < singleNanos * 1.5);
+    }
+
+    @Test
+    public void test09_csvReadingOverManyLinesIsASinglePacket() throws IOException {
+        byte[] csv = "\"temperature\",22.5\r\n\"humidity\",56.44\r\n\"timestamp\",1672531200000\r\n".getBytes(StandardCharsets.UTF_8);
+        List<HPacket> packets = CsvHPacketDeserializer.getInstance().deserializeBatch(csv, createHPacketInfo(110, "csv"));
+        Assert.assertEquals(1, packets.size());
+        Assert.assertEquals(22.5d, packets.get(0).getFieldsMap().get("temperature").getValue());
+        Assert.assertEquals(56.44d, packets.get(0).getFieldsMap().get("humidity").getValue());
+        Assert.assertEquals(FIRST_TIMESTAMP, packets.get(0).getFieldsMap().get("timestamp").getValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void test10_csvBatchWithoutReadingsIsRejected() throws IOException {
+        byte[] csv = (CsvHPacketDeserializer.BATCH_MARKER + "\n").getBytes(StandardCharsets.UTF_8);
+        CsvHPacketDeserializer.getInstance().deserializeBatch(csv, createHPacketInfo(111, "csv"));
+    }
+
+    private void assertReadings(List<HPacket> packets, int readings) {
+        Assert.assertEquals(readings, packets.size());
+        for (int i = 0; i < readings; i++) {
+            HPacket packet = packets.get(i);
+            Assert.assertEquals(FIRST_TIMESTAMP + i, packet.getFieldsMap().get("timestamp").getValue());
+            Assert.assertEquals(20 + i + 0.5d, packet.getFieldsMap().get("temperature").getValue());
+            Assert.assertSame(packets.get(0).getDevice(), packet.getDevice());
+        }
+    }
+
+    private byte[] jsonBatch(int readings) {
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < readings; i++) {
+            if (i > 0)
+                batch.append(',');
+            batch.append("{\"temperature\":").append(20 + i).append(".5,\"humidity\":56.44,")
+                    .append("\"gps\":{\"latitude\":45.23,\"longitude\":87.23},\"timestamp\":").append(FIRST_TIMESTAMP + i).append('}');
+        }
+        return batch.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] avroJsonBatch(List<HPacket> packets) throws IOException {
+        Schema schema = new Schema.Parser().parse(packets.get(0).getJsonSchema());
+        Schema batchSchema = Schema.createArray(schema);
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(schema);
+        GenericData.Array<GenericRecord> records = new GenericData.Array<>(packets.size(), batchSchema);
+        AvroHPacketSerializer serializer = new AvroHPacketSerializer();
+        for (HPacket packet : packets)
+            records.add(reader.read(null, DecoderFactory.get().binaryDecoder(serializer.serialize(packet), null)));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Encoder encoder = EncoderFactory.get().jsonEncoder(batchSchema, outputStream);
+        new GenericDatumWriter<GenericData.Array<GenericRecord>>(batchSchema).write(records, encoder);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    private HPacketInfo createHPacketInfo(long packetId, String format) {
+        HPacketInfo hPacketInfo = new HPacketInfo();
+        hPacketInfo.setHPacketId(packetId);
+        hPacketInfo.setName("batchPacket" + packetId);
+        hPacketInfo.setType(HPacketType.INPUT.getName());
+        hPacketInfo.setTrafficPlan(HPacketTrafficPlan.HIGH.getName());
+        hPacketInfo.setHDeviceId(1);
+        hPacketInfo.setHProjectId(1);
+        HPacketSchema schema = new HPacketSchema();
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("temperature", createFieldDefinition(1, HPacketFieldType.DOUBLE));
+        fields.put("humidity", createFieldDefinition(2, HPacketFieldType.DOUBLE));
+        fields.put("gps.latitude", createFieldDefinition(3, HPacketFieldType.DOUBLE));
+        fields.put("gps.longitude", createFieldDefinition(4, HPacketFieldType.DOUBLE));
+        fields.put("timestamp", createFieldDefinition(5, HPacketFieldType.TIMESTAMP));
+        schema.setFields(fields);
+        schema.setType(format);
+        hPacketInfo.setSchema(schema);
+        HPacketTimestamp timestamp = new HPacketTimestamp();
+        timestamp.setField("timestamp");
+        timestamp.setCreateDefaultIfNotExists(true);
+        hPacketInfo.setTimestamp(timestamp);
+        hPacketInfo.setUnixTimestamp(true);
+        hPacketInfo.setUnixTimestampFormatSeconds(false);
+        return hPacketInfo;
+    }
+
+    private HashMap<String, Object> createFieldDefinition(long id, HPacketFieldType type) {
+        HashMap<String, Object> definition = new HashMap<>();
+        definition.put("id", id);
+        definition.put("type", type.name());
+        return definition;
+    }
+
+    private HPacket createHPacket() {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setDeviceName("device");
+        device.setId(1);
+        device.setProject(project);
+        project.setDevices(Arrays.asList(device));
+        HPacket hpacket = new HPacket();
+        hpacket.setName("batchPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setDevice(device);
+        hpacket.setId(4);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        HPacketField temperature = new HPacketField();
+        temperature.setId(1);
+        temperature.setName("temperature");
+        temperature.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        temperature.setType(HPacketFieldType.DOUBLE);
+        temperature.setValue(22.34d);
+        temperature.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(temperature));
+        device.setPackets(Arrays.asList(hpacket));
+        return hpacket;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hpacket.test.serialization;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdOutputStream;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
+import it.acsoftware.hyperiot.hproject.deserialization.service.CompressedHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.builder.HPacketDeserializerBuilder;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDecompressor;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.serialization.service.AvroHPacketSerializer;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for compressed payloads: every packet format is sent with every supported compression.
+ * Benchmark prints, for each compression, payload size and decompression plus deserialization cost,
+ * showing the bandwidth saved against the CPU spent.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHPacketCompressionTest extends KarafTestSupport {
+
+    private static final long TIMESTAMP = 1672531200000L;
+    private static final int BATCH_READINGS = 100;
+    private static final int BENCHMARK_MESSAGES = 5000;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_everyFormatAndCompressionRoundTrip() throws IOException {
+        long packetId = 200;
+        for (HPacketFormat format : Arrays.asList(HPacketFormat.JSON, HPacketFormat.CSV, HPacketFormat.XML)) {
+            for (HPacketCompression compression : HPacketCompression.values()) {
+                HPacketInfo hPacketInfo = createHPacketInfo(packetId++, format.getName(), compression);
+                HPacketDeserializer deserializer = HPacketDeserializerBuilder.getDeserializer(format, compression);
+                HPacket packet = deserializer.deserialize(compress(plainPayload(format), compression), hPacketInfo);
+                String pair = format.getName() + "/" + compression.getName();
+                Assert.assertEquals(pair, 22.34d, Double.parseDouble(String.valueOf(packet.getFieldsMap().get("temperature").getValue())), 0);
+                Assert.assertEquals(pair, TIMESTAMP, packet.getFieldsMap().get("timestamp").getValue());
+            }
+        }
+    }
+
+    @Test
+    public void test01_avroFormatAndCompressionRoundTrip() throws IOException {
+        byte[] payload = avroJsonPayload(createHPacket());
+        for (HPacketCompression compression : HPacketCompression.values()) {
+            HPacketDeserializer deserializer = new CompressedHPacketDeserializer(JsonAvroHPacketDeserializer.getInstance(), compression);
+            HPacket packet = deserializer.deserialize(compress(payload, compression), createHPacketInfo(4, "json", compression));
+            Assert.assertEquals(compression.getName(), 22.34d, packet.getFieldsMap().get("temperature").getValue());
+        }
+    }
+
+    @Test
+    public void test02_compressedBatchIsExploded() throws IOException {
+        for (HPacketCompression compression : HPacketCompression.values()) {
+            HPacketBatchDeserializer deserializer = (HPacketBatchDeserializer) HPacketDeserializerBuilder
+                    .getDeserializer(HPacketFormat.JSON, compression);
+            List<HPacket> packets = deserializer.deserializeBatch(compress(jsonBatch(3), compression),
+                    createHPacketInfo(220, "json", compression));
+            Assert.assertEquals(3, packets.size());
+            for (int i = 0; i < packets.size(); i++)
+                Assert.assertEquals(TIMESTAMP + i, packets.get(i).getFieldsMap().get("timestamp").getValue());
+        }
+    }
+
+    @Test
+    public void test03_zstdStreamingFramesAreAccepted() throws IOException {
+        // streaming compressors do not write the content size inside the frame header
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (OutputStream zstd = new ZstdOutputStream(outputStream)) {
+            zstd.write(jsonBatch(BATCH_READINGS));
+        }
+        Assert.assertArrayEquals(jsonBatch(BATCH_READINGS),
+                HPacketDecompressor.decompress(outputStream.toByteArray(), HPacketCompression.ZSTD));
+    }
+
+    @Test
+    public void test04_gzipBombIsRejected() throws IOException {
+        assertBombRejected(HPacketCompression.GZIP);
+    }
+
+    @Test
+    public void test05_zstdBombIsRejected() throws IOException {
+        assertBombRejected(HPacketCompression.ZSTD);
+    }
+
+    @Test(expected = IOException.class)
+    public void test06_corruptedGzipPayloadIsRejected() throws IOException {
+        byte[] payload = compress(plainPayload(HPacketFormat.JSON), HPacketCompression.GZIP);
+        // flip a bit of the CRC trailer
+        payload[payload.length - 8] ^= 1;
+        HPacketDecompressor.decompress(payload, HPacketCompression.GZIP);
+    }
+
+    @Test(expected = IOException.class)
+    public void test07_uncompressedPayloadIsRejected() throws IOException {
+        HPacketDeserializerBuilder.getDeserializer(HPacketFormat.JSON, HPacketCompression.ZSTD)
+                .deserialize(plainPayload(HPacketFormat.JSON), createHPacketInfo(221, "json", HPacketCompression.ZSTD));
+    }
+
+    @Test
+    public void test08_compressionBenchmark() throws IOException {
+        byte[] batch = jsonBatch(BATCH_READINGS);
+        for (HPacketCompression compression : HPacketCompression.values()) {
+            HPacketInfo hPacketInfo = createHPacketInfo(230, "json", compression);
+            HPacketBatchDeserializer deserializer = (HPacketBatchDeserializer) HPacketDeserializerBuilder
+                    .getDeserializer(HPacketFormat.JSON, compression);
+            byte[] payload = compress(batch, compression);
+            double decompressNanos = Double.MAX_VALUE;
+            double totalNanos = Double.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_MESSAGES; i++)
+                    HPacketDecompressor.decompress(payload, compression);
+                decompressNanos = Math.min(decompressNanos, (System.nanoTime() - start) / (double) BENCHMARK_MESSAGES);
+                start = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_MESSAGES / 10; i++)
+                    deserializer.deserializeBatch(payload, hPacketInfo);
+                totalNanos = Math.min(totalNanos, (System.nanoTime() - start) / (double) (BENCHMARK_MESSAGES / 10));
+            }
+            System.out.println(String.format("%s batch of %d readings: %d bytes (%.1f%% of plain), decompression %.1f us, decompression and deserialization %.1f us",
+                    compression.getName(), BATCH_READINGS, payload.length, payload.length * 100d / batch.length,
+                    decompressNanos / 1000, totalNanos / 1000));
+            if (compression != HPacketCompression.NONE)
+                Assert.assertTrue(payload.length < batch.length / 3);
+        }
+    }
+
+    private void assertBombRejected(HPacketCompression compression) throws IOException {
+        byte[] bomb = compress(new byte[HPacketDecompressor.getMaxDecompressedSize() + 1], compression);
+        Assert.assertTrue(bomb.length < HPacketDecompressor.getMaxDecompressedSize() / 100);
+        try {
+            HPacketDecompressor.decompress(bomb, compression);
+            Assert.fail("Payload exceeding max decompressed size has been accepted");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("max size"));
+        }
+        // payloads of exactly the max size are accepted
+        byte[] limit = compress(new byte[HPacketDecompressor.getMaxDecompressedSize()], compression);
+        Assert.assertEquals(HPacketDecompressor.getMaxDecompressedSize(), HPacketDecompressor.decompress(limit, compression).length);
+    }
+
+    private byte[] compress(byte[] payload, HPacketCompression compression) throws IOException {
+        switch (compression) {
+            case GZIP:
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(outputStream)) {
+                    gzip.write(payload);
+                }
+                return outputStream.toByteArray();
+            case ZSTD:
+                return Zstd.compress(payload);
+            default:
+                return payload;
+        }
+    }
+
+    private byte[] plainPayload(HPacketFormat format) {
+        String payload;
+        switch (format) {
+            case CSV:
+                payload = "\"temperature\",22.34,\"humidity\",56.44,\"timestamp\"," + TIMESTAMP;
+                break;
+            case XML:
+                payload = "<fields><temperature>22.34</temperature><humidity>56.44</humidity>" +
+                        "<gps><latitude>45.23</latitude><longitude>87.23</longitude></gps><timestamp>" + TIMESTAMP + "</timestamp></fields>";
+                break;
+            default:
+                payload = "{\"temperature\":22.34,\"humidity\":56.44,\"gps\":{\"latitude\":45.23,\"longitude\":87.23},\"timestamp\":" + TIMESTAMP + "}";
+        }
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] jsonBatch(int readings) {
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < readings; i++) {
+            if (i > 0)
+                batch.append(',');
+            batch.append("{\"temperature\":").append(20 + i % 10).append(".5,\"humidity\":56.44,")
+                    .append("\"gps\":{\"latitude\":45.23,\"longitude\":87.23},\"timestamp\":").append(TIMESTAMP + i).append('}');
+        }
+        return batch.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] avroJsonPayload(HPacket packet) throws IOException {
+        Schema schema = new Schema.Parser().parse(packet.getJsonSchema());
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(schema);
+        GenericRecord record = reader.read(null, DecoderFactory.get()
+                .binaryDecoder(new AvroHPacketSerializer().serialize(packet), null));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Encoder encoder = EncoderFactory.get().jsonEncoder(schema, outputStream);
+        new GenericDatumWriter<GenericRecord>(schema).write(record, encoder);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    private HPacketInfo createHPacketInfo(long packetId, String format, HPacketCompression compression) {
+        HPacketInfo hPacketInfo = new HPacketInfo();
+        hPacketInfo.setHPacketId(packetId);
+        hPacketInfo.setName("compressedPacket" + packetId);
+        hPacketInfo.setType(HPacketType.INPUT.getName());
+        hPacketInfo.setTrafficPlan(HPacketTrafficPlan.HIGH.getName());
+        hPacketInfo.setCompression(compression.getName());
+        hPacketInfo.setHDeviceId(1);
+        hPacketInfo.setHProjectId(1);
+        HPacketSchema schema = new HPacketSchema();
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("temperature", createFieldDefinition(1, HPacketFieldType.DOUBLE));
+        fields.put("humidity", createFieldDefinition(2, HPacketFieldType.DOUBLE));
+        fields.put("gps.latitude", createFieldDefinition(3, HPacketFieldType.DOUBLE));
+        fields.put("gps.longitude", createFieldDefinition(4, HPacketFieldType.DOUBLE));
+        fields.put("timestamp", createFieldDefinition(5, HPacketFieldType.TIMESTAMP));
+        schema.setFields(fields);
+        schema.setType(format);
+        hPacketInfo.setSchema(schema);
+        HPacketTimestamp timestamp = new HPacketTimestamp();
+        timestamp.setField("timestamp");
+        timestamp.setCreateDefaultIfNotExists(true);
+        hPacketInfo.setTimestamp(timestamp);
+        hPacketInfo.setUnixTimestamp(true);
+        hPacketInfo.setUnixTimestampFormatSeconds(false);
+        return hPacketInfo;
+    }
+
+    private HashMap<String, Object> createFieldDefinition(long id, HPacketFieldType type) {
+        HashMap<String, Object> definition = new HashMap<>();
+        definition.put("id", id);
+        definition.put("type", type.name());
+        return definition;
+    }
+
+    private HPacket createHPacket() {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setDeviceName("device");
+        device.setId(1);
+        device.setProject(project);
+        project.setDevices(Arrays.asList(device));
+        HPacket hpacket = new HPacket();
+        hpacket.setName("compressedPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setDevice(device);
+        hpacket.setId(4);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setCompression(HPacketCompression.GZIP);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        HPacketField temperature = new HPacketField();
+        temperature.setId(1);
+        temperature.setName("temperature");
+        temperature.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        temperature.setType(HPacketFieldType.DOUBLE);
+        temperature.setValue(22.34d);
+        temperature.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(temperature));
+        device.setPackets(Arrays.asList(hpacket));
+        return hpacket;
+    }
+}
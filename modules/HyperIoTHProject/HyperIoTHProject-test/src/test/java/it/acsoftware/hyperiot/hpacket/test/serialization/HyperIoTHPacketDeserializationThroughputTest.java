@@ -0,0 +1,209 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.hpacket.test.serialization;
+
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
+import it.acsoftware.hyperiot.hproject.deserialization.service.CsvHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.JsonHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.XmlHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.serialization.service.AvroHPacketSerializer;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.*;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Throughput regression test for packet deserializers.
+ * Each format must deserialize at least the configured number of messages per second,
+ * baseline can be tuned with the system property "it.acsoftware.hyperiot.test.deserialization.baseline"
+ * or per format with "it.acsoftware.hyperiot.test.deserialization.baseline.&lt;format&gt;" (json, csv, xml, avro).
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHPacketDeserializationThroughputTest extends KarafTestSupport {
+
+    private static final String BASELINE_PROPERTY = "it.acsoftware.hyperiot.test.deserialization.baseline";
+    private static final String DEFAULT_BASELINE = "1000";
+    private static final int WARMUP_MESSAGES = 5000;
+    private static final int MEASURED_MESSAGES = 20000;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_jsonDeserializationThroughput() throws IOException {
+        byte[] message = "{\"temperature\":22.34,\"humidity\":56.44,\"gps\":{\"latitude\":45.23,\"longitude\":87.23}}"
+                .getBytes(StandardCharsets.UTF_8);
+        assertThroughput("json", JsonHPacketDeserializer.getInstance(), message, createHPacketInfo(1, "json"));
+    }
+
+    @Test
+    public void test01_csvDeserializationThroughput() throws IOException {
+        byte[] message = "\"temperature\",22.34,\"humidity\",56.44,\"gps.latitude\",45.23,\"gps.longitude\",87.23"
+                .getBytes(StandardCharsets.UTF_8);
+        assertThroughput("csv", CsvHPacketDeserializer.getInstance(), message, createHPacketInfo(2, "csv"));
+    }
+
+    @Test
+    public void test02_xmlDeserializationThroughput() throws IOException {
+        byte[] message = ("<fields><temperature>22.34</temperature><humidity>56.44</humidity>" +
+                "<gps><latitude>45.23</latitude><longitude>87.23</longitude></gps></fields>")
+                .getBytes(StandardCharsets.UTF_8);
+        assertThroughput("xml", XmlHPacketDeserializer.getInstance(), message, createHPacketInfo(3, "xml"));
+    }
+
+    @Test
+    public void test03_avroDeserializationThroughput() throws IOException {
+        HPacket packet = createHPacket();
+        byte[] serializedPacket = new AvroHPacketSerializer().serialize(packet);
+        byte[] message = convertToJson(serializedPacket, packet.getJsonSchema()).getBytes(StandardCharsets.UTF_8);
+        assertThroughput("avro", JsonAvroHPacketDeserializer.getInstance(), message, createHPacketInfo(4, "json"));
+    }
+
+    private void assertThroughput(String format, HPacketDeserializer deserializer, byte[] message, HPacketInfo hPacketInfo) throws IOException {
+        for (int i = 0; i < WARMUP_MESSAGES; i++) {
+            Assert.assertNotNull(deserializer.deserialize(message, hPacketInfo));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_MESSAGES; i++) {
+            deserializer.deserialize(message, hPacketInfo);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        double throughput = MEASURED_MESSAGES * 1_000_000_000d / elapsed;
+        double baseline = Double.parseDouble(System.getProperty(BASELINE_PROPERTY + "." + format,
+                System.getProperty(BASELINE_PROPERTY, DEFAULT_BASELINE)));
+        System.out.println(String.format("Deserialization throughput %s: %.0f msg/s (baseline %.0f msg/s)", format, throughput, baseline));
+        Assert.assertTrue(format + " deserialization throughput " + throughput + " msg/s is under baseline " + baseline + " msg/s",
+                throughput >= baseline);
+    }
+
+    private HPacketInfo createHPacketInfo(long packetId, String format) {
+        HPacketInfo hPacketInfo = new HPacketInfo();
+        hPacketInfo.setHPacketId(packetId);
+        hPacketInfo.setName("throughputPacket" + packetId);
+        hPacketInfo.setType(HPacketType.INPUT.getName());
+        hPacketInfo.setTrafficPlan(HPacketTrafficPlan.HIGH.getName());
+        hPacketInfo.setHDeviceId(1);
+        hPacketInfo.setHProjectId(1);
+        HPacketSchema schema = new HPacketSchema();
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("temperature", createFieldDefinition(1, HPacketFieldType.DOUBLE));
+        fields.put("humidity", createFieldDefinition(2, HPacketFieldType.DOUBLE));
+        fields.put("gps.latitude", createFieldDefinition(3, HPacketFieldType.DOUBLE));
+        fields.put("gps.longitude", createFieldDefinition(4, HPacketFieldType.DOUBLE));
+        schema.setFields(fields);
+        schema.setType(format);
+        hPacketInfo.setSchema(schema);
+        HPacketTimestamp timestamp = new HPacketTimestamp();
+        timestamp.setFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        timestamp.setField("timestamp");
+        timestamp.setCreateDefaultIfNotExists(true);
+        hPacketInfo.setTimestamp(timestamp);
+        hPacketInfo.setUnixTimestamp(true);
+        hPacketInfo.setUnixTimestampFormatSeconds(false);
+        return hPacketInfo;
+    }
+
+    private HashMap<String, Object> createFieldDefinition(long id, HPacketFieldType type) {
+        HashMap<String, Object> definition = new HashMap<>();
+        definition.put("id", id);
+        definition.put("type", type.name());
+        return definition;
+    }
+
+    private HPacket createHPacket() {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setDeviceName("device");
+        device.setId(1);
+        device.setProject(project);
+        project.setDevices(Arrays.asList(device));
+        HPacket hpacket = new HPacket();
+        hpacket.setName("throughputPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setDevice(device);
+        hpacket.setId(4);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        HPacketField temperature = new HPacketField();
+        temperature.setId(1);
+        temperature.setName("temperature");
+        temperature.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        temperature.setType(HPacketFieldType.DOUBLE);
+        temperature.setValue(22.34d);
+        temperature.setPacket(hpacket);
+        HPacketField humidity = new HPacketField();
+        humidity.setId(2);
+        humidity.setName("humidity");
+        humidity.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        humidity.setType(HPacketFieldType.DOUBLE);
+        humidity.setValue(56.44d);
+        humidity.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(temperature, humidity));
+        device.setPackets(Arrays.asList(hpacket));
+        return hpacket;
+    }
+
+    private String convertToJson(byte[] serializedData, String schemaStr) throws IOException {
+        Schema schema = new Schema.Parser().parse(schemaStr);
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(schema);
+        Decoder decoder = DecoderFactory.get().binaryDecoder(new ByteArrayInputStream(serializedData), null);
+        GenericRecord avroObject = reader.read(null, decoder);
+        DatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Encoder encoder = EncoderFactory.get().jsonEncoder(schema, outputStream);
+        writer.write(avroObject, encoder);
+        encoder.flush();
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
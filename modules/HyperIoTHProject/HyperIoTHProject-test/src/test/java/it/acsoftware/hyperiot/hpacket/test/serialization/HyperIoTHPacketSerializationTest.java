@@ -22,7 +22,10 @@ import it.acsoftware.hyperiot.hpacket.model.*;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketSchema;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketTimestamp;
+import it.acsoftware.hyperiot.hproject.deserialization.model.exception.TimestampConversionException;
+import it.acsoftware.hyperiot.hproject.deserialization.model.exception.TimestampFormatException;
 import it.acsoftware.hyperiot.hproject.deserialization.service.JsonAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketDeserializerUtil;
 import it.acsoftware.hyperiot.hproject.model.HProject;
 import it.acsoftware.hyperiot.hproject.serialization.service.AvroHPacketSerializer;
 import org.apache.avro.Schema;
@@ -48,7 +51,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * @author Aristide Cittadino Interface component for HPacket System Service.
@@ -164,6 +170,180 @@ public class HyperIoTHPacketSerializationTest extends KarafTestSupport {
         Assert.assertEquals(matrix, deserialized.getFieldsMap().get("testMatrix").getValue());
     }
 
+    @Test
+    public void test04_testSchemaIdentityAcrossBundles() throws IOException {
+        HPacketField field = new HPacketField();
+        field.setName("testValue");
+        field.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        field.setType(HPacketFieldType.INTEGER);
+        field.setValue(new Integer(1));
+        HPacket packet = createHPacket(Arrays.asList(field));
+        Assert.assertSame(packet.getSchema(), new HPacket().getSchema());
+        Assert.assertSame(packet.getJsonSchema(), new HPacket().getJsonSchema());
+        Assert.assertSame(field.getSchema(), new HPacketField().getSchema());
+        byte[] serializedPacket = new AvroHPacketSerializer().serialize(packet);
+        String avroJson = convertToJson(serializedPacket, packet.getJsonSchema());
+        // packet created inside the deserialization bundle must share the very same schema instance
+        HPacket deserialized = JsonAvroHPacketDeserializer.getInstance().deserialize(avroJson.getBytes(StandardCharsets.UTF_8), createHPacketInfo(packet));
+        Assert.assertSame(packet.getSchema(), deserialized.getSchema());
+        Assert.assertSame(field.getSchema(), deserialized.getFieldsMap().get("testValue").getSchema());
+    }
+
+    @Test
+    public void test05_testConcurrentSchemaAccess() throws Exception {
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch startGate = new CountDownLatch(1);
+        try {
+            List<Future<Schema>> packetSchemas = new ArrayList<>();
+            List<Future<Schema>> fieldSchemas = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                packetSchemas.add(executor.submit(() -> {
+                    startGate.await();
+                    return new HPacket().getSchema();
+                }));
+                fieldSchemas.add(executor.submit(() -> {
+                    startGate.await();
+                    return new HPacketField().getSchema();
+                }));
+            }
+            startGate.countDown();
+            Schema packetSchema = new HPacket().getSchema();
+            Schema fieldSchema = new HPacketField().getSchema();
+            Assert.assertNotNull(packetSchema);
+            Assert.assertNotNull(fieldSchema);
+            for (Future<Schema> schema : packetSchemas) {
+                Assert.assertSame(packetSchema, schema.get(30, TimeUnit.SECONDS));
+            }
+            for (Future<Schema> schema : fieldSchemas) {
+                Assert.assertSame(fieldSchema, schema.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test06_testFieldsIndexLookup() {
+        HPacketField temperature = createIndexedField(10, "temperature", 22.5d);
+        HPacketField latitude = createIndexedField(11, "latitude", 45.23d);
+        HPacketField gps = new HPacketField();
+        gps.setId(12);
+        gps.setName("gps");
+        gps.setType(HPacketFieldType.OBJECT);
+        gps.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        latitude.setParentField(gps);
+        gps.setInnerFields(new HashSet<>(Arrays.asList(latitude)));
+        HPacket packet = createHPacket(Arrays.asList(temperature, gps));
+        latitude.setPacket(packet);
+        Assert.assertSame(packet.getFieldsMap(), packet.getFieldsMap());
+        Assert.assertSame(temperature, packet.getFieldsMap().get("temperature"));
+        Assert.assertSame(latitude, packet.getFieldsMap().get("gps.latitude"));
+        Assert.assertSame(latitude, packet.getFieldById(11));
+        Assert.assertNull(packet.getFieldById(12));
+        Assert.assertEquals(22.5d, packet.getFieldValue("packet.10"));
+        Assert.assertEquals(45.23d, packet.getFieldValue("gps.latitude"));
+        Assert.assertNull(packet.getFieldValue("99"));
+    }
+
+    @Test
+    public void test07_testFieldsIndexInvalidation() {
+        HPacketField temperature = createIndexedField(10, "temperature", 22.5d);
+        HPacket packet = createHPacket(Arrays.asList(temperature));
+        Assert.assertNull(packet.getFieldById(13));
+        // fields added directly to the JPA managed set must be indexed too
+        HPacketField humidity = createIndexedField(13, "humidity", 56.4d);
+        humidity.setPacket(packet);
+        packet.getFields().add(humidity);
+        Assert.assertSame(humidity, packet.getFieldById(13));
+        Assert.assertSame(humidity, packet.getFieldsMap().get("humidity"));
+        humidity.setName("relativeHumidity");
+        Assert.assertNull(packet.getFieldsMap().get("humidity"));
+        Assert.assertSame(humidity, packet.getFieldsMap().get("relativeHumidity"));
+        packet.removeField(temperature);
+        Assert.assertNull(packet.getFieldById(10));
+        Assert.assertNull(packet.getFieldsMap().get("temperature"));
+        Assert.assertEquals(2, packet.getFieldsMap().size());
+    }
+
+    @Test
+    public void test08_testFieldsIndexStaleness() {
+        HPacketField temperature = createIndexedField(0, "temperature", 22.5d);
+        HPacketField gps = new HPacketField();
+        gps.setName("gps");
+        gps.setType(HPacketFieldType.OBJECT);
+        gps.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        gps.setInnerFields(new HashSet<>());
+        HPacket packet = createHPacket(Arrays.asList(temperature, gps));
+        Assert.assertEquals(2, packet.getFieldsMap().size());
+        // ids assigned on persist, after the index has been built
+        temperature.setId(20);
+        Assert.assertSame(temperature, packet.getFieldById(20));
+        // inner fields changes, inner fields without packet reach the index through their root field
+        HPacketField latitude = createIndexedField(21, "latitude", 45.23d);
+        latitude.setParentField(gps);
+        gps.setInnerFields(new HashSet<>(Arrays.asList(latitude)));
+        Assert.assertSame(latitude, packet.getFieldsMap().get("gps.latitude"));
+        Assert.assertSame(latitude, packet.getFieldById(21));
+        latitude.setName("lat");
+        Assert.assertSame(latitude, packet.getFieldsMap().get("gps.lat"));
+        // same size replacement
+        HPacketField humidity = createIndexedField(22, "humidity", 56.4d);
+        humidity.setPacket(packet);
+        packet.removeField(temperature);
+        packet.addField(humidity);
+        Assert.assertNull(packet.getFieldsMap().get("temperature"));
+        Assert.assertSame(humidity, packet.getFieldsMap().get("humidity"));
+        Assert.assertNull(packet.getFieldById(20));
+        // same size replacement bypassing packet methods is still found by id
+        HPacketField pressure = createIndexedField(23, "pressure", 1013d);
+        packet.getFields().remove(humidity);
+        packet.getFields().add(pressure);
+        Assert.assertSame(pressure, packet.getFieldById(23));
+    }
+
+    @Test
+    public void test09_testUnixTimestampReceivedAsString() throws Exception {
+        HPacket packet = createHPacket(new ArrayList<>());
+        packet.setTimestampField("timestamp");
+        packet.setUnixTimestamp(true);
+        packet.setUnixTimestampFormatSeconds(false);
+        HashMap<String, Object> fields = new HashMap<>();
+        // text formats (eg. CSV) carry unix timestamps as strings
+        fields.put("timestamp", "1672531200123");
+        Assert.assertEquals(1672531200123L, HPacketDeserializerUtil.getConvertedTimestamp(packet, fields));
+        packet.setUnixTimestampFormatSeconds(true);
+        fields.put("timestamp", " 1672531200 ");
+        Assert.assertEquals(1672531200000L, HPacketDeserializerUtil.getConvertedTimestamp(packet, fields));
+        fields.put("timestamp", "2023-01-01");
+        try {
+            HPacketDeserializerUtil.getConvertedTimestamp(packet, fields);
+            Assert.fail("Unix timestamp which is not a number accepted");
+        } catch (TimestampFormatException e) {
+            //expected
+        }
+        // packets not flagged as unix timestamp still parse strings with their format
+        packet.setUnixTimestamp(false);
+        packet.setTimestampFormat("dd/MM/yyyy HH:mm:ss");
+        fields.put("timestamp", "1672531200");
+        try {
+            HPacketDeserializerUtil.getConvertedTimestamp(packet, fields);
+            Assert.fail("Number parsed as unix timestamp of a packet with a timestamp format");
+        } catch (TimestampConversionException e) {
+            //expected
+        }
+    }
+
+    private HPacketField createIndexedField(long id, String name, Object value) {
+        HPacketField field = new HPacketField();
+        field.setId(id);
+        field.setName(name);
+        field.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        field.setType(HPacketFieldType.DOUBLE);
+        field.setValue(value);
+        return field;
+    }
+
     private HPacket createHPacket(List<HPacketField> fields) {
         HProject project = new HProject();
         project.setId(1);
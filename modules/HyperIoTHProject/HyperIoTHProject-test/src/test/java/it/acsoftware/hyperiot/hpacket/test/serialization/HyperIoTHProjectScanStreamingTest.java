@@ -0,0 +1,198 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.hpacket.test.serialization;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.deserialization.service.BinaryAvroHPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanContinuationToken;
+import it.acsoftware.hyperiot.hproject.model.hbase.HProjectScanStreamWriter;
+import it.acsoftware.hyperiot.hproject.serialization.service.BinaryAvroHPacketSerializer;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for streaming scan of hproject HBase tables.
+ * Rows are synthetic binary Avro cells decoded and streamed in the same way the HBase scanner rows are,
+ * heap retained while streaming must not grow with the number of rows.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHProjectScanStreamingTest extends KarafTestSupport {
+
+    private static final int STREAMED_ROWS = 2_000_000;
+    private static final int WARMUP_ROWS = 100_000;
+    private static final long MAX_HEAP_GROWTH_BYTES = 32L * 1024 * 1024;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_continuationTokenRoundTrip() {
+        byte[] lastRow = ByteBuffer.allocate(Long.BYTES).putLong(1600000000000L).array();
+        String token = HProjectScanContinuationToken.encode(10, lastRow);
+        byte[] resumeRow = HProjectScanContinuationToken.decode(10, token);
+        Assert.assertEquals(lastRow.length + 1, resumeRow.length);
+        Assert.assertArrayEquals(lastRow, Arrays.copyOf(resumeRow, lastRow.length));
+        Assert.assertEquals(0, resumeRow[lastRow.length]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test01_continuationTokenOfAnotherHPacketFails() {
+        String token = HProjectScanContinuationToken.encode(10, new byte[]{1, 2, 3});
+        HProjectScanContinuationToken.decode(11, token);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test02_malformedContinuationTokenFails() {
+        HProjectScanContinuationToken.decode(10, "not a token!");
+    }
+
+    @Test
+    public void test03_streamedScanHasHProjectScanStructure() throws IOException {
+        HPacket packet = createHPacket();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(out)) {
+            HProjectScanStreamWriter writer = new HProjectScanStreamWriter(jsonGenerator, packet.getId(), 2);
+            writer.writeStart();
+            writer.writeValue(packet);
+            writer.writeValue(packet);
+            Map<String, Object> error = new HashMap<>();
+            error.put("errorMessage", "error");
+            error.put("packet", "{}");
+            writer.writeValue(error, 1600000000000L);
+            writer.writeEnd(1600000000000L, "token");
+        }
+        JsonNode scan = objectMapper.readTree(out.toByteArray());
+        Assert.assertEquals(packet.getId(), scan.get("hPacketId").asLong());
+        Assert.assertEquals(3, scan.get("values").size());
+        Assert.assertEquals("temperature", scan.get("values").get(0).get("fields").get(0).get("name").asText());
+        Assert.assertEquals(1600000000000L, scan.get("rowKeyUpperBound").asLong());
+        Assert.assertEquals("token", scan.get("continuationToken").asText());
+    }
+
+    @Test
+    public void test04_streamedScanKeepsConstantHeap() throws IOException {
+        byte[] cell = BinaryAvroHPacketSerializer.getInstance().serialize(createHPacket());
+        BinaryAvroHPacketDeserializer deserializer = BinaryAvroHPacketDeserializer.getInstance();
+        CountingOutputStream out = new CountingOutputStream();
+        long heapAfterWarmup = 0;
+        long start = System.nanoTime();
+        try (JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(out)) {
+            HProjectScanStreamWriter writer = new HProjectScanStreamWriter(jsonGenerator, 1,
+                    HProjectScanStreamWriter.DEFAULT_FLUSH_ROWS);
+            writer.writeStart();
+            for (int i = 0; i < STREAMED_ROWS; i++) {
+                writer.writeValue(deserializer.deserialize(cell, null));
+                if (i == WARMUP_ROWS)
+                    heapAfterWarmup = usedHeap();
+            }
+            writer.writeEnd(STREAMED_ROWS, null);
+            Assert.assertEquals(STREAMED_ROWS, writer.getWrittenValues());
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        long heapGrowth = usedHeap() - heapAfterWarmup;
+        System.out.println(String.format("Streamed %d rows, %d bytes, %.0f rows/s, heap growth %d bytes",
+                STREAMED_ROWS, out.count, STREAMED_ROWS * 1_000_000_000d / elapsed, heapGrowth));
+        Assert.assertTrue(out.count > STREAMED_ROWS);
+        Assert.assertTrue(heapGrowth < MAX_HEAP_GROWTH_BYTES);
+    }
+
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Discards written bytes, counting them
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private HPacket createHPacket() {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setDeviceName("device");
+        device.setId(1);
+        device.setProject(project);
+        project.setDevices(Arrays.asList(device));
+        HPacket hpacket = new HPacket();
+        hpacket.setName("scanStreamingPacket");
+        hpacket.setFormat(HPacketFormat.JSON);
+        hpacket.setDevice(device);
+        hpacket.setId(1);
+        hpacket.setSerialization(HPacketSerialization.AVRO);
+        hpacket.setType(HPacketType.INPUT);
+        hpacket.setVersion("1");
+        hpacket.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        hpacket.setTimestampField("timestamp");
+        hpacket.setTimestampFormat("dd/MM/yyyy HH:mm:ss.SSS");
+        HPacketField temperature = new HPacketField();
+        temperature.setId(1);
+        temperature.setName("temperature");
+        temperature.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        temperature.setType(HPacketFieldType.DOUBLE);
+        temperature.setValue(22.34d);
+        temperature.setPacket(hpacket);
+        hpacket.defineFields(Arrays.asList(temperature));
+        device.setPackets(Arrays.asList(hpacket));
+        return hpacket;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka;
+
+/**
+ * State of the Mqtt 2 Kafka route
+ */
+public enum HyperIoTMqtt2KafkaHealth {
+    //first attempt not completed yet
+    STARTING,
+    //route is consuming from the broker
+    UP,
+    //last attempt failed, a new one is scheduled
+    RETRYING,
+    //route is up but no kafka connector is registered, messages wait for it
+    KAFKA_UNAVAILABLE,
+    STOPPED
+}
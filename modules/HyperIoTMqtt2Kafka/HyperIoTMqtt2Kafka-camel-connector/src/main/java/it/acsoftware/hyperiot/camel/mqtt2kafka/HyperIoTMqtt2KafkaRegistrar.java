@@ -18,27 +18,47 @@
 package it.acsoftware.hyperiot.camel.mqtt2kafka;
 
 import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaConnector;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
 import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.pool.PooledConnectionFactory;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Endpoint;
+import org.apache.camel.Route;
 import org.apache.camel.component.activemq.ActiveMQComponent;
+import org.apache.camel.component.jms.JmsConsumer;
 import org.apache.camel.core.osgi.OsgiDefaultCamelContext;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.springframework.jms.listener.AbstractMessageListenerContainer;
+import org.springframework.jms.listener.DefaultMessageListenerContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 /**
  * @Author Aristide Cittadino
  * This component creates a camel context and initializes mqtt 2 kafka routing via camel
  */
-@Component(immediate = true)
+@Component(immediate = true, configurationPid = HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_FILENAME)
 public class HyperIoTMqtt2KafkaRegistrar {
+    public static final String ROUTE_SUPERVISOR_MBEAN_NAME = "it.acsoftware.hyperiot:type=Mqtt2KafkaRoute";
     private Logger logger = LoggerFactory.getLogger(HyperIoTMqtt2KafkaRegistrar.class);
     private CamelContext mqtt2KafkaContext;
+    private PooledConnectionFactory pooledConnectionFactory;
+    private HyperIoTMqtt2KafkaRouteSupervisor routeSupervisor;
+    private ServiceListener kafkaConnectorListener;
 
     @Activate
     public void start(BundleContext context) {
@@ -53,44 +73,93 @@ public class HyperIoTMqtt2KafkaRegistrar {
             factory.setBrokerURL("tcp://localhost:61616");
             factory.setUserName(HyperIoTMqtt2KafkaUtil.getMqttBrokerUsername());
             factory.setPassword(HyperIoTMqtt2KafkaUtil.getMqttBrokerPassword());
-            activeMQComponent.setConnectionFactory(factory);
+            //connections and sessions are pooled and shared by concurrent consumers
+            pooledConnectionFactory = new PooledConnectionFactory(factory);
+            pooledConnectionFactory.setMaxConnections(HyperIoTMqtt2KafkaUtil.getPoolMaxConnections());
+            pooledConnectionFactory.start();
+            activeMQComponent.setConnectionFactory(pooledConnectionFactory);
             mqtt2KafkaContext.addComponent("activemqMQTT", activeMQComponent);
             context.registerService(CamelContext.class, mqtt2KafkaContext, null);
             this.mqtt2KafkaContext.start();
-            Thread startRouteThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    HyperIoTMqtt2KafkaRegistrar.this.startMqtt2KafkaRoute();
-                }
-            });
+            routeSupervisor = new HyperIoTMqtt2KafkaRouteSupervisor(this::attemptRouteStart,
+                    HyperIoTMqtt2KafkaUtil.getRetryBackoff(), System::currentTimeMillis);
+            this.registerRouteSupervisorMBean();
+            this.listenKafkaConnector(context);
+            Thread startRouteThread = new Thread(routeSupervisor, "HyperIoTMqtt2Kafka-route-start");
+            startRouteThread.setDaemon(true);
             startRouteThread.start();
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    /**
+     * Configuration changes are applied without restarting the route:
+     * concurrent consumers are updated on the running listener container.
+     * Consumer mode and pool size are applied on the next activation.
+     */
+    @Modified
+    public void modified(BundleContext context) {
+        HyperIoTMqtt2KafkaUtil.reloadConfiguration();
+        this.updateConcurrentConsumers();
+    }
+
     @Deactivate
     public void stop(BundleContext context) throws Exception {
+        if (this.routeSupervisor != null)
+            this.routeSupervisor.stop();
+        if (this.kafkaConnectorListener != null)
+            context.removeServiceListener(this.kafkaConnectorListener);
+        this.unregisterRouteSupervisorMBean();
         this.mqtt2KafkaContext.stop();
+        if (this.pooledConnectionFactory != null)
+            this.pooledConnectionFactory.stop();
     }
 
-    private void startMqtt2KafkaRoute() {
-        long waitTime = 2000;
-        boolean routeStarted = false;
-        while (!routeStarted) {
-            routeStarted = attempRouteStart();
-            if (!routeStarted) {
-                waitTime = waitBeforeRestart(waitTime);
+    private void updateConcurrentConsumers() {
+        if (!HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_QUEUE.equals(HyperIoTMqtt2KafkaUtil.getConsumerMode()))
+            return;
+        Route route = this.mqtt2KafkaContext.getRoute(HyperIoTMqttJMS2KafkaRouteBuilder.HYPERIOT_MQTT_TO_JMS_ID);
+        if (route == null || !(route.getConsumer() instanceof JmsConsumer))
+            return;
+        try {
+            AbstractMessageListenerContainer container = ((JmsConsumer) route.getConsumer()).getListenerContainer();
+            if (container instanceof DefaultMessageListenerContainer) {
+                DefaultMessageListenerContainer listenerContainer = (DefaultMessageListenerContainer) container;
+                int concurrentConsumers = HyperIoTMqtt2KafkaUtil.getConcurrentConsumers();
+                int maxConcurrentConsumers = Math.max(concurrentConsumers, HyperIoTMqtt2KafkaUtil.getMaxConcurrentConsumers());
+                listenerContainer.setMaxConcurrentConsumers(maxConcurrentConsumers);
+                listenerContainer.setConcurrentConsumers(concurrentConsumers);
+                logger.info("Mqtt 2 Kafka consumers updated: concurrent {}, max {}", concurrentConsumers, maxConcurrentConsumers);
             }
+        } catch (Exception e) {
+            logger.error("Could not update Mqtt 2 Kafka consumers: {}", e.getMessage(), e);
         }
     }
 
-    private boolean attempRouteStart() {
+    /**
+     * Kafka connector events drive route start retries and route health
+     */
+    private void listenKafkaConnector(BundleContext context) throws InvalidSyntaxException {
+        kafkaConnectorListener = event -> {
+            if (event.getType() == ServiceEvent.REGISTERED)
+                routeSupervisor.kafkaConnectorAvailable();
+            else if (event.getType() == ServiceEvent.UNREGISTERING)
+                routeSupervisor.kafkaConnectorUnavailable();
+        };
+        context.addServiceListener(kafkaConnectorListener, "(" + Constants.OBJECTCLASS + "=" + KafkaConnectorSystemApi.class.getName() + ")");
+        if (context.getServiceReference(KafkaConnectorSystemApi.class) != null)
+            routeSupervisor.kafkaConnectorAvailable();
+    }
+
+    /**
+     * Failed attempts clean up the route, so the next one starts from scratch
+     */
+    private void attemptRouteStart() throws Exception {
         try {
             this.mqtt2KafkaContext.addRoutes(new HyperIoTMqttJMS2KafkaRouteBuilder());
             this.mqtt2KafkaContext.start();
             this.mqtt2KafkaContext.getRouteController().startRoute(HyperIoTMqttJMS2KafkaRouteBuilder.HYPERIOT_MQTT_TO_JMS_ID);
-            return true;
         } catch (Throwable e) {
             try {
                 this.mqtt2KafkaContext.stop();
@@ -98,18 +167,31 @@ public class HyperIoTMqtt2KafkaRegistrar {
             } catch (Exception e1) {
                 logger.error(e1.getMessage(), e1);
             }
-            logger.error(e.getMessage(), e);
+            throw e;
         }
-        return false;
     }
 
-    private long waitBeforeRestart(long currentWaitTime) {
+    private void registerRouteSupervisorMBean() {
         try {
-            Thread.sleep((long) currentWaitTime);
-            return (long) Math.pow(currentWaitTime, 2);
-        } catch (InterruptedException e) {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ROUTE_SUPERVISOR_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(routeSupervisor, name);
+        } catch (Exception e) {
+            logger.warn("Could not register Mqtt 2 Kafka route MBean: {}", e.getMessage());
+        }
+    }
+
+    private void unregisterRouteSupervisorMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ROUTE_SUPERVISOR_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+            logger.warn("Could not unregister Mqtt 2 Kafka route MBean: {}", e.getMessage());
         }
-        return currentWaitTime;
     }
 
 }
@@ -0,0 +1,180 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaBackoff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Starts the Mqtt 2 Kafka route, retrying with bounded exponential backoff until it succeeds.
+ * Kafka connector registration wakes up a waiting retry with a fresh backoff, so ingestion resumes
+ * as soon as kafka is back instead of at the end of the current interval.
+ * A registration happening while an attempt is running is not lost: if the attempt fails, the next one is immediate.
+ */
+public class HyperIoTMqtt2KafkaRouteSupervisor implements Runnable, HyperIoTMqtt2KafkaRouteSupervisorMXBean {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTMqtt2KafkaRouteSupervisor.class);
+
+    private final RouteStarter routeStarter;
+    private final HyperIoTMqtt2KafkaBackoff backoff;
+    private final LongSupplier clock;
+    private boolean started;
+    private boolean stopped;
+    private boolean kafkaConnectorAvailable;
+    //kafka connector registered since the current attempt began
+    private boolean kafkaConnectorRegistered;
+    private long failedAttempts;
+    private String lastError;
+    private long nextAttemptAt;
+
+    /**
+     * @param routeStarter starts the route, it must clean up after a failure
+     * @param backoff      delays between attempts
+     * @param clock        current time in milliseconds
+     */
+    public HyperIoTMqtt2KafkaRouteSupervisor(RouteStarter routeStarter, HyperIoTMqtt2KafkaBackoff backoff, LongSupplier clock) {
+        this.routeStarter = routeStarter;
+        this.backoff = backoff;
+        this.clock = clock;
+    }
+
+    /**
+     * Attempts to start the route until it succeeds or the supervisor is stopped
+     */
+    @Override
+    public void run() {
+        try {
+            while (!attemptStart()) {
+                synchronized (this) {
+                    long remaining;
+                    while (!stopped && (remaining = nextAttemptAt - clock.getAsLong()) > 0)
+                        wait(remaining);
+                    if (stopped)
+                        return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Attempts to start the route once, scheduling the next attempt if it fails
+     *
+     * @return true if the route is started
+     */
+    public boolean attemptStart() {
+        synchronized (this) {
+            if (started || stopped)
+                return started;
+            kafkaConnectorRegistered = false;
+        }
+        try {
+            routeStarter.start();
+            synchronized (this) {
+                started = true;
+                failedAttempts = 0;
+                lastError = null;
+                backoff.reset();
+            }
+            log.info("Mqtt 2 Kafka route started");
+            return true;
+        } catch (Exception e) {
+            long attempt;
+            long delay;
+            synchronized (this) {
+                attempt = ++failedAttempts;
+                lastError = e.getMessage();
+                if (kafkaConnectorRegistered) {
+                    //the attempt may have failed before the connector was registered
+                    kafkaConnectorRegistered = false;
+                    backoff.reset();
+                    delay = 0;
+                } else {
+                    delay = backoff.nextDelayMs();
+                }
+                nextAttemptAt = clock.getAsLong() + delay;
+            }
+            log.error("Mqtt 2 Kafka route not started, attempt {} failed, retrying in {} ms: {}", attempt, delay, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Kafka connector registered: a waiting retry is attempted immediately, with a fresh backoff
+     */
+    public synchronized void kafkaConnectorAvailable() {
+        kafkaConnectorAvailable = true;
+        if (!started) {
+            log.info("Kafka connector registered, retrying Mqtt 2 Kafka route start");
+            backoff.reset();
+            kafkaConnectorRegistered = true;
+            nextAttemptAt = clock.getAsLong();
+            notifyAll();
+        }
+    }
+
+    public synchronized void kafkaConnectorUnavailable() {
+        kafkaConnectorAvailable = false;
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    public synchronized HyperIoTMqtt2KafkaHealth getHealth() {
+        if (stopped)
+            return HyperIoTMqtt2KafkaHealth.STOPPED;
+        if (started)
+            return kafkaConnectorAvailable ? HyperIoTMqtt2KafkaHealth.UP : HyperIoTMqtt2KafkaHealth.KAFKA_UNAVAILABLE;
+        return (failedAttempts == 0) ? HyperIoTMqtt2KafkaHealth.STARTING : HyperIoTMqtt2KafkaHealth.RETRYING;
+    }
+
+    @Override
+    public String getState() {
+        return getHealth().name();
+    }
+
+    @Override
+    public synchronized long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    @Override
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public synchronized long getNextAttemptDelayMs() {
+        return (started || stopped) ? 0 : Math.max(0, nextAttemptAt - clock.getAsLong());
+    }
+
+    @Override
+    public synchronized boolean isKafkaConnectorAvailable() {
+        return kafkaConnectorAvailable;
+    }
+
+    public interface RouteStarter {
+        void start() throws Exception;
+    }
+
+}
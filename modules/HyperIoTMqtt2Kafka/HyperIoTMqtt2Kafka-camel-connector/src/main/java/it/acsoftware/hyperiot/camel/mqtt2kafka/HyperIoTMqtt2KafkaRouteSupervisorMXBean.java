@@ -0,0 +1,47 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka;
+
+/**
+ * Mqtt 2 Kafka route health, exposed via JMX
+ */
+public interface HyperIoTMqtt2KafkaRouteSupervisorMXBean {
+
+    /**
+     * @return one of HyperIoTMqtt2KafkaHealth
+     */
+    String getState();
+
+    /**
+     * @return failed attempts since the last successful start
+     */
+    long getFailedAttempts();
+
+    /**
+     * @return error of the last failed attempt, null if the route is up
+     */
+    String getLastError();
+
+    /**
+     * @return milliseconds before the next attempt, 0 if the route is up
+     */
+    long getNextAttemptDelayMs();
+
+    boolean isKafkaConnectorAvailable();
+
+}
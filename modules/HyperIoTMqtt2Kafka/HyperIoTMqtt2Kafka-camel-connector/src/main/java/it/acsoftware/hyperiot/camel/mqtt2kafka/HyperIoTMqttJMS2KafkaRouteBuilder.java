@@ -35,16 +35,36 @@ public class HyperIoTMqttJMS2KafkaRouteBuilder extends RouteBuilder {
     @Override
     public void configure() throws Exception {
         log.info("HyperIoT Camel :Configuring ActiveMQ 2 Kafka Route");
+        boolean queueMode = HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_QUEUE.equals(HyperIoTMqtt2KafkaUtil.getConsumerMode());
         StringBuilder options = new StringBuilder();
-        options.append("?")
-            .append("concurrentConsumers=").append(HyperIoTMqtt2KafkaUtil.getConcurrentConsumers())
-            .append("&")
-            .append("maxConcurrentConsumers=").append(HyperIoTMqtt2KafkaUtil.getMaxConcurrentConsumers())
-            .append("&")
-            .append("clientId=").append(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_CLIENT_ID);
-        String topicPattern = "activemqMQTT:topic:"+ HyperIoTMqtt2KafkaConstants.JMS_TOPIC_MQTT_TOPIC_PATTERN+options.toString();
-        logger.info("Configuring Mqtt JMS 2 Kafka Route Builder with pattern {} and options: {}",topicPattern,options.toString());
-        from(topicPattern)
+        options.append("?");
+        if (queueMode) {
+            // consumers compete on the virtual topic consumer queues, messages of the same device
+            // belong to the same message group so they are consumed in order by a single consumer.
+            // Queues must be created by the broker: a wildcard consumer does not create them
+            logger.info("Mqtt 2 Kafka consuming from virtual topic consumer queues, broker must create them (see {})",
+                HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_CONSUMER_MODE);
+            options.append("concurrentConsumers=").append(HyperIoTMqtt2KafkaUtil.getConcurrentConsumers())
+                .append("&")
+                .append("maxConcurrentConsumers=").append(HyperIoTMqtt2KafkaUtil.getMaxConcurrentConsumers());
+        } else {
+            // every topic subscriber receives all messages, more than one consumer would duplicate them
+            if (HyperIoTMqtt2KafkaUtil.getMaxConcurrentConsumers() > 1)
+                logger.warn("Mqtt 2 Kafka consuming from topic, concurrent consumers are ignored");
+            options.append("concurrentConsumers=1")
+                .append("&")
+                .append("maxConcurrentConsumers=1")
+                .append("&")
+                .append("clientId=").append(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_CLIENT_ID);
+        }
+        // messages are acknowledged once kafka stored them: exchanges failed by the producer are recovered
+        // and redelivered by the broker
+        options.append("&acknowledgementModeName=CLIENT_ACKNOWLEDGE");
+        String destinationPattern = (queueMode) ?
+            "activemqMQTT:queue:" + HyperIoTMqtt2KafkaConstants.JMS_QUEUE_MQTT_TOPIC_PATTERN + options.toString() :
+            "activemqMQTT:topic:" + HyperIoTMqtt2KafkaConstants.JMS_TOPIC_MQTT_TOPIC_PATTERN + options.toString();
+        logger.info("Configuring Mqtt JMS 2 Kafka Route Builder with pattern {} and options: {}",destinationPattern,options.toString());
+        from(destinationPattern)
             .autoStartup(false)
             .routeId(HYPERIOT_MQTT_TO_JMS_ID)
             .to(HyperIoTMqtt2KafkaConnector.HYPERIOT_CAMEL_MQTT_2_KAFKA_COMPONENT_NAME);
@@ -18,12 +18,11 @@ package it.acsoftware.hyperiot.camel.mqtt2kafka.component;
 
 import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
 import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
-import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
-import it.acsoftware.hyperiot.kafka.connector.model.HyperIoTKafkaMessage;
-import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.camel.support.DefaultAsyncProducer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,50 +32,53 @@ import java.util.Map;
 /**
  * @Author Aristide Cittadino
  * HyperIoT2KafkaProducer Producer
+ * The exchange completes when kafka acknowledges the record: if kafka fails to store it the exchange fails,
+ * so the mqtt message is not acknowledged to the broker and it is redelivered.
  */
-public class HyperIoT2KafkaProducer extends org.apache.camel.support.DefaultProducer {
+public class HyperIoT2KafkaProducer extends DefaultAsyncProducer {
     private static final transient Logger logger = LoggerFactory
             .getLogger(HyperIoT2KafkaProducer.class);
 
     private HyperIoTMqtt2KafkaEndpoint endpoint;
-    private KafkaProducer<byte[], byte[]> producer;
+    private HyperIoTMqtt2KafkaSender sender;
 
-    public HyperIoT2KafkaProducer(HyperIoTMqtt2KafkaEndpoint endpoint, KafkaProducer<byte[], byte[]> producer) {
+    public HyperIoT2KafkaProducer(HyperIoTMqtt2KafkaEndpoint endpoint, HyperIoTMqtt2KafkaSender sender) {
         super(endpoint);
         this.endpoint = endpoint;
-        this.producer = producer;
+        this.sender = sender;
     }
 
     /**
      * This method converts inbound topic to kafka message
      *
      * @param exchange
-     * @throws Exception
+     * @param callback completed when kafka acknowledges or fails the record
+     * @return true if the exchange has been completed synchronously
      */
-    public void process(Exchange exchange) throws Exception {
-        KafkaConnectorSystemApi connectorSystemApi = HyperIoTMqtt2KafkaUtil.getKafkaConnectorSystemApi();
-        if (connectorSystemApi != null) {
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        try {
             Map<String, Object> properties = exchange.getIn().getHeaders();
             printHeaderParams(properties);
-            ActiveMQTopic activeMQTopic = (ActiveMQTopic) properties.get(HyperIoTMqtt2KafkaConstants.PARAMS_JMS_DESTINATION);
-            String topic = activeMQTopic.getPhysicalName().replace(HyperIoTMqtt2KafkaConstants.JMS_TOPIC_PREFIX, "");
+            ActiveMQDestination destination = (ActiveMQDestination) properties.get(HyperIoTMqtt2KafkaConstants.PARAMS_JMS_DESTINATION);
+            String topic = HyperIoTMqtt2KafkaUtil.getMqttTopicName(destination.getPhysicalName());
             //here is mqtt topic with dotted notation instead of "/"
             // now from messageIn we convert data from Mqtt To Kafka Standard
             Message messageIn = (Message) exchange.getIn();
-            HyperIoTKafkaMessage message = HyperIoTMqtt2KafkaUtil
-                    .createKafkaKeyValueFromMqttTopic(topic,
-                            messageIn.getBody(byte[].class));
-            logger.debug("Converting MQTT Message from topic {}, to kafka topic {} and key {}", topic, message.getTopic(), new String(message.getKey()));
-            if (message != null) {
-                if (topic != null) {
-                    try {
-                        connectorSystemApi.produceMessage(message, producer, null);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    }
-                }
-            }
+            sender.send(topic, messageIn.getBody(byte[].class), e -> {
+                if (e != null)
+                    exchange.setException(e);
+                callback.done(false);
+            });
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.setException(e);
+        } catch (RuntimeException e) {
+            exchange.setException(e);
         }
+        callback.done(true);
+        return true;
     }
 
     private void printHeaderParams(Map<String, Object> properties) {
@@ -0,0 +1,76 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component;
+
+import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
+import org.apache.kafka.clients.producer.Producer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Tracks the Kafka Connector service, creating one producer when the connector is registered.
+ * When the connector goes away its producer is flushed and closed, so records already accepted are not lost,
+ * and messages wait for the next registration.
+ */
+public class HyperIoTKafkaConnectorTracker extends ServiceTracker<KafkaConnectorSystemApi, Producer<byte[], byte[]>>
+        implements HyperIoTKafkaProducerProvider {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTKafkaConnectorTracker.class);
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(30);
+
+    public HyperIoTKafkaConnectorTracker(BundleContext context) {
+        super(context, KafkaConnectorSystemApi.class, null);
+    }
+
+    @Override
+    public Producer<byte[], byte[]> addingService(ServiceReference<KafkaConnectorSystemApi> reference) {
+        KafkaConnectorSystemApi kafkaConnectorSystemApi = context.getService(reference);
+        if (kafkaConnectorSystemApi == null)
+            return null;
+        log.info("Kafka Connector registered, creating Mqtt 2 Kafka producer");
+        return kafkaConnectorSystemApi.getNewProducer();
+    }
+
+    @Override
+    public void removedService(ServiceReference<KafkaConnectorSystemApi> reference, Producer<byte[], byte[]> producer) {
+        log.info("Kafka Connector unregistered, closing Mqtt 2 Kafka producer");
+        try {
+            producer.flush();
+            producer.close(CLOSE_TIMEOUT);
+        } catch (Exception e) {
+            log.error("Error while closing kafka producer: {}", e.getMessage(), e);
+        } finally {
+            context.ungetService(reference);
+        }
+    }
+
+    /**
+     * @param timeoutMs max milliseconds to wait for a producer, 0 or less to return at once
+     */
+    @Override
+    public Producer<byte[], byte[]> getProducer(long timeoutMs) throws InterruptedException {
+        //waitForService(0) would wait forever
+        return (timeoutMs > 0) ? waitForService(timeoutMs) : getService();
+    }
+
+}
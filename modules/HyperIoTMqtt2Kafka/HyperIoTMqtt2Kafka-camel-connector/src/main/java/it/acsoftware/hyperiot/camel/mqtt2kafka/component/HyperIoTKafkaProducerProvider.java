@@ -0,0 +1,35 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component;
+
+import org.apache.kafka.clients.producer.Producer;
+
+/**
+ * Provides the kafka producer used to forward mqtt messages
+ */
+public interface HyperIoTKafkaProducerProvider {
+
+    /**
+     * @param timeoutMs max milliseconds to wait for a producer
+     * @return current producer, null if none is available within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Producer<byte[], byte[]> getProducer(long timeoutMs) throws InterruptedException;
+
+}
@@ -16,8 +16,8 @@
  */
 package it.acsoftware.hyperiot.camel.mqtt2kafka.component;
 
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
 import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
-import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
 import org.apache.camel.Consumer;
 import org.apache.camel.Processor;
 import org.apache.camel.Producer;
@@ -33,6 +33,8 @@ import java.net.URISyntaxException;
  */
 public class HyperIoTMqtt2KafkaEndpoint extends DefaultEndpoint {
     private static Logger log = LoggerFactory.getLogger(HyperIoTMqtt2KafkaEndpoint.class);
+    private HyperIoTKafkaConnectorTracker connectorTracker;
+    private HyperIoTMqtt2KafkaSender sender;
 
     public HyperIoTMqtt2KafkaEndpoint(String endpointUri, String remaining,
                                       HyperIoTMqtt2KafkaConnector component) throws URISyntaxException {
@@ -47,10 +49,34 @@ public class HyperIoTMqtt2KafkaEndpoint extends DefaultEndpoint {
     @Override
     public Producer createProducer() throws Exception {
         log.debug("Creating Kafka Producer for Camel Context...");
-        KafkaConnectorSystemApi kafkaConnectorSystemApi = HyperIoTMqtt2KafkaUtil.getKafkaConnectorSystemApi();
-        if(kafkaConnectorSystemApi != null)
-            return new HyperIoT2KafkaProducer(this,kafkaConnectorSystemApi.getNewProducer());
-        throw new RuntimeException("Impossible to create kafka producer!");
+        if (sender == null)
+            throw new RuntimeException("Impossible to create kafka producer, endpoint not started!");
+        return new HyperIoT2KafkaProducer(this, sender);
+    }
+
+    /**
+     * Kafka Connector is tracked once for all exchanges, its producer is shared by all consumers
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        connectorTracker = new HyperIoTKafkaConnectorTracker(HyperIoTUtil.getBundleContext(HyperIoTMqtt2KafkaEndpoint.class));
+        connectorTracker.open();
+        sender = new HyperIoTMqtt2KafkaSender(connectorTracker, HyperIoTMqtt2KafkaUtil.getProducerMaxInFlight(),
+                HyperIoTMqtt2KafkaUtil.getProducerWaitMs());
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (sender != null && !sender.awaitInFlight(HyperIoTMqtt2KafkaUtil.getProducerWaitMs()))
+            log.warn("Kafka records still in flight while stopping Mqtt 2 Kafka endpoint");
+        if (connectorTracker != null)
+            connectorTracker.close();
+        connectorTracker = null;
+        sender = null;
+        super.doStop();
     }
 
     @Override
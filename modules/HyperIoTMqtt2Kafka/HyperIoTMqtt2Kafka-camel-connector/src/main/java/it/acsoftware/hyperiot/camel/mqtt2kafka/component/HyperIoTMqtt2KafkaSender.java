@@ -0,0 +1,148 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqttTopic;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sends mqtt messages to kafka asynchronously.
+ * Records not yet acknowledged by kafka are bounded by maxInFlight: when the bound is reached
+ * callers wait, slowing down mqtt consumers instead of buffering without limits.
+ * A record rejected because its producer has been closed (connector re-registration) is sent again
+ * with the producer of the new connector.
+ * Callers that must know the outcome (eg. the camel route, to roll back the mqtt message) pass a completion
+ * invoked when kafka acknowledges or fails the record.
+ */
+public class HyperIoTMqtt2KafkaSender {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTMqtt2KafkaSender.class);
+
+    private final HyperIoTKafkaProducerProvider producerProvider;
+    private final long producerWaitMs;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param producerProvider provider of the current kafka producer
+     * @param maxInFlight      max records sent and not yet acknowledged
+     * @param producerWaitMs   max milliseconds to wait for a producer
+     */
+    public HyperIoTMqtt2KafkaSender(HyperIoTKafkaProducerProvider producerProvider, int maxInFlight, long producerWaitMs) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("Max in flight records must be greater than 0");
+        this.producerProvider = producerProvider;
+        this.producerWaitMs = producerWaitMs;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Records kafka fails to store are logged and counted, see getFailedCount
+     *
+     * @param mqttTopic mqtt topic in dotted notation
+     * @param payload   mqtt payload
+     * @throws InterruptedException  if interrupted while waiting for kafka
+     * @throws IllegalStateException if no producer is available, so the message is not acknowledged to the broker
+     */
+    public void send(String mqttTopic, byte[] payload) throws InterruptedException {
+        send(mqttTopic, payload, null);
+    }
+
+    /**
+     * @param mqttTopic  mqtt topic in dotted notation
+     * @param payload    mqtt payload
+     * @param completion invoked with null when kafka acknowledges the record, with the error when kafka fails to store it.
+     *                   It is not invoked when this method throws
+     * @throws InterruptedException  if interrupted while waiting for kafka
+     * @throws IllegalStateException if no producer is available, so the message is not acknowledged to the broker
+     */
+    public void send(String mqttTopic, byte[] payload, Consumer<Exception> completion) throws InterruptedException {
+        HyperIoTMqttTopic topic = HyperIoTMqtt2KafkaUtil.getMqttTopic(mqttTopic);
+        ProducerRecord<byte[], byte[]> record = topic.createRecord(payload);
+        log.debug("Converting MQTT Message from topic {}, to kafka topic {}", mqttTopic, record.topic());
+        inFlight.acquire();
+        try {
+            sendWithProducer(record, completion);
+        } catch (InterruptedException | RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void sendWithProducer(ProducerRecord<byte[], byte[]> record, Consumer<Exception> completion) throws InterruptedException {
+        Producer<byte[], byte[]> producer = getProducer();
+        try {
+            producer.send(record, (metadata, e) -> {
+                inFlight.release();
+                if (e != null) {
+                    failed.incrementAndGet();
+                    log.error("Could not send message to kafka topic {}: {}", record.topic(), e.getMessage(), e);
+                }
+                if (completion != null)
+                    completion.accept(e);
+            });
+        } catch (IllegalStateException e) {
+            //producer closed by connector unregistration, retrying with the new one
+            log.debug("Kafka producer closed, waiting for a new one: {}", e.getMessage());
+            Producer<byte[], byte[]> newProducer = getProducer();
+            if (newProducer == producer)
+                throw e;
+            sendWithProducer(record, completion);
+        }
+    }
+
+    private Producer<byte[], byte[]> getProducer() throws InterruptedException {
+        Producer<byte[], byte[]> producer = producerProvider.getProducer(producerWaitMs);
+        if (producer == null)
+            throw new IllegalStateException("Kafka producer not available after " + producerWaitMs + " ms");
+        return producer;
+    }
+
+    /**
+     * Waits for all in flight records to be acknowledged
+     *
+     * @param timeoutMs max milliseconds to wait
+     * @return true if no record is in flight anymore
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitInFlight(long timeoutMs) throws InterruptedException {
+        if (!inFlight.tryAcquire(maxInFlight, timeoutMs, TimeUnit.MILLISECONDS))
+            return false;
+        inFlight.release(maxInFlight);
+        return true;
+    }
+
+    /**
+     * @return records kafka failed to store
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Bounded exponential backoff: delay doubles after every failure up to maxDelayMs.
+ * Every delay is spread by +/- jitter, so nodes failing together do not retry together.
+ * Not thread safe, callers synchronize.
+ */
+public final class HyperIoTMqtt2KafkaBackoff {
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double jitter;
+    private final DoubleSupplier random;
+    private long currentDelayMs;
+
+    /**
+     * @param initialDelayMs delay after the first failure
+     * @param maxDelayMs     max delay, jitter included
+     * @param jitter         ratio of the delay randomly added or removed, between 0 and 1
+     */
+    public HyperIoTMqtt2KafkaBackoff(long initialDelayMs, long maxDelayMs, double jitter) {
+        this(initialDelayMs, maxDelayMs, jitter, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param random source of values between 0 (inclusive) and 1 (exclusive)
+     */
+    public HyperIoTMqtt2KafkaBackoff(long initialDelayMs, long maxDelayMs, double jitter, DoubleSupplier random) {
+        if (initialDelayMs <= 0 || maxDelayMs < initialDelayMs)
+            throw new IllegalArgumentException("Initial delay must be greater than 0 and not greater than max delay");
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.random = random;
+        this.currentDelayMs = initialDelayMs;
+    }
+
+    /**
+     * @return delay before the next attempt
+     */
+    public long nextDelayMs() {
+        long delay = currentDelayMs;
+        currentDelayMs = (delay > maxDelayMs / 2) ? maxDelayMs : delay * 2;
+        double factor = 1 + jitter * (2 * random.getAsDouble() - 1);
+        return Math.max(1, Math.min(maxDelayMs, Math.round(delay * factor)));
+    }
+
+    /**
+     * Next delay is the initial one again
+     */
+    public void reset() {
+        currentDelayMs = initialDelayMs;
+    }
+
+    public long getInitialDelayMs() {
+        return initialDelayMs;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+}
@@ -28,6 +28,25 @@ public class HyperIoTMqtt2KafkaConstants {
     public static final String HYPERIOT_MQTT_2_KAFKA_PROP_FILENAME = "it.acsoftware.hyperiot.mqtt2kafka";
     public static final String HYPERIOT_MQTT_2_KAFKA_PROP_DEFAULT_CONCURRENT_CONSUMERS = "it.acsoftware.hyperiot.mqtt2kafka.concurrent.consumers";
     public static final String HYPERIOT_MQTT_2_KAFKA_PROP_MAX_CONCURRENT_CONSUMERS = "it.acsoftware.hyperiot.mqtt2kafka.max.concurrent.consumers";
+    //comma separated list of project ids (or "*" for all projects) whose payloads are sent to kafka as raw bytes
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_RAW_PROJECTS = "it.acsoftware.hyperiot.mqtt2kafka.raw.projects";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_TOPIC_CACHE_SIZE = "it.acsoftware.hyperiot.mqtt2kafka.topic.cache.size";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_PRODUCER_MAX_IN_FLIGHT = "it.acsoftware.hyperiot.mqtt2kafka.producer.max.in.flight";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_PRODUCER_WAIT_MS = "it.acsoftware.hyperiot.mqtt2kafka.producer.wait.ms";
+    //"topic" (default) consumes from the topic with a single consumer, "queue" from the virtual topic consumer queues with competing consumers.
+    //Virtual topics forward only to existing queues: queue mode requires the broker to create them, adding HyperIoTMqtt2Kafka
+    //to it.acsoftware.hyperiot.activemq.streaming.consumer.queues
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_CONSUMER_MODE = "it.acsoftware.hyperiot.mqtt2kafka.consumer.mode";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_POOL_MAX_CONNECTIONS = "it.acsoftware.hyperiot.mqtt2kafka.pool.max.connections";
+    //route start retries: delay doubles from initial to max, randomized by +/- jitter percent
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_INITIAL_MS = "it.acsoftware.hyperiot.mqtt2kafka.retry.initial.ms";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_MAX_MS = "it.acsoftware.hyperiot.mqtt2kafka.retry.max.ms";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_JITTER_PERCENT = "it.acsoftware.hyperiot.mqtt2kafka.retry.jitter.percent";
+    //kafka topic consumed by the ingestion gateway, devices write there directly instead of going through the broker
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOPIC = "it.acsoftware.hyperiot.mqtt2kafka.ingestion.topic";
+    //secret signing the tokens of requests written on the ingestion topic, shared by all nodes: without it the topic is not consumed
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOKEN_SECRET = "it.acsoftware.hyperiot.mqtt2kafka.ingestion.token.secret";
+    public static final String HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOKEN_TTL_MS = "it.acsoftware.hyperiot.mqtt2kafka.ingestion.token.ttl.ms";
     public static final String HYPERIOT_MQTT_2_KAFKA_CLIENT_ID = "HyperIoTMqtt2Kafka-Client-"+ HyperIoTUtil.getLayer()+"-"+HyperIoTUtil.getNodeId();
 
 
@@ -37,6 +56,19 @@ public class HyperIoTMqtt2KafkaConstants {
     public static final String KAFKA_TOPIC_PREFIX = "streaming.";
     public static final String JMS_HYPERIOT_TOPIC_PREFIX = "streaming.";
     public static final String JMS_TOPIC_PREFIX = JMS_TOPIC_PROTOCOL+JMS_VIRTUAL_TOPIC_NAME;
+    public static final String RAW_PROJECTS_WILDCARD = "*";
+    public static final String DEFAULT_INGESTION_TOPIC = "hyperiot_ingestion";
+    //kafka record headers, they must match the ones read by the storm spout record translator
+    public static final String KAFKA_HEADER_ENCODING = "hyperiot.encoding";
+    public static final String KAFKA_HEADER_PROJECT_ID = "hyperiot.projectId";
+    public static final String KAFKA_HEADER_DEVICE_ID = "hyperiot.deviceId";
+    public static final String KAFKA_HEADER_PACKET_ID = "hyperiot.packetId";
+    public static final String KAFKA_ENCODING_RAW = "raw";
+    public static final String CONSUMER_MODE_QUEUE = "queue";
+    public static final String CONSUMER_MODE_TOPIC = "topic";
+    public static final String JMS_VIRTUAL_TOPIC_CONSUMER_PREFIX = "Consumer.HyperIoTMqtt2Kafka.";
     //topic pattern is in the form of streaming.<priojectId>.<deviceId>.<packetId>
     public static final String JMS_TOPIC_MQTT_TOPIC_PATTERN = JMS_VIRTUAL_TOPIC_NAME+KAFKA_TOPIC_PREFIX+"*.*.*";
+    //virtual topic consumer queues of all streaming topics, created by the broker
+    public static final String JMS_QUEUE_MQTT_TOPIC_PATTERN = JMS_VIRTUAL_TOPIC_CONSUMER_PREFIX+JMS_TOPIC_MQTT_TOPIC_PATTERN;
 }
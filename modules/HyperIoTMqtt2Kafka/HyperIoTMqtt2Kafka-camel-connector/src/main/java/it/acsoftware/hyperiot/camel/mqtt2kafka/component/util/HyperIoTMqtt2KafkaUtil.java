@@ -19,7 +19,6 @@ package it.acsoftware.hyperiot.camel.mqtt2kafka.component.util;
 
 import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
 import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
-import it.acsoftware.hyperiot.kafka.connector.model.HyperIoTKafkaMessage;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.Configuration;
@@ -42,6 +41,8 @@ public class HyperIoTMqtt2KafkaUtil {
         .getLogger(HyperIoTMqtt2KafkaUtil.class);
 
     private static Properties props;
+    private static Set<String> rawProjects;
+    private static volatile HyperIoTMqttTopicCache topicCache;
 
     private static Properties loadMqtt2KafkaConfiguration() {
         BundleContext context = HyperIoTUtil.getBundleContext(HyperIoTMqtt2KafkaUtil.class);
@@ -78,6 +79,15 @@ public class HyperIoTMqtt2KafkaUtil {
         return props;
     }
 
+    /**
+     * Drops cached configuration and everything derived from it, so it is read again from ConfigurationAdmin
+     */
+    public static synchronized void reloadConfiguration() {
+        props = null;
+        rawProjects = null;
+        topicCache = null;
+    }
+
     /**
      * @return
      */
@@ -108,26 +118,159 @@ public class HyperIoTMqtt2KafkaUtil {
         return Integer.parseInt(loadMqtt2KafkaConfiguration().getProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_MAX_CONCURRENT_CONSUMERS, "1"));
     }
 
+    /**
+     * @return consumer mode, CONSUMER_MODE_TOPIC unless CONSUMER_MODE_QUEUE is configured
+     */
+    public static String getConsumerMode() {
+        Properties configuration = loadMqtt2KafkaConfiguration();
+        String mode = (configuration != null) ? configuration.getProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_CONSUMER_MODE) : null;
+        return HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_QUEUE.equalsIgnoreCase(mode == null ? null : mode.trim()) ?
+            HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_QUEUE : HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_TOPIC;
+    }
+
+    /**
+     * @return max connections to the broker opened by the pooled connection factory
+     */
+    public static int getPoolMaxConnections() {
+        return getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_POOL_MAX_CONNECTIONS, 8);
+    }
+
+    /**
+     * Messages consumed from the virtual topic consumer queue may carry the queue as destination:
+     * the consumer prefix is removed so that the name always starts from VirtualTopic.
+     *
+     * @param physicalName JMS destination physical name
+     * @return mqtt topic in dotted notation
+     */
+    public static String getMqttTopicName(String physicalName) {
+        String topic = physicalName.replace(HyperIoTMqtt2KafkaConstants.JMS_TOPIC_PREFIX, "");
+        int virtualTopicIndex = topic.indexOf(HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_NAME);
+        return (virtualTopicIndex > 0) ? topic.substring(virtualTopicIndex) : topic;
+    }
+
+    /**
+     * @return max number of parsed mqtt topics kept in memory
+     */
+    public static int getTopicCacheSize() {
+        return getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_TOPIC_CACHE_SIZE, 10000);
+    }
+
+    /**
+     * @return max number of records sent to kafka and not yet acknowledged, further messages wait for them
+     */
+    public static int getProducerMaxInFlight() {
+        return getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_PRODUCER_MAX_IN_FLIGHT, 10000);
+    }
+
+    /**
+     * @return milliseconds a message waits for the kafka connector to be available
+     */
+    public static long getProducerWaitMs() {
+        return getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_PRODUCER_WAIT_MS, 30000);
+    }
+
+    /**
+     * @return backoff between route start attempts, defaults are 2 seconds doubling up to 1 minute with 20% jitter
+     */
+    public static HyperIoTMqtt2KafkaBackoff getRetryBackoff() {
+        int initialMs = Math.max(1, getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_INITIAL_MS, 2000));
+        int maxMs = Math.max(initialMs, getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_MAX_MS, 60000));
+        int jitterPercent = Math.max(0, Math.min(100, getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_RETRY_JITTER_PERCENT, 20)));
+        return new HyperIoTMqtt2KafkaBackoff(initialMs, maxMs, jitterPercent / 100d);
+    }
+
+    /**
+     * @return kafka topic consumed by the ingestion gateway
+     */
+    public static String getIngestionTopic() {
+        Properties configuration = loadMqtt2KafkaConfiguration();
+        String topic = (configuration != null) ? configuration.getProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOPIC) : null;
+        return (topic != null && !topic.trim().isEmpty()) ? topic.trim() : HyperIoTMqtt2KafkaConstants.DEFAULT_INGESTION_TOPIC;
+    }
+
+    /**
+     * @return secret signing ingestion tokens, empty if not configured
+     */
+    public static byte[] getIngestionTokenSecret() {
+        Properties configuration = loadMqtt2KafkaConfiguration();
+        String secret = (configuration != null) ? configuration.getProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOKEN_SECRET) : null;
+        return (secret != null) ? secret.trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * @return ingestion token validity, default is one day
+     */
+    public static long getIngestionTokenTtlMs() {
+        return getIntProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOKEN_TTL_MS, 86400000);
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        Properties configuration = loadMqtt2KafkaConfiguration();
+        if (configuration == null || configuration.getProperty(name) == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(configuration.getProperty(name).trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value for property {}, using default {}", name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Projects sending payloads as raw bytes, parsed once from configuration
+     *
+     * @return project ids, it may contain RAW_PROJECTS_WILDCARD
+     */
+    private static Set<String> getRawProjects() {
+        if (rawProjects == null) {
+            Set<String> projects = new HashSet<>();
+            Properties configuration = loadMqtt2KafkaConfiguration();
+            String property = (configuration != null) ? configuration.getProperty(HyperIoTMqtt2KafkaConstants.HYPERIOT_MQTT_2_KAFKA_PROP_RAW_PROJECTS, "") : "";
+            for (String projectId : property.split(",")) {
+                if (!projectId.trim().isEmpty())
+                    projects.add(projectId.trim());
+            }
+            rawProjects = Collections.unmodifiableSet(projects);
+        }
+        return rawProjects;
+    }
+
+    /**
+     * @param projectId HProject id
+     * @return true if payloads of the given project must be sent to kafka as raw bytes
+     */
+    public static boolean isRawProject(String projectId) {
+        Set<String> projects = getRawProjects();
+        return projects.contains(HyperIoTMqtt2KafkaConstants.RAW_PROJECTS_WILDCARD) || projects.contains(projectId);
+    }
+
+    /**
+     * Parsed topics are cached, so topics of active devices are parsed only once
+     *
+     * @param mqttTopic topic in dotted notation
+     * @return parsed topic
+     */
+    public static HyperIoTMqttTopic getMqttTopic(String mqttTopic) {
+        if (topicCache == null) {
+            synchronized (HyperIoTMqtt2KafkaUtil.class) {
+                if (topicCache == null)
+                    topicCache = new HyperIoTMqttTopicCache(getTopicCacheSize());
+            }
+        }
+        return topicCache.get(mqttTopic);
+    }
+
     /**
      * topic is in the form <mqttSubscribeTopic>/<projectId>/<deviceId>/<packetId> (eg. "/streaming/10/8/9" where "/streaming/#" is the subscribed topic)
      *
      * @param mqttTopic
-     * @param messageIn
-     * @return
+     * @return projectId, deviceId and packetId
      */
-    public static HyperIoTKafkaMessage createKafkaKeyValueFromMqttTopic(
-        String mqttTopic, byte[] messageIn) {
+    public static String[] parseMqttTopic(String mqttTopic) {
         //removing "VirtualTopic.streaming."
         String topic = mqttTopic.replace(HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_NAME, "");
         topic = topic.replace(HyperIoTMqtt2KafkaConstants.JMS_HYPERIOT_TOPIC_PREFIX, "");
-        String[] path = topic.split("\\.");
-        String projectId = path[0];
-        String deviceId = path[1];
-        String packetId = path[2];
-        String kafkaKey = deviceId.concat(".").concat(packetId);
-        String kafkaTopic = HyperIoTMqtt2KafkaConstants.KAFKA_TOPIC_PREFIX + projectId;
-        byte key[] = kafkaKey.getBytes(StandardCharsets.UTF_8);
-        return new HyperIoTKafkaMessage(key, kafkaTopic, Base64.getEncoder().encode(messageIn));
+        return topic.split("\\.");
     }
 
     /**
@@ -0,0 +1,107 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component.util;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Mqtt topic parsed once, with kafka topic, key and headers of the records it produces
+ */
+public final class HyperIoTMqttTopic {
+    private static final byte[] RAW_ENCODING = HyperIoTMqtt2KafkaConstants.KAFKA_ENCODING_RAW.getBytes(StandardCharsets.UTF_8);
+
+    private final String projectId;
+    private final String deviceId;
+    private final String packetId;
+    private final String kafkaTopic;
+    private final byte[] kafkaKey;
+    private final boolean raw;
+    private final Header[] rawHeaders;
+
+    /**
+     * @param projectId
+     * @param deviceId
+     * @param packetId
+     * @param raw       true if payloads must be sent untouched
+     */
+    public HyperIoTMqttTopic(String projectId, String deviceId, String packetId, boolean raw) {
+        this.projectId = projectId;
+        this.deviceId = deviceId;
+        this.packetId = packetId;
+        this.kafkaTopic = HyperIoTMqtt2KafkaConstants.KAFKA_TOPIC_PREFIX + projectId;
+        this.kafkaKey = deviceId.concat(".").concat(packetId).getBytes(StandardCharsets.UTF_8);
+        this.raw = raw;
+        this.rawHeaders = new Header[]{
+                new RecordHeader(HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_ENCODING, RAW_ENCODING),
+                new RecordHeader(HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_PROJECT_ID, projectId.getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader(HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader(HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_PACKET_ID, packetId.getBytes(StandardCharsets.UTF_8))
+        };
+    }
+
+    /**
+     * topic is in the form VirtualTopic.streaming.<projectId>.<deviceId>.<packetId>
+     *
+     * @param mqttTopic topic in dotted notation
+     * @return parsed topic
+     */
+    public static HyperIoTMqttTopic parse(String mqttTopic) {
+        String[] path = HyperIoTMqtt2KafkaUtil.parseMqttTopic(mqttTopic);
+        if (path.length < 3)
+            throw new IllegalArgumentException("Invalid mqtt topic: " + mqttTopic);
+        return new HyperIoTMqttTopic(path[0], path[1], path[2], HyperIoTMqtt2KafkaUtil.isRawProject(path[0]));
+    }
+
+    /**
+     * @param payload mqtt payload
+     * @return record sent to kafka, payload is Base64 encoded unless the project is configured for raw payloads
+     */
+    public ProducerRecord<byte[], byte[]> createRecord(byte[] payload) {
+        if (raw)
+            return new ProducerRecord<>(kafkaTopic, null, kafkaKey, payload, Arrays.asList(rawHeaders));
+        return new ProducerRecord<>(kafkaTopic, kafkaKey, Base64.getEncoder().encode(payload));
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getPacketId() {
+        return packetId;
+    }
+
+    public String getKafkaTopic() {
+        return kafkaTopic;
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+}
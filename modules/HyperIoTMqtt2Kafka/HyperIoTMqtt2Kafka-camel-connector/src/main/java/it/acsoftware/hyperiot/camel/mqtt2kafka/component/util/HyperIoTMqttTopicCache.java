@@ -0,0 +1,66 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.component.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed mqtt topics, shared by concurrent consumers
+ */
+public final class HyperIoTMqttTopicCache {
+
+    private final Map<String, HyperIoTMqttTopic> topics;
+
+    /**
+     * @param maxSize max number of cached topics, least recently used ones are evicted first
+     */
+    public HyperIoTMqttTopicCache(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Topic cache size must be greater than 0");
+        this.topics = new LinkedHashMap<String, HyperIoTMqttTopic>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HyperIoTMqttTopic> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param mqttTopic topic in dotted notation
+     * @return parsed topic
+     */
+    public HyperIoTMqttTopic get(String mqttTopic) {
+        synchronized (topics) {
+            HyperIoTMqttTopic topic = topics.get(mqttTopic);
+            if (topic == null) {
+                topic = HyperIoTMqttTopic.parse(mqttTopic);
+                topics.put(mqttTopic, topic);
+            }
+            return topic;
+        }
+    }
+
+    public int size() {
+        synchronized (topics) {
+            return topics.size();
+        }
+    }
+
+}
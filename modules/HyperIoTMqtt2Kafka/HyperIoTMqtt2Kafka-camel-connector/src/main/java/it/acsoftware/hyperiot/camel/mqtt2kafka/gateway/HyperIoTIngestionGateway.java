@@ -0,0 +1,254 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.gateway;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTAuthenticable;
+import it.acsoftware.hyperiot.base.exception.HyperIoTUnauthorizedException;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTKafkaConnectorTracker;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaSender;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
+import it.acsoftware.hyperiot.kafka.connector.api.KafkaMessageReceiver;
+import it.acsoftware.hyperiot.kafka.connector.model.HyperIoTKafkaMessage;
+import it.acsoftware.hyperiot.mqtt.authentication.api.MqttAuthenticationSystemApi;
+import it.acsoftware.hyperiot.mqtt.authorization.HyperIoTRateLimiter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingestion gateway for devices writing without the mqtt broker, via http bulk requests or directly on the
+ * ingestion kafka topic (see HyperIoTMqtt2KafkaConstants#HYPERIOT_MQTT_2_KAFKA_PROP_INGESTION_TOPIC).
+ * Http requests are authenticated with the same login of mqtt devices, requests on the ingestion topic with
+ * a token the device got from the http api (see HyperIoTIngestionToken), never with its password.
+ * Every packet is checked against the streaming topics granted to the device: a request is sent only if all
+ * its packets are allowed. Packets are then subject to the rate limits of the broker, exceeding packets are
+ * not sent, whatever the overflow policy is: the gateway never waits.
+ * Records are produced by the same sender of the mqtt bridge, so they have the same topic, key and value
+ * the streaming topology expects.
+ */
+@Component(service = HyperIoTIngestionGateway.class, immediate = true)
+public class HyperIoTIngestionGateway implements KafkaMessageReceiver {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTIngestionGateway.class);
+    private static final ObjectReader requestReader = new ObjectMapper().readerFor(HyperIoTIngestionRequest.class);
+
+    private MqttAuthenticationSystemApi mqttAuthenticationSystemApi;
+    private KafkaConnectorSystemApi kafkaConnectorSystemApi;
+    private HyperIoTKafkaConnectorTracker connectorTracker;
+    private HyperIoTMqtt2KafkaSender sender;
+    private HyperIoTRateLimiter rateLimiter;
+    private HyperIoTIngestionToken tokens;
+    private ServiceRegistration<KafkaMessageReceiver> registration;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public HyperIoTIngestionGateway() {
+    }
+
+    /**
+     * @param mqttAuthenticationSystemApi device credential and topic checks
+     * @param sender                      sender of kafka records
+     * @param rateLimiter                 rate limits of devices, packets and projects
+     * @param tokens                      tokens of requests written on the ingestion topic
+     */
+    public HyperIoTIngestionGateway(MqttAuthenticationSystemApi mqttAuthenticationSystemApi, HyperIoTMqtt2KafkaSender sender,
+                                    HyperIoTRateLimiter rateLimiter, HyperIoTIngestionToken tokens) {
+        this.mqttAuthenticationSystemApi = mqttAuthenticationSystemApi;
+        this.sender = sender;
+        this.rateLimiter = rateLimiter;
+        this.tokens = tokens;
+    }
+
+    @Activate
+    public void activate(BundleContext context) {
+        connectorTracker = new HyperIoTKafkaConnectorTracker(context);
+        connectorTracker.open();
+        sender = new HyperIoTMqtt2KafkaSender(connectorTracker, HyperIoTMqtt2KafkaUtil.getProducerMaxInFlight(),
+                HyperIoTMqtt2KafkaUtil.getProducerWaitMs());
+        rateLimiter = HyperIoTRateLimiter.getInstance();
+        tokens = new HyperIoTIngestionToken(HyperIoTMqtt2KafkaUtil.getIngestionTokenSecret(), HyperIoTMqtt2KafkaUtil.getIngestionTokenTtlMs());
+        if (!tokens.isEnabled()) {
+            log.warn("Ingestion token secret not configured, ingestion gateway accepts http requests only");
+            return;
+        }
+        String ingestionTopic = HyperIoTMqtt2KafkaUtil.getIngestionTopic();
+        log.info("Ingestion gateway consuming kafka topic {}", ingestionTopic);
+        registration = kafkaConnectorSystemApi.registerKafkaMessageReceiver(this,
+                Collections.singletonList(ingestionTopic), new Hashtable<>());
+    }
+
+    @Deactivate
+    public void deactivate() throws InterruptedException {
+        if (registration != null)
+            registration.unregister();
+        registration = null;
+        if (sender != null && !sender.awaitInFlight(HyperIoTMqtt2KafkaUtil.getProducerWaitMs()))
+            log.warn("Kafka records still in flight while stopping ingestion gateway");
+        if (connectorTracker != null)
+            connectorTracker.close();
+        connectorTracker = null;
+    }
+
+    /**
+     * @param username device name
+     * @param password device password
+     * @return token to put inside requests written on the ingestion topic
+     * @throws HyperIoTUnauthorizedException if credentials are not valid
+     * @throws IllegalStateException         if no token secret has been configured
+     */
+    public String createToken(String username, String password) {
+        if (mqttAuthenticationSystemApi.authenticateDevice(username, password) == null) {
+            log.debug("Ingestion token for {} not issued: invalid credentials", username);
+            throw new HyperIoTUnauthorizedException();
+        }
+        return tokens.create(username, System.currentTimeMillis());
+    }
+
+    /**
+     * @param username device name
+     * @param password device password
+     * @param request  packets to send, its token is ignored
+     * @return number of packets sent, packets exceeding rate limits are not sent
+     * @throws HyperIoTUnauthorizedException if credentials are not valid or the device cannot publish one of the packets
+     * @throws InterruptedException          if interrupted while waiting for kafka
+     * @throws IllegalArgumentException      if a payload is not valid Base64
+     */
+    public int ingest(String username, String password, HyperIoTIngestionRequest request) throws InterruptedException {
+        HyperIoTAuthenticable device = mqttAuthenticationSystemApi.authenticateDevice(username, password);
+        if (device == null)
+            log.debug("Ingestion request of {} rejected: invalid credentials", username);
+        return ingest(device, request);
+    }
+
+    private int ingest(HyperIoTAuthenticable device, HyperIoTIngestionRequest request) throws InterruptedException {
+        List<HyperIoTIngestionMessage> messages = (request.getMessages() != null) ? request.getMessages() : Collections.emptyList();
+        if (device == null) {
+            rejected.addAndGet(messages.size());
+            throw new HyperIoTUnauthorizedException();
+        }
+        for (HyperIoTIngestionMessage message : messages) {
+            if (!mqttAuthenticationSystemApi.canPublish(device, request.getProjectId(), request.getDeviceId(), message.getPacketId())) {
+                rejected.addAndGet(messages.size());
+                log.debug("Ingestion request of {} rejected: packet {} not allowed", device.getScreenName(), message.getPacketId());
+                throw new HyperIoTUnauthorizedException();
+            }
+        }
+        byte[][] payloads = new byte[messages.size()][];
+        for (int i = 0; i < messages.size(); i++)
+            payloads[i] = messages.get(i).getPayloadBytes();
+        int sent = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            long packetId = messages.get(i).getPacketId();
+            //a reserved token (delay policy) is spent at once: the gateway never waits
+            if (rateLimiter.acquire(request.getProjectId(), request.getDeviceId(), packetId) == HyperIoTRateLimiter.REJECTED) {
+                rejected.incrementAndGet();
+                continue;
+            }
+            sender.send(mqttTopic(request.getProjectId(), request.getDeviceId(), packetId), payloads[i]);
+            sent++;
+        }
+        accepted.addAndGet(sent);
+        if (sent < messages.size())
+            log.debug("Ingestion request of {}: {} packets exceeding rate limits not sent", device.getScreenName(), messages.size() - sent);
+        return sent;
+    }
+
+    /**
+     * Requests written on the ingestion topic carry the device token, see createToken
+     *
+     * @param message ingestion request in json format
+     */
+    @Override
+    public void receive(HyperIoTKafkaMessage message) {
+        HyperIoTIngestionRequest request;
+        try {
+            request = requestReader.readValue(message.getPayload());
+        } catch (IOException e) {
+            rejected.incrementAndGet();
+            log.warn("Invalid ingestion request: {}", e.getMessage());
+            return;
+        }
+        try {
+            String deviceName = tokens.verify(request.getToken(), System.currentTimeMillis());
+            HyperIoTAuthenticable device = (deviceName != null) ? mqttAuthenticationSystemApi.findDevice(deviceName) : null;
+            if (device == null)
+                log.debug("Ingestion request rejected: invalid or expired token");
+            ingest(device, request);
+        } catch (HyperIoTUnauthorizedException e) {
+            log.warn("Ingestion request not authorized: {}", request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Could not ingest {}: {}", request, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return mqtt topic in dotted notation, the one the broker would have forwarded to kafka
+     */
+    private static String mqttTopic(long projectId, long deviceId, long packetId) {
+        return HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_NAME + HyperIoTMqtt2KafkaConstants.JMS_HYPERIOT_TOPIC_PREFIX
+                + projectId + "." + deviceId + "." + packetId;
+    }
+
+    /**
+     * @return packets sent to kafka
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return packets rejected for invalid credentials, not allowed topics, rate limits or invalid requests
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @param mqttAuthenticationSystemApi Injecting via OSGi DS current MqttAuthenticationSystemApi
+     */
+    @Reference
+    protected void setMqttAuthenticationSystemApi(MqttAuthenticationSystemApi mqttAuthenticationSystemApi) {
+        this.mqttAuthenticationSystemApi = mqttAuthenticationSystemApi;
+    }
+
+    /**
+     * @param kafkaConnectorSystemApi Injecting via OSGi DS current KafkaConnectorSystemApi, the gateway is
+     *                                restarted with the connector so it consumes the ingestion topic again
+     */
+    @Reference
+    protected void setKafkaConnectorSystemApi(KafkaConnectorSystemApi kafkaConnectorSystemApi) {
+        this.kafkaConnectorSystemApi = kafkaConnectorSystemApi;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Single packet payload sent to the ingestion gateway.
+ * Text payloads (json, csv, xml) are sent as they are, binary ones (eg. avro) Base64 encoded.
+ */
+public class HyperIoTIngestionMessage {
+    private long packetId;
+    private String payload;
+    private boolean base64;
+
+    public HyperIoTIngestionMessage() {
+    }
+
+    public HyperIoTIngestionMessage(long packetId, String payload, boolean base64) {
+        this.packetId = packetId;
+        this.payload = payload;
+        this.base64 = base64;
+    }
+
+    public long getPacketId() {
+        return packetId;
+    }
+
+    public void setPacketId(long packetId) {
+        this.packetId = packetId;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    public boolean isBase64() {
+        return base64;
+    }
+
+    public void setBase64(boolean base64) {
+        this.base64 = base64;
+    }
+
+    /**
+     * @return payload as the device would have published it via mqtt
+     * @throws IllegalArgumentException if the payload is missing or not valid Base64
+     */
+    public byte[] getPayloadBytes() {
+        if (payload == null)
+            throw new IllegalArgumentException("Missing payload for packet " + packetId);
+        return base64 ? Base64.getDecoder().decode(payload) : payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk of packets sent by a device to the ingestion gateway.
+ * Requests written on the ingestion kafka topic carry the device token (see HyperIoTIngestionToken),
+ * http requests authenticate with basic authentication instead.
+ */
+public class HyperIoTIngestionRequest {
+    private String token;
+    private long projectId;
+    private long deviceId;
+    private List<HyperIoTIngestionMessage> messages = new ArrayList<>();
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public long getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(long projectId) {
+        this.projectId = projectId;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(long deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public List<HyperIoTIngestionMessage> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<HyperIoTIngestionMessage> messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public String toString() {
+        return "HyperIoTIngestionRequest{projectId=" + projectId + ", deviceId=" + deviceId
+                + ", messages=" + ((messages != null) ? messages.size() : 0) + "}";
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.gateway;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Signed tokens of devices writing on the ingestion kafka topic, so records never carry device passwords.
+ * A device gets its token from the ingestion rest api, authenticating with its credentials, then puts it
+ * inside every request: the token is the device name and its expiration time, signed with HMAC-SHA256.
+ * Every node consuming the ingestion topic must share the same secret.
+ */
+public final class HyperIoTIngestionToken {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char SEPARATOR = ':';
+
+    private final byte[] secret;
+    private final long ttlMs;
+
+    /**
+     * @param secret signing secret, tokens are neither issued nor accepted if it is empty
+     * @param ttlMs  token validity in milliseconds
+     */
+    public HyperIoTIngestionToken(byte[] secret, long ttlMs) {
+        this.secret = (secret != null) ? secret.clone() : new byte[0];
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return true if tokens can be issued and verified
+     */
+    public boolean isEnabled() {
+        return secret.length > 0;
+    }
+
+    /**
+     * @param deviceName authenticated device
+     * @param nowMs      current time in milliseconds
+     * @return token of the device
+     * @throws IllegalStateException if no secret has been configured
+     */
+    public String create(String deviceName, long nowMs) {
+        if (!isEnabled())
+            throw new IllegalStateException("Ingestion token secret not configured");
+        byte[] claims = (deviceName + SEPARATOR + (nowMs + ttlMs)).getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(claims) + "." + encoder.encodeToString(sign(claims));
+    }
+
+    /**
+     * @param token token sent by the device
+     * @param nowMs current time in milliseconds
+     * @return device name, null if the token is malformed, tampered or expired
+     */
+    public String verify(String token, long nowMs) {
+        if (!isEnabled() || token == null)
+            return null;
+        int dot = token.indexOf('.');
+        if (dot <= 0)
+            return null;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] claims = decoder.decode(token.substring(0, dot));
+            if (!MessageDigest.isEqual(sign(claims), decoder.decode(token.substring(dot + 1))))
+                return null;
+            String decoded = new String(claims, StandardCharsets.UTF_8);
+            int separator = decoded.lastIndexOf(SEPARATOR);
+            if (separator <= 0 || Long.parseLong(decoded.substring(separator + 1)) < nowMs)
+                return null;
+            return decoded.substring(0, separator);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    private byte[] sign(byte[] claims) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            return mac.doFinal(claims);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.service.rest;
+
+import io.swagger.annotations.*;
+import io.swagger.annotations.ApiKeyAuthDefinition.ApiKeyLocation;
+import it.acsoftware.hyperiot.base.api.HyperIoTRestService;
+import it.acsoftware.hyperiot.base.exception.HyperIoTUnauthorizedException;
+import it.acsoftware.hyperiot.base.service.rest.HyperIoTBaseRestApi;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionGateway;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionRequest;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Http bulk ingestion for devices writing directly to kafka instead of publishing via mqtt.
+ * Devices authenticate with their own credentials via basic authentication, not with a user token.
+ */
+@SwaggerDefinition(basePath = "/ingestion", info = @Info(description = "HyperIoT Ingestion API", version = "1.0.0", title = "HyperIoT Ingestion", contact = @Contact(name = "ACSoftware.it", email = "users@acsoftware.it")), securityDefinition = @SecurityDefinition(apiKeyAuthDefinitions = {
+        @ApiKeyAuthDefinition(key = "basic-auth", name = "AUTHORIZATION", in = ApiKeyLocation.HEADER)}))
+@Api(tags = "Ingestion", value = "/ingestion", produces = "application/json")
+@Component(service = HyperIoTRestService.class, immediate = true)
+@Path("/ingestion")
+public class HyperIoTIngestionRestApi extends HyperIoTBaseRestApi implements HyperIoTRestService {
+    private static final String BASIC_AUTHENTICATION_PREFIX = "Basic ";
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private HyperIoTIngestionGateway ingestionGateway;
+
+    /**
+     * @param ingestionGateway Injecting ingestionGateway
+     */
+    @Reference(service = HyperIoTIngestionGateway.class)
+    protected void setIngestionGateway(HyperIoTIngestionGateway ingestionGateway) {
+        getLog().debug("invoking setIngestionGateway, setting: {}", ingestionGateway);
+        this.ingestionGateway = ingestionGateway;
+    }
+
+    @GET
+    @Path("/module/status")
+    @ApiOperation(value = "/hyperiot/ingestion/module/status", notes = "Simple service for checking module status", httpMethod = "GET")
+    public Response checkModuleWorking() {
+        getLog().debug("In Rest Service GET /hyperiot/ingestion/module/status: ");
+        return Response.ok("HyperIoT Ingestion Module works!").build();
+    }
+
+    /**
+     * Sends packets of a device to kafka, as if they have been published via mqtt
+     *
+     * @param authorization basic authentication with device name and password
+     * @param request       packets to send
+     * @return number of packets accepted, with status 429 if some packets exceeded rate limits
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "/hyperiot/ingestion", notes = "Sends a bulk of device packets", httpMethod = "POST", produces = "application/json", consumes = "application/json", authorizations = @Authorization("basic-auth"))
+    @ApiResponses(value = {@ApiResponse(code = 202, message = "Packets accepted"),
+            @ApiResponse(code = 403, message = "Not authorized"),
+            @ApiResponse(code = 429, message = "Packets exceeding rate limits not accepted"),
+            @ApiResponse(code = 500, message = "Internal error")})
+    public Response ingest(
+            @HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+            @ApiParam(value = "Packets of a device", required = true) HyperIoTIngestionRequest request) {
+        getLog().debug("In Rest Service POST /hyperiot/ingestion \n Body: {}", request);
+        try {
+            String[] credentials = basicCredentials(authorization);
+            if (credentials == null || request == null)
+                throw new HyperIoTUnauthorizedException();
+            int accepted = ingestionGateway.ingest(credentials[0], credentials[1], request);
+            if (request.getMessages() != null && accepted < request.getMessages().size())
+                return Response.status(TOO_MANY_REQUESTS).entity(accepted).build();
+            return Response.accepted(accepted).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return handleException(e);
+        } catch (Throwable e) {
+            return handleException(e);
+        }
+    }
+
+    /**
+     * Issues the token of a device writing directly on the ingestion kafka topic, so its requests do not carry its password
+     *
+     * @param authorization basic authentication with device name and password
+     * @return signed token
+     */
+    @POST
+    @Path("/token")
+    @Produces(MediaType.TEXT_PLAIN)
+    @ApiOperation(value = "/hyperiot/ingestion/token", notes = "Issues the token of requests written on the ingestion topic", httpMethod = "POST", produces = "text/plain", authorizations = @Authorization("basic-auth"))
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "Token issued"),
+            @ApiResponse(code = 403, message = "Not authorized"),
+            @ApiResponse(code = 500, message = "Internal error")})
+    public Response createToken(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        getLog().debug("In Rest Service POST /hyperiot/ingestion/token");
+        try {
+            String[] credentials = basicCredentials(authorization);
+            if (credentials == null)
+                throw new HyperIoTUnauthorizedException();
+            return Response.ok(ingestionGateway.createToken(credentials[0], credentials[1])).build();
+        } catch (Throwable e) {
+            return handleException(e);
+        }
+    }
+
+    /**
+     * @param authorization authorization header
+     * @return username and password, null if the header is not a valid basic authentication
+     */
+    private static String[] basicCredentials(String authorization) {
+        if (authorization == null || !authorization.startsWith(BASIC_AUTHENTICATION_PREFIX))
+            return null;
+        try {
+            String decoded = new String(Base64.getDecoder().decode(authorization.substring(BASIC_AUTHENTICATION_PREFIX.length()).trim()), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(':');
+            return (separator > 0) ? new String[]{decoded.substring(0, separator), decoded.substring(separator + 1)} : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
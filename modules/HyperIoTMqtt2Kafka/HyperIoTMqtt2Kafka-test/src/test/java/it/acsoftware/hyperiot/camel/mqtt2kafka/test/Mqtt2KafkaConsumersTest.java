@@ -0,0 +1,171 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.test;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import javax.jms.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests Mqtt 2 Kafka consumption of messages published by devices through MQTT on an embedded broker.
+ * No consumer queue is created upfront, as it happens on a freshly installed broker.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Mqtt2KafkaConsumersTest extends KarafTestSupport {
+
+    private static final String BROKER_NAME = "mqtt2kafka-consumers-test";
+    private static final String PROJECT_ID = "10";
+    private static final String PACKET_ID = "1";
+    private static final int DEVICES = 4;
+    private static final int MESSAGES_PER_DEVICE = 50;
+
+    private BrokerService broker;
+    private String mqttUri;
+    private Connection connection;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        TransportConnector mqttConnector = broker.addConnector("mqtt://localhost:0");
+        broker.start();
+        broker.waitUntilStarted();
+        mqttUri = "tcp://localhost:" + mqttConnector.getConnectUri().getPort();
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://" + BROKER_NAME + "?create=false");
+        connection = factory.createConnection();
+        connection.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+        if (connection != null)
+            connection.close();
+        if (broker != null) {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    @Test
+    public void test00_defaultConsumerModeIsTopic() {
+        Assert.assertEquals(HyperIoTMqtt2KafkaConstants.CONSUMER_MODE_TOPIC, HyperIoTMqtt2KafkaUtil.getConsumerMode());
+    }
+
+    @Test
+    public void test01_mqttMessagesReachDefaultConsumerWithoutConsumerQueues() throws Exception {
+        int messages = DEVICES * MESSAGES_PER_DEVICE;
+        CountDownLatch consumed = new CountDownLatch(messages);
+        Map<String, Integer> lastSequence = new ConcurrentHashMap<>();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        //same destination consumed by the Mqtt 2 Kafka route in the default consumer mode
+        MessageConsumer consumer = session.createConsumer(session.createTopic(HyperIoTMqtt2KafkaConstants.JMS_TOPIC_MQTT_TOPIC_PATTERN));
+        consumer.setMessageListener(message -> {
+            try {
+                BytesMessage bytesMessage = (BytesMessage) message;
+                byte[] payload = new byte[(int) bytesMessage.getBodyLength()];
+                bytesMessage.readBytes(payload);
+                String[] deviceAndSequence = new String(payload, StandardCharsets.UTF_8).split(":");
+                int sequence = Integer.parseInt(deviceAndSequence[1]);
+                Integer previous = lastSequence.put(deviceAndSequence[0], sequence);
+                if (previous != null && previous >= sequence)
+                    errors.add("Device " + deviceAndSequence[0] + " received " + sequence + " after " + previous);
+                ActiveMQDestination destination = (ActiveMQDestination) message.getJMSDestination();
+                if (!destination.getPhysicalName().equals(streamingTopic(deviceAndSequence[0])))
+                    errors.add("Unexpected destination " + destination.getPhysicalName());
+            } catch (Exception e) {
+                errors.add(e.getMessage());
+            } finally {
+                consumed.countDown();
+            }
+        });
+        List<MqttClient> devices = new ArrayList<>();
+        for (int device = 0; device < DEVICES; device++) {
+            MqttClient client = new MqttClient(mqttUri, "device-" + device, new MemoryPersistence());
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            client.connect(options);
+            devices.add(client);
+        }
+        for (int sequence = 0; sequence < MESSAGES_PER_DEVICE; sequence++) {
+            for (int device = 0; device < DEVICES; device++) {
+                byte[] payload = (device + ":" + sequence).getBytes(StandardCharsets.UTF_8);
+                devices.get(device).publish(mqttTopic(device), payload, 1, false);
+            }
+        }
+        Assert.assertTrue(consumed.await(1, TimeUnit.MINUTES));
+        for (MqttClient client : devices) {
+            client.disconnect();
+            client.close();
+        }
+        session.close();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(DEVICES, lastSequence.size());
+        for (int device = 0; device < DEVICES; device++)
+            Assert.assertEquals(MESSAGES_PER_DEVICE - 1, (int) lastSequence.get(String.valueOf(device)));
+        //messages have been consumed even if no virtual topic consumer queue exists
+        for (ActiveMQDestination destination : broker.getBroker().getDestinations())
+            Assert.assertFalse(destination.getPhysicalName(), destination.isQueue()
+                    && destination.getPhysicalName().startsWith(HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_CONSUMER_PREFIX));
+    }
+
+    private static String mqttTopic(int device) {
+        return streamingTopic(String.valueOf(device)).replace('.', '/');
+    }
+
+    private static String streamingTopic(String device) {
+        return HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_NAME + HyperIoTMqtt2KafkaConstants.KAFKA_TOPIC_PREFIX
+                + PROJECT_ID + "." + device + "." + PACKET_ID;
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.test;
+
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTAuthenticable;
+import it.acsoftware.hyperiot.base.exception.HyperIoTUnauthorizedException;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaSender;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionGateway;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionMessage;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionRequest;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.gateway.HyperIoTIngestionToken;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.kafka.connector.model.HyperIoTKafkaMessage;
+import it.acsoftware.hyperiot.mqtt.authentication.api.MqttAuthenticationSystemApi;
+import it.acsoftware.hyperiot.mqtt.authorization.HyperIoTRateLimiter;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the ingestion gateway: records must be the same ones the mqtt bridge produces, devices
+ * can send only packets they could publish via mqtt, within the same rate limits, and requests written
+ * on the ingestion topic are authenticated by token.
+ * Kafka acknowledgements are simulated by MockProducer.
+ * Benchmark compares latency and throughput of the gateway with the broker path on an embedded broker,
+ * both ending in the same sender. It runs only when the {@value #BENCHMARK_PROPERTY} system property is true
+ * and logs its results without asserting on them.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Mqtt2KafkaIngestionGatewayTest extends KarafTestSupport {
+    private static final Logger log = LoggerFactory.getLogger(Mqtt2KafkaIngestionGatewayTest.class);
+
+    private static final String BENCHMARK_PROPERTY = "it.acsoftware.hyperiot.mqtt2kafka.test.benchmark";
+    private static final String BROKER_NAME = "mqtt2kafka-ingestion-test";
+    private static final String DEVICE_NAME = "ingestion-device";
+    private static final String DEVICE_PASSWORD = "ingestion-password";
+    private static final byte[] TOKEN_SECRET = "ingestion-test-secret".getBytes(StandardCharsets.UTF_8);
+    private static final long PROJECT_ID = 10;
+    private static final long DEVICE_ID = 8;
+    private static final long PACKET_ID = 9;
+    private static final String MQTT_TOPIC = "VirtualTopic.streaming.10.8.9";
+    private static final String PAYLOAD = "{\"temperature\":22.5}";
+    private static final int BENCHMARK_MESSAGES = 20000;
+    private static final int BULK_SIZE = 100;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_recordsMatchMqttBridgeContract() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        Assert.assertEquals(2, gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, createRequest(2)));
+        ProducerRecord<byte[], byte[]> expected = HyperIoTMqtt2KafkaUtil.getMqttTopic(MQTT_TOPIC)
+                .createRecord(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(2, producer.history().size());
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            Assert.assertEquals("streaming.10", record.topic());
+            Assert.assertEquals("8.9", new String(record.key(), StandardCharsets.UTF_8));
+            Assert.assertArrayEquals(expected.value(), record.value());
+            Assert.assertEquals(expected.headers(), record.headers());
+        }
+        Assert.assertEquals(2, gateway.getAcceptedCount());
+    }
+
+    @Test
+    public void test01_base64PayloadsAreDecoded() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        byte[] binary = new byte[]{0, 1, 2, (byte) 0xff};
+        HyperIoTIngestionRequest request = createRequest(0);
+        request.getMessages().add(new HyperIoTIngestionMessage(PACKET_ID, Base64.getEncoder().encodeToString(binary), true));
+        gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, request);
+        Assert.assertArrayEquals(HyperIoTMqtt2KafkaUtil.getMqttTopic(MQTT_TOPIC).createRecord(binary).value(),
+                producer.history().get(0).value());
+    }
+
+    @Test
+    public void test02_invalidCredentialsAreRejected() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        try {
+            gateway.ingest(DEVICE_NAME, "wrong-password", createRequest(3));
+            Assert.fail("Invalid credentials accepted");
+        } catch (HyperIoTUnauthorizedException e) {
+            Assert.assertTrue(producer.history().isEmpty());
+        }
+        Assert.assertEquals(3, gateway.getRejectedCount());
+        try {
+            gateway.createToken(DEVICE_NAME, "wrong-password");
+            Assert.fail("Token issued for invalid credentials");
+        } catch (HyperIoTUnauthorizedException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void test03_requestWithNotAllowedPacketIsRejected() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        HyperIoTIngestionRequest request = createRequest(3);
+        //packet of another device of the same project
+        request.getMessages().add(new HyperIoTIngestionMessage(PACKET_ID + 1, PAYLOAD, false));
+        try {
+            gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, request);
+            Assert.fail("Not allowed packet accepted");
+        } catch (HyperIoTUnauthorizedException e) {
+            //no packet of the request is sent
+            Assert.assertTrue(producer.history().isEmpty());
+        }
+        HyperIoTIngestionRequest otherDevice = createRequest(1);
+        otherDevice.setDeviceId(DEVICE_ID + 1);
+        try {
+            gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, otherDevice);
+            Assert.fail("Packet of another device accepted");
+        } catch (HyperIoTUnauthorizedException e) {
+            Assert.assertTrue(producer.history().isEmpty());
+        }
+    }
+
+    @Test
+    public void test04_requestsFromIngestionTopicAreAuthenticatedByToken() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        String token = gateway.createToken(DEVICE_NAME, DEVICE_PASSWORD);
+        Assert.assertFalse(token.contains(DEVICE_PASSWORD));
+        gateway.receive(ingestionMessage(ingestionTopicRequest("\"token\":\"" + token + "\"")));
+        Assert.assertEquals(1, producer.history().size());
+        Assert.assertEquals("8.9", new String(producer.history().get(0).key(), StandardCharsets.UTF_8));
+        //tampered token
+        String tamperedToken = token.substring(0, token.indexOf('.')) + "x" + token.substring(token.indexOf('.'));
+        gateway.receive(ingestionMessage(ingestionTopicRequest("\"token\":\"" + tamperedToken + "\"")));
+        //expired token
+        String expiredToken = new HyperIoTIngestionToken(TOKEN_SECRET, -1).create(DEVICE_NAME, System.currentTimeMillis());
+        gateway.receive(ingestionMessage(ingestionTopicRequest("\"token\":\"" + expiredToken + "\"")));
+        //credentials are not accepted anymore
+        gateway.receive(ingestionMessage(ingestionTopicRequest("\"username\":\"" + DEVICE_NAME + "\",\"password\":\"" + DEVICE_PASSWORD + "\"")));
+        gateway.receive(ingestionMessage("not a request"));
+        Assert.assertEquals(1, producer.history().size());
+        Assert.assertEquals(4, gateway.getRejectedCount());
+    }
+
+    @Test
+    public void test05_packetsExceedingRateLimitsAreNotSent() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        Map<String, Object> limits = new HashMap<>();
+        //one message every 1000 seconds, so no token is refilled while the test runs
+        limits.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device." + DEVICE_ID + ".rate", "0.001");
+        limits.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device." + DEVICE_ID + ".burst", "2");
+        HyperIoTRateLimiter rateLimiter = new HyperIoTRateLimiter(limits::get);
+        HyperIoTIngestionGateway gateway = new HyperIoTIngestionGateway(new TestAuthenticationSystemApi(),
+                new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 1000, 1000), rateLimiter,
+                new HyperIoTIngestionToken(TOKEN_SECRET, 60000));
+        Assert.assertEquals(2, gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, createRequest(5)));
+        Assert.assertEquals(2, producer.history().size());
+        Assert.assertEquals(2, gateway.getAcceptedCount());
+        Assert.assertEquals(3, gateway.getRejectedCount());
+        Assert.assertEquals(3, rateLimiter.getDeviceCounters(DEVICE_ID).getThrottledMessages());
+        //the budget is spent for the broker too, they share the limiter
+        Assert.assertEquals(HyperIoTRateLimiter.REJECTED, rateLimiter.acquire(PROJECT_ID, DEVICE_ID, PACKET_ID));
+    }
+
+    @Test
+    public void test06_gatewayVsBrokerBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+        try {
+            broker.getDestination(new ActiveMQQueue(HyperIoTMqtt2KafkaConstants.JMS_VIRTUAL_TOPIC_CONSUMER_PREFIX + MQTT_TOPIC));
+            long[] brokerLatencies = new long[BENCHMARK_MESSAGES];
+            double brokerRate = brokerPath(brokerLatencies);
+            long[] gatewayLatencies = new long[BENCHMARK_MESSAGES];
+            double gatewayRate = gatewayPath(gatewayLatencies);
+            log.info(String.format("Broker path: %.0f messages/s, latency p50 %d us, p99 %d us",
+                    brokerRate, percentile(brokerLatencies, 0.5), percentile(brokerLatencies, 0.99)));
+            log.info(String.format("Ingestion gateway (bulks of %d): %.0f messages/s, latency p50 %d us, p99 %d us",
+                    BULK_SIZE, gatewayRate, percentile(gatewayLatencies, 0.5), percentile(gatewayLatencies, 0.99)));
+        } finally {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    /**
+     * Messages published on the streaming virtual topic, consumed from the consumer queue
+     * and sent to kafka as HyperIoT2KafkaProducer does
+     */
+    private double brokerPath(long[] latencies) throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTMqtt2KafkaSender sender = new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 1000, 1000);
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://" + BROKER_NAME + "?create=false");
+        Connection connection = factory.createConnection();
+        CountDownLatch consumed = new CountDownLatch(BENCHMARK_MESSAGES);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        try {
+            connection.start();
+            Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = consumerSession.createConsumer(consumerSession.createQueue(HyperIoTMqtt2KafkaConstants.JMS_QUEUE_MQTT_TOPIC_PATTERN));
+            consumer.setMessageListener(message -> {
+                try {
+                    BytesMessage bytesMessage = (BytesMessage) message;
+                    byte[] payload = new byte[(int) bytesMessage.getBodyLength()];
+                    bytesMessage.readBytes(payload);
+                    sender.send(MQTT_TOPIC, payload);
+                    latencies[message.getIntProperty("sequence")] = System.nanoTime() - message.getLongProperty("sentAt");
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    consumed.countDown();
+                }
+            });
+            Session producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer messageProducer = producerSession.createProducer(producerSession.createTopic(MQTT_TOPIC));
+            messageProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            byte[] payload = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+                BytesMessage message = producerSession.createBytesMessage();
+                message.writeBytes(payload);
+                message.setIntProperty("sequence", i);
+                message.setLongProperty("sentAt", System.nanoTime());
+                messageProducer.send(message);
+            }
+            Assert.assertTrue(consumed.await(2, TimeUnit.MINUTES));
+            Assert.assertTrue(sender.awaitInFlight(10000));
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            Assert.assertTrue(errors.toString(), errors.isEmpty());
+            Assert.assertEquals(BENCHMARK_MESSAGES, producer.history().size());
+            return BENCHMARK_MESSAGES * 1_000_000_000d / elapsed;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Same messages sent in bulks to the gateway, latency of a message is the one of its bulk
+     */
+    private double gatewayPath(long[] latencies) throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer();
+        HyperIoTIngestionGateway gateway = createGateway(producer);
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i += BULK_SIZE) {
+            long sentAt = System.nanoTime();
+            Assert.assertEquals(BULK_SIZE, gateway.ingest(DEVICE_NAME, DEVICE_PASSWORD, createRequest(BULK_SIZE)));
+            long latency = System.nanoTime() - sentAt;
+            Arrays.fill(latencies, i, i + BULK_SIZE, latency);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        Assert.assertEquals(BENCHMARK_MESSAGES, producer.history().size());
+        return BENCHMARK_MESSAGES * 1_000_000_000d / elapsed;
+    }
+
+    private static long percentile(long[] latencies, double percentile) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int) ((sorted.length - 1) * percentile)]);
+    }
+
+    private HyperIoTIngestionGateway createGateway(MockProducer<byte[], byte[]> producer) {
+        return new HyperIoTIngestionGateway(new TestAuthenticationSystemApi(),
+                new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 1000, 1000),
+                new HyperIoTRateLimiter(name -> null), new HyperIoTIngestionToken(TOKEN_SECRET, 60000));
+    }
+
+    private HyperIoTIngestionRequest createRequest(int messages) {
+        HyperIoTIngestionRequest request = new HyperIoTIngestionRequest();
+        request.setProjectId(PROJECT_ID);
+        request.setDeviceId(DEVICE_ID);
+        for (int i = 0; i < messages; i++)
+            request.getMessages().add(new HyperIoTIngestionMessage(PACKET_ID, PAYLOAD, false));
+        return request;
+    }
+
+    /**
+     * @param authentication json authentication fields of the request
+     */
+    private String ingestionTopicRequest(String authentication) {
+        return "{" + authentication + ",\"projectId\":10,\"deviceId\":8,"
+                + "\"messages\":[{\"packetId\":9,\"payload\":\"" + PAYLOAD.replace("\"", "\\\"") + "\"}]}";
+    }
+
+    private HyperIoTKafkaMessage ingestionMessage(String request) {
+        return new HyperIoTKafkaMessage(DEVICE_NAME.getBytes(StandardCharsets.UTF_8), HyperIoTMqtt2KafkaConstants.DEFAULT_INGESTION_TOPIC,
+                request.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MockProducer<byte[], byte[]> createMockProducer() {
+        return new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
+    /**
+     * Single device of project 10 with one packet, it publishes on streaming/10/8/9 as it would have been granted at mqtt login.
+     * Real device checks are tested in HyperIoTMqttAuthentication-test
+     */
+    private static class TestAuthenticationSystemApi implements MqttAuthenticationSystemApi {
+        private final HDevice device;
+
+        private TestAuthenticationSystemApi() {
+            HProject project = new HProject();
+            project.setId(PROJECT_ID);
+            device = new HDevice();
+            device.setId(DEVICE_ID);
+            device.setDeviceName(DEVICE_NAME);
+            device.setProject(project);
+        }
+
+        @Override
+        public HyperIoTAuthenticable authenticateDevice(String deviceName, String password) {
+            return (DEVICE_NAME.equals(deviceName) && DEVICE_PASSWORD.equals(password)) ? device : null;
+        }
+
+        @Override
+        public HyperIoTAuthenticable findDevice(String deviceName) {
+            return DEVICE_NAME.equals(deviceName) ? device : null;
+        }
+
+        @Override
+        public boolean canPublish(HyperIoTAuthenticable device, long projectId, long deviceId, long packetId) {
+            return device == this.device && projectId == PROJECT_ID && deviceId == DEVICE_ID && packetId == PACKET_ID;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.test;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaUtil;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqttTopic;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Tests for raw payloads sent from MQTT to Kafka.
+ * Benchmark prints bytes per record and records per second (produced and decoded) for both Base64 and raw records.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Mqtt2KafkaRawPayloadTest extends KarafTestSupport {
+
+    private static final String MQTT_TOPIC = "VirtualTopic.streaming.10.8.9";
+    private static final int BENCHMARK_RECORDS = 200000;
+    private static final HyperIoTMqttTopic RAW_TOPIC = new HyperIoTMqttTopic("10", "8", "9", true);
+    private static final HyperIoTMqttTopic LEGACY_TOPIC = new HyperIoTMqttTopic("10", "8", "9", false);
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_mqttTopicIsParsed() {
+        String[] path = HyperIoTMqtt2KafkaUtil.parseMqttTopic(MQTT_TOPIC);
+        Assert.assertArrayEquals(new String[]{"10", "8", "9"}, path);
+    }
+
+    @Test
+    public void test01_rawRecordCarriesUntouchedPayload() {
+        byte[] payload = createPayload(256);
+        ProducerRecord<byte[], byte[]> record = RAW_TOPIC.createRecord(payload);
+        Assert.assertEquals("streaming.10", record.topic());
+        Assert.assertEquals("8.9", new String(record.key(), StandardCharsets.UTF_8));
+        Assert.assertArrayEquals(payload, record.value());
+        Assert.assertEquals(HyperIoTMqtt2KafkaConstants.KAFKA_ENCODING_RAW, header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_ENCODING));
+        Assert.assertEquals("10", header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_PROJECT_ID));
+        Assert.assertEquals("8", header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_DEVICE_ID));
+        Assert.assertEquals("9", header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_PACKET_ID));
+    }
+
+    @Test
+    public void test02_legacyMessageIsStillBase64Encoded() {
+        byte[] payload = createPayload(256);
+        ProducerRecord<byte[], byte[]> record = LEGACY_TOPIC.createRecord(payload);
+        Assert.assertEquals("streaming.10", record.topic());
+        Assert.assertEquals("8.9", new String(record.key(), StandardCharsets.UTF_8));
+        Assert.assertArrayEquals(payload, Base64.getDecoder().decode(record.value()));
+        Assert.assertNull(header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_ENCODING));
+    }
+
+    @Test
+    public void test03_rawPayloadBenchmark() {
+        for (int payloadSize : new int[]{64, 512, 4096}) {
+            byte[] payload = createPayload(payloadSize);
+            ProducerRecord<byte[], byte[]> legacy = LEGACY_TOPIC.createRecord(payload);
+            ProducerRecord<byte[], byte[]> raw = RAW_TOPIC.createRecord(payload);
+            int legacySize = recordSize(legacy);
+            int rawSize = recordSize(raw);
+            double legacyRate = legacyRate(payload);
+            double rawRate = rawRate(payload);
+            System.out.println(String.format("Payload %d bytes, Base64 record: %d bytes, %.0f records/s", payloadSize, legacySize, legacyRate));
+            System.out.println(String.format("Payload %d bytes, raw record: %d bytes (headers included), %.0f records/s", payloadSize, rawSize, rawRate));
+            Assert.assertTrue(raw.value().length < legacy.value().length);
+            if (payloadSize >= 512)
+                Assert.assertTrue(rawSize < legacySize);
+        }
+    }
+
+    /**
+     * Creates Base64 messages and decodes them as the deserialization bolt does
+     */
+    private double legacyRate(byte[] payload) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            ProducerRecord<byte[], byte[]> record = LEGACY_TOPIC.createRecord(payload);
+            checksum += Base64.getDecoder().decode(new String(record.value())).length;
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        Assert.assertEquals((long) payload.length * BENCHMARK_RECORDS, checksum);
+        return BENCHMARK_RECORDS * 1_000_000_000d / elapsed;
+    }
+
+    /**
+     * Creates raw records and reads their encoding header as the spout record translator does
+     */
+    private double rawRate(byte[] payload) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            ProducerRecord<byte[], byte[]> record = RAW_TOPIC.createRecord(payload);
+            if (HyperIoTMqtt2KafkaConstants.KAFKA_ENCODING_RAW.equals(header(record, HyperIoTMqtt2KafkaConstants.KAFKA_HEADER_ENCODING)))
+                checksum += record.value().length;
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        Assert.assertEquals((long) payload.length * BENCHMARK_RECORDS, checksum);
+        return BENCHMARK_RECORDS * 1_000_000_000d / elapsed;
+    }
+
+    private int recordSize(ProducerRecord<byte[], byte[]> record) {
+        int size = record.key().length + record.value().length;
+        for (Header header : record.headers())
+            size += header.key().getBytes(StandardCharsets.UTF_8).length + header.value().length;
+        return size;
+    }
+
+    private String header(ProducerRecord<byte[], byte[]> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return (header != null) ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+
+    private byte[] createPayload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.test;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.HyperIoTMqtt2KafkaHealth;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.HyperIoTMqtt2KafkaRouteSupervisor;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaBackoff;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for route start retries.
+ * Time is simulated with a fake clock, kafka with a connector which is up or down depending on a flag.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Mqtt2KafkaRouteSupervisorTest extends KarafTestSupport {
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_backoffDoublesUpToMax() {
+        HyperIoTMqtt2KafkaBackoff backoff = new HyperIoTMqtt2KafkaBackoff(1000, 10000, 0);
+        long[] expected = {1000, 2000, 4000, 8000, 10000, 10000};
+        for (long delay : expected)
+            Assert.assertEquals(delay, backoff.nextDelayMs());
+        backoff.reset();
+        Assert.assertEquals(1000, backoff.nextDelayMs());
+    }
+
+    @Test
+    public void test01_jitterStaysWithinBoundsAndCeiling() {
+        HyperIoTMqtt2KafkaBackoff lowest = new HyperIoTMqtt2KafkaBackoff(1000, 10000, 0.2, () -> 0);
+        HyperIoTMqtt2KafkaBackoff highest = new HyperIoTMqtt2KafkaBackoff(1000, 10000, 0.2, () -> 1);
+        Assert.assertEquals(800, lowest.nextDelayMs());
+        Assert.assertEquals(1200, highest.nextDelayMs());
+        for (int i = 0; i < 10; i++) {
+            lowest.nextDelayMs();
+            highest.nextDelayMs();
+        }
+        Assert.assertEquals(8000, lowest.nextDelayMs());
+        //jitter never pushes the delay beyond the ceiling
+        Assert.assertEquals(10000, highest.nextDelayMs());
+        HyperIoTMqtt2KafkaBackoff random = new HyperIoTMqtt2KafkaBackoff(1000, 10000, 0.2);
+        for (int i = 0; i < 100; i++) {
+            long delay = random.nextDelayMs();
+            Assert.assertTrue(delay >= 800 && delay <= 10000);
+        }
+        try {
+            new HyperIoTMqtt2KafkaBackoff(1000, 500, 0.2);
+            Assert.fail("Max delay lower than initial delay must be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void test02_flappingConnectorRetriesWithBackoff() {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicBoolean kafkaUp = new AtomicBoolean(false);
+        AtomicInteger starts = new AtomicInteger();
+        HyperIoTMqtt2KafkaRouteSupervisor supervisor = new HyperIoTMqtt2KafkaRouteSupervisor(
+                flappingRoute(kafkaUp, starts), new HyperIoTMqtt2KafkaBackoff(1000, 8000, 0), clock::get);
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.STARTING, supervisor.getHealth());
+        long[] expected = {1000, 2000, 4000, 8000, 8000};
+        for (long delay : expected) {
+            Assert.assertFalse(supervisor.attemptStart());
+            Assert.assertEquals(delay, supervisor.getNextAttemptDelayMs());
+            clock.addAndGet(delay / 2);
+            Assert.assertEquals(delay / 2, supervisor.getNextAttemptDelayMs());
+            clock.addAndGet(delay / 2);
+        }
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.RETRYING, supervisor.getHealth());
+        Assert.assertEquals(5, supervisor.getFailedAttempts());
+        Assert.assertEquals("Kafka not available", supervisor.getLastError());
+        kafkaUp.set(true);
+        Assert.assertTrue(supervisor.attemptStart());
+        Assert.assertEquals(0, supervisor.getFailedAttempts());
+        Assert.assertNull(supervisor.getLastError());
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.KAFKA_UNAVAILABLE, supervisor.getHealth());
+        supervisor.kafkaConnectorAvailable();
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.UP, supervisor.getHealth());
+        supervisor.kafkaConnectorUnavailable();
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.KAFKA_UNAVAILABLE, supervisor.getHealth());
+        //started routes are not started again
+        Assert.assertTrue(supervisor.attemptStart());
+        Assert.assertEquals(6, starts.get());
+        supervisor.stop();
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.STOPPED, supervisor.getHealth());
+    }
+
+    @Test
+    public void test03_connectorRegistrationResetsBackoff() {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicBoolean kafkaUp = new AtomicBoolean(false);
+        HyperIoTMqtt2KafkaRouteSupervisor supervisor = new HyperIoTMqtt2KafkaRouteSupervisor(
+                flappingRoute(kafkaUp, new AtomicInteger()), new HyperIoTMqtt2KafkaBackoff(1000, 60000, 0), clock::get);
+        for (int i = 0; i < 4; i++)
+            supervisor.attemptStart();
+        Assert.assertEquals(8000, supervisor.getNextAttemptDelayMs());
+        supervisor.kafkaConnectorAvailable();
+        Assert.assertEquals(0, supervisor.getNextAttemptDelayMs());
+        //connector went down again before the route could start: backoff restarts from the initial delay
+        Assert.assertFalse(supervisor.attemptStart());
+        Assert.assertEquals(1000, supervisor.getNextAttemptDelayMs());
+        Assert.assertTrue(supervisor.isKafkaConnectorAvailable());
+    }
+
+    @Test
+    public void test04_connectorRegistrationWakesUpWaitingRetry() throws Exception {
+        AtomicBoolean kafkaUp = new AtomicBoolean(false);
+        AtomicInteger starts = new AtomicInteger();
+        HyperIoTMqtt2KafkaRouteSupervisor supervisor = new HyperIoTMqtt2KafkaRouteSupervisor(
+                flappingRoute(kafkaUp, starts), new HyperIoTMqtt2KafkaBackoff(60000, 60000, 0), System::currentTimeMillis);
+        Thread supervisorThread = new Thread(supervisor);
+        supervisorThread.setDaemon(true);
+        supervisorThread.start();
+        waitFor(() -> supervisor.getFailedAttempts() == 1);
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.RETRYING, supervisor.getHealth());
+        kafkaUp.set(true);
+        long start = System.nanoTime();
+        supervisor.kafkaConnectorAvailable();
+        supervisorThread.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(supervisorThread.isAlive());
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.UP, supervisor.getHealth());
+        Assert.assertEquals(2, starts.get());
+    }
+
+    @Test
+    public void test05_stopEndsWaitingRetry() throws Exception {
+        HyperIoTMqtt2KafkaRouteSupervisor supervisor = new HyperIoTMqtt2KafkaRouteSupervisor(
+                flappingRoute(new AtomicBoolean(false), new AtomicInteger()), new HyperIoTMqtt2KafkaBackoff(60000, 60000, 0),
+                System::currentTimeMillis);
+        Thread supervisorThread = new Thread(supervisor);
+        supervisorThread.setDaemon(true);
+        supervisorThread.start();
+        waitFor(() -> supervisor.getFailedAttempts() == 1);
+        supervisor.stop();
+        supervisorThread.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(supervisorThread.isAlive());
+        Assert.assertEquals(HyperIoTMqtt2KafkaHealth.STOPPED, supervisor.getHealth());
+        Assert.assertEquals(1, supervisor.getFailedAttempts());
+    }
+
+    @Test
+    public void test06_connectorRegisteredDuringFailingAttemptIsNotLost() {
+        AtomicLong clock = new AtomicLong(0);
+        AtomicBoolean kafkaUp = new AtomicBoolean(false);
+        AtomicBoolean registerDuringStart = new AtomicBoolean(false);
+        AtomicReference<HyperIoTMqtt2KafkaRouteSupervisor> supervisorRef = new AtomicReference<>();
+        AtomicInteger starts = new AtomicInteger();
+        HyperIoTMqtt2KafkaRouteSupervisor.RouteStarter flappingRoute = flappingRoute(kafkaUp, starts);
+        HyperIoTMqtt2KafkaRouteSupervisor supervisor = new HyperIoTMqtt2KafkaRouteSupervisor(() -> {
+            //connector registered while the route is starting, after the route found kafka down
+            if (registerDuringStart.getAndSet(false))
+                supervisorRef.get().kafkaConnectorAvailable();
+            flappingRoute.start();
+        }, new HyperIoTMqtt2KafkaBackoff(1000, 60000, 0), clock::get);
+        supervisorRef.set(supervisor);
+        for (int i = 0; i < 3; i++)
+            Assert.assertFalse(supervisor.attemptStart());
+        Assert.assertEquals(4000, supervisor.getNextAttemptDelayMs());
+        registerDuringStart.set(true);
+        Assert.assertFalse(supervisor.attemptStart());
+        //next attempt is immediate instead of after 8 seconds
+        Assert.assertEquals(0, supervisor.getNextAttemptDelayMs());
+        //registration is honoured once, then backoff restarts from the initial delay
+        Assert.assertFalse(supervisor.attemptStart());
+        Assert.assertEquals(1000, supervisor.getNextAttemptDelayMs());
+        kafkaUp.set(true);
+        Assert.assertTrue(supervisor.attemptStart());
+        Assert.assertEquals(6, starts.get());
+    }
+
+    /**
+     * @return route starter failing while kafka is down
+     */
+    private HyperIoTMqtt2KafkaRouteSupervisor.RouteStarter flappingRoute(AtomicBoolean kafkaUp, AtomicInteger starts) {
+        return () -> {
+            starts.incrementAndGet();
+            if (!kafkaUp.get())
+                throw new IllegalStateException("Kafka not available");
+        };
+    }
+
+    private void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
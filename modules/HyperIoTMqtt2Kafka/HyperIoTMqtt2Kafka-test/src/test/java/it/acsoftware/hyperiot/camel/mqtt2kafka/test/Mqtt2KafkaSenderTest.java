@@ -0,0 +1,229 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.camel.mqtt2kafka.test;
+
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoT2KafkaProducer;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTKafkaProducerProvider;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaConnector;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaEndpoint;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.HyperIoTMqtt2KafkaSender;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqtt2KafkaConstants;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqttTopic;
+import it.acsoftware.hyperiot.camel.mqtt2kafka.component.util.HyperIoTMqttTopicCache;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for topic cache and asynchronous bounded sends from MQTT to Kafka.
+ * Kafka acknowledgements are simulated with MockProducer, completed in batches by a background thread
+ * or one by one to check how camel exchanges complete.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class Mqtt2KafkaSenderTest extends KarafTestSupport {
+
+    private static final String MQTT_TOPIC = "VirtualTopic.streaming.10.8.%d";
+    private static final byte[] PAYLOAD = "{\"temperature\":22.5}".getBytes(StandardCharsets.UTF_8);
+    private static final int MESSAGES = 2000;
+    private static final int SENDER_THREADS = 4;
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_topicCacheEvictsLeastRecentlyUsed() {
+        HyperIoTMqttTopicCache cache = new HyperIoTMqttTopicCache(2);
+        HyperIoTMqttTopic first = cache.get(String.format(MQTT_TOPIC, 1));
+        Assert.assertSame(first, cache.get(String.format(MQTT_TOPIC, 1)));
+        Assert.assertEquals("streaming.10", first.getKafkaTopic());
+        Assert.assertEquals("9", cache.get("VirtualTopic.streaming.10.8.9").getPacketId());
+        cache.get(String.format(MQTT_TOPIC, 1));
+        cache.get(String.format(MQTT_TOPIC, 2));
+        Assert.assertEquals(2, cache.size());
+        //topic 1 has been used more recently than topic 9, so it is still cached
+        Assert.assertSame(first, cache.get(String.format(MQTT_TOPIC, 1)));
+    }
+
+    @Test
+    public void test01_sendsAreBoundedByMaxInFlight() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer(false);
+        HyperIoTMqtt2KafkaSender sender = new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 10, 1000);
+        for (int i = 0; i < 10; i++)
+            sender.send(String.format(MQTT_TOPIC, 1), PAYLOAD);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> blocked = executor.submit(() -> {
+            sender.send(String.format(MQTT_TOPIC, 1), PAYLOAD);
+            return null;
+        });
+        Thread.sleep(200);
+        Assert.assertFalse(blocked.isDone());
+        Assert.assertTrue(producer.completeNext());
+        blocked.get(10, TimeUnit.SECONDS);
+        while (producer.completeNext()) ;
+        Assert.assertTrue(sender.awaitInFlight(1000));
+        Assert.assertEquals(11, producer.history().size());
+        executor.shutdown();
+    }
+
+    @Test
+    public void test02_noLossAcrossConnectorReRegistration() throws Exception {
+        AtomicReference<MockProducer<byte[], byte[]>> current = new AtomicReference<>(createMockProducer(true));
+        List<MockProducer<byte[], byte[]>> producers = Collections.synchronizedList(new ArrayList<>());
+        producers.add(current.get());
+        HyperIoTKafkaProducerProvider provider = timeoutMs -> waitForProducer(current, timeoutMs);
+        HyperIoTMqtt2KafkaSender sender = new HyperIoTMqtt2KafkaSender(provider, 100, 10000);
+        ExecutorService executor = Executors.newFixedThreadPool(SENDER_THREADS);
+        CountDownLatch halfSent = new CountDownLatch(MESSAGES / 2);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < SENDER_THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < MESSAGES / SENDER_THREADS; i++) {
+                    sender.send(String.format(MQTT_TOPIC, thread), PAYLOAD);
+                    halfSent.countDown();
+                }
+                return null;
+            }));
+        }
+        halfSent.await(1, TimeUnit.MINUTES);
+        //connector unregistration: producer is flushed and closed, a new one is registered later
+        MockProducer<byte[], byte[]> old = current.getAndSet(null);
+        old.flush();
+        old.close();
+        Thread.sleep(100);
+        MockProducer<byte[], byte[]> registered = createMockProducer(true);
+        producers.add(registered);
+        current.set(registered);
+        for (Future<?> future : futures)
+            future.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+        Assert.assertTrue(sender.awaitInFlight(10000));
+        int received = producers.stream().mapToInt(p -> p.history().size()).sum();
+        Assert.assertEquals(MESSAGES, received);
+        Assert.assertFalse(registered.history().isEmpty());
+        Assert.assertEquals(0, sender.getFailedCount());
+    }
+
+    @Test
+    public void test03_asyncSendsKeepTopicsAndKeys() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer(false);
+        ScheduledExecutorService acknowledger = Executors.newSingleThreadScheduledExecutor();
+        //kafka acknowledges batches of records every millisecond
+        acknowledger.scheduleAtFixedRate(() -> {
+            while (producer.completeNext()) ;
+        }, 1, 1, TimeUnit.MILLISECONDS);
+        try {
+            HyperIoTMqtt2KafkaSender sender = new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 1000, 1000);
+            for (int i = 0; i < MESSAGES; i++)
+                sender.send(String.format(MQTT_TOPIC, i % 10), PAYLOAD);
+            Assert.assertTrue(sender.awaitInFlight(10000));
+            Assert.assertEquals(MESSAGES, producer.history().size());
+            Assert.assertEquals(0, sender.getFailedCount());
+            //records are sent in arrival order with the topic and key of their mqtt topic
+            for (int i = 0; i < MESSAGES; i++) {
+                ProducerRecord<byte[], byte[]> record = producer.history().get(i);
+                HyperIoTMqttTopic topic = HyperIoTMqttTopic.parse(String.format(MQTT_TOPIC, i % 10));
+                Assert.assertEquals(topic.getKafkaTopic(), record.topic());
+                Assert.assertEquals("8." + (i % 10), new String(record.key(), StandardCharsets.UTF_8));
+                Assert.assertArrayEquals(topic.createRecord(PAYLOAD).value(), record.value());
+            }
+        } finally {
+            acknowledger.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test04_failedSendsFailTheExchange() throws Exception {
+        MockProducer<byte[], byte[]> producer = createMockProducer(false);
+        HyperIoTMqtt2KafkaSender sender = new HyperIoTMqtt2KafkaSender(timeoutMs -> producer, 10, 1000);
+        CamelContext context = new DefaultCamelContext();
+        HyperIoTMqtt2KafkaEndpoint endpoint = new HyperIoTMqtt2KafkaEndpoint(HyperIoTMqtt2KafkaConnector.HYPERIOT_CAMEL_MQTT_2_KAFKA_COMPONENT_NAME,
+                "", new HyperIoTMqtt2KafkaConnector(context));
+        HyperIoT2KafkaProducer kafkaProducer = new HyperIoT2KafkaProducer(endpoint, sender);
+        AtomicInteger completed = new AtomicInteger();
+        Exchange acknowledged = createExchange(context);
+        Exchange failed = createExchange(context);
+        Assert.assertFalse(kafkaProducer.process(acknowledged, doneSync -> completed.incrementAndGet()));
+        Assert.assertFalse(kafkaProducer.process(failed, doneSync -> completed.incrementAndGet()));
+        //exchanges complete only when kafka answers
+        Assert.assertEquals(0, completed.get());
+        Assert.assertTrue(producer.completeNext());
+        Assert.assertTrue(producer.errorNext(new RuntimeException("Record not stored")));
+        Assert.assertEquals(2, completed.get());
+        Assert.assertNull(acknowledged.getException());
+        Assert.assertNotNull(failed.getException());
+        Assert.assertEquals(1, sender.getFailedCount());
+        Assert.assertTrue(sender.awaitInFlight(1000));
+        //no producer available: exchange fails synchronously
+        HyperIoTMqtt2KafkaSender noProducerSender = new HyperIoTMqtt2KafkaSender(timeoutMs -> null, 10, 0);
+        Exchange notSent = createExchange(context);
+        Assert.assertTrue(new HyperIoT2KafkaProducer(endpoint, noProducerSender).process(notSent, doneSync -> completed.incrementAndGet()));
+        Assert.assertEquals(3, completed.get());
+        Assert.assertTrue(notSent.getException() instanceof IllegalStateException);
+        Assert.assertTrue(noProducerSender.awaitInFlight(0));
+    }
+
+    private Exchange createExchange(CamelContext context) {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getIn().setHeader(HyperIoTMqtt2KafkaConstants.PARAMS_JMS_DESTINATION, new ActiveMQTopic(String.format(MQTT_TOPIC, 1)));
+        exchange.getIn().setBody(PAYLOAD);
+        return exchange;
+    }
+
+    private Producer<byte[], byte[]> waitForProducer(AtomicReference<MockProducer<byte[], byte[]>> current, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (current.get() == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return current.get();
+    }
+
+    private MockProducer<byte[], byte[]> createMockProducer(boolean autoComplete) {
+        return new MockProducer<>(autoComplete, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
+}
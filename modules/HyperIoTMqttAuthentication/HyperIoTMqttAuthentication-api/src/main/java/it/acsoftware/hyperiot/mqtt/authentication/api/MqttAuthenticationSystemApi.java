@@ -18,6 +18,7 @@
 package it.acsoftware.hyperiot.mqtt.authentication.api;
 
 import it.acsoftware.hyperiot.base.api.HyperIoTBaseSystemApi;
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTAuthenticable;
 
 /**
  * 
@@ -27,4 +28,33 @@ import it.acsoftware.hyperiot.base.api.HyperIoTBaseSystemApi;
  */
 public interface MqttAuthenticationSystemApi extends HyperIoTBaseSystemApi {
 
+    /**
+     * Checks device credentials as mqtt logins with username and password do,
+     * used by devices publishing without the broker
+     *
+     * @param deviceName device name
+     * @param password   device password
+     * @return authenticated device, null if credentials are not valid
+     */
+    HyperIoTAuthenticable authenticateDevice(String deviceName, String password);
+
+    /**
+     * Finds a device already authenticated by other means, eg. a token issued after authenticateDevice
+     *
+     * @param deviceName device name
+     * @return device, null if it does not exist or it is not active
+     */
+    HyperIoTAuthenticable findDevice(String deviceName);
+
+    /**
+     * Checks the streaming topic against the topics granted to the device at mqtt login
+     *
+     * @param device    device returned by authenticateDevice
+     * @param projectId project id
+     * @param deviceId  device id
+     * @param packetId  packet id
+     * @return true if the device can publish packets of the given project, device and packet
+     */
+    boolean canPublish(HyperIoTAuthenticable device, long projectId, long deviceId, long packetId);
+
 }
\ No newline at end of file
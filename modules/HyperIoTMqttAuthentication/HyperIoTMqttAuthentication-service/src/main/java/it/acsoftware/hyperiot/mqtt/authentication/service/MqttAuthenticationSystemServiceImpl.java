@@ -17,12 +17,21 @@
 
 package it.acsoftware.hyperiot.mqtt.authentication.service;
 
-import org.osgi.service.component.annotations.Component;
-
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTAuthenticable;
+import it.acsoftware.hyperiot.base.service.HyperIoTBaseSystemServiceImpl;
+import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hproject.api.HProjectSystemApi;
+import it.acsoftware.hyperiot.hproject.model.HyperIoTTopicType;
 import it.acsoftware.hyperiot.mqtt.authentication.api.MqttAuthenticationSystemApi;
+import it.acsoftware.hyperiot.mqtt.authentication.service.jaas.HyperIoTMqttAuthenticationCache;
+import it.acsoftware.hyperiot.mqtt.authentication.service.jaas.HyperIoTMqttRealmService;
+import org.apache.activemq.jaas.JassCredentialCallbackHandler;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
-
-import  it.acsoftware.hyperiot.base.service.HyperIoTBaseSystemServiceImpl ;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
 
 /**
  * 
@@ -32,6 +41,79 @@ import  it.acsoftware.hyperiot.base.service.HyperIoTBaseSystemServiceImpl ;
  */
 @Component(service = MqttAuthenticationSystemApi.class, immediate = true)
 public final class MqttAuthenticationSystemServiceImpl extends HyperIoTBaseSystemServiceImpl   implements MqttAuthenticationSystemApi {
-	
-	
+
+    private HDeviceSystemApi hDeviceSystemApi;
+    private HProjectSystemApi hProjectSystemApi;
+
+    /**
+     * Devices login as they do via mqtt with username and password: through the JaaS realm of the broker,
+     * so password checks are the ones of HyperIoTJaaSMqttAuthenticationModule
+     */
+    @Override
+    public HyperIoTAuthenticable authenticateDevice(String deviceName, String password) {
+        if (deviceName == null || password == null)
+            return null;
+        try {
+            LoginContext loginContext = new LoginContext(HyperIoTMqttRealmService.REALM_NAME,
+                    new JassCredentialCallbackHandler(deviceName, password));
+            loginContext.login();
+            loginContext.logout();
+        } catch (LoginException e) {
+            getLog().debug("Device {} not authenticated: {}", deviceName, e.getMessage());
+            return null;
+        }
+        return findDevice(deviceName);
+    }
+
+    @Override
+    public HyperIoTAuthenticable findDevice(String deviceName) {
+        if (deviceName == null)
+            return null;
+        try {
+            HDevice device = HyperIoTMqttAuthenticationCache.getInstance()
+                    .getDevice(deviceName, name -> hDeviceSystemApi.findByDeviceName(name));
+            return (device != null && device.isActive()) ? device : null;
+        } catch (Exception e) {
+            getLog().warn("Cannot find device {}: {}", deviceName, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean canPublish(HyperIoTAuthenticable device, long projectId, long deviceId, long packetId) {
+        if (!(device instanceof HDevice))
+            return false;
+        HDevice hDevice = (HDevice) device;
+        if (hDevice.getProject() == null || hDevice.getProject().getId() != projectId)
+            return false;
+        try {
+            HyperIoTMqttAuthenticationCache.DeviceTopics deviceTopics = HyperIoTMqttAuthenticationCache.getInstance()
+                    .getDeviceTopics(hDevice.getId(), id -> new HyperIoTMqttAuthenticationCache.DeviceTopics(projectId,
+                            hProjectSystemApi.getDeviceTopics(HyperIoTTopicType.MQTT, projectId, hDevice),
+                            hProjectSystemApi.getWriteOnlyDeviceTopics(HyperIoTTopicType.MQTT, projectId, hDevice,
+                                    hDeviceSystemApi.getProjectDevicesList(projectId))));
+            //same topic a device publishes on via mqtt: streaming/<projectId>/<deviceId>/<packetId>
+            return deviceTopics.getTopics().contains("streaming/" + projectId + "/" + deviceId + "/" + packetId);
+        } catch (Exception e) {
+            getLog().warn("Cannot load topics of device {}: {}", hDevice.getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param hDeviceSystemApi Injecting via OSGi DS current HDeviceSystemApi
+     */
+    @Reference
+    protected void setHDeviceSystemApi(HDeviceSystemApi hDeviceSystemApi) {
+        this.hDeviceSystemApi = hDeviceSystemApi;
+    }
+
+    /**
+     * @param hProjectSystemApi Injecting via OSGi DS current HProjectSystemApi
+     */
+    @Reference
+    protected void setHProjectSystemApi(HProjectSystemApi hProjectSystemApi) {
+        this.hProjectSystemApi = hProjectSystemApi;
+    }
+
 }
@@ -36,6 +36,8 @@ import org.slf4j.LoggerFactory;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.security.auth.login.FailedLoginException;
 import javax.security.auth.login.LoginException;
@@ -68,7 +70,7 @@ public class HyperIoTJaaSMqttAuthenticationModule extends HyperIoTJaaSAuthentica
 
         if (certificates == null || certificates.length == 0) {
             //tries to login with username and password
-            return super.login();
+            return this.loginWithPassword();
         }
 
         this.loggedUser = getUserNameForCertificates(certificates);
@@ -81,37 +83,88 @@ public class HyperIoTJaaSMqttAuthenticationModule extends HyperIoTJaaSAuthentica
         return true;
     }
 
+    /**
+     * Password logins are checked against the cached device and its password hash.
+     * If the device is not found or the password does not match, login goes through the authentication provider.
+     */
+    protected boolean loginWithPassword() throws LoginException {
+        NameCallback nameCallback = new NameCallback("Username: ");
+        PasswordCallback passwordCallback = new PasswordCallback("Password: ", false);
+        try {
+            callbackHandler.handle(new Callback[]{nameCallback, passwordCallback});
+        } catch (IOException | UnsupportedCallbackException e) {
+            log.debug("Cannot read credentials, skipping authentication cache: {}", e.getMessage());
+            return super.login();
+        }
+        char[] password = passwordCallback.getPassword();
+        passwordCallback.clearPassword();
+        HDevice device = (nameCallback.getName() != null && password != null)
+                ? getDeviceForPassword(nameCallback.getName(), new String(password)) : null;
+        if (device == null)
+            return super.login();
+        this.loggedUser = device;
+        this.user = this.loggedUser.getScreenName();
+        this.loginSucceeded = true;
+        this.postAuthentication(loggedUser);
+        return true;
+    }
+
+    /**
+     * @return cached device if password matches, null otherwise
+     */
+    protected HDevice getDeviceForPassword(String deviceName, String password) {
+        try {
+            HyperIoTMqttAuthenticationCache cache = HyperIoTMqttAuthenticationCache.getInstance();
+            HDevice device = cache.getDevice(deviceName, name -> this.getHDeviceSystemApi().findByDeviceName(name));
+            if (device != null && device.getPassword() != null
+                    && cache.isPasswordValid(device, password, key -> HyperIoTUtil.passwordMatches(password, device.getPassword())))
+                return device;
+        } catch (Exception e) {
+            log.warn("Cannot check cached credentials of device {}: {}", deviceName, e.getMessage());
+        }
+        return null;
+    }
+
     protected HDevice getUserNameForCertificates(X509Certificate[] certs) throws LoginException {
         //selecting device name from 4th characted since string is CN=<devicename>
         String deviceName = certs[0].getSubjectDN().getName().substring(3);
         try {
-            HDevice device = this.getHDeviceSystemApi().findByDeviceName(deviceName);
-            int n = certs.length;
-            for (int i = 0; i < n - 1; i++) {
-                X509Certificate cert = (X509Certificate) certs[i];
-                X509Certificate issuer = (X509Certificate) certs[i + 1];
-                if (cert.getIssuerX500Principal().equals(issuer.getSubjectX500Principal()) == false) {
-                    throw new LoginException("Login failed, cert auth not valid!");
-                }
-                cert.verify(issuer.getPublicKey());
-                log.debug( "Verified: {}" , cert.getSubjectX500Principal());
-            }
-
-            X509Certificate last = (X509Certificate) certs[n - 1];
-            // if self-signed, verify the final cert
-            if (last.getIssuerX500Principal().equals(last.getSubjectX500Principal())) {
-                last.verify(last.getPublicKey());
-                log.debug( "Verified: {}" , last.getSubjectX500Principal());
-                //only if it is validated
-                return device;
-            }
-            return null;
+            HyperIoTMqttAuthenticationCache cache = HyperIoTMqttAuthenticationCache.getInstance();
+            //only if it is validated
+            if (!cache.isCertificateChainValid(certs, fingerprint -> verifyCertificateChain(certs)))
+                return null;
+            return cache.getDevice(deviceName, name -> this.getHDeviceSystemApi().findByDeviceName(name));
         } catch (Exception e) {
             log.error( e.getMessage(), e);
             throw new LoginException("Login failed, cert auth not valid!");
         }
     }
 
+    /**
+     * @return true if every certificate is signed by the next one and the last one is self-signed
+     */
+    protected boolean verifyCertificateChain(X509Certificate[] certs) throws Exception {
+        int n = certs.length;
+        for (int i = 0; i < n - 1; i++) {
+            X509Certificate cert = certs[i];
+            X509Certificate issuer = certs[i + 1];
+            if (cert.getIssuerX500Principal().equals(issuer.getSubjectX500Principal()) == false) {
+                throw new LoginException("Login failed, cert auth not valid!");
+            }
+            cert.verify(issuer.getPublicKey());
+            log.debug( "Verified: {}" , cert.getSubjectX500Principal());
+        }
+
+        X509Certificate last = certs[n - 1];
+        // if self-signed, verify the final cert
+        if (last.getIssuerX500Principal().equals(last.getSubjectX500Principal())) {
+            last.verify(last.getPublicKey());
+            log.debug( "Verified: {}" , last.getSubjectX500Principal());
+            return true;
+        }
+        return false;
+    }
+
     protected String getDistinguishedName(final X509Certificate[] certs) {
         if (certs != null && certs.length > 0 && certs[0] != null) {
             return certs[0].getSubjectDN().getName();
@@ -148,6 +201,20 @@ public class HyperIoTJaaSMqttAuthenticationModule extends HyperIoTJaaSAuthentica
 
     @Override
     protected void postAuthentication(HyperIoTAuthenticable authenticated) {
+        if (this.loggedUser instanceof HDevice && ((HDevice) this.loggedUser).getProject() != null) {
+            HDevice device = (HDevice) this.loggedUser;
+            long projectId = device.getProject().getId();
+            try {
+                HyperIoTMqttAuthenticationCache.DeviceTopics deviceTopics = HyperIoTMqttAuthenticationCache.getInstance()
+                        .getDeviceTopics(device.getId(), deviceId -> new HyperIoTMqttAuthenticationCache.DeviceTopics(projectId,
+                                this.getTopics(), this.getWriteOnlyTopics()));
+                topics = deviceTopics.getTopics();
+                writeOnlyTopics = deviceTopics.getWriteOnlyTopics();
+                return;
+            } catch (Exception e) {
+                log.warn("Cannot load cached topics of device {}: {}", device.getId(), e.getMessage());
+            }
+        }
         topics = this.getTopics();
         writeOnlyTopics = this.getWriteOnlyTopics();
     }
@@ -0,0 +1,289 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authentication.service.jaas;
+
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Cache shared by all mqtt logins, since login modules are created by JaaS for every login.
+ * It holds, for a limited time:
+ * - devices found by device name (certificate and password logins)
+ * - topics and write only topics computed for a device
+ * - certificate chain validations, by chain fingerprint
+ * - successful password checks, by device and fingerprint of its password hash and of the received password.
+ * Every entry is loaded once even if many devices login at the same time (eg. after a broker restart),
+ * devices and topics are invalidated by HDevice, HPacket and HProject changes (see MqttAuthenticationCachePostAction).
+ */
+public final class HyperIoTMqttAuthenticationCache {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTMqttAuthenticationCache.class.getName());
+
+    public static final String MQTT_AUTHENTICATION_CACHE_TTL_MS = "it.acsoftware.hyperiot.mqtt.authentication.cache.ttl.ms";
+    public static final String MQTT_AUTHENTICATION_CACHE_MAX_ENTRIES = "it.acsoftware.hyperiot.mqtt.authentication.cache.max.entries";
+    public static final long DEFAULT_TTL_MS = 60000;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static volatile HyperIoTMqttAuthenticationCache instance;
+
+    private final TtlCache<String, HDevice> devices;
+    private final TtlCache<Long, DeviceTopics> deviceTopics;
+    private final TtlCache<String, Boolean> certificateChains;
+    private final TtlCache<String, Boolean> passwordChecks;
+
+    public HyperIoTMqttAuthenticationCache(long ttlMs, int maxEntries) {
+        if (ttlMs < 0 || maxEntries <= 0)
+            throw new IllegalArgumentException("Cache ttl cannot be negative and max entries must be greater than 0");
+        this.devices = new TtlCache<>(ttlMs, maxEntries);
+        this.deviceTopics = new TtlCache<>(ttlMs, maxEntries);
+        this.certificateChains = new TtlCache<>(ttlMs, maxEntries);
+        this.passwordChecks = new TtlCache<>(ttlMs, maxEntries);
+    }
+
+    /**
+     * @return cache configured by hyperiot properties
+     */
+    public static HyperIoTMqttAuthenticationCache getInstance() {
+        if (instance == null) {
+            synchronized (HyperIoTMqttAuthenticationCache.class) {
+                if (instance == null)
+                    instance = new HyperIoTMqttAuthenticationCache(getLongProperty(MQTT_AUTHENTICATION_CACHE_TTL_MS, DEFAULT_TTL_MS),
+                            (int) getLongProperty(MQTT_AUTHENTICATION_CACHE_MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+            }
+        }
+        return instance;
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        try {
+            Object value = HyperIoTUtil.getHyperIoTProperty(name);
+            return (value != null) ? Long.parseLong(value.toString().trim()) : defaultValue;
+        } catch (RuntimeException e) {
+            log.warn("Invalid value for {}, using default {}", name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param deviceName device name
+     * @param loader     loads the device if it is not cached, it may return null
+     * @return device or null if it does not exist
+     */
+    public HDevice getDevice(String deviceName, Loader<String, HDevice> loader) throws Exception {
+        return devices.get(deviceName, loader);
+    }
+
+    /**
+     * @param deviceId device id
+     * @param loader   computes device topics if they are not cached
+     * @return device topics
+     */
+    public DeviceTopics getDeviceTopics(long deviceId, Loader<Long, DeviceTopics> loader) throws Exception {
+        return deviceTopics.get(deviceId, loader);
+    }
+
+    /**
+     * @param certificates certificate chain
+     * @param loader       validates the chain, exceptions are not cached
+     * @return validation result
+     */
+    public boolean isCertificateChainValid(X509Certificate[] certificates, Loader<String, Boolean> loader) throws Exception {
+        return certificateChains.get(fingerprint(certificates), loader);
+    }
+
+    /**
+     * Password hash is part of the key, so checks done before a password change are never reused
+     *
+     * @param device   device, with its password hash
+     * @param password received password
+     * @param verifier checks the password against the device password hash, failed checks are not cached
+     * @return true if the password matches
+     */
+    public boolean isPasswordValid(HDevice device, String password, Loader<String, Boolean> verifier) throws Exception {
+        String key = device.getId() + ":" + fingerprint(device.getPassword(), password);
+        return passwordChecks.get(key, k -> Boolean.TRUE.equals(verifier.load(k)) ? Boolean.TRUE : null) != null;
+    }
+
+    /**
+     * Removes devices and topics of a project, write only topics of a device depend on all project devices
+     *
+     * @param projectId project id
+     */
+    public void invalidateProject(long projectId) {
+        log.debug("Invalidating mqtt authentication cache of project {}", projectId);
+        devices.removeIf(device -> device.getProject() != null && device.getProject().getId() == projectId);
+        deviceTopics.removeIf(topics -> topics.getProjectId() == projectId);
+    }
+
+    /**
+     * @param deviceId device id, device name may have changed so it is searched by id
+     */
+    public void invalidateDevice(long deviceId) {
+        log.debug("Invalidating mqtt authentication cache of device {}", deviceId);
+        devices.removeIf(device -> device.getId() == deviceId);
+        deviceTopics.remove(deviceId);
+    }
+
+    public void invalidateAll() {
+        devices.clear();
+        deviceTopics.clear();
+        certificateChains.clear();
+        passwordChecks.clear();
+    }
+
+    /**
+     * @param certificates certificate chain
+     * @return SHA-256 of the encoded chain
+     */
+    public static String fingerprint(X509Certificate[] certificates) throws CertificateEncodingException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (X509Certificate certificate : certificates)
+            digest.update(certificate.getEncoded());
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * @param passwordHash stored password hash
+     * @param password     received password
+     * @return SHA-256 of both, received passwords are never kept in clear
+     */
+    private static String fingerprint(String passwordHash, String password) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(passwordHash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(password.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * Topics computed at login for a device
+     */
+    public static final class DeviceTopics {
+        private final long projectId;
+        private final List<String> topics;
+        private final List<String> writeOnlyTopics;
+
+        public DeviceTopics(long projectId, List<String> topics, List<String> writeOnlyTopics) {
+            this.projectId = projectId;
+            this.topics = topics;
+            this.writeOnlyTopics = writeOnlyTopics;
+        }
+
+        public long getProjectId() {
+            return projectId;
+        }
+
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        public List<String> getWriteOnlyTopics() {
+            return writeOnlyTopics;
+        }
+    }
+
+    /**
+     * Bounded map whose entries expire after ttl. Concurrent requests of the same key wait for a single load,
+     * null values are not cached.
+     */
+    private static final class TtlCache<K, V> {
+        private final long ttlNanos;
+        private final int maxEntries;
+        private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+        private TtlCache(long ttlMs, int maxEntries) {
+            this.ttlNanos = ttlMs * 1_000_000;
+            this.maxEntries = maxEntries;
+        }
+
+        private V get(K key, Loader<K, V> loader) throws Exception {
+            Entry<V> entry = entries.computeIfAbsent(key, k -> new Entry<>());
+            if (entry.isValid())
+                return entry.value;
+            V value;
+            synchronized (entry) {
+                if (entry.isValid())
+                    return entry.value;
+                value = loader.load(key);
+                if (value == null) {
+                    entries.remove(key, entry);
+                    return null;
+                }
+                entry.value = value;
+                entry.expiresAt = System.nanoTime() + ttlNanos;
+                entry.loaded = true;
+            }
+            if (entries.size() > maxEntries)
+                evict();
+            return value;
+        }
+
+        private void remove(K key) {
+            entries.remove(key);
+        }
+
+        private void removeIf(Predicate<V> predicate) {
+            entries.values().removeIf(entry -> entry.loaded && predicate.test(entry.value));
+        }
+
+        private void clear() {
+            entries.clear();
+        }
+
+        /**
+         * Removes expired entries, then any entry until the cache fits its bound
+         */
+        private void evict() {
+            entries.values().removeIf(entry -> entry.loaded && !entry.isValid());
+            Iterator<Entry<V>> it = entries.values().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        private static final class Entry<V> {
+            private volatile V value;
+            private volatile long expiresAt;
+            private volatile boolean loaded;
+
+            private boolean isValid() {
+                return loaded && System.nanoTime() - expiresAt < 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authentication.service.postaction;
+
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTBaseEntity;
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTPostRemoveAction;
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTPostSaveAction;
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTPostUpdateAction;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.mqtt.authentication.service.jaas.HyperIoTMqttAuthenticationCache;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class invalidates cached mqtt credentials and topics when devices, packets or projects change.
+ * Changes of a device invalidate its whole project, since write only topics depend on project devices.
+ *
+ * @param <T>
+ */
+@Component(service = {HyperIoTPostSaveAction.class, HyperIoTPostUpdateAction.class, HyperIoTPostRemoveAction.class},
+        property = {"type=it.acsoftware.hyperiot.hdevice.model.HDevice", "type=it.acsoftware.hyperiot.hpacket.model.HPacket",
+                "type=it.acsoftware.hyperiot.hproject.model.HProject"}, immediate = true)
+public class MqttAuthenticationCachePostAction<T extends HyperIoTBaseEntity>
+        implements HyperIoTPostSaveAction<T>, HyperIoTPostUpdateAction<T>, HyperIoTPostRemoveAction<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(MqttAuthenticationCachePostAction.class.getName());
+
+    @Override
+    public void execute(T entity) {
+        HyperIoTMqttAuthenticationCache cache = HyperIoTMqttAuthenticationCache.getInstance();
+        try {
+            if (entity instanceof HProject) {
+                cache.invalidateProject(entity.getId());
+            } else if (entity instanceof HDevice) {
+                invalidateDevice(cache, (HDevice) entity);
+            } else if (entity instanceof HPacket) {
+                HDevice device = ((HPacket) entity).getDevice();
+                if (device != null)
+                    invalidateDevice(cache, device);
+                else
+                    cache.invalidateAll();
+            }
+        } catch (RuntimeException e) {
+            // related entities may not be loaded
+            log.warn("Cannot invalidate mqtt authentication cache for {}, invalidating all: {}", entity, e.getMessage());
+            cache.invalidateAll();
+        }
+    }
+
+    private void invalidateDevice(HyperIoTMqttAuthenticationCache cache, HDevice device) {
+        cache.invalidateDevice(device.getId());
+        if (device.getProject() != null)
+            cache.invalidateProject(device.getProject().getId());
+    }
+
+}
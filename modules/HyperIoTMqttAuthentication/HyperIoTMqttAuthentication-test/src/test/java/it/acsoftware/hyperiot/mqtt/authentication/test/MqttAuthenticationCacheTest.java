@@ -0,0 +1,313 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authentication.test;
+
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
+import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hproject.api.HProjectSystemApi;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.mqtt.authentication.service.jaas.HyperIoTJaaSMqttAuthenticationModule;
+import it.acsoftware.hyperiot.mqtt.authentication.service.jaas.HyperIoTMqttAuthenticationCache;
+import org.apache.activemq.jaas.CertificateCallback;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.LoginException;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates a reconnect storm after a broker restart: all devices login at the same time.
+ * Devices and projects are stored inside an in-memory table with a simulated query latency,
+ * every query is counted. Password logins go through the JaaS login module, whose system services
+ * are replaced by the in-memory table.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MqttAuthenticationCacheTest extends KarafTestSupport {
+
+    private static final int LOGINS = 10000;
+    private static final int PROJECTS = 10;
+    private static final int DEVICES_PER_PROJECT = 100;
+    private static final int THREADS = 64;
+    private static final String PASSWORD = "Passw0rd!";
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Test
+    public void test00_reconnectStormHitsDatabaseOncePerDevice() throws Exception {
+        InMemoryDeviceTable table = new InMemoryDeviceTable();
+        HyperIoTMqttAuthenticationCache cache = new HyperIoTMqttAuthenticationCache(60000, 100000);
+        long elapsed = reconnectStorm(cache, table);
+        System.out.println(String.format("%d logins: %d device queries, %d project device list queries, %d ms",
+                LOGINS, table.deviceQueries.get(), table.projectQueries.get(), TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.deviceQueries.get());
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.projectQueries.get());
+        // a second storm is fully served by the cache
+        reconnectStorm(cache, table);
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.deviceQueries.get());
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.projectQueries.get());
+    }
+
+    @Test
+    public void test01_projectChangeInvalidatesOnlyItsDevices() throws Exception {
+        InMemoryDeviceTable table = new InMemoryDeviceTable();
+        HyperIoTMqttAuthenticationCache cache = new HyperIoTMqttAuthenticationCache(60000, 100000);
+        reconnectStorm(cache, table);
+        int deviceQueries = table.deviceQueries.get();
+        cache.invalidateProject(1);
+        reconnectStorm(cache, table);
+        Assert.assertEquals(deviceQueries + DEVICES_PER_PROJECT, table.deviceQueries.get());
+        cache.invalidateDevice(table.devices.get("device-2-0").getId());
+        reconnectStorm(cache, table);
+        Assert.assertEquals(deviceQueries + DEVICES_PER_PROJECT + 1, table.deviceQueries.get());
+    }
+
+    @Test
+    public void test02_entriesExpireAndAreBounded() throws Exception {
+        InMemoryDeviceTable table = new InMemoryDeviceTable();
+        HyperIoTMqttAuthenticationCache expiring = new HyperIoTMqttAuthenticationCache(0, 100000);
+        expiring.getDevice("device-0-0", table::findByDeviceName);
+        expiring.getDevice("device-0-0", table::findByDeviceName);
+        Assert.assertEquals(2, table.deviceQueries.get());
+        HyperIoTMqttAuthenticationCache bounded = new HyperIoTMqttAuthenticationCache(60000, 10);
+        for (String deviceName : table.devices.keySet())
+            bounded.getDevice(deviceName, table::findByDeviceName);
+        int queries = table.deviceQueries.get();
+        int hits = 0;
+        for (String deviceName : table.devices.keySet()) {
+            bounded.getDevice(deviceName, table::findByDeviceName);
+            hits += (table.deviceQueries.get() == queries) ? 1 : 0;
+            queries = table.deviceQueries.get();
+        }
+        Assert.assertTrue(hits <= 10);
+        Assert.assertNull(bounded.getDevice("missing", table::findByDeviceName));
+    }
+
+    @Test
+    public void test03_passwordLoginStormThroughLoginModule() throws Exception {
+        InMemoryDeviceTable table = new InMemoryDeviceTable();
+        HyperIoTMqttAuthenticationCache.getInstance().invalidateAll();
+        List<String> deviceNames = new ArrayList<>(table.devices.keySet());
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> logins = new ArrayList<>(LOGINS);
+        for (int i = 0; i < LOGINS; i++) {
+            String deviceName = deviceNames.get(i % deviceNames.size());
+            logins.add(pool.submit(() -> {
+                start.await();
+                return passwordLogin(table, deviceName, PASSWORD);
+            }));
+        }
+        start.countDown();
+        for (Future<Boolean> login : logins)
+            Assert.assertTrue(login.get(1, TimeUnit.MINUTES));
+        pool.shutdown();
+        System.out.println(String.format("%d password logins: %d device queries, %d project device list queries",
+                LOGINS, table.deviceQueries.get(), table.projectQueries.get()));
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.deviceQueries.get());
+        Assert.assertEquals(PROJECTS * DEVICES_PER_PROJECT, table.projectQueries.get());
+        // a wrong password is never accepted from the cache
+        Assert.assertFalse(passwordLogin(table, deviceNames.get(0), "wrong"));
+        // password change: device is invalidated and the old password no longer matches
+        HDevice device = table.devices.get(deviceNames.get(1));
+        device.setPassword(HyperIoTUtil.getPasswordHash("Changed0!"));
+        HyperIoTMqttAuthenticationCache.getInstance().invalidateDevice(device.getId());
+        Assert.assertFalse(passwordLogin(table, deviceNames.get(1), PASSWORD));
+        Assert.assertTrue(passwordLogin(table, deviceNames.get(1), "Changed0!"));
+        HyperIoTMqttAuthenticationCache.getInstance().invalidateAll();
+    }
+
+    /**
+     * @return true if the login module accepts the credentials
+     */
+    private boolean passwordLogin(InMemoryDeviceTable table, String deviceName, String password) {
+        HyperIoTJaaSMqttAuthenticationModule module = new InMemoryLoginModule(table);
+        module.initialize(new Subject(), callbacks -> {
+            for (Callback callback : callbacks) {
+                if (callback instanceof NameCallback)
+                    ((NameCallback) callback).setName(deviceName);
+                else if (callback instanceof PasswordCallback)
+                    ((PasswordCallback) callback).setPassword(password.toCharArray());
+                else if (callback instanceof CertificateCallback)
+                    ((CertificateCallback) callback).setCertificates(null);
+            }
+        }, new HashMap<>(), new HashMap<>());
+        try {
+            return module.login();
+        } catch (LoginException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Login module whose device and project services are backed by the in-memory table
+     */
+    private static final class InMemoryLoginModule extends HyperIoTJaaSMqttAuthenticationModule {
+        private final InMemoryDeviceTable table;
+
+        private InMemoryLoginModule(InMemoryDeviceTable table) {
+            this.table = table;
+        }
+
+        @Override
+        protected HDeviceSystemApi getHDeviceSystemApi() {
+            return (HDeviceSystemApi) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HDeviceSystemApi.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "findByDeviceName":
+                                return table.findByDeviceName((String) args[0]);
+                            case "getProjectDevicesList":
+                                return table.findProjectDevices((long) args[0]);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        protected HProjectSystemApi getHProjectSystemService() {
+            return (HProjectSystemApi) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HProjectSystemApi.class},
+                    (proxy, method, args) -> {
+                        //project devices are queried through HDeviceSystemApi, topics are computed from them
+                        switch (method.getName()) {
+                            case "getDeviceTopics":
+                                return table.topicsOf((HDevice) args[2]).getTopics();
+                            case "getWriteOnlyDeviceTopics":
+                                return table.topicsOf((HDevice) args[2]).getWriteOnlyTopics();
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    private long reconnectStorm(HyperIoTMqttAuthenticationCache cache, InMemoryDeviceTable table) throws Exception {
+        List<String> deviceNames = new ArrayList<>(table.devices.keySet());
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> logins = new ArrayList<>(LOGINS);
+        for (int i = 0; i < LOGINS; i++) {
+            String deviceName = deviceNames.get(i % deviceNames.size());
+            logins.add(pool.submit(() -> {
+                start.await();
+                HDevice device = cache.getDevice(deviceName, table::findByDeviceName);
+                long projectId = device.getProject().getId();
+                HyperIoTMqttAuthenticationCache.DeviceTopics topics = cache.getDeviceTopics(device.getId(),
+                        deviceId -> table.computeTopics(device));
+                Assert.assertEquals(projectId, topics.getProjectId());
+                Assert.assertEquals(DEVICES_PER_PROJECT - 1, topics.getWriteOnlyTopics().size());
+                return null;
+            }));
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Future<?> login : logins)
+            login.get(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - startTime;
+        pool.shutdown();
+        return elapsed;
+    }
+
+    /**
+     * Devices table with query counters
+     */
+    private static final class InMemoryDeviceTable {
+        private final Map<String, HDevice> devices = new LinkedHashMap<>();
+        private final Map<Long, List<HDevice>> projectDevices = new HashMap<>();
+        private final AtomicInteger deviceQueries = new AtomicInteger();
+        private final AtomicInteger projectQueries = new AtomicInteger();
+
+        private InMemoryDeviceTable() {
+            String passwordHash = HyperIoTUtil.getPasswordHash(PASSWORD);
+            long deviceId = 1;
+            for (long projectId = 1; projectId <= PROJECTS; projectId++) {
+                HProject project = new HProject();
+                project.setId(projectId);
+                for (int i = 0; i < DEVICES_PER_PROJECT; i++) {
+                    HDevice device = new HDevice();
+                    device.setId(deviceId++);
+                    device.setDeviceName("device-" + projectId + "-" + i);
+                    device.setProject(project);
+                    device.setPassword(passwordHash);
+                    devices.put(device.getDeviceName(), device);
+                    projectDevices.computeIfAbsent(projectId, id -> new ArrayList<>()).add(device);
+                }
+            }
+        }
+
+        private HDevice findByDeviceName(String deviceName) {
+            deviceQueries.incrementAndGet();
+            simulateQuery();
+            return devices.get(deviceName);
+        }
+
+        private Collection<HDevice> findProjectDevices(long projectId) {
+            projectQueries.incrementAndGet();
+            simulateQuery();
+            return projectDevices.get(projectId);
+        }
+
+        private HyperIoTMqttAuthenticationCache.DeviceTopics computeTopics(HDevice device) {
+            projectQueries.incrementAndGet();
+            simulateQuery();
+            return topicsOf(device);
+        }
+
+        private HyperIoTMqttAuthenticationCache.DeviceTopics topicsOf(HDevice device) {
+            long projectId = device.getProject().getId();
+            List<String> writeOnlyTopics = new ArrayList<>();
+            for (HDevice other : projectDevices.get(projectId)) {
+                if (other.getId() != device.getId())
+                    writeOnlyTopics.add("streaming/" + projectId + "/" + other.getId());
+            }
+            return new HyperIoTMqttAuthenticationCache.DeviceTopics(projectId,
+                    Collections.singletonList("streaming/" + projectId + "/" + device.getId()), writeOnlyTopics);
+        }
+
+        private void simulateQuery() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.mqtt.authentication.test;
+
+import it.acsoftware.hyperiot.base.api.entity.HyperIoTAuthenticable;
+import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.api.HPacketSystemApi;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
+import it.acsoftware.hyperiot.hpacket.model.HPacketSerialization;
+import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
+import it.acsoftware.hyperiot.hpacket.model.HPacketType;
+import it.acsoftware.hyperiot.hproject.api.HProjectSystemApi;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.huser.api.HUserSystemApi;
+import it.acsoftware.hyperiot.huser.model.HUser;
+import it.acsoftware.hyperiot.mqtt.authentication.api.MqttAuthenticationSystemApi;
+import it.acsoftware.hyperiot.services.util.HyperIoTServicesTestUtil;
+import org.apache.karaf.itests.KarafTestSupport;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerSuite;
+
+import java.util.UUID;
+
+/**
+ * Device checks used by the ingestion gateway: same credentials and topics a device has via mqtt.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerSuite.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MqttAuthenticationSystemApiTest extends KarafTestSupport {
+
+    private static final String DEVICE_PASSWORD = "AmbaraBacciCiCocò_1";
+
+    //force global config
+    @Override
+    public Option[] config() {
+        return null;
+    }
+
+    @Before
+    public void initPlatformContainers() {
+        HyperIoTServicesTestUtil.initPlatformContainers();
+    }
+
+    @Test
+    public void test01_deviceWithValidPasswordIsAuthenticated() {
+        MqttAuthenticationSystemApi mqttAuthenticationSystemApi = getOsgiService(MqttAuthenticationSystemApi.class);
+        HDevice device = createDevice(createProject());
+        HyperIoTAuthenticable authenticated = mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), DEVICE_PASSWORD);
+        Assert.assertNotNull(authenticated);
+        Assert.assertEquals(device.getId(), authenticated.getId());
+        Assert.assertNotNull(mqttAuthenticationSystemApi.findDevice(device.getDeviceName()));
+    }
+
+    @Test
+    public void test02_deviceWithWrongPasswordIsNotAuthenticated() {
+        MqttAuthenticationSystemApi mqttAuthenticationSystemApi = getOsgiService(MqttAuthenticationSystemApi.class);
+        HDevice device = createDevice(createProject());
+        Assert.assertNull(mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), "wrong-password"));
+        Assert.assertNull(mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), ""));
+        Assert.assertNull(mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), null));
+    }
+
+    @Test
+    public void test03_unknownDeviceIsNotAuthenticated() {
+        MqttAuthenticationSystemApi mqttAuthenticationSystemApi = getOsgiService(MqttAuthenticationSystemApi.class);
+        String deviceName = UUID.randomUUID().toString().replaceAll("-", "");
+        Assert.assertNull(mqttAuthenticationSystemApi.authenticateDevice(deviceName, DEVICE_PASSWORD));
+        Assert.assertNull(mqttAuthenticationSystemApi.findDevice(deviceName));
+    }
+
+    @Test
+    public void test04_removedDeviceIsNotAuthenticated() {
+        MqttAuthenticationSystemApi mqttAuthenticationSystemApi = getOsgiService(MqttAuthenticationSystemApi.class);
+        HDevice device = createDevice(createProject());
+        //loads the device in the authentication cache
+        Assert.assertNotNull(mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), DEVICE_PASSWORD));
+        getOsgiService(HDeviceSystemApi.class).remove(device.getId(), null);
+        Assert.assertNull(mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), DEVICE_PASSWORD));
+        //a token issued before removal is not valid anymore
+        Assert.assertNull(mqttAuthenticationSystemApi.findDevice(device.getDeviceName()));
+    }
+
+    @Test
+    public void test05_devicePublishesOnlyItsOwnPackets() {
+        MqttAuthenticationSystemApi mqttAuthenticationSystemApi = getOsgiService(MqttAuthenticationSystemApi.class);
+        HProject project = createProject();
+        HDevice device = createDevice(project);
+        HPacket packet = createPacket(device);
+        HDevice otherDevice = createDevice(project);
+        HPacket otherDevicePacket = createPacket(otherDevice);
+        HDevice otherProjectDevice = createDevice(createProject());
+        HPacket otherProjectPacket = createPacket(otherProjectDevice);
+        HyperIoTAuthenticable authenticated = mqttAuthenticationSystemApi.authenticateDevice(device.getDeviceName(), DEVICE_PASSWORD);
+        Assert.assertNotNull(authenticated);
+        Assert.assertTrue(mqttAuthenticationSystemApi.canPublish(authenticated, project.getId(), device.getId(), packet.getId()));
+        Assert.assertFalse(mqttAuthenticationSystemApi.canPublish(authenticated, project.getId(), device.getId(), otherDevicePacket.getId()));
+        Assert.assertFalse(mqttAuthenticationSystemApi.canPublish(authenticated, project.getId(), otherDevice.getId(), otherDevicePacket.getId()));
+        Assert.assertFalse(mqttAuthenticationSystemApi.canPublish(authenticated, otherProjectDevice.getProject().getId(),
+                otherProjectDevice.getId(), otherProjectPacket.getId()));
+        Assert.assertFalse(mqttAuthenticationSystemApi.canPublish(authenticated, otherProjectDevice.getProject().getId(),
+                device.getId(), packet.getId()));
+        Assert.assertFalse(mqttAuthenticationSystemApi.canPublish(null, project.getId(), device.getId(), packet.getId()));
+    }
+
+    // Utility functions
+
+    private HUser createUser() {
+        HUserSystemApi userSystemApi = getOsgiService(HUserSystemApi.class);
+        String username = UUID.randomUUID().toString().replaceAll("-", "");
+        HUser user = new HUser();
+        user.setAdmin(false);
+        user.setEmail(username + "@bar.com");
+        user.setName("Foo");
+        user.setLastname("Bar");
+        user.setUsername(username);
+        user.setPassword("testPassword&%123");
+        user.setPasswordConfirm("testPassword&%123");
+        userSystemApi.save(user, null);
+        return user;
+    }
+
+    private HProject createProject() {
+        HProjectSystemApi projectSystemApi = getOsgiService(HProjectSystemApi.class);
+        HProject project = new HProject();
+        project.setName("Test Project " + UUID.randomUUID().toString().replaceAll("-", ""));
+        project.setDescription("Just a test project");
+        project.setUser(createUser());
+        projectSystemApi.save(project, null);
+        return project;
+    }
+
+    private HDevice createDevice(HProject project) {
+        HDeviceSystemApi deviceSystemApi = getOsgiService(HDeviceSystemApi.class);
+        HDevice device = new HDevice();
+        device.setDeviceName(UUID.randomUUID().toString().replaceAll("-", ""));
+        device.setDescription("Just a test device");
+        device.setBrand("Marvellous devices Inc.");
+        device.setFirmwareVersion("1.0");
+        device.setModel("Claudia Shiffer");
+        device.setSoftwareVersion("1.1-RollerCoaster");
+        device.setPassword(DEVICE_PASSWORD);
+        device.setPasswordConfirm(DEVICE_PASSWORD);
+        device.setProject(project);
+        deviceSystemApi.save(device, null);
+        return device;
+    }
+
+    private HPacket createPacket(HDevice device) {
+        HPacketSystemApi packetSystemApi = getOsgiService(HPacketSystemApi.class);
+        HPacket packet = new HPacket();
+        packet.setName("name" + UUID.randomUUID().toString().replaceAll("-", ""));
+        packet.setDevice(device);
+        packet.setFormat(HPacketFormat.JSON);
+        packet.setSerialization(HPacketSerialization.AVRO);
+        packet.setType(HPacketType.IO);
+        packet.setVersion("1");
+        packet.setTrafficPlan(HPacketTrafficPlan.LOW);
+        packet.setTimestampField("timestamp");
+        packet.setTimestampFormat("String");
+        packetSystemApi.save(packet, null);
+        return packet;
+    }
+
+}
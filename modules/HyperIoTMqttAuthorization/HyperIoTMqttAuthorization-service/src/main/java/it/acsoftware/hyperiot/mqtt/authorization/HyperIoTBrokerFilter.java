@@ -17,18 +17,20 @@
 
 package it.acsoftware.hyperiot.mqtt.authorization;
 
-import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTPrincipal;
-import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTTopicPrincipal;
 import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
 import it.acsoftware.hyperiot.kafka.connector.api.KafkaConnectorSystemApi;
 import it.acsoftware.hyperiot.kafka.connector.api.KafkaMessageReceiver;
 import it.acsoftware.hyperiot.kafka.connector.model.HyperIoTKafkaMessage;
 import it.acsoftware.hyperiot.kafka.connector.model.messages.types.MqttMessageType;
 import it.acsoftware.hyperiot.kafka.connector.util.HyperIoTKafkaConnectorConstants;
+import org.apache.activemq.ScheduledMessage;
 import org.apache.activemq.broker.*;
 import org.apache.activemq.broker.region.Destination;
 import org.apache.activemq.broker.region.Subscription;
 import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.ConnectionInfo;
 import org.apache.activemq.command.ConsumerInfo;
 import org.apache.activemq.command.DestinationInfo;
 import org.apache.activemq.command.ProducerInfo;
@@ -40,8 +42,13 @@ import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.Principal;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Aristide Cittadino Class which verifies users or devices can
@@ -50,16 +57,75 @@ import java.util.*;
  * (which contains topic list) contains the requested topic the
  * user/device can do anything on it.
  * <p>
+ * Messages published on streaming topics are rate limited per device, packet and project,
+ * see HyperIoTRateLimiter and HyperIoTRateLimitPolicy.
+ * <p>
+ * Virtual topics forward messages only to consumer queues which already exist, so consumer queues of
+ * streaming topics listed in it.acsoftware.hyperiot.activemq.streaming.consumer.queues (eg. HyperIoTMqtt2Kafka)
+ * are created together with the topic.
+ * <p>
  * Future versions may consider to give more granular access to topics.
  */
 public class HyperIoTBrokerFilter extends BrokerFilter
         implements KafkaMessageReceiver, ServiceListener {
     private static Logger log = LoggerFactory.getLogger(HyperIoTBrokerFilter.class.getName());
 
+    private static final String VIRTUAL_TOPIC_PREFIX = "VirtualTopic.";
+    private static final String STREAMING_VIRTUAL_TOPIC_PREFIX = VIRTUAL_TOPIC_PREFIX + "streaming.";
+    private static final String QUARANTINE_VIRTUAL_TOPIC_PREFIX = VIRTUAL_TOPIC_PREFIX + "quarantine.";
+    private static final String RATE_LIMITER_MBEAN_NAME = "it.acsoftware.hyperiot:type=MqttRateLimiter";
+    private static final String VIRTUAL_TOPIC_CONSUMER_PREFIX = "Consumer.";
+    public static final String STREAMING_CONSUMER_QUEUES_PROPERTY = "it.acsoftware.hyperiot.activemq.streaming.consumer.queues";
+
     private ServiceRegistration<KafkaMessageReceiver> registration;
+    private final Map<SecurityContext, HyperIoTTopicAcl> topicAcls = new ConcurrentHashMap<>();
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final HyperIoTRateLimiter rateLimiter;
+    private final List<String> streamingConsumers;
+    private volatile boolean schedulerWarningLogged;
 
     public HyperIoTBrokerFilter(Broker next) {
+        this(next, HyperIoTRateLimiter.getInstance(),
+                streamingConsumers(HyperIoTUtil.getHyperIoTProperty(STREAMING_CONSUMER_QUEUES_PROPERTY)));
+    }
+
+    public HyperIoTBrokerFilter(Broker next, HyperIoTRateLimiter rateLimiter, List<String> streamingConsumers) {
         super(next);
+        this.rateLimiter = rateLimiter;
+        this.streamingConsumers = streamingConsumers;
+    }
+
+    /**
+     * @param property comma separated list of virtual topic consumer names
+     * @return consumer names, empty if property is not set
+     */
+    static List<String> streamingConsumers(Object property) {
+        List<String> consumers = new ArrayList<>();
+        if (property != null) {
+            for (String consumer : property.toString().split(",")) {
+                if (!consumer.trim().isEmpty())
+                    consumers.add(consumer.trim());
+            }
+        }
+        return consumers;
+    }
+
+    /**
+     * @param destination destination created on the broker
+     * @param consumers   virtual topic consumer names
+     * @return consumer queues to create if destination is a streaming topic, empty otherwise
+     */
+    static List<ActiveMQQueue> streamingConsumerQueues(ActiveMQDestination destination, List<String> consumers) {
+        if (consumers.isEmpty() || streamingTopicIds(destination) == null)
+            return Collections.emptyList();
+        List<ActiveMQQueue> queues = new ArrayList<>(consumers.size());
+        for (String consumer : consumers)
+            queues.add(new ActiveMQQueue(VIRTUAL_TOPIC_CONSUMER_PREFIX + consumer + "." + destination.getPhysicalName()));
+        return queues;
+    }
+
+    public HyperIoTRateLimiter getRateLimiter() {
+        return rateLimiter;
     }
 
     /**
@@ -133,56 +199,70 @@ public class HyperIoTBrokerFilter extends BrokerFilter
 
     protected boolean checkDestinationAccess(SecurityContext securityContext,
                                              ActiveMQDestination destination, boolean checkCanSubscribeOnly, boolean checkCanPublishOnly) {
-        String message = (((destination != null) ? destination.toString() : " null destination"));
-        log.debug( "Invoking checkDestinationAccess for destination: {}", message);
+        log.debug("Invoking checkDestinationAccess for destination: {}", destination);
 
         if (destination == null) {
             return true;
         }
 
         if (!securityContext.isBrokerContext() && destination.isTopic()) {
-            Iterator<Principal> it = securityContext.getPrincipals().iterator();
-            while (it.hasNext()) {
-                Principal p = it.next();
-                log.debug( "Principal: {}", p.getName());
-                if (p instanceof HyperIoTTopicPrincipal) {
-
-                    String destinationTopic = extractTopic(destination.getPhysicalName());
-                    log.debug(
-                            p.getName() + " is a topic, checking equals to: {}", destinationTopic);
-                    String topic = p.getName();
-                    if (destinationTopic.equalsIgnoreCase(topic)) {
-                        if (!checkCanPublishOnly && !checkCanSubscribeOnly) {
-                            log.debug( "Access to topic granted...");
-                            return true;
-                        } else if (checkCanPublishOnly) {
-                            log.debug( "Access to topic granted for publish only...");
-                            HyperIoTTopicPrincipal topicPrincipal = (HyperIoTTopicPrincipal) p;
-                            if (topicPrincipal.isCanPublish()) {
-                                return true;
-                            }
-                            return false;
-                        } else if (checkCanSubscribeOnly) {
-                            log.debug( "Access to topic granted for consuming only...");
-                            HyperIoTTopicPrincipal topicPrincipal = (HyperIoTTopicPrincipal) p;
-                            if (topicPrincipal.isCanRead()) {
-                                return true;
-                            }
-                            return false;
-                        }
-                        log.debug( "Topic found, but no rule match!");
-                    }
-                } else if (p instanceof HyperIoTPrincipal) {
-                    HyperIoTPrincipal userPrincipal = (HyperIoTPrincipal) p;
-                    if (userPrincipal.isAdmin())
-                        return true;
-                }
-            }
-            return false;
+            String destinationTopic = HyperIoTTopicAcl.extractTopic(destination.getPhysicalName());
+            boolean granted = getTopicAcl(securityContext).canAccess(destinationTopic, checkCanSubscribeOnly, checkCanPublishOnly);
+            log.debug("Access to topic {} granted: {}", destinationTopic, granted);
+            return granted;
         }
         return true;
     }
 
+    /**
+     * @param securityContext connection security context
+     * @return topic access list built at login, or built now if the connection has not been registered by this filter
+     */
+    private HyperIoTTopicAcl getTopicAcl(SecurityContext securityContext) {
+        HyperIoTTopicAcl acl = topicAcls.get(securityContext);
+        if (acl == null)
+            acl = topicAcls.computeIfAbsent(securityContext, sc -> HyperIoTTopicAcl.fromPrincipals(sc.getPrincipals()));
+        return acl;
+    }
+
+    @Override
+    public void addConnection(ConnectionContext context, ConnectionInfo info) throws Exception {
+        getNext().addConnection(context, info);
+        SecurityContext securityContext = context.getSecurityContext();
+        if (securityContext != null && !securityContext.isBrokerContext())
+            topicAcls.put(securityContext, HyperIoTTopicAcl.fromPrincipals(securityContext.getPrincipals()));
+        Connection connection = context.getConnection();
+        if (connection != null) {
+            for (String id : connectionIds(connection, info))
+                connections.put(id, connection);
+        }
+    }
+
+    @Override
+    public void removeConnection(ConnectionContext context, ConnectionInfo info, Throwable error) throws Exception {
+        SecurityContext securityContext = context.getSecurityContext();
+        if (securityContext != null)
+            topicAcls.remove(securityContext);
+        Connection connection = context.getConnection();
+        if (connection != null) {
+            for (String id : connectionIds(connection, info))
+                connections.remove(id, connection);
+        }
+        getNext().removeConnection(context, info, error);
+    }
+
+    /**
+     * @return lower case ids a connection can be dropped by: broker connection id and client id
+     */
+    private static Set<String> connectionIds(Connection connection, ConnectionInfo info) {
+        Set<String> ids = new HashSet<>(2);
+        if (connection.getConnectionId() != null)
+            ids.add(connection.getConnectionId().toLowerCase(Locale.ROOT));
+        if (info != null && info.getClientId() != null)
+            ids.add(info.getClientId().toLowerCase(Locale.ROOT));
+        return ids;
+    }
+
     @Override
     public void addDestinationInfo(ConnectionContext context, DestinationInfo info)
             throws Exception {
@@ -209,7 +289,18 @@ public class HyperIoTBrokerFilter extends BrokerFilter
                     + " is not authorized to create: " + destination);
         }
 
-        return getNext().addDestination(context, destination, create);
+        Destination created = getNext().addDestination(context, destination, create);
+        List<ActiveMQQueue> consumerQueues = streamingConsumerQueues(destination, streamingConsumers);
+        if (!consumerQueues.isEmpty()) {
+            //queues are created on behalf of the broker, devices are not allowed to create them
+            ConnectionContext brokerContext = context.copy();
+            brokerContext.setSecurityContext(SecurityContext.BROKER_SECURITY_CONTEXT);
+            for (ActiveMQQueue queue : consumerQueues) {
+                log.debug("Creating virtual topic consumer queue {}", queue);
+                getNext().addDestination(brokerContext, queue, true);
+            }
+        }
+        return created;
     }
 
     @Override
@@ -276,37 +367,154 @@ public class HyperIoTBrokerFilter extends BrokerFilter
             throw new SecurityException("User " + securityContext.getUserName()
                     + " is not authorized to write to: " + messageSend.getDestination());
         }
-
+        long[] streamingIds = securityContext.isBrokerContext() ? null : streamingTopicIds(messageSend.getDestination());
+        if (streamingIds != null) {
+            long wait = rateLimiter.acquire(streamingIds[0], streamingIds[1], streamingIds[2]);
+            if (wait > 0) {
+                delay(messageSend, wait);
+            } else if (wait == HyperIoTRateLimiter.REJECTED) {
+                if (rateLimiter.getPolicy() == HyperIoTRateLimitPolicy.QUARANTINE)
+                    quarantine(producerExchange, messageSend);
+                else
+                    drop(producerExchange, streamingIds[1]);
+                return;
+            }
+        }
+        assignDeviceMessageGroup(messageSend);
         getNext().send(producerExchange, messageSend);
     }
 
-    private String extractTopic(String physicalName) {
-        String convertedTopic = physicalName.replaceAll("\\.", "/");
-        convertedTopic = convertedTopic.replaceAll(">", "");
-        if (convertedTopic.startsWith("VirtualTopic/"))
-            convertedTopic = convertedTopic.replace("VirtualTopic/", "");
-        else if (convertedTopic.startsWith("/"))
-            convertedTopic = convertedTopic.substring(1);
-        log.debug( "Extracting topic from {}", new Object[]{physicalName, convertedTopic});
-        return convertedTopic;
+    /**
+     * @param destination message destination
+     * @return project, device and packet ids if destination is a streaming topic, null otherwise
+     */
+    static long[] streamingTopicIds(ActiveMQDestination destination) {
+        if (destination == null || !destination.isTopic())
+            return null;
+        String physicalName = destination.getPhysicalName();
+        if (!physicalName.startsWith(STREAMING_VIRTUAL_TOPIC_PREFIX))
+            return null;
+        long[] ids = new long[3];
+        int start = STREAMING_VIRTUAL_TOPIC_PREFIX.length();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                int end = physicalName.indexOf('.', start);
+                if (end < 0)
+                    end = physicalName.length();
+                if ((end == physicalName.length()) != (i == ids.length - 1))
+                    return null;
+                ids[i] = Long.parseLong(physicalName.substring(start, end));
+                start = end + 1;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ids;
+    }
+
+    /**
+     * Schedules delivery of a message when its token is available, without blocking the thread serving the connection.
+     * Without broker scheduler support the message is delivered at once, its token is taken anyway.
+     *
+     * @param messageSend message sent to the broker
+     * @param waitNanos   delay, as returned by the rate limiter
+     */
+    private void delay(org.apache.activemq.command.Message messageSend, long waitNanos) throws IOException {
+        if (!getBrokerService().isSchedulerSupport()) {
+            if (!schedulerWarningLogged) {
+                schedulerWarningLogged = true;
+                log.warn("Rate limit policy is delay but broker has no scheduler support, messages are not delayed");
+            }
+            return;
+        }
+        long delayMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        messageSend.setProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delayMs);
+    }
+
+    /**
+     * Drops a message exceeding rate limits and closes the publisher connection:
+     * MQTT 3.1.1 has no negative acknowledgement, so disconnection is the only signal the client gets.
+     * Limits are kept by device, so reconnecting does not give the device new tokens.
+     */
+    private void drop(ProducerBrokerExchange producerExchange, long deviceId) {
+        log.debug("Dropping message of device {}: rate limit exceeded, closing its connection", deviceId);
+        Connection connection = producerExchange.getConnectionContext().getConnection();
+        if (connection != null)
+            connection.serviceExceptionAsync(new IOException("Rate limit exceeded by device " + deviceId));
+    }
+
+    /**
+     * Diverts a message exceeding rate limits to VirtualTopic.quarantine.<projectId>.<deviceId>.<packetId>.
+     * Devices are not allowed to publish on quarantine topics, so the message is sent by the broker on their behalf.
+     */
+    private void quarantine(ProducerBrokerExchange producerExchange, org.apache.activemq.command.Message messageSend)
+            throws Exception {
+        String physicalName = messageSend.getDestination().getPhysicalName();
+        messageSend.setDestination(new ActiveMQTopic(QUARANTINE_VIRTUAL_TOPIC_PREFIX
+                + physicalName.substring(STREAMING_VIRTUAL_TOPIC_PREFIX.length())));
+        ConnectionContext deviceContext = producerExchange.getConnectionContext();
+        ConnectionContext brokerContext = deviceContext.copy();
+        brokerContext.setSecurityContext(SecurityContext.BROKER_SECURITY_CONTEXT);
+        producerExchange.setConnectionContext(brokerContext);
+        try {
+            getNext().send(producerExchange, messageSend);
+        } finally {
+            producerExchange.setConnectionContext(deviceContext);
+        }
+    }
+
+    private void registerRateLimiterMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(RATE_LIMITER_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(rateLimiter, name);
+        } catch (Exception e) {
+            log.warn("Could not register rate limiter MBean: {}", e.getMessage());
+        }
+    }
+
+    private void unregisterRateLimiterMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(RATE_LIMITER_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("Could not unregister rate limiter MBean: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Streaming messages of the same device belong to the same message group,
+     * so competing consumers of virtual topic queues (eg. Mqtt 2 Kafka) receive them in order.
+     * Group is in the form streaming.<projectId>.<deviceId>
+     *
+     * @param messageSend message sent to the broker
+     */
+    private void assignDeviceMessageGroup(org.apache.activemq.command.Message messageSend) {
+        ActiveMQDestination destination = messageSend.getDestination();
+        if (messageSend.getGroupID() != null || destination == null || !destination.isTopic())
+            return;
+        String physicalName = destination.getPhysicalName();
+        if (!physicalName.startsWith(STREAMING_VIRTUAL_TOPIC_PREFIX))
+            return;
+        int packetSeparator = physicalName.lastIndexOf('.');
+        if (packetSeparator > STREAMING_VIRTUAL_TOPIC_PREFIX.length())
+            messageSend.setGroupID(physicalName.substring(VIRTUAL_TOPIC_PREFIX.length(), packetSeparator));
     }
 
     private void stopConnection(String clientId) {
         try {
-            log.debug( "Searching for client id: {}", clientId);
-            Connection[] connections = this.getClients();
-            for (int i = 0; i < connections.length; i++) {
-                Connection c = connections[i];
-                log.debug( "Iterating over connection id: {}", c.getConnectionId()
-                        + " searching for:" + clientId);
-                if (c.getConnectionId().equalsIgnoreCase(clientId)) {
-                    log.debug( "Stopping connection: {}", c.getConnectionId());
-                    c.stop();
-                    return;
-                }
+            log.debug("Searching for client id: {}", clientId);
+            Connection c = connections.get(clientId.toLowerCase(Locale.ROOT));
+            if (c != null) {
+                log.debug("Stopping connection: {}", c.getConnectionId());
+                c.stop();
             }
         } catch (Exception e) {
-            log.error( e.getMessage(), e);
+            log.error(e.getMessage(), e);
         }
     }
 
@@ -327,12 +535,14 @@ public class HyperIoTBrokerFilter extends BrokerFilter
     @Override
     public void start() throws Exception {
         this.init();
+        this.registerRateLimiterMBean();
         getNext().start();
     }
 
     @Override
     public void stop() throws Exception {
         this.unsubscribeToKafka();
+        this.unregisterRateLimiterMBean();
         getNext().stop();
     }
 
@@ -0,0 +1,92 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate limiting counters of a single device, updated without locks by concurrent publishers
+ */
+public final class HyperIoTDeviceThrottlingCounters {
+
+    private final long projectId;
+    private final long deviceId;
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder quarantined = new LongAdder();
+
+    HyperIoTDeviceThrottlingCounters(long projectId, long deviceId) {
+        this.projectId = projectId;
+        this.deviceId = deviceId;
+    }
+
+    public long getProjectId() {
+        return projectId;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return messages admitted without delay
+     */
+    public long getAllowedMessages() {
+        return allowed.sum();
+    }
+
+    /**
+     * @return messages admitted after waiting for a token
+     */
+    public long getDelayedMessages() {
+        return delayed.sum();
+    }
+
+    public long getDroppedMessages() {
+        return dropped.sum();
+    }
+
+    public long getQuarantinedMessages() {
+        return quarantined.sum();
+    }
+
+    /**
+     * @return messages which exceeded rate limits
+     */
+    public long getThrottledMessages() {
+        return delayed.sum() + dropped.sum() + quarantined.sum();
+    }
+
+    void allowed() {
+        allowed.increment();
+    }
+
+    void delayed() {
+        delayed.increment();
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void quarantined() {
+        quarantined.increment();
+    }
+}
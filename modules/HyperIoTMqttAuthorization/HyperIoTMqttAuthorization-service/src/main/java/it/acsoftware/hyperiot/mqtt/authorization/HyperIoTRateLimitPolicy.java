@@ -0,0 +1,61 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+/**
+ * What happens to messages exceeding rate limits
+ */
+public enum HyperIoTRateLimitPolicy {
+    /**
+     * Messages are discarded and the connection of the publisher is closed:
+     * MQTT has no negative acknowledgement, disconnection is how the client learns it is publishing too fast
+     */
+    DROP("drop"),
+    /**
+     * Messages are delivered late, when a token is available, through broker scheduled delivery (schedulerSupport must
+     * be enabled, otherwise they are delivered at once). Messages are dropped if delay would exceed max delay
+     */
+    DELAY("delay"),
+    /**
+     * Messages are diverted to the quarantine topic, which is not ingested by the project topology
+     */
+    QUARANTINE("quarantine");
+
+    private String name;
+
+    HyperIoTRateLimitPolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name policy name, case insensitive
+     * @return policy, DROP if name is null or unknown
+     */
+    public static HyperIoTRateLimitPolicy fromName(String name) {
+        for (HyperIoTRateLimitPolicy policy : values()) {
+            if (policy.name.equalsIgnoreCase(name))
+                return policy;
+        }
+        return DROP;
+    }
+}
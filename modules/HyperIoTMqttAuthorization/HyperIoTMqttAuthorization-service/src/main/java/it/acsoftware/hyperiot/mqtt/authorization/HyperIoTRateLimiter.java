@@ -0,0 +1,356 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Token bucket rate limits of streaming messages, applied per device, per packet and per project.
+ * A message is admitted only if every limit has a token, tokens taken by a limit are given back
+ * if another limit rejects the message.
+ * <p>
+ * Limits are read from HyperIoT properties (messages per second and burst), a limit can be overridden
+ * for a single device, packet or project by inserting its id:
+ * <pre>
+ * it.acsoftware.hyperiot.mqtt.ratelimit.device.rate=10
+ * it.acsoftware.hyperiot.mqtt.ratelimit.device.burst=20
+ * it.acsoftware.hyperiot.mqtt.ratelimit.device.&lt;deviceId&gt;.rate=100
+ * it.acsoftware.hyperiot.mqtt.ratelimit.packet.rate=...
+ * it.acsoftware.hyperiot.mqtt.ratelimit.project.rate=...
+ * it.acsoftware.hyperiot.mqtt.ratelimit.overflow.policy=drop|delay|quarantine
+ * it.acsoftware.hyperiot.mqtt.ratelimit.delay.max.ms=1000
+ * it.acsoftware.hyperiot.mqtt.ratelimit.refresh.ms=30000
+ * it.acsoftware.hyperiot.mqtt.ratelimit.idle.ms=600000
+ * </pre>
+ * Missing or non positive rates mean no limit. Limits are resolved the first time an id publishes, then
+ * the shared instance reads them again every refresh.ms and forgets ids which have not published for idle.ms.
+ */
+public final class HyperIoTRateLimiter implements HyperIoTRateLimiterMXBean {
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTRateLimiter.class);
+
+    public static final String PROPERTY_PREFIX = "it.acsoftware.hyperiot.mqtt.ratelimit.";
+    public static final String OVERFLOW_POLICY_PROPERTY = PROPERTY_PREFIX + "overflow.policy";
+    public static final String MAX_DELAY_MS_PROPERTY = PROPERTY_PREFIX + "delay.max.ms";
+    public static final String REFRESH_MS_PROPERTY = PROPERTY_PREFIX + "refresh.ms";
+    public static final String IDLE_MS_PROPERTY = PROPERTY_PREFIX + "idle.ms";
+    public static final long DEFAULT_MAX_DELAY_MS = 1000;
+    public static final long DEFAULT_REFRESH_MS = 30000;
+    public static final long DEFAULT_IDLE_MS = 600000;
+
+    /**
+     * Returned by acquire when the message exceeds rate limits and must be dropped or quarantined
+     */
+    public static final long REJECTED = HyperIoTTokenBucket.REJECTED;
+
+    private static final String DEVICE = "device";
+    private static final String PACKET = "packet";
+    private static final String PROJECT = "project";
+
+    private static volatile HyperIoTRateLimiter instance;
+
+    private final Function<String, Object> properties;
+    private volatile HyperIoTRateLimitPolicy overflowPolicy;
+    private volatile long maxDelayNanos;
+    private volatile long idleNanos;
+    private final Map<Long, Limit> deviceLimits = new ConcurrentHashMap<>();
+    private final Map<Long, Limit> packetLimits = new ConcurrentHashMap<>();
+    private final Map<Long, Limit> projectLimits = new ConcurrentHashMap<>();
+    private final Map<Long, HyperIoTDeviceThrottlingCounters> deviceCounters = new ConcurrentHashMap<>();
+
+    /**
+     * @param properties property lookup, returns null for missing properties
+     */
+    public HyperIoTRateLimiter(Function<String, Object> properties) {
+        this.properties = properties;
+        this.readSettings();
+    }
+
+    /**
+     * @return rate limiter configured by HyperIoT properties
+     */
+    public static HyperIoTRateLimiter fromHyperIoTProperties() {
+        return new HyperIoTRateLimiter(HyperIoTUtil::getHyperIoTProperty);
+    }
+
+    /**
+     * @return rate limiter configured by HyperIoT properties, shared by the broker and the ingestion gateway:
+     * a device has the same limits whichever way it publishes
+     */
+    public static HyperIoTRateLimiter getInstance() {
+        if (instance == null) {
+            synchronized (HyperIoTRateLimiter.class) {
+                if (instance == null) {
+                    HyperIoTRateLimiter rateLimiter = fromHyperIoTProperties();
+                    rateLimiter.scheduleMaintenance();
+                    instance = rateLimiter;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private void readSettings() {
+        Object policy = properties.apply(OVERFLOW_POLICY_PROPERTY);
+        this.overflowPolicy = HyperIoTRateLimitPolicy.fromName(policy != null ? policy.toString().trim() : null);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+                (long) doubleProperty(MAX_DELAY_MS_PROPERTY, DEFAULT_MAX_DELAY_MS));
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(
+                (long) doubleProperty(IDLE_MS_PROPERTY, DEFAULT_IDLE_MS));
+    }
+
+    /**
+     * Reloads limits and evicts idle ids every refresh.ms, on a daemon thread
+     */
+    private void scheduleMaintenance() {
+        long refreshMs = Math.max(1000, (long) doubleProperty(REFRESH_MS_PROPERTY, DEFAULT_REFRESH_MS));
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "HyperIoTRateLimiter-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                long now = System.nanoTime();
+                reload(now);
+                evictIdle(now);
+            } catch (Exception e) {
+                log.error("Rate limits not refreshed: {}", e.getMessage(), e);
+            }
+        }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param projectId project id
+     * @param deviceId  device id
+     * @param packetId  packet id
+     * @return 0 if the message is admitted, nanoseconds the message must be delayed before delivering it (DELAY policy),
+     * REJECTED if the message must be dropped or quarantined, depending on getPolicy()
+     */
+    public long acquire(long projectId, long deviceId, long packetId) {
+        return acquire(projectId, deviceId, packetId, System.nanoTime());
+    }
+
+    long acquire(long projectId, long deviceId, long packetId, long nowNanos) {
+        HyperIoTDeviceThrottlingCounters counters = deviceCounters.get(deviceId);
+        if (counters == null)
+            counters = deviceCounters.computeIfAbsent(deviceId, id -> new HyperIoTDeviceThrottlingCounters(projectId, id));
+        HyperIoTRateLimitPolicy policy = overflowPolicy;
+        long maxWaitNanos = policy == HyperIoTRateLimitPolicy.DELAY ? maxDelayNanos : 0;
+        Limit device = limit(deviceLimits, DEVICE, deviceId, nowNanos);
+        long deviceWait = device.reserve(nowNanos, maxWaitNanos);
+        if (deviceWait != REJECTED) {
+            Limit packet = limit(packetLimits, PACKET, packetId, nowNanos);
+            long packetWait = packet.reserve(nowNanos, maxWaitNanos);
+            if (packetWait != REJECTED) {
+                Limit project = limit(projectLimits, PROJECT, projectId, nowNanos);
+                long projectWait = project.reserve(nowNanos, maxWaitNanos);
+                if (projectWait != REJECTED) {
+                    long wait = Math.max(deviceWait, Math.max(packetWait, projectWait));
+                    if (wait == 0)
+                        counters.allowed();
+                    else
+                        counters.delayed();
+                    return wait;
+                }
+                packet.refund();
+            }
+            device.refund();
+        }
+        if (policy == HyperIoTRateLimitPolicy.QUARANTINE)
+            counters.quarantined();
+        else
+            counters.dropped();
+        return REJECTED;
+    }
+
+    private Limit limit(Map<Long, Limit> limits, String scope, long id, long nowNanos) {
+        Limit limit = limits.get(id);
+        if (limit == null)
+            limit = limits.computeIfAbsent(id, k -> createLimit(scope, k, nowNanos));
+        return limit;
+    }
+
+    private Limit createLimit(String scope, long id, long nowNanos) {
+        String scopePrefix = PROPERTY_PREFIX + scope + ".";
+        String idPrefix = scopePrefix + id + ".";
+        double rate = doubleProperty(idPrefix + "rate", doubleProperty(scopePrefix + "rate", 0));
+        if (rate <= 0)
+            return new Limit(0, 0, nowNanos);
+        double defaultBurst = doubleProperty(scopePrefix + "burst", Math.ceil(rate));
+        int burst = (int) Math.max(1, doubleProperty(idPrefix + "burst", defaultBurst));
+        return new Limit(rate, burst, nowNanos);
+    }
+
+    private double doubleProperty(String name, double defaultValue) {
+        Object value = properties.apply(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads policy and limits again: ids whose rate or burst changed get a full bucket with the new limits,
+     * the others keep their tokens.
+     */
+    @Override
+    public void reload() {
+        reload(System.nanoTime());
+    }
+
+    void reload(long nowNanos) {
+        readSettings();
+        reload(deviceLimits, DEVICE, nowNanos);
+        reload(packetLimits, PACKET, nowNanos);
+        reload(projectLimits, PROJECT, nowNanos);
+    }
+
+    private void reload(Map<Long, Limit> limits, String scope, long nowNanos) {
+        limits.forEach((id, limit) -> {
+            Limit reloaded = createLimit(scope, id, nowNanos);
+            if (!reloaded.hasSameLimits(limit))
+                limits.replace(id, limit, reloaded);
+        });
+    }
+
+    /**
+     * Forgets ids which have not published for idle.ms and whose bucket is full again,
+     * so an evicted id starts again from the same state. Counters of evicted devices are removed as well.
+     *
+     * @param nowNanos current time, as returned by System.nanoTime()
+     */
+    void evictIdle(long nowNanos) {
+        long idle = idleNanos;
+        deviceLimits.values().removeIf(limit -> limit.isIdle(nowNanos, idle));
+        packetLimits.values().removeIf(limit -> limit.isIdle(nowNanos, idle));
+        projectLimits.values().removeIf(limit -> limit.isIdle(nowNanos, idle));
+        deviceCounters.keySet().removeIf(deviceId -> !deviceLimits.containsKey(deviceId));
+    }
+
+    /**
+     * @return number of devices, packets and projects currently tracked
+     */
+    int trackedIds() {
+        return deviceLimits.size() + packetLimits.size() + projectLimits.size();
+    }
+
+    public HyperIoTRateLimitPolicy getPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param deviceId device id
+     * @return device counters, null if device has never published
+     */
+    public HyperIoTDeviceThrottlingCounters getDeviceCounters(long deviceId) {
+        return deviceCounters.get(deviceId);
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return overflowPolicy.getName();
+    }
+
+    @Override
+    public long getAllowedMessages() {
+        long allowed = 0;
+        for (HyperIoTDeviceThrottlingCounters counters : deviceCounters.values())
+            allowed += counters.getAllowedMessages();
+        return allowed;
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        long throttled = 0;
+        for (HyperIoTDeviceThrottlingCounters counters : deviceCounters.values())
+            throttled += counters.getThrottledMessages();
+        return throttled;
+    }
+
+    @Override
+    public List<HyperIoTDeviceThrottlingCounters> getDeviceCounters() {
+        return new ArrayList<>(deviceCounters.values());
+    }
+
+    @Override
+    public List<HyperIoTDeviceThrottlingCounters> getThrottledDeviceCounters() {
+        List<HyperIoTDeviceThrottlingCounters> throttled = new ArrayList<>();
+        for (HyperIoTDeviceThrottlingCounters counters : deviceCounters.values()) {
+            if (counters.getThrottledMessages() > 0)
+                throttled.add(counters);
+        }
+        return throttled;
+    }
+
+    /**
+     * Limit of a single device, packet or project, without bucket if the id is not limited
+     */
+    private static final class Limit {
+        /**
+         * Last use is written at most once per second, to keep the publish path cheap
+         */
+        private static final long LAST_USE_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final double rate;
+        private final int burst;
+        private final HyperIoTTokenBucket bucket;
+        private volatile long lastUseNanos;
+
+        private Limit(double rate, int burst, long nowNanos) {
+            this.rate = rate;
+            this.burst = burst;
+            this.bucket = rate > 0 ? new HyperIoTTokenBucket(rate, burst, nowNanos) : null;
+            this.lastUseNanos = nowNanos;
+        }
+
+        private long reserve(long nowNanos, long maxWaitNanos) {
+            if (nowNanos - lastUseNanos > LAST_USE_GRANULARITY_NANOS)
+                lastUseNanos = nowNanos;
+            return bucket == null ? 0 : bucket.reserve(nowNanos, maxWaitNanos);
+        }
+
+        private void refund() {
+            if (bucket != null)
+                bucket.refund();
+        }
+
+        private boolean hasSameLimits(Limit other) {
+            return rate == other.rate && burst == other.burst;
+        }
+
+        private boolean isIdle(long nowNanos, long idleNanos) {
+            return nowNanos - lastUseNanos >= idleNanos && (bucket == null || bucket.isFull(nowNanos));
+        }
+    }
+
+}
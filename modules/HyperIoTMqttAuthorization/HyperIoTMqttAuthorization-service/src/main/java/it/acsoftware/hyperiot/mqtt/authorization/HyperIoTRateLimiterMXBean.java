@@ -0,0 +1,49 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import java.util.List;
+
+/**
+ * JMX view of broker rate limiting, registered as it.acsoftware.hyperiot:type=MqttRateLimiter
+ */
+public interface HyperIoTRateLimiterMXBean {
+
+    String getOverflowPolicy();
+
+    long getAllowedMessages();
+
+    long getThrottledMessages();
+
+    /**
+     * @return counters of every device which published at least one message
+     */
+    List<HyperIoTDeviceThrottlingCounters> getDeviceCounters();
+
+    /**
+     * @return counters of devices which exceeded their rate limits
+     */
+    List<HyperIoTDeviceThrottlingCounters> getThrottledDeviceCounters();
+
+    /**
+     * Reads rate limits and overflow policy again from HyperIoT properties
+     */
+    void reload();
+
+}
@@ -0,0 +1,109 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as generic cell rate algorithm: the whole bucket state is the theoretical
+ * arrival time of the next message, updated with a single compare and set.
+ * A bucket admits burst messages at once and then one message every 1/rate seconds.
+ */
+public final class HyperIoTTokenBucket {
+
+    /**
+     * Returned by reserve when the message cannot be admitted within the max wait
+     */
+    public static final long REJECTED = -1;
+
+    private final double rate;
+    private final int burst;
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final AtomicLong theoreticalArrivalTime;
+
+    /**
+     * @param rate      admitted messages per second
+     * @param burst     messages admitted at once when the bucket is full
+     * @param nowNanos  current time, as returned by System.nanoTime()
+     */
+    public HyperIoTTokenBucket(double rate, int burst, long nowNanos) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("Rate must be greater than 0");
+        if (burst <= 0)
+            throw new IllegalArgumentException("Burst must be greater than 0");
+        this.rate = rate;
+        this.burst = burst;
+        this.emissionIntervalNanos = Math.max(1, (long) (1_000_000_000d / rate));
+        this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+        this.theoreticalArrivalTime = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Takes a token, or reserves the first token available within maxWaitNanos
+     *
+     * @param nowNanos     current time, as returned by System.nanoTime()
+     * @param maxWaitNanos max time the caller accepts to wait for a token, 0 to never wait
+     * @return 0 if the message is admitted now, nanoseconds to wait before sending it if a future token
+     * has been reserved, REJECTED if no token is available within maxWaitNanos
+     */
+    public long reserve(long nowNanos, long maxWaitNanos) {
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            long start = tat - nowNanos < 0 ? nowNanos : tat;
+            long wait = start - nowNanos - burstToleranceNanos;
+            if (wait > maxWaitNanos)
+                return REJECTED;
+            if (theoreticalArrivalTime.compareAndSet(tat, start + emissionIntervalNanos))
+                return Math.max(0, wait);
+        }
+    }
+
+    /**
+     * @param nowNanos current time, as returned by System.nanoTime()
+     * @return true if a token has been taken
+     */
+    public boolean tryAcquire(long nowNanos) {
+        return reserve(nowNanos, 0) == 0;
+    }
+
+    /**
+     * Gives back a token taken with reserve, when the message has been rejected by another limit
+     */
+    public void refund() {
+        theoreticalArrivalTime.addAndGet(-emissionIntervalNanos);
+    }
+
+    /**
+     * @param nowNanos current time, as returned by System.nanoTime()
+     * @return true if the bucket has every token, as a new bucket
+     */
+    public boolean isFull(long nowNanos) {
+        return theoreticalArrivalTime.get() - nowNanos <= 0;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+}
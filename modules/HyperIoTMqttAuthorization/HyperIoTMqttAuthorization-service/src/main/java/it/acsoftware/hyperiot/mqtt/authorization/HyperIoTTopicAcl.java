@@ -0,0 +1,116 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTPrincipal;
+import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTTopicPrincipal;
+
+import java.security.Principal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable topic access list of a connection, built once from its principals at login.
+ * Topics are indexed by lower case name, so authorization is a single hash lookup.
+ */
+public final class HyperIoTTopicAcl {
+    private static final String VIRTUAL_TOPIC = "VirtualTopic/";
+    private static final int CAN_READ = 1;
+    private static final int CAN_PUBLISH = 2;
+
+    private final Map<String, Integer> topics;
+    private final boolean admin;
+
+    private HyperIoTTopicAcl(Map<String, Integer> topics, boolean admin) {
+        this.topics = topics;
+        this.admin = admin;
+    }
+
+    /**
+     * @param principals connection principals
+     * @return access list, when the same topic is granted more than once permissions are merged
+     */
+    public static HyperIoTTopicAcl fromPrincipals(Collection<Principal> principals) {
+        Map<String, Integer> topics = new HashMap<>();
+        boolean admin = false;
+        for (Principal p : principals) {
+            if (p instanceof HyperIoTTopicPrincipal) {
+                HyperIoTTopicPrincipal topicPrincipal = (HyperIoTTopicPrincipal) p;
+                int permissions = (topicPrincipal.isCanRead() ? CAN_READ : 0) | (topicPrincipal.isCanPublish() ? CAN_PUBLISH : 0);
+                topics.merge(topicPrincipal.getName().toLowerCase(Locale.ROOT), permissions, (a, b) -> a | b);
+            } else if (p instanceof HyperIoTPrincipal) {
+                admin |= ((HyperIoTPrincipal) p).isAdmin();
+            }
+        }
+        return new HyperIoTTopicAcl(topics, admin);
+    }
+
+    /**
+     * @param topic                 mqtt topic, see extractTopic
+     * @param checkCanSubscribeOnly true if read permission is required
+     * @param checkCanPublishOnly   true if publish permission is required
+     * @return true if the topic can be accessed
+     */
+    public boolean canAccess(String topic, boolean checkCanSubscribeOnly, boolean checkCanPublishOnly) {
+        if (admin)
+            return true;
+        Integer permissions = topics.get(topic.toLowerCase(Locale.ROOT));
+        if (permissions == null)
+            return false;
+        if (checkCanPublishOnly)
+            return (permissions & CAN_PUBLISH) != 0;
+        if (checkCanSubscribeOnly)
+            return (permissions & CAN_READ) != 0;
+        return true;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    public int size() {
+        return topics.size();
+    }
+
+    /**
+     * Converts a JMS physical name into the mqtt topic, without regular expressions:
+     * dots become slashes, wildcards '>' are removed as well as the VirtualTopic prefix or the leading slash.
+     *
+     * @param physicalName destination physical name
+     * @return mqtt topic
+     */
+    public static String extractTopic(String physicalName) {
+        StringBuilder topic = new StringBuilder(physicalName.length());
+        for (int i = 0; i < physicalName.length(); i++) {
+            char c = physicalName.charAt(i);
+            if (c == '.')
+                topic.append('/');
+            else if (c != '>')
+                topic.append(c);
+        }
+        if (topic.length() >= VIRTUAL_TOPIC.length() && topic.indexOf(VIRTUAL_TOPIC) == 0)
+            return topic.substring(VIRTUAL_TOPIC.length());
+        if (topic.length() > 0 && topic.charAt(0) == '/')
+            return topic.substring(1);
+        return topic.toString();
+    }
+
+}
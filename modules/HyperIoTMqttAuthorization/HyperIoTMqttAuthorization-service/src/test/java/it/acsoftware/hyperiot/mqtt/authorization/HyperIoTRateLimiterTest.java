@@ -0,0 +1,362 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTTopicPrincipal;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.Connection;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.security.SecurityContext;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tests token buckets, per device, packet and project limits, overflow policies, reload and eviction of limits.
+ * The last test simulates a project topology consuming messages of many devices at a fixed cost per message,
+ * one of them flooding the streaming topic, and compares latency of the other devices with and without rate limits.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTRateLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long FLOODING_DEVICE = 100;
+    private static final int WELL_BEHAVED_DEVICES = 4;
+    private static final int FLOOD_MESSAGES_PER_MS = 50;
+    private static final long PROCESSING_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long RUN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void test00_tokenBucketBurstAndRefill() {
+        HyperIoTTokenBucket bucket = new HyperIoTTokenBucket(10, 5, 0);
+        for (int i = 0; i < 5; i++)
+            Assert.assertTrue(bucket.tryAcquire(0));
+        Assert.assertFalse(bucket.tryAcquire(0));
+        Assert.assertFalse(bucket.tryAcquire(99 * MS));
+        Assert.assertTrue(bucket.tryAcquire(100 * MS));
+        Assert.assertFalse(bucket.tryAcquire(100 * MS));
+        // after a long pause bucket is full again, but never over its burst
+        for (int i = 0; i < 5; i++)
+            Assert.assertTrue(bucket.tryAcquire(10000 * MS));
+        Assert.assertFalse(bucket.tryAcquire(10000 * MS));
+    }
+
+    @Test
+    public void test01_tokenBucketReservesFutureTokens() {
+        HyperIoTTokenBucket bucket = new HyperIoTTokenBucket(10, 1, 0);
+        Assert.assertEquals(0, bucket.reserve(0, 1000 * MS));
+        Assert.assertEquals(100 * MS, bucket.reserve(0, 1000 * MS));
+        Assert.assertEquals(HyperIoTTokenBucket.REJECTED, bucket.reserve(0, 150 * MS));
+        bucket.refund();
+        Assert.assertEquals(100 * MS, bucket.reserve(0, 150 * MS));
+    }
+
+    @Test
+    public void test02_tokenBucketIsConsistentUnderContention() throws Exception {
+        HyperIoTTokenBucket bucket = new HyperIoTTokenBucket(1, 1000, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            results.add(pool.submit(() -> {
+                int acquired = 0;
+                for (int i = 0; i < 1000; i++)
+                    acquired += bucket.tryAcquire(0) ? 1 : 0;
+                return acquired;
+            }));
+        }
+        int acquired = 0;
+        for (Future<Integer> result : results)
+            acquired += result.get();
+        pool.shutdown();
+        Assert.assertEquals(1000, acquired);
+    }
+
+    @Test
+    public void test03_limitsPerDeviceWithOverrides() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "10");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.7.rate", "100");
+        HyperIoTRateLimiter limiter = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(HyperIoTRateLimitPolicy.DROP, limiter.getPolicy());
+        Assert.assertEquals(10, admitted(limiter, 1, 1, 1, 1000));
+        Assert.assertEquals(100, admitted(limiter, 1, 7, 2, 1000));
+        Assert.assertEquals(10, limiter.getDeviceCounters(1).getAllowedMessages());
+        Assert.assertEquals(990, limiter.getDeviceCounters(1).getDroppedMessages());
+    }
+
+    @Test
+    public void test04_limitsPerPacketAndProject() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "packet.rate", 5);
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "project.rate", 15);
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "project.burst", 15);
+        HyperIoTRateLimiter limiter = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(5, admitted(limiter, 1, 1, 1, 100));
+        Assert.assertEquals(5, admitted(limiter, 1, 1, 2, 100));
+        Assert.assertEquals(5, admitted(limiter, 1, 2, 3, 100));
+        // project has no tokens left
+        Assert.assertEquals(0, admitted(limiter, 1, 2, 4, 100));
+        // packet tokens taken by messages rejected by the project limit are given back
+        Assert.assertEquals(5, admitted(limiter, 2, 3, 4, 100));
+        // unlimited by default
+        Assert.assertEquals(1000, admitted(new HyperIoTRateLimiter(new HashMap<String, Object>()::get), 1, 1, 1, 1000));
+    }
+
+    @Test
+    public void test05_overflowPolicies() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "10");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.burst", "1");
+        properties.put(HyperIoTRateLimiter.OVERFLOW_POLICY_PROPERTY, "delay");
+        properties.put(HyperIoTRateLimiter.MAX_DELAY_MS_PROPERTY, "250");
+        HyperIoTRateLimiter delay = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(0, delay.acquire(1, 1, 1, 0));
+        Assert.assertEquals(100 * MS, delay.acquire(1, 1, 1, 0));
+        Assert.assertEquals(200 * MS, delay.acquire(1, 1, 1, 0));
+        Assert.assertEquals(HyperIoTRateLimiter.REJECTED, delay.acquire(1, 1, 1, 0));
+        HyperIoTDeviceThrottlingCounters counters = delay.getDeviceCounters(1);
+        Assert.assertEquals(1, counters.getAllowedMessages());
+        Assert.assertEquals(2, counters.getDelayedMessages());
+        Assert.assertEquals(1, counters.getDroppedMessages());
+
+        properties.put(HyperIoTRateLimiter.OVERFLOW_POLICY_PROPERTY, "QUARANTINE");
+        HyperIoTRateLimiter quarantine = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(1, admitted(quarantine, 1, 1, 1, 10));
+        Assert.assertEquals(1, admitted(quarantine, 1, 2, 2, 10));
+        Assert.assertEquals(9, quarantine.getDeviceCounters(1).getQuarantinedMessages());
+        Assert.assertEquals(18, quarantine.getThrottledMessages());
+        Assert.assertEquals(2, quarantine.getThrottledDeviceCounters().size());
+        Assert.assertEquals(HyperIoTRateLimitPolicy.DROP, HyperIoTRateLimitPolicy.fromName("unknown"));
+    }
+
+    @Test
+    public void test06_streamingTopicIds() {
+        Assert.assertArrayEquals(new long[]{1, 2, 3},
+                HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQTopic("VirtualTopic.streaming.1.2.3")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQTopic("VirtualTopic.streaming.1.2.>")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQTopic("VirtualTopic.streaming.1.2")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQTopic("VirtualTopic.streaming.1.2.3.4")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQTopic("VirtualTopic.realtime.1.2.3")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(new ActiveMQQueue("VirtualTopic.streaming.1.2.3")));
+        Assert.assertNull(HyperIoTBrokerFilter.streamingTopicIds(null));
+    }
+
+    @Test
+    public void test06a_streamingConsumerQueues() {
+        List<String> consumers = HyperIoTBrokerFilter.streamingConsumers(" HyperIoTMqtt2Kafka, ,Other");
+        Assert.assertEquals(Arrays.asList("HyperIoTMqtt2Kafka", "Other"), consumers);
+        Assert.assertEquals(Arrays.asList(new ActiveMQQueue("Consumer.HyperIoTMqtt2Kafka.VirtualTopic.streaming.1.2.3"),
+                        new ActiveMQQueue("Consumer.Other.VirtualTopic.streaming.1.2.3")),
+                HyperIoTBrokerFilter.streamingConsumerQueues(new ActiveMQTopic("VirtualTopic.streaming.1.2.3"), consumers));
+        Assert.assertTrue(HyperIoTBrokerFilter.streamingConsumerQueues(new ActiveMQTopic("VirtualTopic.quarantine.1.2.3"), consumers).isEmpty());
+        Assert.assertTrue(HyperIoTBrokerFilter.streamingConsumerQueues(new ActiveMQTopic("VirtualTopic.streaming.1.2.3"),
+                HyperIoTBrokerFilter.streamingConsumers(null)).isEmpty());
+    }
+
+    @Test
+    public void test07_floodingDeviceDoesNotDegradeOtherDevices() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "200");
+        HyperIoTRateLimiter limiter = new HyperIoTRateLimiter(properties::get);
+        long unlimitedNanos = wellBehavedDevicesLatency(null);
+        long limitedNanos = wellBehavedDevicesLatency(limiter);
+        System.out.println(String.format("p99 latency of well behaved devices with a flooding device: no rate limits %d ms, rate limits %.2f ms",
+                TimeUnit.NANOSECONDS.toMillis(unlimitedNanos), limitedNanos / (double) MS));
+        Assert.assertTrue(limitedNanos * 10 < unlimitedNanos);
+        Assert.assertTrue(limiter.getDeviceCounters(FLOODING_DEVICE).getDroppedMessages() > 0);
+        Assert.assertEquals(1, limiter.getThrottledDeviceCounters().size());
+        Assert.assertEquals(FLOODING_DEVICE, limiter.getThrottledDeviceCounters().get(0).getDeviceId());
+    }
+
+    @Test
+    public void test08_reloadAppliesChangedLimits() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "10");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.burst", "1");
+        HyperIoTRateLimiter limiter = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(1, admitted(limiter, 1, 1, 1, 10));
+        Assert.assertEquals(1, admitted(limiter, 1, 2, 2, 10));
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.1.rate", "100");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.1.burst", "5");
+        properties.put(HyperIoTRateLimiter.OVERFLOW_POLICY_PROPERTY, "quarantine");
+        limiter.reload(0);
+        Assert.assertEquals(HyperIoTRateLimitPolicy.QUARANTINE, limiter.getPolicy());
+        // changed limits start from a full bucket, unchanged ones keep their tokens
+        Assert.assertEquals(5, admitted(limiter, 1, 1, 1, 10));
+        Assert.assertEquals(0, admitted(limiter, 1, 2, 2, 10));
+        Assert.assertEquals(10, limiter.getDeviceCounters(2).getQuarantinedMessages());
+    }
+
+    @Test
+    public void test09_idleIdsAreEvicted() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "10");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.burst", "1");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.3.rate", "0.001");
+        properties.put(HyperIoTRateLimiter.IDLE_MS_PROPERTY, "1000");
+        HyperIoTRateLimiter limiter = new HyperIoTRateLimiter(properties::get);
+        Assert.assertEquals(0, limiter.acquire(1, 1, 1, 0));
+        Assert.assertEquals(0, limiter.acquire(1, 3, 3, 0));
+        // devices 1 and 3, packets 1 and 3, project 1
+        Assert.assertEquals(5, limiter.trackedIds());
+        limiter.evictIdle(500 * MS);
+        Assert.assertEquals(5, limiter.trackedIds());
+        limiter.evictIdle(2000 * MS);
+        // bucket of device 3 is still empty, evicting it would give the device new tokens
+        Assert.assertEquals(1, limiter.trackedIds());
+        Assert.assertNull(limiter.getDeviceCounters(1));
+        Assert.assertNotNull(limiter.getDeviceCounters(3));
+        Assert.assertEquals(HyperIoTRateLimiter.REJECTED, limiter.acquire(1, 3, 3, 2000 * MS));
+        Assert.assertEquals(0, limiter.acquire(1, 1, 1, 2000 * MS));
+    }
+
+    @Test
+    public void test10_brokerDelaysAndDropsWithoutBlocking() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.rate", "10");
+        properties.put(HyperIoTRateLimiter.PROPERTY_PREFIX + "device.burst", "1");
+        properties.put(HyperIoTRateLimiter.OVERFLOW_POLICY_PROPERTY, "delay");
+        properties.put(HyperIoTRateLimiter.MAX_DELAY_MS_PROPERTY, "150");
+        BrokerService brokerService = new BrokerService();
+        brokerService.setSchedulerSupport(true);
+        List<Message> delivered = new ArrayList<>();
+        Broker next = (Broker) Proxy.newProxyInstance(Broker.class.getClassLoader(), new Class[]{Broker.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getBrokerService"))
+                        return brokerService;
+                    if (method.getName().equals("send"))
+                        delivered.add((Message) args[1]);
+                    return null;
+                });
+        List<IOException> connectionErrors = new ArrayList<>();
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("serviceExceptionAsync"))
+                        connectionErrors.add((IOException) args[0]);
+                    return null;
+                });
+        ConnectionContext context = new ConnectionContext();
+        context.setConnection(connection);
+        context.setSecurityContext(new SecurityContext("device") {
+            @Override
+            public Set<Principal> getPrincipals() {
+                return Collections.singleton(new HyperIoTTopicPrincipal("streaming/1/2/3"));
+            }
+        });
+        ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+        exchange.setConnectionContext(context);
+        HyperIoTBrokerFilter filter = new HyperIoTBrokerFilter(next, new HyperIoTRateLimiter(properties::get), Collections.emptyList());
+        for (int i = 0; i < 3; i++) {
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setDestination(new ActiveMQTopic("VirtualTopic.streaming.1.2.3"));
+            filter.send(exchange, message);
+        }
+        // second message is scheduled 100 ms later, third one would exceed max delay
+        Assert.assertEquals(2, delivered.size());
+        Assert.assertNull(delivered.get(0).getProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+        long delay = (Long) delivered.get(1).getProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY);
+        Assert.assertTrue(delay > 0 && delay <= 100);
+        // dropping a message is not silent, publisher connection is closed
+        Assert.assertEquals(1, connectionErrors.size());
+    }
+
+    private int admitted(HyperIoTRateLimiter limiter, long projectId, long deviceId, long packetId, int messages) {
+        int admitted = 0;
+        for (int i = 0; i < messages; i++) {
+            if (limiter.acquire(projectId, deviceId, packetId, 0) == 0)
+                admitted++;
+        }
+        return admitted;
+    }
+
+    /**
+     * Devices publish to the single consumer of the project (the project topology), which spends PROCESSING_NANOS
+     * on every message. The flooding device alone publishes more than the consumer can handle.
+     *
+     * @param limiter rate limiter, null to publish without limits
+     * @return p99 latency, from publishing to processing, of messages of well behaved devices
+     */
+    private long wellBehavedDevicesLatency(HyperIoTRateLimiter limiter) throws Exception {
+        BlockingQueue<long[]> topology = new LinkedBlockingQueue<>();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        Thread consumer = new Thread(() -> {
+            try {
+                long[] message;
+                while ((message = topology.take())[0] >= 0) {
+                    long deadline = System.nanoTime() + PROCESSING_NANOS;
+                    while (System.nanoTime() < deadline) ;
+                    if (message[0] != FLOODING_DEVICE)
+                        latencies.add(System.nanoTime() - message[1]);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        ExecutorService devices = Executors.newFixedThreadPool(WELL_BEHAVED_DEVICES + 1);
+        long end = System.nanoTime() + RUN_NANOS;
+        devices.execute(() -> {
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < FLOOD_MESSAGES_PER_MS; i++)
+                    publish(limiter, topology, FLOODING_DEVICE);
+                LockSupport.parkNanos(MS);
+            }
+        });
+        for (long deviceId = 1; deviceId <= WELL_BEHAVED_DEVICES; deviceId++) {
+            final long id = deviceId;
+            devices.execute(() -> {
+                while (System.nanoTime() < end) {
+                    publish(limiter, topology, id);
+                    LockSupport.parkNanos(10 * MS);
+                }
+            });
+        }
+        devices.shutdown();
+        Assert.assertTrue(devices.awaitTermination(1, TimeUnit.MINUTES));
+        topology.put(new long[]{-1, 0});
+        consumer.join(TimeUnit.MINUTES.toMillis(1));
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        Assert.assertFalse(sorted.isEmpty());
+        return sorted.get((int) (sorted.size() * 0.99));
+    }
+
+    private void publish(HyperIoTRateLimiter limiter, BlockingQueue<long[]> topology, long deviceId) {
+        long sent = System.nanoTime();
+        if (limiter == null || limiter.acquire(1, deviceId, deviceId) != HyperIoTRateLimiter.REJECTED)
+            topology.add(new long[]{deviceId, sent});
+    }
+
+}
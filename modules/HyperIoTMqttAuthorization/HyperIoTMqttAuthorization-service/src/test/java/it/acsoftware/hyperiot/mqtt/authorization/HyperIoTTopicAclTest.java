@@ -0,0 +1,110 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.mqtt.authorization;
+
+import it.acsoftware.hyperiot.base.model.authentication.principal.HyperIoTTopicPrincipal;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests topic access list semantics, which must be the ones of the linear scan of connection principals
+ * previously executed by HyperIoTBrokerFilter for every published message.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTTopicAclTest {
+
+    private static final int PRINCIPALS = 10000;
+
+    @Test
+    public void test00_extractTopic() {
+        Assert.assertEquals("streaming/1/2/3", HyperIoTTopicAcl.extractTopic("VirtualTopic.streaming.1.2.3"));
+        Assert.assertEquals("streaming/1/2/", HyperIoTTopicAcl.extractTopic("VirtualTopic.streaming.1.2.>"));
+        Assert.assertEquals("device/1", HyperIoTTopicAcl.extractTopic(".device.1"));
+        Assert.assertEquals("device/1", HyperIoTTopicAcl.extractTopic("device.1"));
+    }
+
+    @Test
+    public void test01_permissions() {
+        List<Principal> principals = new ArrayList<>();
+        principals.add(new HyperIoTTopicPrincipal("streaming/1/2"));
+        principals.add(new HyperIoTTopicPrincipal("realtime/1/2", false, true));
+        HyperIoTTopicAcl acl = HyperIoTTopicAcl.fromPrincipals(principals);
+        Assert.assertFalse(acl.isAdmin());
+        Assert.assertTrue(acl.canAccess("STREAMING/1/2", false, true));
+        Assert.assertTrue(acl.canAccess("streaming/1/2", true, false));
+        Assert.assertTrue(acl.canAccess("realtime/1/2", false, false));
+        Assert.assertTrue(acl.canAccess("realtime/1/2", false, true));
+        Assert.assertFalse(acl.canAccess("realtime/1/2", true, false));
+        Assert.assertFalse(acl.canAccess("streaming/1/3", false, false));
+    }
+
+    @Test
+    public void test02_duplicatedTopicsMergePermissions() {
+        List<Principal> principals = new ArrayList<>();
+        principals.add(new HyperIoTTopicPrincipal("streaming/1/2", false, true));
+        principals.add(new HyperIoTTopicPrincipal("streaming/1/2"));
+        HyperIoTTopicAcl acl = HyperIoTTopicAcl.fromPrincipals(principals);
+        Assert.assertEquals(1, acl.size());
+        Assert.assertTrue(acl.canAccess("streaming/1/2", true, false));
+    }
+
+    @Test
+    public void test03_aclAgreesWithLinearScan() {
+        List<Principal> principals = new ArrayList<>(PRINCIPALS);
+        for (int i = 0; i < PRINCIPALS; i++)
+            principals.add(new HyperIoTTopicPrincipal("streaming/1/" + i + "/" + i, false, i % 2 == 0));
+        HyperIoTTopicAcl acl = HyperIoTTopicAcl.fromPrincipals(principals);
+        Assert.assertEquals(PRINCIPALS, acl.size());
+        //granted topics, half of them without publish permission, and topics not granted
+        for (int i = 0; i < PRINCIPALS * 2; i++) {
+            String physicalName = "VirtualTopic.streaming.1." + i + "." + i;
+            String topic = HyperIoTTopicAcl.extractTopic(physicalName);
+            Assert.assertEquals(regexExtractTopic(physicalName), topic);
+            Assert.assertEquals(physicalName, linearScan(principals, topic), acl.canAccess(topic, false, true));
+        }
+    }
+
+    /**
+     * Authorization as performed before the access list was introduced
+     */
+    private static boolean linearScan(List<Principal> principals, String destinationTopic) {
+        for (Principal p : principals) {
+            if (p instanceof HyperIoTTopicPrincipal && destinationTopic.equalsIgnoreCase(p.getName()))
+                return ((HyperIoTTopicPrincipal) p).isCanPublish();
+        }
+        return false;
+    }
+
+    private static String regexExtractTopic(String physicalName) {
+        String convertedTopic = physicalName.replaceAll("\\.", "/");
+        convertedTopic = convertedTopic.replaceAll(">", "");
+        if (convertedTopic.startsWith("VirtualTopic/"))
+            convertedTopic = convertedTopic.replace("VirtualTopic/", "");
+        else if (convertedTopic.startsWith("/"))
+            convertedTopic = convertedTopic.substring(1);
+        return convertedTopic;
+    }
+
+}
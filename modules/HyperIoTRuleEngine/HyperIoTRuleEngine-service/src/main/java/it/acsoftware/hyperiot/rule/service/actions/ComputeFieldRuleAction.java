@@ -109,7 +109,7 @@ public class ComputeFieldRuleAction extends EnrichmentRuleAction {
                 outputField.setTagIds(new long[0]);
                 outputField.setInnerFields(new HashSet<>());
                 outputField.setPacket(packet);
-                packet.getFields().add(outputField);
+                packet.addField(outputField);
                 outputField.setValue(value);
             } catch (Exception e) {
                 log.error(e.getLocalizedMessage());
@@ -169,7 +169,7 @@ public class FourierTransformRuleAction extends EnrichmentRuleAction {
                 outputField.setTagIds(new long[0]);
                 outputField.setInnerFields(new HashSet<>());
                 outputField.setPacket(packet);
-                packet.getFields().add(outputField);
+                packet.addField(outputField);
             } catch (Exception e) {
                 log.error(e.getLocalizedMessage());
                 e.printStackTrace();
@@ -234,7 +234,7 @@ public class FourierTransformRuleAction extends EnrichmentRuleAction {
                 outputField.setTagIds(new long[0]);
                 outputField.setInnerFields(new HashSet<>());
                 outputField.setPacket(packet);
-                packet.getFields().add(outputField);
+                packet.addField(outputField);
             } catch (Exception e) {
                 log.error(e.getLocalizedMessage());
                 e.printStackTrace();
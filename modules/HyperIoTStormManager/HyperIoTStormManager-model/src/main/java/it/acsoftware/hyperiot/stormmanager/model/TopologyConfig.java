@@ -20,12 +20,13 @@ package it.acsoftware.hyperiot.stormmanager.model;
 import java.util.Objects;
 
 /**
- *
+ * Rendered topology files, with the fingerprint of the configuration they are rendered from
  */
 public class TopologyConfig {
     public String name = "";
     public String properties = "";
     public String yaml = "";
+    public TopologyConfigFingerprint fingerprint;
 
     @Override
     public boolean equals(Object o) {
@@ -0,0 +1,37 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.stormmanager.model;
+
+/**
+ * Difference between the configuration of a running topology and the current configuration of its project
+ */
+public enum TopologyConfigChange {
+    /**
+     * Configurations are equal
+     */
+    NONE,
+    /**
+     * Only rule engine configuration changed (drools code, rule ids, alarm rules):
+     * topology structure is the same, rules could be reloaded by the running topology
+     */
+    RULES,
+    /**
+     * Packets definitions or topology settings changed: topology must be resubmitted
+     */
+    STRUCTURE
+}
@@ -0,0 +1,143 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.stormmanager.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+
+/**
+ * Content hashes of the sections of a topology configuration.
+ * Hashes depend on configuration content only (entries are hashed in key order),
+ * so they can be compared across restarts and cluster nodes.
+ */
+public class TopologyConfigFingerprint {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String SEPARATOR = ":";
+
+    private final String structureHash;
+    private final String rulesHash;
+
+    public TopologyConfigFingerprint(String structureHash, String rulesHash) {
+        this.structureHash = structureHash;
+        this.rulesHash = rulesHash;
+    }
+
+    /**
+     * @return hash of packets definitions and topology settings
+     */
+    public String getStructureHash() {
+        return structureHash;
+    }
+
+    /**
+     * @return hash of rule engine configuration
+     */
+    public String getRulesHash() {
+        return rulesHash;
+    }
+
+    /**
+     * @param previous fingerprint of the running topology, null if unknown
+     * @return what changed from the previous configuration, STRUCTURE if it is unknown
+     */
+    public TopologyConfigChange diff(TopologyConfigFingerprint previous) {
+        if (previous == null || !structureHash.equals(previous.structureHash))
+            return TopologyConfigChange.STRUCTURE;
+        return rulesHash.equals(previous.rulesHash) ? TopologyConfigChange.NONE : TopologyConfigChange.RULES;
+    }
+
+    /**
+     * @return fingerprint as text, to be stored outside of this JVM
+     */
+    public String encode() {
+        return structureHash + SEPARATOR + rulesHash;
+    }
+
+    /**
+     * @param encoded fingerprint returned by encode
+     * @return decoded fingerprint, null if it is not a valid encoded fingerprint
+     */
+    public static TopologyConfigFingerprint decode(String encoded) {
+        if (encoded == null)
+            return null;
+        String[] hashes = encoded.trim().split(SEPARATOR);
+        return (hashes.length == 2) ? new TopologyConfigFingerprint(hashes[0], hashes[1]) : null;
+    }
+
+    /**
+     * @param sections configuration sections, each one sorted by key
+     * @return hex encoded SHA-256 of sections entries
+     */
+    @SafeVarargs
+    public static String contentHash(SortedMap<?, String>... sections) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            for (SortedMap<?, String> section : sections) {
+                for (Map.Entry<?, String> entry : section.entrySet()) {
+                    //lengths are hashed too, so that entries boundaries are not ambiguous
+                    update(digest, String.valueOf(entry.getKey()));
+                    update(digest, entry.getValue());
+                }
+                digest.update((byte) 0);
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest())
+                hash.append(String.format("%02x", b));
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        digest.update(String.valueOf(bytes.length).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TopologyConfigFingerprint)) return false;
+        TopologyConfigFingerprint that = (TopologyConfigFingerprint) o;
+        return Objects.equals(structureHash, that.structureHash) &&
+                Objects.equals(rulesHash, that.rulesHash);
+    }
+
+    /**
+     * Hash code is saved inside the configuration of submitted topologies,
+     * it only depends on content hashes so it is the same on every JVM
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(structureHash, rulesHash);
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyConfigFingerprint{" +
+                "structureHash='" + structureHash + '\'' +
+                ", rulesHash='" + rulesHash + '\'' +
+                '}';
+    }
+}
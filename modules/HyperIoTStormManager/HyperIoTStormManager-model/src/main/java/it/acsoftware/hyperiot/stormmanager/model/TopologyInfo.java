@@ -26,6 +26,7 @@ public class TopologyInfo {
     private String status;
     private int uptimeSecs;
     private boolean mustResubmit;
+    private TopologyConfigChange configChange;
     private int boltsCount;
     private int spoutsCount;
 
@@ -56,6 +57,17 @@ public class TopologyInfo {
         this.mustResubmit = mustResubmit;
     }
 
+    /**
+     * @return what changed from the configuration of the running topology
+     */
+    public TopologyConfigChange getConfigChange() {
+        return configChange;
+    }
+
+    public void setConfigChange(TopologyConfigChange configChange) {
+        this.configChange = configChange;
+    }
+
     public int getBoltsCount() {
         return boltsCount;
     }
@@ -19,6 +19,7 @@ package it.acsoftware.hyperiot.stormmanager.service;
 import it.acsoftware.hyperiot.base.exception.HyperIoTEntityNotFound;
 import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
 import it.acsoftware.hyperiot.base.service.HyperIoTBaseSystemServiceImpl;
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
 import it.acsoftware.hyperiot.hbase.connector.api.HBaseConnectorSystemApi;
 import it.acsoftware.hyperiot.hproject.api.HProjectRepository;
 import it.acsoftware.hyperiot.hproject.util.hbase.HProjectHBaseConstants;
@@ -26,17 +27,25 @@ import it.acsoftware.hyperiot.storm.api.StormClient;
 import it.acsoftware.hyperiot.storm.builder.HyperIoTTopologyConfigBuilder;
 import it.acsoftware.hyperiot.stormmanager.api.StormManagerSystemApi;
 import it.acsoftware.hyperiot.stormmanager.model.TopologyConfig;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfigChange;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfigFingerprint;
 import it.acsoftware.hyperiot.stormmanager.model.TopologyInfo;
+import it.acsoftware.hyperiot.zookeeper.connector.api.ZookeeperConnectorSystemApi;
+import it.acsoftware.hyperiot.zookeeper.connector.util.HyperIoTZookeeperConstants;
 import org.apache.storm.generated.StormTopology;
 import org.apache.storm.generated.TopologySummary;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.NoResultException;
 import java.io.IOException;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Aristide Cittadino Implementation class of the StormManagerSystemApi
@@ -63,6 +72,14 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
 
     private HBaseConnectorSystemApi hBaseConnectorSystemApi;
 
+    private ZookeeperConnectorSystemApi zookeeperConnectorSystemApi;
+
+    /**
+     * Fingerprints of the submitted configurations: project id -> fingerprint.
+     * They are saved on zookeeper too, so they survive restarts and are known by every node
+     */
+    private final Map<Long, TopologyConfigFingerprint> submittedFingerprints = new ConcurrentHashMap<>();
+
     /**
      * @param stormClient
      */
@@ -84,6 +101,12 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
         this.hBaseConnectorSystemApi = hBaseConnectorSystemApi;
     }
 
+    //without zookeeper, fingerprints are known only by the node which submitted the topology
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL)
+    protected void setZookeeperConnectorSystemApi(ZookeeperConnectorSystemApi zookeeperConnectorSystemApi) {
+        this.zookeeperConnectorSystemApi = zookeeperConnectorSystemApi;
+    }
+
     /**
      * @param projectId The HProject id
      * @return
@@ -100,11 +123,78 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
      * @throws IOException
      */
     public boolean mustResubmitTopology(long projectId, int currentTopologyConfigHashcode) throws IOException {
-        TopologyConfig config = HyperIoTTopologyConfigBuilder.getTopologyConfig(projectId, getTopologyName(projectId));
-        if (config.hashCode() == currentTopologyConfigHashcode) {
-            return false;
+        return getTopologyConfigChange(projectId, currentTopologyConfigHashcode) != TopologyConfigChange.NONE;
+    }
+
+    /**
+     * Compares project configuration with the one of the running topology, without rendering topology files.
+     * If the fingerprint saved on submit matches the running topology, rule only changes are detected,
+     * otherwise only the hash code saved in topology configuration can be compared.
+     *
+     * @param projectId                     project id
+     * @param currentTopologyConfigHashcode config hash code of the running topology
+     * @return what changed from the configuration of the running topology
+     * @throws IOException
+     */
+    public TopologyConfigChange getTopologyConfigChange(long projectId, int currentTopologyConfigHashcode) throws IOException {
+        TopologyConfigFingerprint fingerprint = HyperIoTTopologyConfigBuilder
+                .getTopologyConfigModel(projectId, getTopologyName(projectId)).getFingerprint();
+        TopologyConfigFingerprint submittedFingerprint = getSubmittedFingerprint(projectId, currentTopologyConfigHashcode);
+        if (submittedFingerprint != null)
+            return fingerprint.diff(submittedFingerprint);
+        return (fingerprint.hashCode() == currentTopologyConfigHashcode) ? TopologyConfigChange.NONE : TopologyConfigChange.STRUCTURE;
+    }
+
+    /**
+     * @param projectId                     project id
+     * @param currentTopologyConfigHashcode config hash code of the running topology
+     * @return fingerprint of the running topology configuration, null if it is unknown
+     */
+    private TopologyConfigFingerprint getSubmittedFingerprint(long projectId, int currentTopologyConfigHashcode) {
+        TopologyConfigFingerprint submittedFingerprint = submittedFingerprints.get(projectId);
+        if (submittedFingerprint != null && submittedFingerprint.hashCode() == currentTopologyConfigHashcode)
+            return submittedFingerprint;
+        //submitted by another node or before a restart
+        submittedFingerprint = readSubmittedFingerprint(projectId);
+        if (submittedFingerprint == null || submittedFingerprint.hashCode() != currentTopologyConfigHashcode)
+            return null;
+        submittedFingerprints.put(projectId, submittedFingerprint);
+        return submittedFingerprint;
+    }
+
+    private TopologyConfigFingerprint readSubmittedFingerprint(long projectId) {
+        if (zookeeperConnectorSystemApi == null)
+            return null;
+        String path = getFingerprintZookeeperPath(projectId);
+        try {
+            if (!zookeeperConnectorSystemApi.checkExists(path))
+                return null;
+            return TopologyConfigFingerprint.decode(new String(zookeeperConnectorSystemApi.read(path, true), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            getLog().warn("Fingerprint of topology of project {} not read: {}", projectId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveSubmittedFingerprint(long projectId, TopologyConfigFingerprint fingerprint) {
+        submittedFingerprints.put(projectId, fingerprint);
+        if (zookeeperConnectorSystemApi == null)
+            return;
+        String path = getFingerprintZookeeperPath(projectId);
+        byte[] data = fingerprint.encode().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (zookeeperConnectorSystemApi.checkExists(path))
+                zookeeperConnectorSystemApi.update(path, data);
+            else
+                zookeeperConnectorSystemApi.createPersistent(path, data, true);
+        } catch (Exception e) {
+            //topology has been submitted anyway, its changes will be reported as structure ones
+            getLog().warn("Fingerprint of topology of project {} not saved: {}", projectId, e.getMessage());
         }
-        return true;
+    }
+
+    private String getFingerprintZookeeperPath(long projectId) {
+        return HyperIoTZookeeperConstants.HYPERIOT_ZOOKEEPER_BASE_PATH + "/" + HyperIoTUtil.getLayer() + "/hprojects/topologies/" + projectId + "/fingerprint";
     }
 
     /**
@@ -122,7 +212,7 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
         TopologyConfig topologyConfig = HyperIoTTopologyConfigBuilder.getTopologyConfig(projectId, getTopologyName(projectId));
         getLog().debug("Submitting topology with props: \n {} and yaml: {}", new Object[]{topologyConfig.properties, topologyConfig.yaml});
         checkHBaseTables(projectId);
-        topologyServiceSubmit(topologyConfig);
+        topologyServiceSubmit(projectId, topologyConfig);
     }
 
     private void checkHBaseTables(long projectId) throws IOException {
@@ -171,20 +261,20 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
         long currentTime = System.currentTimeMillis();
         try {
             hProjectRepository.find(projectId, null);
-            String topologyName = this.getTopologyName(projectId);
-            List<TopologySummary> topologies = this.stormClient.getTopologyList();
-            if (topologies.size() > 0) {
-                TopologySummary topologySummary = topologies.stream().filter(topology -> topology.get_name().equalsIgnoreCase(topologyName)).findFirst().get();
-                if (topologyName != null) {
-                    String topologyId = topologySummary.get_id();
-                    info.setStatus(topologySummary.get_status());
-                    info.setUptimeSecs(topologySummary.get_uptime_secs());
-                    info.setMustResubmit(this.mustResubmitTopology(projectId, this.stormClient.getTopologyConfigHashCode(topologySummary)));
-                    StormTopology topology = this.stormClient.getTopology(topologyId);
-                    if (topology != null) {
-                        info.setSpoutsCount(topology.get_spouts().size());
-                        info.setBoltsCount(topology.get_bolts().size());
-                    }
+            Optional<TopologySummary> topologySummary = findTopologySummary(this.getTopologyName(projectId));
+            if (topologySummary.isPresent()) {
+                String topologyId = topologySummary.get().get_id();
+                info.setStatus(topologySummary.get().get_status());
+                info.setUptimeSecs(topologySummary.get().get_uptime_secs());
+                TopologyConfigChange configChange = this.getTopologyConfigChange(projectId,
+                        this.stormClient.getTopologyConfigHashCode(topologySummary.get()));
+                info.setConfigChange(configChange);
+                //running topologies do not reload rules yet, any change requires a new submit
+                info.setMustResubmit(configChange != TopologyConfigChange.NONE);
+                StormTopology topology = this.stormClient.getTopology(topologyId);
+                if (topology != null) {
+                    info.setSpoutsCount(topology.get_spouts().size());
+                    info.setBoltsCount(topology.get_bolts().size());
                 }
             } else {
                 info.setStatus(TOPOLOGY_INFO_NOT_FOUND);
@@ -205,6 +295,16 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
         return info;
     }
 
+    /**
+     * @param topologyName topology name
+     * @return summary of the running topology with the given name
+     */
+    private Optional<TopologySummary> findTopologySummary(String topologyName) throws Exception {
+        return this.stormClient.getTopologyList().stream()
+                .filter(topology -> topology.get_name().equalsIgnoreCase(topologyName))
+                .findFirst();
+    }
+
     /**
      * @param topologyName Name of the topology to activate.
      * @throws IOException
@@ -246,13 +346,15 @@ public final class StormManagerSystemServiceImpl extends HyperIoTBaseSystemServi
     }
 
     /**
+     * @param projectId
      * @param topologyConfig
      */
-    private void topologyServiceSubmit(TopologyConfig topologyConfig) {
+    private void topologyServiceSubmit(long projectId, TopologyConfig topologyConfig) {
         try {
-            this.stormClient.submitTopology(topologyConfig.properties, topologyConfig.yaml, topologyConfig.hashCode());
+            this.stormClient.submitTopology(topologyConfig.properties, topologyConfig.yaml, topologyConfig.fingerprint.hashCode());
         } catch (Exception e) {
             throw new HyperIoTRuntimeException(e.getMessage());
         }
+        saveSubmittedFingerprint(projectId, topologyConfig.fingerprint);
     }
 }
@@ -26,8 +26,11 @@ import it.acsoftware.hyperiot.storm.hbase.mapper.AvroHBaseMapper;
 import it.acsoftware.hyperiot.storm.hbase.mapper.EventRuleStateHBaseMapper;
 import it.acsoftware.hyperiot.storm.hbase.mapper.TimelineHBaseMapper;
 import it.acsoftware.hyperiot.storm.hdfs.HyperIoTFileNameFormat;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTHdfsLayout;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTLateDataPolicy;
 import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperiotPartitioner;
 import it.acsoftware.hyperiot.storm.runtime.bolt.*;
+import it.acsoftware.hyperiot.storm.runtime.spout.HyperIoTStreamingRecordTranslator;
 import it.acsoftware.hyperiot.storm.util.StormConstants;
 import it.acsoftware.hyperiot.stormmanager.model.MessageConversionStrategy;
 import org.apache.storm.Config;
@@ -45,6 +48,7 @@ import org.apache.storm.kafka.spout.KafkaSpout;
 import org.apache.storm.kafka.spout.KafkaSpoutConfig;
 import org.apache.storm.kafka.spout.KafkaSpoutRetryExponentialBackoff;
 import org.apache.storm.kafka.spout.KafkaSpoutRetryService;
+import org.apache.storm.topology.SpoutDeclarer;
 import org.apache.storm.topology.TopologyBuilder;
 import org.apache.storm.tuple.Fields;
 import org.osgi.service.component.annotations.Component;
@@ -61,6 +65,16 @@ import static it.acsoftware.hyperiot.storm.util.StormConstants.*;
 @Component(service = StormTopologyBuilder.class, immediate = true)
 public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
 
+    /**
+     * In reliable mode tuples are anchored from the spout to HBase and HDFS bolts,
+     * kafka records are acked only once persisted and replayed otherwise
+     */
+    public static final boolean DEFAULT_RELIABLE_MODE = false;
+    public static final int DEFAULT_MAX_SPOUT_PENDING = 1000;
+    /**
+     * Storm default value of topology.message.timeout.secs
+     */
+    public static final int DEFAULT_MESSAGE_TIMEOUT_SECS = 30;
 
     @Override
     public StormTopology configureTopology(Config config) {
@@ -78,18 +92,20 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
         HProjectSystemApi hProjectSystemApi = (HProjectSystemApi) HyperIoTUtil.getService(HProjectSystemApi.class);
         HProject project = hProjectSystemApi.find(projectId, null);
         String kafkaSpoutId = StormConstants.KAFKA_SPOUT_ID + project.getId();
+        //devices and packets are loaded once to compute executors of every component
+        HyperIoTTopologyParallelism parallelism = HyperIoTTopologyParallelism.fromHProject(project);
         //Adding spout layer with Kafka
-        buildSpoutLayer(props, project, builder, kafkaSpoutId);
+        buildSpoutLayer(props, project, parallelism, builder, kafkaSpoutId);
         //Realtime speed layer with deserialization,enrichment,event and selection bolts
-        buildRealtimeBoltsLayer(props, project, builder, projectIdStr, kafkaSpoutId);
+        buildRealtimeBoltsLayer(props, project, parallelism, builder, projectIdStr, kafkaSpoutId);
         //Speed layer with HBase
-        buildSpeedAndServingBoltsLayer(props, project, builder, projectIdStr);
+        buildSpeedAndServingBoltsLayer(props, project, parallelism, builder, projectIdStr);
         //HDFS persistence
-        buildBatchBoltsLayer(props, project, builder);
+        buildBatchBoltsLayer(props, project, parallelism, builder);
         //Bolt layer that write on dlq when there is an error
-        buildDLQBoltsLayer(props, project, builder, projectIdStr, kafkaSpoutId);
+        buildDLQBoltsLayer(props, project, parallelism, builder, projectIdStr, kafkaSpoutId);
 
-        buildErrorBoltsLayer(props, builder, projectIdStr);
+        buildErrorBoltsLayer(props, parallelism, builder, projectIdStr);
         StormTopology topology = builder.createTopology();
         return topology;
     }
@@ -97,12 +113,16 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
     /**
      * @param props
      * @param project
+     * @param parallelism
      * @param builder
      */
-    private static void buildSpoutLayer(Map<String, Object> props, HProject project, TopologyBuilder builder, String kafkaSpoutId) {
-        int kafkaSpoutParallelism = getKafkaSpoutParallelism(project);
+    private static void buildSpoutLayer(Map<String, Object> props, HProject project, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder, String kafkaSpoutId) {
+        int kafkaSpoutParallelism = getKafkaSpoutParallelism(parallelism);
         KafkaSpout<byte[], byte[]> kafkaSpout = createKafkaSpout(props, project);
-        builder.setSpout(kafkaSpoutId, kafkaSpout, kafkaSpoutParallelism);
+        SpoutDeclarer kafkaSpoutDeclarer = builder.setSpout(kafkaSpoutId, kafkaSpout, kafkaSpoutParallelism);
+        //records not yet persisted are kept in memory by the spout until they are acked, their number must be bounded
+        if (isReliableMode(props))
+            kafkaSpoutDeclarer.setMaxSpoutPending(getMaxSpoutPending(props));
 
         String kafkaDlqSpoutId = String.format(StormConstants.KAFKA_DLQ_SPOUT_ID, project.getId());
         KafkaSpout<byte[], byte[]> kafkaDLQSpout = createKafkaDLQSpout(props, project, KAFKA_DLQ_SPOUT_TOPIC_NAME);
@@ -113,31 +133,38 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
     /**
      * @param props
      * @param project
+     * @param parallelism
      * @param builder
      * @param projectIdStr
      * @param kafkaSpoutId
      */
-    private static void buildRealtimeBoltsLayer(Map<String, Object> props, HProject project, TopologyBuilder builder, String projectIdStr, String kafkaSpoutId) {
+    static void buildRealtimeBoltsLayer(Map<String, Object> props, HProject project, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder, String projectIdStr, String kafkaSpoutId) {
         //Deserialization Bolt
         DeserializationBolt deserializationBolt = new DeserializationBolt().withHProject(String.valueOf(project.getId()));
-        int deserilizationBoltParallelism = getDeserializationBoltParallelism(project);
+        int deserilizationBoltParallelism = getDeserializationBoltParallelism(parallelism);
         //Enrichment Bolt
-        EnrichmentBolt enrichmentBolt = new EnrichmentBolt().withHProject(String.valueOf(project.getId()));
-        int enrichmentBoltParallelism = getEnrichmentBoltParallelism(project);
+        EnrichmentBolt enrichmentBolt = new EnrichmentBolt().withHProject(String.valueOf(project.getId()))
+                .withReliableMode(isReliableMode(props));
+        int enrichmentBoltParallelism = getEnrichmentBoltParallelism(parallelism);
         //Kafka Bolt
         KafkaBolt kafkaRealtimeBolt = createKafkaBolt(props, project, StormConstants.KAFKA_REALTIME_KEY_SERIALIZER, StormConstants.KAFKA_REALTIME_VALUE_SERIALIZER, "streaming.realtime." + projectIdStr, "deviceId.packetId", "packet");
-        int kafkaBoltParallelism = getKafkaRealtimeBoltParallelism(project);
+        int kafkaBoltParallelism = getKafkaRealtimeBoltParallelism(parallelism);
         //Event Bolt
-        EventBolt eventBolt = new EventBolt().withHProject(String.valueOf(project.getId()));
+        EventBolt eventBolt = new EventBolt().withHProject(String.valueOf(project.getId()))
+                .withReliableMode(isReliableMode(props));
         //Kafka EventBolt
         KafkaBolt kafkaEventBolt = createKafkaBolt(props, project, StormConstants.KAFKA_EVENT_KEY_SERIALIZER, StormConstants.KAFKA_EVENT_VALUE_SERIALIZER, (String) props.get("bolt.event.kafka_topic"), "message_type", "event_json");
         //Persistence Bolt
-        SelectionBolt selectionBolt = new SelectionBolt().withHProject(String.valueOf(project.getId()));
-        builder.setBolt(StormConstants.DESERIALIZATION_BOLT_ID, deserializationBolt, deserilizationBoltParallelism).shuffleGrouping(kafkaSpoutId);
-        builder.setBolt(StormConstants.ENRICHMENT_BOLT_ID, enrichmentBolt, enrichmentBoltParallelism).shuffleGrouping(StormConstants.DESERIALIZATION_BOLT_ID, "deserializationOk");
-        builder.setBolt(StormConstants.EVENT_BOLT_ID, eventBolt, getEventBoltParallelism(project)).shuffleGrouping(StormConstants.DESERIALIZATION_BOLT_ID, "deserializationOk");
-        builder.setBolt(StormConstants.EVENT_LAYER_KAFKA_BOLT, kafkaEventBolt, getEventToKafkaBoltParallelism(project)).shuffleGrouping(StormConstants.EVENT_BOLT_ID);
-        builder.setBolt(StormConstants.SELECTION_BOLT_ID, selectionBolt, getSelectionBoltParallelism(project))
+        SelectionBolt selectionBolt = new SelectionBolt().withHProject(String.valueOf(project.getId()))
+                .withReliableMode(isReliableMode(props));
+        //Messages of the same device are always processed by the same executor, in order:
+        //spout tuples carry the device id read from the kafka key (<deviceId>.<packetId>), then deserialized packets
+        //are grouped by device id too, so per-device rule state in enrichment and event bolts stays on one executor
+        builder.setBolt(StormConstants.DESERIALIZATION_BOLT_ID, deserializationBolt, deserilizationBoltParallelism).fieldsGrouping(kafkaSpoutId, new Fields(StormConstants.HDEVICE_ID_FIELD));
+        builder.setBolt(StormConstants.ENRICHMENT_BOLT_ID, enrichmentBolt, enrichmentBoltParallelism).fieldsGrouping(StormConstants.DESERIALIZATION_BOLT_ID, "deserializationOk", new Fields(StormConstants.HDEVICE_ID_FIELD));
+        builder.setBolt(StormConstants.EVENT_BOLT_ID, eventBolt, getEventBoltParallelism(parallelism)).fieldsGrouping(StormConstants.DESERIALIZATION_BOLT_ID, "deserializationOk", new Fields(StormConstants.HDEVICE_ID_FIELD));
+        builder.setBolt(StormConstants.EVENT_LAYER_KAFKA_BOLT, kafkaEventBolt, getEventToKafkaBoltParallelism(parallelism)).shuffleGrouping(StormConstants.EVENT_BOLT_ID);
+        builder.setBolt(StormConstants.SELECTION_BOLT_ID, selectionBolt, getSelectionBoltParallelism(parallelism))
                 .shuffleGrouping(StormConstants.EVENT_BOLT_ID, String.format(EVENT_HPROJECT_STREAM_ID_PREFIX, project.getId()))
                 .shuffleGrouping(StormConstants.EVENT_BOLT_ID, String.format(StormConstants.ALARM_EVENT_HPROJECT_STREAM_ID_PREFIX, project.getId()))
                 .shuffleGrouping(StormConstants.ENRICHMENT_BOLT_ID);
@@ -147,8 +174,8 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                 .shuffleGrouping(StormConstants.EVENT_BOLT_ID, "kafkaRealtimeTopicEvent");
     }
 
-    private static void buildDLQBoltsLayer(Map<String, Object> props, HProject project, TopologyBuilder builder, String projectIdStr, String kafkaSpoutId) {
-        int kafkaDlqBoltParallelism = getKafkaDqlBoltParallelism(project);
+    private static void buildDLQBoltsLayer(Map<String, Object> props, HProject project, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder, String projectIdStr, String kafkaSpoutId) {
+        int kafkaDlqBoltParallelism = getKafkaDqlBoltParallelism(parallelism);
         KafkaBolt kafkaDlqBolt = createKafkaBolt(props,
                 project,
                 StormConstants.KAFKA_EVENT_KEY_SERIALIZER,
@@ -163,8 +190,6 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                 shuffleGrouping(String.format(HDFS_PERSISTENCE_DAY, projectIdStr), KAKFA_DLQ_STREAM_HDFS_DAY).
                 shuffleGrouping(String.format(HDFS_PERSISTENCE_MONTH, projectIdStr), KAKFA_DLQ_STREAM_HDFS_MONTH).
                 shuffleGrouping(String.format(HDFS_PERSISTENCE_YEAR, projectIdStr), KAKFA_DLQ_STREAM_HDFS_YEAR).
-                shuffleGrouping(String.format(HDFS_PERSISTENCE_SEMESTER, projectIdStr), KAKFA_DLQ_STREAM_HDFS_SEMESTER).
-                shuffleGrouping(String.format(HDFS_PERSISTENCE_QUARTER, projectIdStr), KAKFA_DLQ_STREAM_HDFS_QUARTER).
                 shuffleGrouping(HBASE_AVRO_BOLT_PREFIX + project.getId(), KAKFA_DLQ_STREAM_HBASE_AVRO).
                 shuffleGrouping(HBASE_EVENT_BOLT_PREFIX + project.getId(), KAKFA_DLQ_STREAM_HBASE_EVENT).
                 shuffleGrouping(HBASE_TIMELINE_BOLT_PREFIX + project.getId(), KAKFA_DLQ_STREAM_HBASE_TIMELINE).
@@ -181,10 +206,11 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
 
     /**
      * @param project
+     * @param parallelism
      * @param builder
      * @param projectIdStr
      */
-    private static void buildSpeedAndServingBoltsLayer(Map<String, Object> props, HProject project, TopologyBuilder builder, String projectIdStr) {
+    private static void buildSpeedAndServingBoltsLayer(Map<String, Object> props, HProject project, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder, String projectIdStr) {
         final int HBASE_BATCH_SIZE = (Integer) props.get("it.acsoftware.hyperiot.storm.hbase.client.batch.size");
         final int HBASE_FLUSH_INTERVAL_SECONDS = (Integer) props.get("it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds");
 
@@ -198,7 +224,7 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                         .withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
                 MessageConversionStrategy.HBASE_DLQ_AVRO_TABLE_MESSAGE_STRATEGY,
                 String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)
-        );
+        ).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperHBaseBolt timelineTableBolt = new HyperIoTWrapperHBaseBolt(
                 new HyperIoTHBaseBolt(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr),
@@ -209,7 +235,7 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                         .withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
                 MessageConversionStrategy.HBASE_DLQ_TIMELINE_TABLE_MESSAGE_STRATEGY,
                 String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)
-        );
+        ).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperHBaseBolt alarmTableBolt = new HyperIoTWrapperHBaseBolt(
                 new HyperIoTHBaseBolt("alarm_" + projectIdStr,
@@ -217,22 +243,23 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                                 .withColumnFamilies()
                                 .withRowKeyField(StormConstants.HBASE_ROWKEY))
                         .withConfigKey(StormConstants.HBASE_BOLT_CONF)
-                        .withBatchSize(1)
-                        .withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
+                        .withBatchSize(getHBaseBatchSize(props, "alarm"))
+                        .withFlushIntervalSecs(getHBaseFlushIntervalSeconds(props, "alarm")),
                 MessageConversionStrategy.HBASE_DLQ_ALARM_TABLE_MESSAGE_STRATEGY,
                 String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)
-        );
+        ).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperHBaseBolt alarmEventRuleStateTableBolt = new HyperIoTWrapperHBaseBolt(
                 new HyperIoTHBaseBolt(String.format(EVENT_RULE_STATE_TABLE_NAME_PREFIX, projectIdStr),
                         new EventRuleStateHBaseMapper()
                                 .withColumnFamily(HBASE_COLUMN_FAMILY_RULE)
                                 .withRowKeyField(EVENT_RULE_ID))
+                        .withLatestMutationPerRow(true)
                         .withConfigKey(HBASE_BOLT_CONF)
-                        .withBatchSize(1)
-                        .withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
+                        .withBatchSize(getHBaseBatchSize(props, "event.rule.state"))
+                        .withFlushIntervalSecs(getHBaseFlushIntervalSeconds(props, "event.rule.state")),
                 MessageConversionStrategy.HBASE_DLQ_EVENT_RULE_STATE_MESSAGE_STRATEGY,
-                String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr));
+                String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperHBaseBolt eventTableBolt = new HyperIoTWrapperHBaseBolt(
                 new HyperIoTHBaseBolt("event_" + projectIdStr, new SimpleHBaseMapper()
@@ -240,32 +267,41 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                         .withRowKeyField("timestamp")
                         .withColumnFields(new Fields("eventColumn")))
                         .withConfigKey(StormConstants.HBASE_BOLT_CONF)
-                        .withBatchSize(1)
-                        .withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
+                        .withBatchSize(getHBaseBatchSize(props, "event"))
+                        .withFlushIntervalSecs(getHBaseFlushIntervalSeconds(props, "event")),
                 MessageConversionStrategy.HBASE_DLQ_EVENT_TABLE_MESSAGE_STRATEGY,
                 String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)
-        );
+        ).withReliableMode(isReliableMode(props));
         //Add CustomHBaseBolt to the topology.
-        builder.setBolt(StormConstants.HBASE_AVRO_BOLT_PREFIX + projectIdStr, avroTableBolt, getAvroBoltParallelism(project)).
+        builder.setBolt(StormConstants.HBASE_AVRO_BOLT_PREFIX + projectIdStr, avroTableBolt, getAvroBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "hproject_" + projectIdStr).
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr), StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_AVRO);
 
-        builder.setBolt(StormConstants.HBASE_TIMELINE_BOLT_PREFIX + projectIdStr, timelineTableBolt, getTimelineBoltParallelism(project))
-                .shuffleGrouping(StormConstants.DESERIALIZATION_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr))
-                .shuffleGrouping(StormConstants.SELECTION_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr))
-                .shuffleGrouping(StormConstants.ENRICHMENT_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr))
-                .shuffleGrouping(StormConstants.EVENT_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr))
+        //Timeline counters are summed up before being sent to HBase, tuples with same row key beginning go to the same task
+        TimelineAggregationBolt timelineAggregationBolt = new TimelineAggregationBolt()
+                .withHProject(projectIdStr)
+                .withFlushIntervalSecs(getTimelineFlushIntervalSeconds(props))
+                .withMaxPendingTuples(getTimelineMaxPendingTuples(props));
+        Fields timelineGroupingFields = new Fields(StormConstants.ROWKEY_FIELD);
+        builder.setBolt(StormConstants.TIMELINE_AGGREGATION_BOLT_PREFIX + projectIdStr, timelineAggregationBolt, getTimelineBoltParallelism(parallelism))
+                .fieldsGrouping(StormConstants.DESERIALIZATION_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr), timelineGroupingFields)
+                .fieldsGrouping(StormConstants.SELECTION_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr), timelineGroupingFields)
+                .fieldsGrouping(StormConstants.ENRICHMENT_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr), timelineGroupingFields)
+                .fieldsGrouping(StormConstants.EVENT_BOLT_ID, String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, projectIdStr), timelineGroupingFields);
+
+        builder.setBolt(StormConstants.HBASE_TIMELINE_BOLT_PREFIX + projectIdStr, timelineTableBolt, getTimelineBoltParallelism(parallelism))
+                .shuffleGrouping(StormConstants.TIMELINE_AGGREGATION_BOLT_PREFIX + projectIdStr, String.format(TIMELINE_AGGREGATED_STREAM_ID_PREFIX, projectIdStr))
                 .shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr), StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_TIMELINE);
 
-        builder.setBolt(StormConstants.HBASE_EVENT_BOLT_PREFIX + projectIdStr, eventTableBolt, getEventSourcingBoltParallelism(project)).
+        builder.setBolt(StormConstants.HBASE_EVENT_BOLT_PREFIX + projectIdStr, eventTableBolt, getEventSourcingBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, String.format(EVENT_HPROJECT_STREAM_ID_PREFIX, projectIdStr)).
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr), StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_EVENT);
 
-        builder.setBolt(StormConstants.HBASE_ALARM_BOLT_PREFIX + projectIdStr, alarmTableBolt, getAlarmBoltParallelism(project)).
+        builder.setBolt(StormConstants.HBASE_ALARM_BOLT_PREFIX + projectIdStr, alarmTableBolt, getAlarmBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, String.format(StormConstants.ALARM_EVENT_HPROJECT_STREAM_ID_PREFIX, projectIdStr)).
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr), KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_ALARM);
 
-        builder.setBolt(HBASE_EVENT_RULE_STATE_BOLT_PREFIX + projectIdStr, alarmEventRuleStateTableBolt, getAlarmEventRuleStateBoltParallelism(project))
+        builder.setBolt(HBASE_EVENT_RULE_STATE_BOLT_PREFIX + projectIdStr, alarmEventRuleStateTableBolt, getAlarmEventRuleStateBoltParallelism(parallelism))
                 .shuffleGrouping(StormConstants.EVENT_BOLT_ID, String.format(EVENT_RULE_STATE_HBASE_STREAM_ID, projectIdStr))
                 .shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr), KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_EVENT_RULE_STATE);
 
@@ -275,83 +311,65 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
     /**
      * @param props
      * @param project
+     * @param parallelism
      * @param builder
      */
-    private static void buildBatchBoltsLayer(Map<String, Object> props, HProject project, TopologyBuilder builder) {
+    private static void buildBatchBoltsLayer(Map<String, Object> props, HProject project, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder) {
         //Define CustomAvroGenericBolt for write on hdfs, and handle hdfs failure.
+        //Every packet is sent to one of them only, depending on its traffic plan (see HyperIoTHdfsLayout)
 
         HyperIoTWrapperAvroGenericBolt customPerHourPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("hour")),
+                createBatchLayerPersistenceBolt(props, project, createPartitioner(props, "hour")),
                 KAKFA_DLQ_STREAM_HDFS_HOUR,
                 MessageConversionStrategy.HDFS_DLQ_HOUR_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
+                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId())).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperAvroGenericBolt customPerDayPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("day")),
+                createBatchLayerPersistenceBolt(props, project, createPartitioner(props, "day")),
                 KAKFA_DLQ_STREAM_HDFS_DAY,
                 MessageConversionStrategy.HDFS_DLQ_DAY_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
+                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId())).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperAvroGenericBolt customPerMonthPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("month")),
+                createBatchLayerPersistenceBolt(props, project, createPartitioner(props, "month")),
                 KAKFA_DLQ_STREAM_HDFS_MONTH,
                 MessageConversionStrategy.HDFS_DLQ_MONTH_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
+                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId())).withReliableMode(isReliableMode(props));
 
         HyperIoTWrapperAvroGenericBolt customPerYearPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("year")),
+                createBatchLayerPersistenceBolt(props, project, createPartitioner(props, "year")),
                 KAKFA_DLQ_STREAM_HDFS_YEAR,
                 MessageConversionStrategy.HDFS_DLQ_YEAR_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
-
-        HyperIoTWrapperAvroGenericBolt customPerQuarterPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("quarter")),
-                KAKFA_DLQ_STREAM_HDFS_QUARTER,
-                MessageConversionStrategy.HDFS_DLQ_QUARTER_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
-
-        HyperIoTWrapperAvroGenericBolt customPerSemesterPersistence = new HyperIoTWrapperAvroGenericBolt(
-                createBatchLayerPersistenceBolt(props, project, new HyperiotPartitioner().withDepth("semester")),
-                KAKFA_DLQ_STREAM_HDFS_SEMESTER,
-                MessageConversionStrategy.HDFS_DLQ_SEMESTER_MESSAGE_STRATEGY,
-                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()));
+                String.format(StormConstants.KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId())).withReliableMode(isReliableMode(props));
 
         //Add hdfs bolt  to topology
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_HOUR, project.getId()), customPerHourPersistence, getHDFSHourBoltParallelism(project)).
+        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_HOUR, project.getId()), customPerHourPersistence, getHDFSHourBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "hour").
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_HOUR);
 
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_DAY, project.getId()), customPerDayPersistence, getHDFSDayBoltParallelism(project)).
+        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_DAY, project.getId()), customPerDayPersistence, getHDFSDayBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "day").
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_DAY);
 
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_MONTH, project.getId()), customPerMonthPersistence, getHDFSMonthBoltParallelism(project)).
+        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_MONTH, project.getId()), customPerMonthPersistence, getHDFSMonthBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "month").
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_MONTH);
 
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_YEAR, project.getId()), customPerYearPersistence, getHDFSYearBoltParallelism(project)).
+        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_YEAR, project.getId()), customPerYearPersistence, getHDFSYearBoltParallelism(parallelism)).
                 shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "year").
                 shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_YEAR);
 
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_SEMESTER, project.getId()), customPerSemesterPersistence, getHDFSSemesterBoltParallelism(project)).
-                shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "semester").
-                shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_SEMESTER);
-
-        builder.setBolt(String.format(StormConstants.HDFS_PERSISTENCE_QUARTER, project.getId()), customPerQuarterPersistence, getHDFSQuarterBoltParallelism(project)).
-                shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "quarter").
-                shuffleGrouping(String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, project.getId()), KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_QUARTER);
-
     }
 
 
     /**
+     * @param props
+     * @param parallelism
      * @param builder
      * @param projectIdStr
      */
-    private static void buildErrorBoltsLayer(Map<String, Object> props, TopologyBuilder builder, String projectIdStr) {
+    private static void buildErrorBoltsLayer(Map<String, Object> props, HyperIoTTopologyParallelism parallelism, TopologyBuilder builder, String projectIdStr) {
 
-        final int HBASE_BATCH_SIZE = (Integer) (props.get("it.acsoftware.hyperiot.storm.hbase.client.batch.size"));
-        final int HBASE_FLUSH_INTERVAL_SECONDS = (Integer) (props.get("it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds"));
 
         HyperIoTWrapperHBaseBolt errorTableBolt = new HyperIoTWrapperHBaseBolt(
                 new HyperIoTHBaseBolt("hproject_error_" + projectIdStr,
@@ -360,13 +378,13 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
                                 withRowKeyField("timestamp").
                                 withColumnFields(new Fields("message", "received_packet"))).
                         withConfigKey(StormConstants.HBASE_BOLT_CONF).
-                        withBatchSize(HBASE_BATCH_SIZE).
-                        withFlushIntervalSecs(HBASE_FLUSH_INTERVAL_SECONDS),
+                        withBatchSize(getHBaseBatchSize(props, "error")).
+                        withFlushIntervalSecs(getHBaseFlushIntervalSeconds(props, "error")),
                 MessageConversionStrategy.HBASE_DLQ_ERROR_TABLE_MESSAGE_STRATEGY,
                 String.format(KAKFA_DLQ_BOLT_DESERIALIZATION_ID, projectIdStr)
-        );
+        ).withReliableMode(isReliableMode(props));
 
-        builder.setBolt(StormConstants.HBASE_ERROR_BOLT_PREFIX + projectIdStr, errorTableBolt, 1)
+        builder.setBolt(StormConstants.HBASE_ERROR_BOLT_PREFIX + projectIdStr, errorTableBolt, getErrorBoltParallelism(parallelism))
                 .shuffleGrouping(StormConstants.DESERIALIZATION_BOLT_ID, "hproject_error_" + projectIdStr)
                 .shuffleGrouping(StormConstants.SELECTION_BOLT_ID, "hdfs_error_" + projectIdStr)
                 .shuffleGrouping(StormConstants.ENRICHMENT_BOLT_ID, String.format(HPROJECT_ERROR_STREAM_ID, projectIdStr))
@@ -390,6 +408,8 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
         config.setProp("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
         config.setProp("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
         config.setProp("group.id", "group-" + project.getId());
+        //emits payload encoding too, so raw and Base64 records can coexist on the same topic
+        config.setRecordTranslator(new HyperIoTStreamingRecordTranslator());
         KafkaSpout<byte[], byte[]> kafkaSpout = new KafkaSpout<>(config.build());
         return kafkaSpout;
     }
@@ -443,6 +463,19 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
         return kafkaBolt;
     }
 
+    /**
+     * @param props
+     * @param depth HDFS directory depth
+     * @return partitioner saving packets to the directories of their timestamp
+     */
+    private static HyperiotPartitioner createPartitioner(Map<String, Object> props, String depth) {
+        Object policy = props.get("it.acsoftware.hyperiot.storm.hdfs.late.data.policy");
+        Object allowedLateness = props.get("it.acsoftware.hyperiot.storm.hdfs.allowed.lateness.seconds");
+        return new HyperiotPartitioner().withDepth(depth).withLateDataPolicy(
+                (policy != null) ? HyperIoTLateDataPolicy.valueOf(policy.toString().trim().toUpperCase()) : HyperIoTLateDataPolicy.EVENT_TIME,
+                (allowedLateness != null) ? Long.parseLong(allowedLateness.toString()) : HyperiotPartitioner.DEFAULT_ALLOWED_LATENESS_SECONDS);
+    }
+
     /**
      * @param props
      * @param project
@@ -452,8 +485,11 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
     private static AvroGenericRecordBolt createBatchLayerPersistenceBolt(Map<String, Object> props, HProject project, Partitioner partitioner) {
         AvroGenericRecordBolt avroGenericRecordBolt = new AvroGenericRecordBolt();
         HyperIoTFileNameFormat defaultFileNameFormat = new HyperIoTFileNameFormat().withPath((String) props.get("hdfs.write.dir")).withExtension(".avro");
-        FileSizeRotationPolicy fileSizeRotationPolicy = new FileSizeRotationPolicy(1, FileSizeRotationPolicy.Units.GB);
-        CountSyncPolicy countSyncPolicy = new CountSyncPolicy(1);
+        FileSizeRotationPolicy fileSizeRotationPolicy = new FileSizeRotationPolicy(
+                getIntProperty(props, "it.acsoftware.hyperiot.storm.hdfs.rotation.size.mb", HyperIoTHdfsLayout.DEFAULT_ROTATION_SIZE_MB),
+                FileSizeRotationPolicy.Units.MB);
+        CountSyncPolicy countSyncPolicy = new CountSyncPolicy(
+                getIntProperty(props, "it.acsoftware.hyperiot.storm.hdfs.sync.count", HyperIoTHdfsLayout.DEFAULT_SYNC_COUNT));
         //Omit this configuration to override default.
         //avroGenericRecordBolt.withConfigKey("hdfs.config-1");
         avroGenericRecordBolt.withFileNameFormat(defaultFileNameFormat);
@@ -461,165 +497,233 @@ public class HyperIoTTopologyBuilder implements StormTopologyBuilder {
         avroGenericRecordBolt.withRotationPolicy(fileSizeRotationPolicy);
         avroGenericRecordBolt.withSyncPolicy(countSyncPolicy);
         avroGenericRecordBolt.withPartitioner(partitioner);
+        //tick tuples flush pending records, they must arrive before anchored tuples time out and are replayed
+        avroGenericRecordBolt.withTickTupleIntervalSeconds(getHdfsTickTupleIntervalSeconds(props));
         return avroGenericRecordBolt;
     }
 
+    /**
+     * @param props
+     * @return seconds between two tick tuples of HDFS bolts, always lower than topology message timeout
+     */
+    static int getHdfsTickTupleIntervalSeconds(Map<String, Object> props) {
+        int messageTimeoutSeconds = getIntProperty(props, Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, DEFAULT_MESSAGE_TIMEOUT_SECS);
+        int tickInterval = getIntProperty(props, "it.acsoftware.hyperiot.storm.hdfs.tick.interval.seconds", messageTimeoutSeconds / 2);
+        return Math.max(1, Math.min(tickInterval, messageTimeoutSeconds - 1));
+    }
+
+    /**
+     * @param props
+     * @param name property name
+     * @param defaultValue value used if property is not set
+     * @return property value
+     */
+    private static int getIntProperty(Map<String, Object> props, String name, int defaultValue) {
+        Object value = props.get(name);
+        return (value != null) ? Integer.parseInt(value.toString()) : defaultValue;
+    }
+
+    /**
+     * @param props
+     * @return true if reliable (at-least-once) processing is enabled
+     */
+    private static boolean isReliableMode(Map<String, Object> props) {
+        Object value = props.get("it.acsoftware.hyperiot.storm.reliable.mode");
+        return (value != null) ? Boolean.parseBoolean(value.toString().trim()) : DEFAULT_RELIABLE_MODE;
+    }
+
+    /**
+     * @param props
+     * @return max number of tuples of each spout task which are not acked yet
+     */
+    private static int getMaxSpoutPending(Map<String, Object> props) {
+        return getIntProperty(props, "it.acsoftware.hyperiot.storm.max.spout.pending", DEFAULT_MAX_SPOUT_PENDING);
+    }
+
     /**
      * Returns parallelism of kafka spout based on project configuration
      *
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getKafkaSpoutParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getKafkaSpoutParallelism();
+    private static int getKafkaSpoutParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getKafkaSpoutParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getDeserializationBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getDeserializationParallelism();
+    private static int getDeserializationBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getDeserializationParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getEnrichmentBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getEnrichmentParallelism();
+    private static int getEnrichmentBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getEnrichmentParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getEventBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getEventsProcessingParallelism();
+    private static int getEventBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getEventsProcessingParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getEventToKafkaBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getEventsToKafkaParallelism();
+    private static int getEventToKafkaBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getEventsToKafkaParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getEventSourcingBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getEventSourcingParallelism();
+    private static int getEventSourcingBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getEventSourcingParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getKafkaRealtimeBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getKafkaRealtimeParallelism();
+    private static int getKafkaRealtimeBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getKafkaRealtimeParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getAlarmBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getAlarmManagementParallelism();
+    private static int getAlarmBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getAlarmManagementParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getAlarmCountBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getAlarmCountParallelism();
+    private static int getAlarmCountBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getAlarmCountParallelism();
     }
 
-    private static int getAlarmEventRuleStateBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getAlarmEventRuleParallelism();
+    private static int getAlarmEventRuleStateBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getAlarmEventRuleParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getSelectionBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getSelectionBoltParallelism();
+    private static int getSelectionBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getSelectionBoltParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getTimelineBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getTimelineParallelism();
+    private static int getTimelineBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getTimelineParallelism();
     }
 
     /**
-     * @param project
-     * @return
+     * @param props
+     * @param table HBase table, without project id (alarm, event, event.rule.state, error)
+     * @return mutations written to the table with a single request
      */
-    private static int getAvroBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getAvroProcessingParallelism();
+    private static int getHBaseBatchSize(Map<String, Object> props, String table) {
+        return getIntProperty(props, "it.acsoftware.hyperiot.storm.hbase." + table + ".batch.size", HyperIoTHBaseBolt.DEFAULT_BATCH_SIZE);
     }
 
     /**
-     * @param project
+     * @param props
+     * @param table HBase table, without project id (alarm, event, event.rule.state, error)
+     * @return seconds after which a batch is written to the table even if it is not full
+     */
+    private static int getHBaseFlushIntervalSeconds(Map<String, Object> props, String table) {
+        return getIntProperty(props, "it.acsoftware.hyperiot.storm.hbase." + table + ".flush.interval.seconds", HyperIoTHBaseBolt.DEFAULT_FLUSH_INTERVAL_SECONDS);
+    }
+
+    /**
+     * @param props
+     * @return seconds between two flushes of timeline counters
+     */
+    private static int getTimelineFlushIntervalSeconds(Map<String, Object> props) {
+        Object value = props.get("it.acsoftware.hyperiot.storm.timeline.flush.interval.seconds");
+        return (value != null) ? Integer.parseInt(value.toString()) : TimelineAggregationBolt.DEFAULT_FLUSH_INTERVAL_SECONDS;
+    }
+
+    /**
+     * @param props
+     * @return number of timeline tuples which forces a flush of timeline counters
+     */
+    private static int getTimelineMaxPendingTuples(Map<String, Object> props) {
+        Object value = props.get("it.acsoftware.hyperiot.storm.timeline.max.pending.tuples");
+        return (value != null) ? Integer.parseInt(value.toString()) : TimelineAggregationBolt.DEFAULT_MAX_PENDING_TUPLES;
+    }
+
+    /**
+     * @param parallelism
      * @return
      */
-    private static int getHDFSHourBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsHourParallelism();
+    private static int getErrorBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getErrorParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getHDFSDayBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsDayParallelism();
+    private static int getAvroBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getAvroProcessingParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getHDFSMonthBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsMonthParallelism();
+    private static int getHDFSHourBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getHdfsHourParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getHDFSYearBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsYearParallelism();
+    private static int getHDFSDayBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getHdfsDayParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getHDFSSemesterBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsSemesterParallelism();
+    private static int getHDFSMonthBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getHdfsMonthParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getHDFSQuarterBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getHdfsQuarterParallelism();
+    private static int getHDFSYearBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getHdfsYearParallelism();
     }
 
     /**
-     * @param project
+     * @param parallelism
      * @return
      */
-    private static int getKafkaDqlBoltParallelism(HProject project) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(project).getDlqParallelism();
+    private static int getKafkaDqlBoltParallelism(HyperIoTTopologyParallelism parallelism) {
+        return parallelism.getDlqParallelism();
     }
 
 }
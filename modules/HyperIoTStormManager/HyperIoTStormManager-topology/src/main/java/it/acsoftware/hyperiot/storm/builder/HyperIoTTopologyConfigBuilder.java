@@ -20,24 +20,26 @@ package it.acsoftware.hyperiot.storm.builder;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import it.acsoftware.hyperiot.alarm.event.api.AlarmEventSystemApi;
 import it.acsoftware.hyperiot.alarm.event.model.AlarmEvent;
 import it.acsoftware.hyperiot.base.api.entity.HyperIoTQuery;
 import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
 import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
-import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
-import it.acsoftware.hyperiot.hdevice.model.HDevice;
 import it.acsoftware.hyperiot.hpacket.api.HPacketSystemApi;
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
-import it.acsoftware.hyperiot.hproject.api.HProjectSystemApi;
-import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.hpacket.model.HPacketCompression;
 import it.acsoftware.hyperiot.query.util.filter.HyperIoTQueryBuilder;
 import it.acsoftware.hyperiot.rule.api.RuleEngineSystemApi;
 import it.acsoftware.hyperiot.rule.model.Rule;
 import it.acsoftware.hyperiot.rule.model.RuleType;
-import it.acsoftware.hyperiot.stormmanager.model.HyperIoTTopologyConfig;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTHdfsLayout;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTLateDataPolicy;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperiotPartitioner;
+import it.acsoftware.hyperiot.storm.runtime.bolt.TimelineAggregationBolt;
 import it.acsoftware.hyperiot.stormmanager.model.StormManager;
 import it.acsoftware.hyperiot.stormmanager.model.TopologyConfig;
+import org.apache.storm.hbase.bolt.HyperIoTHBaseBolt;
 import org.osgi.framework.FrameworkUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -56,232 +59,242 @@ import java.util.stream.Collectors;
 public class HyperIoTTopologyConfigBuilder {
     private static Logger logger = LoggerFactory.getLogger(HyperIoTTopologyConfigBuilder.class);
 
+    /**
+     * HBase tables written in batches with their own settings
+     */
+    private static final String[] HBASE_BATCHED_TABLES = {"alarm", "event", "event.rule.state", "error"};
+    private static final String HBASE_BATCH_SIZE_PROPERTY = "batch.size";
+    private static final String[] HBASE_BATCH_PROPERTIES = {HBASE_BATCH_SIZE_PROPERTY, "flush.interval.seconds"};
+
+    /**
+     * Storm settings whose value is read as is from HyperIoT properties: template placeholder -> property
+     */
+    private static final String[][] TOPOLOGY_PROPERTIES = {
+            {"kafka-bootstrap-servers", "it.acsoftware.hyperiot.stormmanager.topology.kafka.bootstrap.servers"},
+            {"hdfs-namenode-hosts", "it.acsoftware.hyperiot.stormmanager.topology.hdfs.namenode.hosts"},
+            {"hfds-write-dir", "it.acsoftware.hyperiot.hproject.hdfs.write.dir"},
+            {"hbase-root-dir", "it.acsoftware.hyperiot.stormmanager.topology.hbase.root.dir"},
+            {"zookeeper-hosts", "it.acsoftware.hyperiot.stormmanager.topology.hbase.zookeeper.quorum"},
+            {"zookeeper-client-port", "it.acsoftware.hyperiot.stormmanager.topology.hbase.zookeeper.client.port"},
+            {"hbase.client.operation.timeout", "it.acsoftware.hyperiot.storm.hbase.client.operation.timeout.millisecond"},
+            {"hbase.client.retries.number", "it.acsoftware.hyperiot.storm.hbase.client.retries.number"},
+            {"it.acsoftware.hyperiot.storm.hbase.client.batch.size", "it.acsoftware.hyperiot.storm.hbase.client.batch.size"},
+            {"it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds", "it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds"},
+            {"it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds", "it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds"},
+            {"it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds", "it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds"},
+            {"it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ", "it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ"},
+            {"it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds", "it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds"}
+    };
+
+    private static final String PROPERTIES_TEMPLATE = "topology.properties";
+    private static final String YAML_TEMPLATE = "topology.yaml";
+    private static final String PACKET_TEMPLATE = "packet-config.yaml";
+    private static final String[] TEMPLATES = {PROPERTIES_TEMPLATE, YAML_TEMPLATE, PACKET_TEMPLATE};
+
+    /**
+     * Bundle resources do not change while the bundle is active, they are read once
+     */
+    private static final Map<String, String> bundleResources = new ConcurrentHashMap<>();
+
+    /**
+     * Map entries are sorted, so that the same configuration is always serialized the same way
+     */
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
     /**
      * @param projectId
      * @return
      * @throws IOException
      */
     public static TopologyConfig getTopologyConfig(long projectId, String topologyName) throws IOException {
-        HProjectSystemApi hProjectSystemApi = (HProjectSystemApi) HyperIoTUtil.getService(HProjectSystemApi.class);
-        HProject hProject = hProjectSystemApi.find(projectId, null);
+        return renderTopologyConfig(getTopologyConfigModel(projectId, topologyName));
+    }
+
+    /**
+     * Collects topology configuration without rendering it, project packets are loaded with a single query
+     *
+     * @param projectId
+     * @param topologyName
+     * @return
+     * @throws IOException
+     */
+    public static HyperIoTTopologyConfigModel getTopologyConfigModel(long projectId, String topologyName) throws IOException {
+        HPacketSystemApi hPacketSystemApi = (HPacketSystemApi) HyperIoTUtil.getService(HPacketSystemApi.class);
+        Collection<HPacket> packets = hPacketSystemApi.getProjectPacketsTree(projectId);
+        HyperIoTTopologyConfigModel model = new HyperIoTTopologyConfigModel(topologyName);
+        for (String template : TEMPLATES) {
+            model.putTemplate(template, readBundleResource(template));
+        }
+        packets.forEach(packet -> model.putPacket(packet.getId(), createPacketSchema(packet)));
+        //topology settings
+        HyperIoTTopologyPerformanceConfig performanceConfig = HyperIoTTopologyPerformanceConfig.fromPackets(packets);
+        model.putSetting("topology-name", topologyName);
+        model.putSetting("topology_workers", performanceConfig.getTopologyWorkers());
+        model.putSetting("worker_max_heap_size", performanceConfig.getTopologyWorkerMaxHeapSize());
+        model.putSetting("topology_onheap_memory", performanceConfig.getResourcesOnHeapMemory());
+        model.putSetting("topology_logw_xmx", performanceConfig.getLogWriterXmx());
+        model.putSetting("topology_logw_xms", performanceConfig.getLogWriterXms());
+        // DeserializationBolt and SelectionBolt needs projectId to send to HBase tables
+        model.putSetting("hproject-id", "\"" + projectId + "\"");
+        for (String[] property : TOPOLOGY_PROPERTIES) {
+            model.putSetting(property[0], HyperIoTUtil.getHyperIoTProperty(property[1]));
+        }
+        for (String table : HBASE_BATCHED_TABLES) {
+            for (String property : HBASE_BATCH_PROPERTIES) {
+                model.putSetting("it.acsoftware.hyperiot.storm.hbase." + table + "." + property, getHBaseBatchProperty(table, property));
+            }
+        }
+        model.putSetting("it.acsoftware.hyperiot.storm.timeline.flush.interval.seconds", getTimelineFlushIntervalSeconds());
+        model.putSetting("it.acsoftware.hyperiot.storm.timeline.max.pending.tuples", getTimelineMaxPendingTuples());
+        model.putSetting("it.acsoftware.hyperiot.storm.hdfs.rotation.size.mb", getHdfsRotationSizeMb());
+        model.putSetting("it.acsoftware.hyperiot.storm.hdfs.sync.count", getHdfsSyncCount());
+        model.putSetting("it.acsoftware.hyperiot.storm.hdfs.late.data.policy", getHdfsLateDataPolicy());
+        model.putSetting("it.acsoftware.hyperiot.storm.hdfs.allowed.lateness.seconds", getHdfsAllowedLatenessSeconds());
+        model.putSetting("it.acsoftware.hyperiot.storm.reliable.mode", getReliableMode());
+        model.putSetting("it.acsoftware.hyperiot.storm.max.spout.pending", getMaxSpoutPending());
+        //rule engine configuration
+        model.putRule("drools-enrichment", getDroolsCode(projectId, RuleType.ENRICHMENT));
+        model.putRule("drools-event", getDroolsCode(projectId, RuleType.EVENT));
+        model.putRule("drools-alarm-event", getDroolsCode(projectId, RuleType.ALARM_EVENT));
+        List<Long> eventRuleIds = getEventRuleIds(projectId);
+        model.putRule("event-rule-ids", "\"" + Arrays.toString(eventRuleIds.toArray()) + "\"");
+        List<Long> alarmEventRuleIds = getAlarmEventRuleIds(projectId);
+        model.putRule("alarm-event-rule-ids", "\"" + Arrays.toString(alarmEventRuleIds.toArray()) + "\"");
+        model.putRule("alarm-event-rule-map", getAlarmEventRuleMapConfig(alarmEventRuleIds));
+        return model;
+    }
+
+    /**
+     * @param model topology configuration
+     * @return topology.properties and topology.yaml of the configuration
+     */
+    public static TopologyConfig renderTopologyConfig(HyperIoTTopologyConfigModel model) {
+        String packetConfigTemplate = model.getTemplate(PACKET_TEMPLATE);
+        StringBuilder packetsProperties = new StringBuilder();
+        StringBuilder packetsConfig = new StringBuilder();
+        model.getPackets().forEach((packetId, jsonSchema) -> {
+            packetsProperties.append("packet.").append(packetId).append("='").append(jsonSchema).append("'").append("\n");
+            packetsConfig.append(packetConfigTemplate.replace("%pid%", String.valueOf(packetId)));
+        });
+        Map<String, String> packetsValues = new HashMap<>();
+        packetsValues.put("packets", packetsProperties.toString());
+        packetsValues.put("packets-config", packetsConfig.toString());
         TopologyConfig topologyConfig = new TopologyConfig();
-        topologyConfig.name = topologyName;
-        HyperIoTTopologyConfig topologyConfigParts = new HyperIoTTopologyConfig();
-        //creting configuration from hdevices and packets
-        defineTopologyConfigParts(topologyConfigParts, hProject);
-        //creating yaml configuration
-        String topologyYaml = createTopologyYaml(topologyConfig.name, hProject, topologyConfigParts.packetConfig.toString());
-        //creating properties
-        String topologyProperties = createTopologyProperties(projectId, topologyConfigParts.properties.toString());
-
-        // add generated configs
-        topologyConfig.properties = topologyProperties;
-        topologyConfig.yaml = topologyYaml;
+        topologyConfig.name = model.getTopologyName();
+        topologyConfig.properties = model.render(model.getTemplate(PROPERTIES_TEMPLATE), packetsValues);
+        topologyConfig.yaml = model.render(model.getTemplate(YAML_TEMPLATE), packetsValues);
+        topologyConfig.fingerprint = model.getFingerprint();
         return topologyConfig;
     }
 
-    private static String getTopologyOnHeapMemory(HProject hProject) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(hProject).getResourcesOnHeapMemory();
+    /**
+     * @return seconds between two flushes of timeline counters, default value is used if property is not set
+     */
+    private static String getTimelineFlushIntervalSeconds() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.timeline.flush.interval.seconds");
+        return (value != null) ? value.toString() : String.valueOf(TimelineAggregationBolt.DEFAULT_FLUSH_INTERVAL_SECONDS);
     }
 
     /**
-     * @param hProject
-     * @return
+     * @return number of timeline tuples which forces a flush, default value is used if property is not set
      */
-    private static String getTopologyMaxHeapSize(HProject hProject) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(hProject).getTopologyWorkerMaxHeapSize();
+    private static String getTimelineMaxPendingTuples() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.timeline.max.pending.tuples");
+        return (value != null) ? value.toString() : String.valueOf(TimelineAggregationBolt.DEFAULT_MAX_PENDING_TUPLES);
     }
 
     /**
-     * @param hProject
-     * @return
+     * @param table    HBase table, without project id
+     * @param property batch.size or flush.interval.seconds
+     * @return HBase batch property of the table, default value is used if property is not set
      */
-    private static String getTopologyLogWriterXmx(HProject hProject) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(hProject).getLogWriterXmx();
+    private static String getHBaseBatchProperty(String table, String property) {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase." + table + "." + property);
+        if (value != null)
+            return value.toString();
+        return String.valueOf(property.equals(HBASE_BATCH_SIZE_PROPERTY) ?
+                HyperIoTHBaseBolt.DEFAULT_BATCH_SIZE : HyperIoTHBaseBolt.DEFAULT_FLUSH_INTERVAL_SECONDS);
     }
 
     /**
-     * @param hProject
-     * @return
+     * @return size of HDFS avro files in MB, default value is used if property is not set
      */
-    private static String getTopologyLogWriterXms(HProject hProject) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(hProject).getLogWriterXms();
+    private static String getHdfsRotationSizeMb() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hdfs.rotation.size.mb");
+        return (value != null) ? value.toString() : String.valueOf(HyperIoTHdfsLayout.DEFAULT_ROTATION_SIZE_MB);
     }
 
     /**
-     * @param hProject
-     * @return
+     * @return packets written before HDFS avro files are synced, default value is used if property is not set
      */
-    private static int getTopologyWorkers(HProject hProject) {
-        return HyperIoTTopologyPerformanceConfig.fromHProject(hProject).getTopologyWorkers();
+    private static String getHdfsSyncCount() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hdfs.sync.count");
+        return (value != null) ? value.toString() : String.valueOf(HyperIoTHdfsLayout.DEFAULT_SYNC_COUNT);
     }
 
     /**
-     * @param projectId
-     * @param topologyConfigProperties
-     * @return
-     * @throws IOException
+     * @return where late packets are saved on HDFS, default value is used if property is not set
      */
-    private static String createTopologyProperties(long projectId, String topologyConfigProperties) throws IOException {
-        // generate topology.properties
-        String topologyProperties = readBundleResource("topology.properties");
-        topologyProperties = topologyProperties.replace("%packets%", topologyConfigProperties);
-        topologyProperties = topologyProperties.replace("%drools-enrichment%",
-                getDroolsCode(projectId, RuleType.ENRICHMENT));
-        topologyProperties = topologyProperties.replace("%drools-event%",
-                getDroolsCode(projectId, RuleType.EVENT));
-        topologyProperties = topologyProperties.replace("%drools-alarm-event%",
-                getDroolsCode(projectId, RuleType.ALARM_EVENT));
-        topologyProperties = topologyProperties.replace("%kafka-bootstrap-servers%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.stormmanager.topology.kafka.bootstrap.servers"));
-        topologyProperties = topologyProperties.replace("%hdfs-namenode-hosts%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.stormmanager.topology.hdfs.namenode.hosts"));
-        topologyProperties = topologyProperties.replace("%hfds-write-dir%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.hproject.hdfs.write.dir"));
-        topologyProperties = topologyProperties.replace("%hbase-root-dir%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.stormmanager.topology.hbase.root.dir"));
-        topologyProperties = topologyProperties.replace("%zookeeper-hosts%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.stormmanager.topology.hbase.zookeeper.quorum"));
-        topologyProperties = topologyProperties.replace("%zookeeper-client-port%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.stormmanager.topology.hbase.zookeeper.client.port"));
-
-        //topologyProperty that add configuration needed to handle hbase/hdfs failure
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.hbase.client.batch.size%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.batch.size"));
-
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds"));
-
-        topologyProperties = topologyProperties.replace("%hbase.client.operation.timeout%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.operation.timeout.millisecond"));
-
-        topologyProperties = topologyProperties.replace("%hbase.client.retries.number%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.retries.number"));
-
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds"));
-
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds"));
-
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ"));
-
-        topologyProperties = topologyProperties.replace("%it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds%",
-                (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds"));
-
-
-        return topologyProperties;
+    private static String getHdfsLateDataPolicy() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hdfs.late.data.policy");
+        return (value != null) ? value.toString() : HyperIoTLateDataPolicy.EVENT_TIME.name();
     }
 
     /**
-     * @param topologyName
-     * @param hProject
-     * @param packetsConfig
-     * @return
-     * @throws IOException
+     * @return seconds after which a packet is late, default value is used if property is not set
      */
-    private static String createTopologyYaml(String topologyName, HProject hProject, String packetsConfig) throws IOException {
-        long projectId = hProject.getId();
-        int numWorkers = getTopologyWorkers(hProject);
-        String logWriterXms = getTopologyLogWriterXms(hProject);
-        String logWriterXmx = getTopologyLogWriterXmx(hProject);
-        String topologyMaxHeapSize = getTopologyMaxHeapSize(hProject);
-        String topologyOnHeapMemory = getTopologyOnHeapMemory(hProject);
-
-        // generate topology.yaml
-        String topologyYaml = readBundleResource("topology.yaml");
-        topologyYaml = topologyYaml.replace("%topology-name%", topologyName);
-        topologyYaml = topologyYaml.replace("%topology_workers%", String.valueOf(numWorkers));
-        topologyYaml = topologyYaml.replace("%worker_max_heap_size%", topologyMaxHeapSize);
-        topologyYaml = topologyYaml.replace("%topology_onheap_memory%", topologyOnHeapMemory);
-        topologyYaml = topologyYaml.replace("%topology_logw_xmx%", logWriterXmx);
-        topologyYaml = topologyYaml.replace("%topology_logw_xms%", logWriterXms);
-        topologyYaml = topologyYaml.replace(
-                "%hproject-id%", "\"" + projectId + "\"");
-        List<Long> eventRuleIds = getEventRuleIds(projectId);
-        topologyYaml = topologyYaml.replace(
-                "%event-rule-ids%", "\"" + Arrays.toString(eventRuleIds.toArray()) + "\"");
-        List<Long> alarmEventRuleIds = getAlarmEventRuleIds(projectId);
-        topologyYaml = topologyYaml.replace(
-                "%alarm-event-rule-ids%", "\"" + Arrays.toString(alarmEventRuleIds.toArray()) + "\"");
-        topologyYaml = topologyYaml.replace("%alarm-event-rule-map%", getAlarmEventRuleMapConfig(alarmEventRuleIds));
-        // DeserializationBolt and SelectionBolt needs projectId to send to HBase tables
-        topologyYaml = topologyYaml.replace("%hproject-id%", String.valueOf(projectId));
-        topologyYaml = topologyYaml.replace("%packets-config%", packetsConfig);
-        //topologyProperty that add configuration needed to handle hbase/hdfs failure
-        topologyYaml = topologyYaml.replace("%{hbase.client.operation.timeout}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.operation.timeout.millisecond"));
-        topologyYaml = topologyYaml.replace("%{hbase.client.retries.number}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.retries.number"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.hbase.client.batch.size}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.batch.size"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hbase.client.flush.interval.seconds"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.initialDelayKafkaSpoutDLQ.seconds"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.progressiveDelayFactorKafkaSpoutDLQ.seconds"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.maxRetryKafkaSpoutDLQ"));
-        topologyYaml = topologyYaml.replace("%{it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds}%", (String) HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.maxDelayKafkaSpoutDLQ.seconds"));
-
-
-        return topologyYaml;
+    private static String getHdfsAllowedLatenessSeconds() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.hdfs.allowed.lateness.seconds");
+        return (value != null) ? value.toString() : String.valueOf(HyperiotPartitioner.DEFAULT_ALLOWED_LATENESS_SECONDS);
     }
 
     /**
-     * @param topologyConfigParts
-     * @param hProject
+     * @return true if tuples are anchored and replayed until they are persisted, default value is used if property is not set
      */
-    private static void defineTopologyConfigParts(HyperIoTTopologyConfig topologyConfigParts, HProject hProject) {
-        HDeviceSystemApi deviceSystemService = (HDeviceSystemApi) HyperIoTUtil.getService(HDeviceSystemApi.class);
-        Collection<HDevice> devices = deviceSystemService.getProjectDevicesList(hProject.getId());
-        devices.forEach((d) -> {
-            try {
-                HPacketSystemApi hPacketSystemApi = (HPacketSystemApi) HyperIoTUtil.getService(HPacketSystemApi.class);
-                Collection<HPacket> packets = hPacketSystemApi.getPacketsList(d.getId());
-                HyperIoTTopologyConfig topologyDeviceConfig = HyperIoTTopologyConfigBuilder.createHyperIoTTopologyConfig(d, packets);
-                topologyConfigParts.packetConfig.append(topologyDeviceConfig.packetConfig);
-                topologyConfigParts.properties.append(topologyDeviceConfig.properties);
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
-            }
-        });
+    private static String getReliableMode() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.reliable.mode");
+        return (value != null) ? value.toString() : String.valueOf(HyperIoTTopologyBuilder.DEFAULT_RELIABLE_MODE);
     }
 
     /**
-     * @param device
-     * @return
-     * @throws IOException
+     * @return max number of pending tuples of each spout task in reliable mode, default value is used if property is not set
      */
-    private static HyperIoTTopologyConfig createHyperIoTTopologyConfig(HDevice device, Collection<HPacket> packets) throws IOException {
-        HProject project = device.getProject();
-        // load properties file template
-        String packetConfigTemplate = readBundleResource("packet-config.yaml");
-        // topology config parts
-        HyperIoTTopologyConfig topologyConfig = new HyperIoTTopologyConfig();
-        topologyConfig.project = project;
-        topologyConfig.device = device;
-        topologyConfig.packets = packets;
-        packets.forEach((p) -> {
-            // build JSON schema for deserialization bolt
-            HashMap<String, Object> packetData = new HashMap<>();
-            packetData.put("name", p.getName());
-            packetData.put("type", p.getType().getName());
-            packetData.put("unixTimestamp", p.isUnixTimestamp());
-            packetData.put("unixTimestampFormatSeconds", p.isUnixTimestampFormatSeconds());
-            HashMap<String, Object> schema = new HashMap<>();
-            packetData.put("schema", schema);
-            schema.put("type", p.getFormat().getName());
-            schema.put("fields", p.getFlatFieldsMap());
-            //add timestamp information
-            HashMap<String, Object> timestampInformation = new HashMap<>();
-            timestampInformation.put("format", p.getTimestampFormat());
-            timestampInformation.put("field", p.getTimestampField());
-            packetData.put("timestamp", timestampInformation);
-            //add traffic plan information
-            packetData.put("trafficPlan", p.getTrafficPlan().getName().toLowerCase());
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-                String jsonSchema = objectMapper.writeValueAsString(packetData);
-                String tp = "packet." + p.getId() + "='" + jsonSchema + "'" + "\n";
-                topologyConfig.properties.append(tp);
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
-            // apply templates
-            topologyConfig.packetConfig
-                    .append(packetConfigTemplate.replaceAll("%pid%", String.valueOf(p.getId())));
-        });
-        return topologyConfig;
+    private static String getMaxSpoutPending() {
+        Object value = HyperIoTUtil.getHyperIoTProperty("it.acsoftware.hyperiot.storm.max.spout.pending");
+        return (value != null) ? value.toString() : String.valueOf(HyperIoTTopologyBuilder.DEFAULT_MAX_SPOUT_PENDING);
+    }
+
+    /**
+     * @param packet
+     * @return JSON schema of the packet for deserialization bolt
+     */
+    private static String createPacketSchema(HPacket packet) {
+        HashMap<String, Object> packetData = new HashMap<>();
+        packetData.put("name", packet.getName());
+        packetData.put("type", packet.getType().getName());
+        packetData.put("unixTimestamp", packet.isUnixTimestamp());
+        packetData.put("unixTimestampFormatSeconds", packet.isUnixTimestampFormatSeconds());
+        HashMap<String, Object> schema = new HashMap<>();
+        packetData.put("schema", schema);
+        schema.put("type", packet.getFormat().getName());
+        schema.put("fields", packet.getFlatFieldsMap());
+        //add timestamp information
+        HashMap<String, Object> timestampInformation = new HashMap<>();
+        timestampInformation.put("format", packet.getTimestampFormat());
+        timestampInformation.put("field", packet.getTimestampField());
+        packetData.put("timestamp", timestampInformation);
+        //add traffic plan information
+        packetData.put("trafficPlan", packet.getTrafficPlan().getName().toLowerCase());
+        //add payload compression, omitted for uncompressed packets
+        if (packet.getCompression() != null && packet.getCompression() != HPacketCompression.NONE)
+            packetData.put("compression", packet.getCompression().getName());
+        try {
+            return objectMapper.writeValueAsString(packetData);
+        } catch (JsonProcessingException e) {
+            logger.error(e.getMessage(), e);
+            throw new HyperIoTRuntimeException("Packet schema serialization fail ");
+        }
     }
 
     /**
@@ -292,7 +305,7 @@ public class HyperIoTTopologyConfigBuilder {
         RuleEngineSystemApi ruleEngineSystemApi = (RuleEngineSystemApi) HyperIoTUtil.getService(RuleEngineSystemApi.class);
         if (ruleEngineSystemApi != null) {
             Collection<Rule> rules = ruleEngineSystemApi.findAllRuleByProjectIdAndRuleType(projectId, RuleType.EVENT);
-            return rules.stream().map(rule -> rule.getId()).collect(Collectors.toList());
+            return rules.stream().map(rule -> rule.getId()).sorted().collect(Collectors.toList());
         }
         throw new HyperIoTRuntimeException("No HyperIoT Rule Engine Api Found");
     }
@@ -307,7 +320,7 @@ public class HyperIoTTopologyConfigBuilder {
         RuleEngineSystemApi ruleEngineSystemApi = (RuleEngineSystemApi) HyperIoTUtil.getService(RuleEngineSystemApi.class);
         if (ruleEngineSystemApi != null) {
             Collection<Rule> rules = ruleEngineSystemApi.findAllRuleByProjectIdAndRuleType(projectId, RuleType.ALARM_EVENT);
-            return rules.stream().map(rule -> rule.getId()).collect(Collectors.toList());
+            return rules.stream().map(rule -> rule.getId()).sorted().collect(Collectors.toList());
         }
         throw new HyperIoTRuntimeException("No HyperIoT Rule Engine Api Found");
     }
@@ -322,7 +335,7 @@ public class HyperIoTTopologyConfigBuilder {
      */
     private static String getAlarmEventRuleMapConfig(List<Long> alarmEventRuleIds) {
         Collection<AlarmEvent> alarmEventList = getAlarmEventListByRulesId(alarmEventRuleIds);
-        Map<String, Set<String>> alarmRulesMap = new HashMap<>();
+        Map<String, Set<String>> alarmRulesMap = new TreeMap<>();
         for (AlarmEvent alarmEvent : alarmEventList) {
             String alarmId = String.valueOf(alarmEvent.getAlarm().getId());
             String ruleId = String.valueOf(alarmEvent.getEvent().getId());
@@ -330,15 +343,14 @@ public class HyperIoTTopologyConfigBuilder {
                 Set<String> alarmRulesList = alarmRulesMap.get(alarmId);
                 alarmRulesList.add(ruleId);
             } else {
-                Set<String> alarmRulesList = new HashSet<>();
+                Set<String> alarmRulesList = new TreeSet<>();
                 alarmRulesList.add(ruleId);
                 alarmRulesMap.put(alarmId, alarmRulesList);
             }
         }
         try {
             //Serialize data for storm configuration.
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.writeValueAsString(alarmRulesMap);
+            return objectMapper.writeValueAsString(alarmRulesMap);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             throw new HyperIoTRuntimeException("Alarm Event Rule State Map serialization fail ");
@@ -373,6 +385,9 @@ public class HyperIoTTopologyConfigBuilder {
      * @throws IOException
      */
     private static String readBundleResource(String path) throws IOException {
+        String resource = bundleResources.get(path);
+        if (resource != null)
+            return resource;
         URL url = FrameworkUtil.getBundle(StormManager.class).getResource(path);
         BufferedReader br = new BufferedReader(
                 new InputStreamReader(url.openConnection().getInputStream()));
@@ -381,6 +396,7 @@ public class HyperIoTTopologyConfigBuilder {
             buffer.append(br.readLine()).append("\n");
         }
         br.close();
+        bundleResources.put(path, buffer.toString());
         return buffer.toString();
     }
 
@@ -0,0 +1,136 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.builder;
+
+import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfigFingerprint;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Configuration of a project topology, before it is rendered into topology.properties and topology.yaml.
+ * Values are split in sections: rule engine configuration can change without touching topology structure
+ * (settings, packets and templates), so the two are fingerprinted separately.
+ */
+public final class HyperIoTTopologyConfigModel {
+    /**
+     * Template placeholders, both %name% (properties) and %{name}% (yaml) are supported
+     */
+    private static final Pattern PLACEHOLDER = Pattern.compile("%\\{([\\w.\\-]+)}%|%([\\w.\\-]+)%");
+
+    private final String topologyName;
+    private final SortedMap<String, String> settings = new TreeMap<>();
+    private final SortedMap<String, String> rules = new TreeMap<>();
+    private final SortedMap<Long, String> packets = new TreeMap<>();
+    private final SortedMap<String, String> templates = new TreeMap<>();
+
+    public HyperIoTTopologyConfigModel(String topologyName) {
+        this.topologyName = topologyName;
+    }
+
+    public String getTopologyName() {
+        return topologyName;
+    }
+
+    /**
+     * @param placeholder template placeholder, without delimiters
+     * @param value       setting value
+     */
+    public void putSetting(String placeholder, Object value) {
+        settings.put(placeholder, requireValue(placeholder, value));
+    }
+
+    /**
+     * @param placeholder template placeholder, without delimiters
+     * @param value       rule engine configuration
+     */
+    public void putRule(String placeholder, Object value) {
+        rules.put(placeholder, requireValue(placeholder, value));
+    }
+
+    /**
+     * @param packetId   packet id
+     * @param jsonSchema packet schema read by deserialization bolt
+     */
+    public void putPacket(long packetId, String jsonSchema) {
+        packets.put(packetId, jsonSchema);
+    }
+
+    /**
+     * @param name     bundle resource name
+     * @param template resource content
+     */
+    public void putTemplate(String name, String template) {
+        templates.put(name, template);
+    }
+
+    public String getTemplate(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * @return packets schemas ordered by packet id
+     */
+    public SortedMap<Long, String> getPackets() {
+        return packets;
+    }
+
+    public TopologyConfigFingerprint getFingerprint() {
+        return new TopologyConfigFingerprint(
+                TopologyConfigFingerprint.contentHash(settings, packets, templates),
+                TopologyConfigFingerprint.contentHash(rules));
+    }
+
+    /**
+     * Replaces placeholders in a single pass: values are never scanned for placeholders,
+     * unknown placeholders are left untouched.
+     *
+     * @param template         template content
+     * @param additionalValues values of placeholders which are not part of the model
+     * @return rendered template
+     */
+    public String render(String template, Map<String, String> additionalValues) {
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        StringBuffer rendered = new StringBuffer(template.length());
+        while (matcher.find()) {
+            String placeholder = (matcher.group(1) != null) ? matcher.group(1) : matcher.group(2);
+            String value = valueOf(placeholder, additionalValues);
+            matcher.appendReplacement(rendered, Matcher.quoteReplacement(value != null ? value : matcher.group()));
+        }
+        matcher.appendTail(rendered);
+        return rendered.toString();
+    }
+
+    private String valueOf(String placeholder, Map<String, String> additionalValues) {
+        if (additionalValues.containsKey(placeholder))
+            return additionalValues.get(placeholder);
+        if (settings.containsKey(placeholder))
+            return settings.get(placeholder);
+        return rules.get(placeholder);
+    }
+
+    private static String requireValue(String placeholder, Object value) {
+        if (value == null)
+            throw new HyperIoTRuntimeException("No value found for topology placeholder " + placeholder);
+        return value.toString();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.builder;
+
+import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
+import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.api.HPacketSystemApi;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+
+import java.util.Collection;
+
+/**
+ * Executors of each topology component, computed from project performance tier and from its devices and packets.
+ * Tier gives the upper bound of executors per component (see HyperIoTTopologyPerformanceConfig#getMaxParallelism).
+ * Components grouped by device (spout, deserialization, enrichment, event) never get more executors than devices,
+ * since additional executors would never receive tuples; components working on packets are bounded by packets count.
+ * Low traffic components (events, alarms, DLQ and long period HDFS layers) keep a single executor.
+ */
+public final class HyperIoTTopologyParallelism {
+
+    private final HyperIoTTopologyPerformanceConfig performanceConfig;
+    private final int devicesCount;
+    private final int packetsCount;
+    private final int deviceParallelism;
+    private final int packetParallelism;
+
+    public HyperIoTTopologyParallelism(HyperIoTTopologyPerformanceConfig performanceConfig, int devicesCount, int packetsCount) {
+        this.performanceConfig = performanceConfig;
+        this.devicesCount = devicesCount;
+        this.packetsCount = packetsCount;
+        this.deviceParallelism = bounded(devicesCount, performanceConfig.getMaxParallelism());
+        this.packetParallelism = bounded(packetsCount, performanceConfig.getMaxParallelism());
+    }
+
+    /**
+     * Loads project devices and packets once, then computes parallelism of every component
+     *
+     * @param project HProject
+     * @return HyperIoTTopologyParallelism
+     */
+    public static HyperIoTTopologyParallelism fromHProject(HProject project) {
+        HDeviceSystemApi hDeviceSystemApi = (HDeviceSystemApi) HyperIoTUtil.getService(HDeviceSystemApi.class);
+        HPacketSystemApi hPacketSystemApi = (HPacketSystemApi) HyperIoTUtil.getService(HPacketSystemApi.class);
+        Collection<HDevice> deviceList = hDeviceSystemApi.getProjectDevicesList(project.getId());
+        Collection<HPacket> packets = hPacketSystemApi.getProjectPacketsTree(project.getId());
+        return new HyperIoTTopologyParallelism(HyperIoTTopologyPerformanceConfig.fromPackets(packets),
+                deviceList.size(), packets.size());
+    }
+
+    private static int bounded(int value, int max) {
+        return Math.max(1, Math.min(value, max));
+    }
+
+    public HyperIoTTopologyPerformanceConfig getPerformanceConfig() {
+        return performanceConfig;
+    }
+
+    public int getDevicesCount() {
+        return devicesCount;
+    }
+
+    public int getPacketsCount() {
+        return packetsCount;
+    }
+
+    /**
+     * Spout executors exceeding the partitions of the streaming topic stay idle
+     */
+    public int getKafkaSpoutParallelism() {
+        return deviceParallelism;
+    }
+
+    public int getDeserializationParallelism() {
+        return deviceParallelism;
+    }
+
+    public int getEnrichmentParallelism() {
+        return deviceParallelism;
+    }
+
+    public int getEventsProcessingParallelism() {
+        return deviceParallelism;
+    }
+
+    public int getEventsToKafkaParallelism() {
+        return 1;
+    }
+
+    public int getEventSourcingParallelism() {
+        return 1;
+    }
+
+    public int getKafkaRealtimeParallelism() {
+        return packetParallelism;
+    }
+
+    public int getAlarmManagementParallelism() {
+        return 1;
+    }
+
+    public int getAlarmCountParallelism() {
+        return 1;
+    }
+
+    public int getAlarmEventRuleParallelism() {
+        return 1;
+    }
+
+    public int getSelectionBoltParallelism() {
+        return packetParallelism;
+    }
+
+    public int getTimelineParallelism() {
+        return packetParallelism;
+    }
+
+    public int getAvroProcessingParallelism() {
+        return packetParallelism;
+    }
+
+    public int getHdfsHourParallelism() {
+        return bounded(packetParallelism / 2, packetParallelism);
+    }
+
+    public int getHdfsDayParallelism() {
+        return bounded(packetParallelism / 2, packetParallelism);
+    }
+
+    public int getHdfsMonthParallelism() {
+        return 1;
+    }
+
+    public int getHdfsYearParallelism() {
+        return 1;
+    }
+
+    /**
+     * Errors come from components grouped by device, a burst of malformed packets must not be
+     * bounded by a single executor
+     */
+    public int getErrorParallelism() {
+        return bounded(deviceParallelism / 2, deviceParallelism);
+    }
+
+    public int getDlqParallelism() {
+        return 1;
+    }
+
+}
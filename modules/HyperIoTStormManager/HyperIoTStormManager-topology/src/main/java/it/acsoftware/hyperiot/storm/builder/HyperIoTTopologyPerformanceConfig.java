@@ -18,53 +18,33 @@
 package it.acsoftware.hyperiot.storm.builder;
 
 import it.acsoftware.hyperiot.base.util.HyperIoTUtil;
-import it.acsoftware.hyperiot.hdevice.api.HDeviceSystemApi;
-import it.acsoftware.hyperiot.hdevice.model.HDevice;
 import it.acsoftware.hyperiot.hpacket.api.HPacketSystemApi;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
 import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
 import it.acsoftware.hyperiot.hproject.model.HProject;
 
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicReference;
 
 public enum HyperIoTTopologyPerformanceConfig {
-    LOW_PERFORMANCE("21", "128", "64m", "64m", 1),
-    MEDIUM_PERFORMANCE( "41", "256", "64m", "64m", 1),
-    HIGH_PERFORMANCE( "128", "768", "64m", "64m", 1),
-    BEST_PERFORMANCE( "200", "1024", "64m", "64m", 1);
+    LOW_PERFORMANCE("21", "128", "64m", "64m", 1, 1),
+    MEDIUM_PERFORMANCE( "41", "256", "64m", "64m", 1, 2),
+    HIGH_PERFORMANCE( "128", "768", "64m", "64m", 2, 4),
+    BEST_PERFORMANCE( "200", "1024", "64m", "64m", 4, 8);
     private String resourcesOnHeapMemory;
     private String topologyWorkerMaxHeapSize;
     private String logWriterXms;
     private String logWriterXmx;
     private int topologyWorkers;
+    //max number of executors of a single bolt, see HyperIoTTopologyParallelism
+    private int maxParallelism;
 
-    private int kafkaSpoutParallelism = 1;
-    private int deserializationParallelism = 1;
-    private int enrichmentParallelism = 1;
-    private int eventsProcessingParallelism = 1;
-    private int eventsToKafkaParallelism = 1;
-    private int eventSourcingParallelism = 1;
-    private int kafkaRealtimeParallelism = 1;
-    private int alarmManagementParallelism = 1;
-    private int alarmCountParallelism = 1;
-    private int alarmEventRuleParallelism = 1;
-    private int selectionBoltParallelism = 1;
-    private int timelineParallelism = 1;
-    private int avroProcessingParallelism = 1;
-    private int hdfsHourParallelism = 1;
-    private int hdfsDayParallelism = 1;
-    private int hdfsMonthParallelism = 1;
-    private int hdfsYearParallelism = 1;
-    private int hdfsSemesterParallelism = 1;
-    private int hdfsQuarterParallelism = 1;
-    private int dlqParallelism = 1;
-
-    HyperIoTTopologyPerformanceConfig(String resourcesOnHeapMemory, String topologyWorkerMaxHeapSize, String logWriterXms, String logWriterXmx, int topologyWorkers) {
+    HyperIoTTopologyPerformanceConfig(String resourcesOnHeapMemory, String topologyWorkerMaxHeapSize, String logWriterXms, String logWriterXmx, int topologyWorkers, int maxParallelism) {
         this.resourcesOnHeapMemory = resourcesOnHeapMemory;
         this.topologyWorkerMaxHeapSize = topologyWorkerMaxHeapSize;
         this.logWriterXms = logWriterXms;
         this.logWriterXmx = logWriterXmx;
         this.topologyWorkers = topologyWorkers;
+        this.maxParallelism = maxParallelism;
     }
 
     public String getResourcesOnHeapMemory() {
@@ -87,100 +67,29 @@ public enum HyperIoTTopologyPerformanceConfig {
         return topologyWorkers;
     }
 
-    public int getKafkaSpoutParallelism() {
-        return kafkaSpoutParallelism;
-    }
-
-    public int getDeserializationParallelism() {
-        return deserializationParallelism;
-    }
-
-    public int getEnrichmentParallelism() {
-        return enrichmentParallelism;
-    }
-
-    public int getEventsProcessingParallelism() {
-        return eventsProcessingParallelism;
-    }
-
-    public int getEventsToKafkaParallelism() {
-        return eventsToKafkaParallelism;
-    }
-
-    public int getEventSourcingParallelism() {
-        return eventSourcingParallelism;
-    }
-
-    public int getKafkaRealtimeParallelism() {
-        return kafkaRealtimeParallelism;
-    }
-
-    public int getAlarmManagementParallelism() {
-        return alarmManagementParallelism;
-    }
-
-    public int getAlarmCountParallelism() {
-        return alarmCountParallelism;
-    }
-
-    public int getAlarmEventRuleParallelism() {
-        return alarmEventRuleParallelism;
-    }
-
-    public int getSelectionBoltParallelism() {
-        return selectionBoltParallelism;
-    }
-
-    public int getTimelineParallelism() {
-        return timelineParallelism;
-    }
-
-    public int getAvroProcessingParallelism() {
-        return avroProcessingParallelism;
-    }
-
-    public int getHdfsHourParallelism() {
-        return hdfsHourParallelism;
-    }
-
-    public int getHdfsDayParallelism() {
-        return hdfsDayParallelism;
-    }
-
-    public int getHdfsMonthParallelism() {
-        return hdfsMonthParallelism;
-    }
-
-    public int getHdfsYearParallelism() {
-        return hdfsYearParallelism;
-    }
-
-    public int getHdfsSemesterParallelism() {
-        return hdfsSemesterParallelism;
-    }
-
-    public int getHdfsQuarterParallelism() {
-        return hdfsQuarterParallelism;
-    }
-
-    public int getDlqParallelism() {
-        return dlqParallelism;
+    public int getMaxParallelism() {
+        return maxParallelism;
     }
 
     public static HyperIoTTopologyPerformanceConfig fromHProject(HProject project) {
-        AtomicReference<HPacketTrafficPlan> worstCase = new AtomicReference<>();
-        worstCase.set(HPacketTrafficPlan.LOW);
-        HDeviceSystemApi hDeviceSystemApi = (HDeviceSystemApi) HyperIoTUtil.getService(HDeviceSystemApi.class);
         HPacketSystemApi hPacketSystemApi = (HPacketSystemApi) HyperIoTUtil.getService(HPacketSystemApi.class);
-        Collection<HDevice> deviceList = hDeviceSystemApi.getProjectDevicesList(project.getId());
-        deviceList.stream().flatMap(device -> hPacketSystemApi.getPacketsList(device.getId()).stream()).forEach(packet -> {
-            if (packet.getTrafficPlan().getOrder() > worstCase.get().getOrder())
-                worstCase.set(packet.getTrafficPlan());
-        });
-        return fromTrafficPlan(worstCase.get());
+        return fromPackets(hPacketSystemApi.getProjectPacketsTree(project.getId()));
+    }
+
+    /**
+     * @param packets all packets of the project
+     * @return performance config of the most demanding traffic plan
+     */
+    public static HyperIoTTopologyPerformanceConfig fromPackets(Collection<HPacket> packets) {
+        HPacketTrafficPlan worstCase = HPacketTrafficPlan.LOW;
+        for (HPacket packet : packets) {
+            if (packet.getTrafficPlan().getOrder() > worstCase.getOrder())
+                worstCase = packet.getTrafficPlan();
+        }
+        return fromTrafficPlan(worstCase);
     }
 
-    private static HyperIoTTopologyPerformanceConfig fromTrafficPlan(HPacketTrafficPlan plan) {
+    static HyperIoTTopologyPerformanceConfig fromTrafficPlan(HPacketTrafficPlan plan) {
         if (plan == HPacketTrafficPlan.LOW)
             return LOW_PERFORMANCE;
         else if (plan == HPacketTrafficPlan.MEDIUM)
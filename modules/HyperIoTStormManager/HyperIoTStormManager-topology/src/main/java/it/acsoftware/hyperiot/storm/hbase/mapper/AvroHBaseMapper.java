@@ -50,9 +50,11 @@ public class AvroHBaseMapper implements HBaseMapper {
     @Override
     public ColumnList columns(Tuple tuple) {
         long hPacketId = (long) tuple.getValueByField(HPACKET_ID_FIELD);
-        String avroHPacket = (String) tuple.getValueByField(AVRO_HPACKET_FIELD);
+        // binary avro cell, legacy json avro strings may still come from dead letter queue
+        Object avroHPacket = tuple.getValueByField(AVRO_HPACKET_FIELD);
+        byte[] avroHPacketCell = (avroHPacket instanceof byte[]) ? (byte[]) avroHPacket : toBytes(avroHPacket);
         ColumnList cols = new ColumnList();
-        cols.addColumn(this.columnFamily, Bytes.toBytes(hPacketId), toBytes(avroHPacket));
+        cols.addColumn(this.columnFamily, Bytes.toBytes(hPacketId), avroHPacketCell);
         try {
             Map<Long, byte[]> attachments = (Map) tuple.getValueByField(AVRO_HPACKET_ATTACHMENTS);
             attachments.keySet().forEach(fieldId -> {
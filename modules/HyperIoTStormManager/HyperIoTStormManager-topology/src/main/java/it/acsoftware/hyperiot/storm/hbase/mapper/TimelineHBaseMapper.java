@@ -27,6 +27,7 @@ import org.apache.storm.tuple.Tuple;
 
 import java.time.Instant;
 
+import static it.acsoftware.hyperiot.storm.util.StormConstants.COUNT_FIELD;
 import static it.acsoftware.hyperiot.storm.util.StormConstants.STEP_FIELD;
 import static it.acsoftware.hyperiot.storm.util.StormConstants.TIMESTAMP_FIELD;
 import static org.apache.storm.hbase.common.Utils.toBytes;
@@ -38,6 +39,7 @@ public class TimelineHBaseMapper implements HBaseMapper {
     // - rowKeyField, which is set in topology.yaml config method, refers to HBase row key
     // - timestamp value is HPacket timestamp
     // - step, HBase column family on which register increment
+    // - count, optional, increment amount summed up by TimelineAggregationBolt (1 if missing)
     private String rowKeyField;
     private final HProjectTimelineUtil hBaseConnectorTimelineUtil;
 
@@ -55,37 +57,38 @@ public class TimelineHBaseMapper implements HBaseMapper {
     public ColumnList columns(Tuple tuple) {
         long timestamp = (long) tuple.getValueByField(TIMESTAMP_FIELD);
         TimelineColumnFamily step = (TimelineColumnFamily) tuple.getValueByField(STEP_FIELD);
+        long increment = tuple.contains(COUNT_FIELD) ? tuple.getLongByField(COUNT_FIELD) : 1L;
         ColumnList cols = new ColumnList();
         Instant instant = Instant.ofEpochMilli(timestamp);
         switch (step) {
-            // we need increment, so add value 1 to HBase cell
+            // we need increment, so add aggregated count to HBase cell
             case YEAR:
                 cols.addCounter(TimelineColumnFamily.YEAR.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getYearColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getYearColumnFamily(instant).getBytes(), increment);
                 break;
             case MONTH:
                 cols.addCounter(TimelineColumnFamily.MONTH.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getMonthColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getMonthColumnFamily(instant).getBytes(), increment);
                 break;
             case DAY:
                 cols.addCounter(TimelineColumnFamily.DAY.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getDayColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getDayColumnFamily(instant).getBytes(), increment);
                 break;
             case HOUR:
                 cols.addCounter(TimelineColumnFamily.HOUR.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getHourColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getHourColumnFamily(instant).getBytes(), increment);
                 break;
             case MINUTE:
                 cols.addCounter(TimelineColumnFamily.MINUTE.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getMinuteColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getMinuteColumnFamily(instant).getBytes(), increment);
                 break;
             case SECOND:
                 cols.addCounter(TimelineColumnFamily.SECOND.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getSecondColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getSecondColumnFamily(instant).getBytes(), increment);
                 break;
             case MILLISECOND:
                 cols.addCounter(TimelineColumnFamily.MILLISECOND.getName().getBytes(),
-                    hBaseConnectorTimelineUtil.getMillisecondColumnFamily(instant).getBytes(), 1);
+                    hBaseConnectorTimelineUtil.getMillisecondColumnFamily(instant).getBytes(), increment);
                 break;
             default:
                 break;
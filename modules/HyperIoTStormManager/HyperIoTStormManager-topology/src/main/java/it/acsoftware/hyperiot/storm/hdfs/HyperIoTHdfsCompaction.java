@@ -0,0 +1,249 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs;
+
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTHdfsLayout;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTPartitionGranularity;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperiotPartitioner;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintenance of the HDFS layout written by the topology (see HyperIoTHdfsLayout).
+ * Compaction rolls up the small avro files of a directory into one file. It only touches closed files:
+ * files HDFS bolts are still writing to, or which are not yet renamed to their final avro name, are left as they are,
+ * and compactClosedBuckets skips directories whose period has not ended yet.
+ * Migration removes the copies written by the legacy layout, where every packet was written once per granularity:
+ * year directories held every packet, month/day/hour directories below them and quarter/semester directories
+ * below the packet directory were duplicates.
+ */
+public class HyperIoTHdfsCompaction {
+
+    private static final Logger log = LoggerFactory.getLogger(HyperIoTHdfsCompaction.class);
+
+    public static final String AVRO_EXTENSION = ".avro";
+    public static final String COMPACTED_FILE_PREFIX = "compacted-";
+
+    private final FileSystem fileSystem;
+
+    public HyperIoTHdfsCompaction(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Compacts the directories of a packet whose period has ended, late directories included.
+     *
+     * @param packetDirectory directory of a packet, below HDFS write dir
+     * @param granularity     canonical granularity of the packet traffic plan (see HyperIoTHdfsLayout)
+     * @param zone            time zone of date directories
+     * @param now             current time, directories of the current period are skipped
+     * @return number of merged files
+     * @throws IOException if files cannot be read or written
+     */
+    public int compactClosedBuckets(Path packetDirectory, HyperIoTPartitionGranularity granularity, ZoneId zone,
+                                    Instant now) throws IOException {
+        int nesting = HyperIoTHdfsLayout.getNesting(granularity);
+        List<String> datePaths = new ArrayList<>();
+        listDatePaths(packetDirectory, "", nesting, datePaths);
+        Path lateDirectory = new Path(packetDirectory, HyperiotPartitioner.LATE_DIRECTORY);
+        if (fileSystem.exists(lateDirectory))
+            listDatePaths(lateDirectory, HyperiotPartitioner.LATE_DIRECTORY + Path.SEPARATOR, nesting, datePaths);
+        int mergedFiles = 0;
+        for (String datePath : datePaths) {
+            String bucketPath = datePath.startsWith(HyperiotPartitioner.LATE_DIRECTORY + Path.SEPARATOR)
+                    ? datePath.substring(HyperiotPartitioner.LATE_DIRECTORY.length() + 1) : datePath;
+            if (HyperIoTHdfsLayout.getBucketEnd(granularity, bucketPath, zone).toInstant().isAfter(now)) {
+                log.debug("Skipping {}, its period has not ended yet", datePath);
+                continue;
+            }
+            mergedFiles += compact(new Path(packetDirectory, datePath));
+        }
+        return mergedFiles;
+    }
+
+    /**
+     * Merges closed avro files of a directory, not recursively, into a single file.
+     * Merged file is written with a hidden name and renamed once complete, then merged files are deleted:
+     * readers never see a packet twice or a partial file.
+     *
+     * @param directory directory to be compacted
+     * @return number of merged files, 0 if there were less than two files to merge
+     * @throws IOException if files cannot be read or written
+     */
+    public int compact(Path directory) throws IOException {
+        List<Path> avroFiles = listAvroFiles(directory);
+        if (avroFiles.size() < 2)
+            return 0;
+        Path temporaryFile = new Path(directory, "_" + COMPACTED_FILE_PREFIX + System.currentTimeMillis() + AVRO_EXTENSION);
+        List<Path> mergedFiles = new ArrayList<>();
+        try (FSDataOutputStream out = fileSystem.create(temporaryFile, false);
+             DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<>())) {
+            Schema schema = null;
+            for (Path avroFile : avroFiles) {
+                try (InputStream in = fileSystem.open(avroFile);
+                     DataFileStream<GenericRecord> reader = new DataFileStream<>(in, new GenericDatumReader<>())) {
+                    if (schema == null) {
+                        schema = reader.getSchema();
+                        writer.create(schema, out);
+                    } else if (!schema.equals(reader.getSchema())) {
+                        //files written with another packet version are left as they are
+                        log.debug("Skipping {}, its schema differs from the one of compacted file", avroFile);
+                        continue;
+                    }
+                    writer.appendAllFrom(reader, false);
+                    mergedFiles.add(avroFile);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fileSystem.delete(temporaryFile, false);
+            throw e;
+        }
+        if (mergedFiles.size() < 2) {
+            fileSystem.delete(temporaryFile, false);
+            return 0;
+        }
+        Path compactedFile = new Path(directory, temporaryFile.getName().substring(1));
+        if (!fileSystem.rename(temporaryFile, compactedFile))
+            throw new IOException("Could not rename " + temporaryFile + " to " + compactedFile);
+        for (Path mergedFile : mergedFiles)
+            fileSystem.delete(mergedFile, false);
+        log.info("Compacted {} files of {} into {}", mergedFiles.size(), directory, compactedFile);
+        return mergedFiles.size();
+    }
+
+    /**
+     * Finds the duplicates written by the legacy layout below a packet directory, deleting them if not in dry run.
+     * Files directly inside year directories hold every packet and are kept; files below them written before
+     * the new layout has been deployed are legacy copies, later ones have been written by the new layout.
+     * Open files and files without their final avro name are never deleted.
+     *
+     * @param packetDirectory  directory of a packet, below HDFS write dir
+     * @param layoutChangeTime time the new layout has been deployed, in milliseconds
+     * @param dryRun           if true, duplicates are only listed
+     * @return closed files of legacy quarter/semester directories and legacy files below year directories
+     * @throws IOException if directories cannot be listed or deleted
+     */
+    public List<Path> migrateLegacyLayout(Path packetDirectory, long layoutChangeTime, boolean dryRun) throws IOException {
+        List<Path> duplicates = new ArrayList<>();
+        for (FileStatus child : fileSystem.listStatus(packetDirectory)) {
+            if (!child.isDirectory() || child.getPath().getName().equals(HyperiotPartitioner.LATE_DIRECTORY))
+                continue;
+            if (isLegacyQuarterOrSemester(child.getPath().getName())) {
+                addClosedFiles(child.getPath(), Long.MAX_VALUE, duplicates);
+                continue;
+            }
+            for (FileStatus yearChild : fileSystem.listStatus(child.getPath())) {
+                if (yearChild.isDirectory())
+                    addClosedFiles(yearChild.getPath(), layoutChangeTime, duplicates);
+            }
+        }
+        if (!dryRun) {
+            for (Path duplicate : duplicates)
+                fileSystem.delete(duplicate, false);
+            for (FileStatus child : fileSystem.listStatus(packetDirectory)) {
+                if (child.isDirectory())
+                    deleteEmptyDirectories(child.getPath());
+            }
+        }
+        log.info("{} {} legacy copies below {}", dryRun ? "Found" : "Deleted", duplicates.size(), packetDirectory);
+        return duplicates;
+    }
+
+    /**
+     * @return true if the directory was empty and it has been deleted
+     */
+    private boolean deleteEmptyDirectories(Path directory) throws IOException {
+        boolean empty = true;
+        for (FileStatus child : fileSystem.listStatus(directory)) {
+            if (!child.isDirectory() || !deleteEmptyDirectories(child.getPath()))
+                empty = false;
+        }
+        return empty && fileSystem.delete(directory, false);
+    }
+
+    private void addClosedFiles(Path directory, long modifiedBefore, List<Path> files) throws IOException {
+        RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(directory, true);
+        while (iterator.hasNext()) {
+            LocatedFileStatus file = iterator.next();
+            if (file.getModificationTime() < modifiedBefore && isClosedAvroFile(file))
+                files.add(file.getPath());
+        }
+    }
+
+    /**
+     * Collects date paths, relative to root, of directories at the given depth below it; the late directory is skipped
+     */
+    private void listDatePaths(Path root, String prefix, int depth, List<String> datePaths) throws IOException {
+        for (FileStatus child : fileSystem.listStatus(root)) {
+            String name = child.getPath().getName();
+            if (!child.isDirectory() || !name.chars().allMatch(Character::isDigit))
+                continue;
+            if (depth == 1)
+                datePaths.add(prefix + name + Path.SEPARATOR);
+            else
+                listDatePaths(child.getPath(), prefix + name + Path.SEPARATOR, depth - 1, datePaths);
+        }
+    }
+
+    private List<Path> listAvroFiles(Path directory) throws IOException {
+        List<Path> avroFiles = new ArrayList<>();
+        for (FileStatus status : fileSystem.listStatus(directory)) {
+            if (isClosedAvroFile(status))
+                avroFiles.add(status.getPath());
+        }
+        return avroFiles;
+    }
+
+    /**
+     * Files being written have a temporary name or, on HDFS, are still open: their last block is under construction
+     */
+    private boolean isClosedAvroFile(FileStatus status) throws IOException {
+        String name = status.getPath().getName();
+        if (!status.isFile() || !name.endsWith(AVRO_EXTENSION) || name.startsWith("_") || name.startsWith("."))
+            return false;
+        return !(fileSystem instanceof DistributedFileSystem) || ((DistributedFileSystem) fileSystem).isFileClosed(status.getPath());
+    }
+
+    /**
+     * Quarter and semester directories were named 1 to 4, years have four digits
+     */
+    private static boolean isLegacyQuarterOrSemester(String name) {
+        return name.length() == 1 && name.charAt(0) >= '1' && name.charAt(0) <= '4';
+    }
+
+}
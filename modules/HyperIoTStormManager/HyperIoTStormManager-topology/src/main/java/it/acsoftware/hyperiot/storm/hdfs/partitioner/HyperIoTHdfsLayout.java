@@ -0,0 +1,140 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs.partitioner;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
+import org.apache.hadoop.fs.Path;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HDFS layout of packets: every packet is written once, to the directory of its canonical granularity.
+ * Canonical granularities are nested (packetId/year/month/day/hour/), so a directory holds, recursively,
+ * every packet of its period: coarser granularities are views over the canonical copy.
+ * Quarter and semester views are the month directories they contain.
+ * With LATE_DIRECTORY late data policy, late packets follow the same layout below packetId/late/.
+ */
+public final class HyperIoTHdfsLayout {
+
+    /**
+     * Size of avro files before a new one is started
+     */
+    public static final int DEFAULT_ROTATION_SIZE_MB = 1024;
+    /**
+     * Packets written before avro files are synced to datanodes
+     */
+    public static final int DEFAULT_SYNC_COUNT = 1;
+
+    private HyperIoTHdfsLayout() {
+    }
+
+    /**
+     * Higher traffic plans are split in smaller directories, so files of a directory stay close in size
+     *
+     * @param trafficPlan packet traffic plan
+     * @return granularity of the directory which packets are written to
+     */
+    public static HyperIoTPartitionGranularity getCanonicalGranularity(HPacketTrafficPlan trafficPlan) {
+        switch (trafficPlan) {
+            case MEDIUM:
+                return HyperIoTPartitionGranularity.MONTH;
+            case HIGH:
+                return HyperIoTPartitionGranularity.DAY;
+            case INTENSIVE:
+                return HyperIoTPartitionGranularity.HOUR;
+            default:
+                return HyperIoTPartitionGranularity.YEAR;
+        }
+    }
+
+    /**
+     * Directories to be read recursively in order to get packets of a period.
+     * Periods finer than the canonical granularity are served by the canonical directory containing them,
+     * readers filter its packets by timestamp.
+     *
+     * @param packetId    packet id
+     * @param trafficPlan packet traffic plan
+     * @param granularity period granularity
+     * @param dateTime    date time inside the period
+     * @return directories relative to HDFS write dir, ending with a separator
+     */
+    public static List<String> getDirectories(long packetId, HPacketTrafficPlan trafficPlan,
+                                              HyperIoTPartitionGranularity granularity, ZonedDateTime dateTime) {
+        HyperIoTPartitionGranularity canonical = getCanonicalGranularity(trafficPlan);
+        String packetDirectory = packetId + Path.SEPARATOR;
+        if (granularity == HyperIoTPartitionGranularity.QUARTER || granularity == HyperIoTPartitionGranularity.SEMESTER) {
+            if (canonical == HyperIoTPartitionGranularity.YEAR)
+                return Collections.singletonList(packetDirectory + directory(HyperIoTPartitionGranularity.YEAR, dateTime));
+            List<String> monthDirectories = new ArrayList<>();
+            ZonedDateTime month = granularity.bucketStart(dateTime);
+            ZonedDateTime end = granularity.bucketEnd(month);
+            for (; month.isBefore(end); month = month.plusMonths(1))
+                monthDirectories.add(packetDirectory + directory(HyperIoTPartitionGranularity.MONTH, month));
+            return monthDirectories;
+        }
+        HyperIoTPartitionGranularity view = (getNesting(granularity) > getNesting(canonical)) ? canonical : granularity;
+        return Collections.singletonList(packetDirectory + directory(view, dateTime));
+    }
+
+    /**
+     * @param granularity granularity of the directory
+     * @param datePath    date directories below the packet (or late) directory, e.g. 2023/5/7/ for days
+     * @param zone        time zone of date directories
+     * @return end of the period of the directory, exclusive: its files may still be written until then
+     */
+    public static ZonedDateTime getBucketEnd(HyperIoTPartitionGranularity granularity, String datePath, ZoneId zone) {
+        int[] fields = {0, 1, 1, 0};
+        int i = 0;
+        for (String name : datePath.split(Path.SEPARATOR)) {
+            if (name.isEmpty())
+                continue;
+            if (i == fields.length)
+                throw new IllegalArgumentException("Not a date path: " + datePath);
+            fields[i++] = Integer.parseInt(name);
+        }
+        if (i != getNesting(granularity))
+            throw new IllegalArgumentException("Not a " + granularity.getDepth() + " path: " + datePath);
+        ZonedDateTime dateTime = ZonedDateTime.of(fields[0], fields[1], fields[2], fields[3], 0, 0, 0, zone);
+        return granularity.bucketEnd(granularity.bucketStart(dateTime));
+    }
+
+    /**
+     * @return depth of granularity directories below the packet directory
+     */
+    public static int getNesting(HyperIoTPartitionGranularity granularity) {
+        switch (granularity) {
+            case HOUR:
+                return 4;
+            case DAY:
+                return 3;
+            case MONTH:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private static String directory(HyperIoTPartitionGranularity granularity, ZonedDateTime dateTime) {
+        return granularity.datePath(granularity.bucketStart(dateTime));
+    }
+
+}
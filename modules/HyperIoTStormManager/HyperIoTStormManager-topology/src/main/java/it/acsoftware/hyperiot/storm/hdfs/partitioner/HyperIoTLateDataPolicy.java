@@ -0,0 +1,38 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs.partitioner;
+
+/**
+ * Where HyperiotPartitioner writes packets whose timestamp is older than the allowed lateness
+ * (replayed packets, devices sending buffered data after being offline, ...)
+ */
+public enum HyperIoTLateDataPolicy {
+    /**
+     * Every packet is written to the directory of its own timestamp, late ones included
+     */
+    EVENT_TIME,
+    /**
+     * Late packets are written to the directory of their timestamp below the late directory of the packet,
+     * so partitions already processed by batch jobs are left untouched
+     */
+    LATE_DIRECTORY,
+    /**
+     * Every packet is written to the directory of the time it is processed, ignoring its timestamp
+     */
+    PROCESSING_TIME
+}
@@ -0,0 +1,126 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs.partitioner;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * HDFS directory layouts below the packet id directory.
+ * Every granularity maps a time bucket (an hour, a day, ...) to its date path, e.g. 2023/5/7/14/ for hours.
+ */
+public enum HyperIoTPartitionGranularity {
+    HOUR("hour", "uuuu/M/d/H/", 1, ChronoUnit.HOURS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return dateTime.truncatedTo(ChronoUnit.HOURS);
+        }
+    },
+    DAY("day", "uuuu/M/d/", 1, ChronoUnit.DAYS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return dateTime.truncatedTo(ChronoUnit.DAYS);
+        }
+    },
+    MONTH("month", "uuuu/M/", 1, ChronoUnit.MONTHS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+        }
+    },
+    QUARTER("quarter", "Q/uuuu/", 3, ChronoUnit.MONTHS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return firstMonthOf(dateTime, 3);
+        }
+    },
+    SEMESTER("semester", null, 6, ChronoUnit.MONTHS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return firstMonthOf(dateTime, 6);
+        }
+
+        @Override
+        String datePath(ZonedDateTime bucketStart) {
+            return (bucketStart.getMonthValue() <= 6 ? 1 : 2) + "/" + bucketStart.getYear() + "/";
+        }
+    },
+    YEAR("year", "uuuu/", 1, ChronoUnit.YEARS) {
+        @Override
+        ZonedDateTime bucketStart(ZonedDateTime dateTime) {
+            return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+        }
+    };
+
+    private final String depth;
+    private final DateTimeFormatter formatter;
+    private final long bucketAmount;
+    private final ChronoUnit bucketUnit;
+
+    HyperIoTPartitionGranularity(String depth, String pattern, long bucketAmount, ChronoUnit bucketUnit) {
+        this.depth = depth;
+        this.formatter = (pattern != null) ? DateTimeFormatter.ofPattern(pattern) : null;
+        this.bucketAmount = bucketAmount;
+        this.bucketUnit = bucketUnit;
+    }
+
+    /**
+     * @param dateTime date time
+     * @return start of the bucket containing dateTime
+     */
+    abstract ZonedDateTime bucketStart(ZonedDateTime dateTime);
+
+    /**
+     * @param bucketStart start of a bucket
+     * @return start of the following bucket
+     */
+    ZonedDateTime bucketEnd(ZonedDateTime bucketStart) {
+        return bucketStart.plus(bucketAmount, bucketUnit);
+    }
+
+    /**
+     * @param bucketStart start of a bucket
+     * @return directories of the bucket, ending with a separator
+     */
+    String datePath(ZonedDateTime bucketStart) {
+        return formatter.format(bucketStart);
+    }
+
+    public String getDepth() {
+        return depth;
+    }
+
+    private static ZonedDateTime firstMonthOf(ZonedDateTime dateTime, int months) {
+        int firstMonth = ((dateTime.getMonthValue() - 1) / months) * months + 1;
+        return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).withMonth(firstMonth);
+    }
+
+    /**
+     * @param depth hour, day, month, quarter, semester or year
+     * @return granularity
+     */
+    public static HyperIoTPartitionGranularity fromDepth(String depth) {
+        for (HyperIoTPartitionGranularity granularity : values()) {
+            if (granularity.depth.equalsIgnoreCase(depth))
+                return granularity;
+        }
+        throw new IllegalArgumentException("Unknown HDFS partition depth: " + depth);
+    }
+
+}
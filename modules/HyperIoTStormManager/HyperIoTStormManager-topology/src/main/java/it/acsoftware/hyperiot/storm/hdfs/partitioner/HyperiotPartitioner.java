@@ -18,6 +18,8 @@
 package it.acsoftware.hyperiot.storm.hdfs.partitioner;
 
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketField;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
 import org.apache.hadoop.fs.Path;
 import org.apache.storm.hdfs.common.Partitioner;
 import org.apache.storm.tuple.Tuple;
@@ -25,95 +27,140 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Calendar;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 
 /**
- * This class tells to Storm where it must save hdfs file
+ * This class tells to Storm where it must save hdfs file.
+ * Path is packetId/ followed by the date directories of the packet timestamp at the configured granularity,
+ * so replayed or late packets land in the directories of the time they have been produced.
+ * Date directories of the last bucket are cached, packets close in time do not format dates again.
  */
-@SuppressWarnings("unused")
 public class HyperiotPartitioner implements Partitioner, Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private static final Logger log = LoggerFactory.getILoggerFactory().getLogger(HyperiotPartitioner.class.getName());
+
+    public static final String LATE_DIRECTORY = "late";
+    public static final long DEFAULT_ALLOWED_LATENESS_SECONDS = 3600;
+
+    private HyperIoTPartitionGranularity granularity;
+    private HyperIoTLateDataPolicy lateDataPolicy = HyperIoTLateDataPolicy.EVENT_TIME;
+    private long allowedLatenessMillis = DEFAULT_ALLOWED_LATENESS_SECONDS * 1000;
     /**
-     * File directory depth
+     * Time zone of date directories, null means the default one of the worker
      */
-    private String depth;
+    private String zoneId;
+    private Clock clock = Clock.systemUTC();
 
-    private static String day(long packetId, Calendar calendar) {
-        return packetId + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR +
-            (calendar.get(Calendar.MONTH) + 1) + Path.SEPARATOR +
-            calendar.get(Calendar.DAY_OF_MONTH) + Path.SEPARATOR;
-    }
+    private transient ZoneId zone;
+    private transient long bucketStartMillis;
+    private transient long bucketEndMillis;
+    private transient String bucketPath;
 
     @Override
     public String getPartitionPath(Tuple tuple) {
-        log.debug("Get partition path with depth {}", depth);
-        HPacket hPacket = (HPacket)tuple.getValueByField("packet");
-        long packetId = hPacket.getId();
-        log.debug("HPacket ID to save: {}", packetId);
-        long timestamp = (long) hPacket.getFieldsMap().get(hPacket.getTimestampField()).getFieldValue();
-        log.debug("HPacket timestamp in Unix Epoch time: {}", timestamp);
-        Calendar calendar = Calendar.getInstance();
-        String path = null;
-        try {
-            Method method = HyperiotPartitioner.class.getDeclaredMethod(depth, long.class, Calendar.class);
-            path = (String) method.invoke(null, packetId, calendar);
-            log.debug("Path which save HPacket to: {}", path);
-        } catch (NoSuchMethodException e) {
-            log.error("No such method");
-            e.printStackTrace();
-        } catch (InvocationTargetException | IllegalAccessException e) {
-            e.printStackTrace();
+        return getPartitionPath((HPacket) tuple.getValueByField(StormConstants.PACKET_FIELD));
+    }
+
+    /**
+     * @param hPacket HPacket
+     * @return directory of the packet, ending with a separator
+     */
+    public String getPartitionPath(HPacket hPacket) {
+        long now = clock.millis();
+        String packetDirectory = hPacket.getId() + Path.SEPARATOR;
+        if (lateDataPolicy == HyperIoTLateDataPolicy.PROCESSING_TIME)
+            return packetDirectory + datePath(now);
+        long timestamp = getTimestamp(hPacket, now);
+        if (lateDataPolicy == HyperIoTLateDataPolicy.LATE_DIRECTORY && timestamp < now - allowedLatenessMillis) {
+            log.debug("HPacket {} with timestamp {} is late, saving it to late directory", hPacket.getId(), timestamp);
+            return packetDirectory + LATE_DIRECTORY + Path.SEPARATOR + datePath(timestamp);
         }
-        return path;
+        return packetDirectory + datePath(timestamp);
     }
 
-    public static String hour(long packetId, Calendar calendar) {
-        return packetId + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR +
-            (calendar.get(Calendar.MONTH) + 1) + Path.SEPARATOR +
-            calendar.get(Calendar.DAY_OF_MONTH) + Path.SEPARATOR +
-            calendar.get(Calendar.HOUR_OF_DAY) + Path.SEPARATOR;
+    /**
+     * Timestamp field is looked up among top level fields before resolving it as a path
+     *
+     * @return packet timestamp in milliseconds, processing time if it is missing
+     */
+    private long getTimestamp(HPacket hPacket, long now) {
+        String timestampField = hPacket.getTimestampField();
+        Object value = null;
+        for (HPacketField field : hPacket.getFields()) {
+            if (field.getName().equals(timestampField)) {
+                value = field.getFieldValue();
+                break;
+            }
+        }
+        if (value == null && timestampField != null)
+            value = hPacket.getFieldValue(timestampField);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        log.warn("HPacket {} has no valid timestamp, saving it to the directory of processing time", hPacket.getId());
+        return now;
     }
 
-    public static String month(long packetId, Calendar calendar) {
-        return packetId + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR +
-            (calendar.get(Calendar.MONTH) + 1) + Path.SEPARATOR;
+    private String datePath(long timestamp) {
+        if (bucketPath == null || timestamp < bucketStartMillis || timestamp >= bucketEndMillis) {
+            if (zone == null)
+                zone = (zoneId != null) ? ZoneId.of(zoneId) : ZoneId.systemDefault();
+            ZonedDateTime bucketStart = granularity.bucketStart(Instant.ofEpochMilli(timestamp).atZone(zone));
+            bucketStartMillis = bucketStart.toInstant().toEpochMilli();
+            bucketEndMillis = granularity.bucketEnd(bucketStart).toInstant().toEpochMilli();
+            bucketPath = granularity.datePath(bucketStart);
+        }
+        return bucketPath;
     }
 
-    public static String quarter(long packetId, Calendar calendar) {
-        int quarter = calendar.get(Calendar.MONTH) < 4 ? 1 : calendar.get(Calendar.MONTH) < 8 ? 2 : 3;
-        return packetId + Path.SEPARATOR +
-            quarter + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR;
+    /**
+     * Set file directory depth
+     * @param depth File directory depth: hour, day, month, quarter, semester or year
+     * @return this Partitioner
+     */
+    public HyperiotPartitioner withDepth(String depth) {
+        return withGranularity(HyperIoTPartitionGranularity.fromDepth(depth));
     }
 
-    public static String semester(long packetId, Calendar calendar) {
-        int semester = calendar.get(Calendar.MONTH) < 6 ? 1 : 2;
-        return packetId + Path.SEPARATOR +
-            semester + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR;
+    public HyperiotPartitioner withGranularity(HyperIoTPartitionGranularity granularity) {
+        this.granularity = granularity;
+        return this;
     }
 
     /**
-     * Set file directory depth
-     * @param depth File directory depth
+     * @param lateDataPolicy Where packets older than allowed lateness are saved
+     * @param allowedLatenessSeconds Age after which a packet is late, used by LATE_DIRECTORY policy
      * @return this Partitioner
      */
-    public HyperiotPartitioner withDepth(String depth) {
-        this.depth = depth;
+    public HyperiotPartitioner withLateDataPolicy(HyperIoTLateDataPolicy lateDataPolicy, long allowedLatenessSeconds) {
+        if (allowedLatenessSeconds < 0)
+            throw new IllegalArgumentException("Allowed lateness must not be negative");
+        this.lateDataPolicy = lateDataPolicy;
+        this.allowedLatenessMillis = allowedLatenessSeconds * 1000;
+        return this;
+    }
+
+    /**
+     * @param zoneId Time zone of date directories
+     * @return this Partitioner
+     */
+    public HyperiotPartitioner withZoneId(String zoneId) {
+        this.zoneId = ZoneId.of(zoneId).getId();
+        this.zone = null;
         return this;
     }
 
-    public static String year(long packetId, Calendar calendar) {
-        return packetId + Path.SEPARATOR +
-            calendar.get(Calendar.YEAR) + Path.SEPARATOR;
+    /**
+     * @param clock Clock giving processing time
+     * @return this Partitioner
+     */
+    public HyperiotPartitioner withClock(Clock clock) {
+        this.clock = clock;
+        return this;
     }
 
 }
@@ -19,14 +19,14 @@ package it.acsoftware.hyperiot.storm.runtime.bolt;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
 import it.acsoftware.hyperiot.hdevice.model.HDevice;
 import it.acsoftware.hyperiot.hpacket.model.*;
 import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
 import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
-import it.acsoftware.hyperiot.hproject.deserialization.service.builder.HPacketDeserializerBuilder;
 import it.acsoftware.hyperiot.hproject.model.HProject;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.BoltUtil;
+import it.acsoftware.hyperiot.storm.runtime.bolt.util.TimelineUtil;
+import it.acsoftware.hyperiot.storm.runtime.bolt.util.HPacketDescriptor;
 import it.acsoftware.hyperiot.storm.util.StormConstants;
 import it.acsoftware.hyperiot.stormmanager.model.HyperIoTTopologyError;
 
@@ -54,8 +54,13 @@ public class DeserializationBolt extends BaseBasicBolt {
     private static final String DESERIALIZATION_OK_STREAM_ID = "deserializationOk";
     private static final String KAFKA_PAYLOAD = "payload";
     private static final String SYSTEM_TICK_STREAM_ID = "systemTick";
+    private static final String PACKET_CONFIG_PREFIX = "packet.";
     private Map config;
     private long hprojectId;
+    // compiled packet definitions, built once inside prepare method
+    private transient Map<Long, HPacketDescriptor> packetDescriptors;
+    // errors of packet definitions which could not be compiled, reported for each of their tuples
+    private transient Map<Long, Exception> packetDefinitionErrors;
     private final Integer aliveTickFrequency;
     private static final ObjectMapper objectMapper;
 
@@ -90,6 +95,41 @@ public class DeserializationBolt extends BaseBasicBolt {
     public void prepare(Map stormConf, TopologyContext context) {
         log.debug("prepare with config {} context {}", stormConf, context);
         config = stormConf;
+        packetDefinitionErrors = new HashMap<>();
+        packetDescriptors = compilePacketDescriptors(stormConf, packetDefinitionErrors);
+    }
+
+    /**
+     * Parses every "packet.<id>" definition of the topology configuration once,
+     * so that tuples only need a lookup by packet id.
+     *
+     * @param stormConf topology configuration
+     * @param errors     filled with the errors of definitions which could not be compiled, by packet id
+     * @return compiled descriptors indexed by packet id
+     */
+    private Map<Long, HPacketDescriptor> compilePacketDescriptors(Map<?, ?> stormConf, Map<Long, Exception> errors) {
+        Map<Long, HPacketDescriptor> descriptors = new HashMap<>();
+        stormConf.forEach((key, value) -> {
+            String configKey = key.toString();
+            if (!configKey.startsWith(PACKET_CONFIG_PREFIX) || value == null)
+                return;
+            long packetId;
+            try {
+                packetId = Long.parseLong(configKey.substring(PACKET_CONFIG_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                log.debug("Skipping configuration key {}, it is not a packet definition", configKey);
+                return;
+            }
+            try {
+                HPacketDescriptor descriptor = HPacketDescriptor.compile(packetId, value.toString(), objectMapper);
+                log.debug("Compiled packet descriptor {}", descriptor);
+                descriptors.put(packetId, descriptor);
+            } catch (Exception e) {
+                log.error("Could not compile packet definition {}: {}", configKey, e.getMessage());
+                errors.put(packetId, e);
+            }
+        });
+        return Collections.unmodifiableMap(descriptors);
     }
 
     @Override
@@ -110,7 +150,8 @@ public class DeserializationBolt extends BaseBasicBolt {
             byte[] kafkaKey = this.deserializeKafkaKey(input, collector);
             byte[] kafkaValue = this.deserializeKafkaValue(input, collector);
             if (kafkaKey != null && kafkaValue != null) {
-                this.deserializeFromKafka(kafkaKey, kafkaValue, projectId, collector, input);
+                boolean rawPayload = isRawPayload(input);
+                this.deserializeFromKafka(kafkaKey, kafkaValue, rawPayload, projectId, collector, input);
             }
         }
     }
@@ -118,10 +159,10 @@ public class DeserializationBolt extends BaseBasicBolt {
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
         outputFieldsDeclarer.declareStream(SYSTEM_TICK_STREAM_ID, new Fields(StormConstants.DEVICEID_PACKETID_FIELD, StormConstants.PACKET_FIELD));
-        outputFieldsDeclarer.declareStream(DESERIALIZATION_OK_STREAM_ID, new Fields(StormConstants.HPACKET_FIELD));
+        outputFieldsDeclarer.declareStream(DESERIALIZATION_OK_STREAM_ID, new Fields(StormConstants.HPACKET_FIELD, StormConstants.HDEVICE_ID_FIELD));
         outputFieldsDeclarer.declareStream(String.format(HPROJECT_ERROR_STREAM_ID, hprojectId), new Fields(StormConstants.TIMESTAMP_FIELD, StormConstants.MESSAGE_FIELD, StormConstants.RECEIVED_PACKET_FIELD));
         outputFieldsDeclarer.declareStream(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hprojectId),
-                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD));
+                TimelineUtil.getTimelineStreamFields());
     }
 
     /**
@@ -235,16 +276,38 @@ public class DeserializationBolt extends BaseBasicBolt {
         return null;
     }
 
+    /**
+     * Payloads are raw bytes when records carry the raw encoding header,
+     * otherwise they are Base64 encoded (tuples emitted by the default record translator have no encoding field)
+     *
+     * @param input
+     * @return true if kafka value is the untouched device payload
+     */
+    private boolean isRawPayload(Tuple input) {
+        return input.contains(StormConstants.KAFKA_ENCODING_FIELD)
+                && StormConstants.KAFKA_ENCODING_RAW.equals(input.getStringByField(StormConstants.KAFKA_ENCODING_FIELD));
+    }
+
+    /**
+     * @param input
+     * @return timestamp of the kafka record, 0 if it is not available
+     */
+    private long getReceivedTimestamp(Tuple input) {
+        return input.contains(StormConstants.KAFKA_TIMESTAMP_FIELD) ? input.getLongByField(StormConstants.KAFKA_TIMESTAMP_FIELD) : 0L;
+    }
+
     /**
      * @param kafkaKeyRaw
      * @param kafkaValueRaw
+     * @param rawPayload    true if kafka value is not Base64 encoded
      * @param projectId
      * @param collector
      */
-    private void deserializeFromKafka(byte[] kafkaKeyRaw, byte[] kafkaValueRaw,
+    private void deserializeFromKafka(byte[] kafkaKeyRaw, byte[] kafkaValueRaw, boolean rawPayload,
                                       long projectId, BasicOutputCollector collector, Tuple input) {
         String kafkaKey = new String(kafkaKeyRaw);
-        String kafkaValue = new String(kafkaValueRaw);
+        //raw payloads are converted to string only to be reported inside errors
+        String kafkaValue = rawPayload ? null : new String(kafkaValueRaw);
         String[] parts = kafkaKey.split("\\.");
         //topic like streaming/<projectId>/<deviceId>/<packetId>
         log.debug("Kafka key parts: {}", (Object) parts);
@@ -255,34 +318,42 @@ public class DeserializationBolt extends BaseBasicBolt {
             long packetId = Long.parseLong(parts[1]);
             log.debug("projectId: {}, deviceId: {}, packetId: {}", projectId, deviceId, packetId);
             try {
-                // get fields schema from topology config ("schema.<packet_id>")
-                if (config.get("packet." + packetId) == null) {
+                // get compiled packet definition from topology config ("packet.<packet_id>")
+                HPacketDescriptor descriptor = packetDescriptors.get(packetId);
+                if (descriptor == null) {
+                    Exception definitionError = packetDefinitionErrors.get(packetId);
+                    //packets with a broken definition go to the error stream, as when definitions were parsed for each tuple
+                    if (definitionError != null)
+                        throw definitionError;
                     log.error("Packet with id {} does not exist: check if Kafka topic is a valid one!", packetId);
                     return;
                 }
-                String jsonSchema = config.get("packet." + packetId).toString();
-                log.debug("JSON Schema for packet {}: {}", packetId, jsonSchema);
-                HPacketInfo packetInfo = objectMapper.readValue(jsonSchema, HPacketInfo.class);
-                packetInfo.setHProjectId(projectId);
-                packetInfo.setHDeviceId(deviceId);
-                packetInfo.setHPacketId(packetId);
+                HPacketInfo packetInfo = descriptor.createPacketInfo(projectId, deviceId);
+                //packets without timestamp get the one of the kafka record, so a replayed record is saved with the same row key
+                packetInfo.setReceivedTimestamp(getReceivedTimestamp(input));
                 log.debug("PacketInfo Constructed {}", packetInfo);
+                HPacketDeserializer hPacketDeserializer = descriptor.getDeserializer();
+                if (hPacketDeserializer == null) {
+                    this.handleUnknownPacketType(descriptor, receivedPacket(kafkaValueRaw, kafkaValue), collector);
+                    return;
+                }
                 // parse incoming raw message based on the schema.type
-                byte[] rawMessage = Base64.getDecoder().decode(kafkaValue);
-                log.debug("PacketInfo tuple is {}", packetInfo.getSchema().getType());
-                HPacketDeserializer hPacketDeserializer =
-                        this.getHPacketDeserializer(packetInfo, kafkaValue, collector, input);
-                HPacket packet = hPacketDeserializer.deserialize(rawMessage, packetInfo);
-                if (packet.getFields() != null) {
-                    collector.emit(DESERIALIZATION_OK_STREAM_ID, new Values(packet));
-                } else {
-                    log.error("Could not deserialized packet: {}", packet);
-                    HyperIoTTopologyError hyperIoTTopologyError = HyperIoTTopologyError.builder()
-                            .errorMessage("Could not deserialized packet")
-                            .build();
-                    BoltUtil.handleHyperIoTError(collector, hyperIoTTopologyError, hprojectId,
-                            kafkaValue, Instant.now().toEpochMilli(),
-                            String.format(HPROJECT_ERROR_STREAM_ID, hprojectId));
+                byte[] rawMessage = rawPayload ? kafkaValueRaw : Base64.getDecoder().decode(kafkaValue);
+                log.debug("PacketInfo tuple is {}", descriptor.getFormat());
+                // batch payloads are exploded here, one tuple for each reading
+                List<HPacket> packets = descriptor.deserializeReadings(rawMessage, packetInfo);
+                for (HPacket packet : packets) {
+                    if (packet.getFields() != null) {
+                        collector.emit(DESERIALIZATION_OK_STREAM_ID, new Values(packet, deviceId));
+                    } else {
+                        log.error("Could not deserialized packet: {}", packet);
+                        HyperIoTTopologyError hyperIoTTopologyError = HyperIoTTopologyError.builder()
+                                .errorMessage("Could not deserialized packet")
+                                .build();
+                        BoltUtil.handleHyperIoTError(collector, hyperIoTTopologyError, hprojectId,
+                                receivedPacket(kafkaValueRaw, kafkaValue), Instant.now().toEpochMilli(),
+                                String.format(HPROJECT_ERROR_STREAM_ID, hprojectId));
+                    }
                 }
             } catch (Exception e) {
                 log.error("Unrecognized data type", e);
@@ -291,33 +362,36 @@ public class DeserializationBolt extends BaseBasicBolt {
                         .errorType(e.getClass().getSimpleName())
                         .build();
                 BoltUtil.handleHyperIoTError(collector, hyperIoTTopologyError, hprojectId,
-                        kafkaValue, Instant.now().toEpochMilli(),
+                        receivedPacket(kafkaValueRaw, kafkaValue), Instant.now().toEpochMilli(),
                         String.format(HPROJECT_ERROR_STREAM_ID, hprojectId));
             }
         }
     }
 
     /**
-     * @param packetInfo
+     * Received packets are reported inside errors Base64 encoded, whatever the encoding of the Kafka record is
+     *
+     * @param kafkaValueRaw  kafka value
+     * @param base64Value    kafka value as string if it is Base64 encoded, null otherwise
+     * @return Base64 encoded packet
+     */
+    private String receivedPacket(byte[] kafkaValueRaw, String base64Value) {
+        return (base64Value != null) ? base64Value : Base64.getEncoder().encodeToString(kafkaValueRaw);
+    }
+
+    /**
+     * @param descriptor
      * @param kafkaValue
      * @param collector
-     * @return
      */
-    private HPacketDeserializer getHPacketDeserializer(HPacketInfo packetInfo, String kafkaValue,
-                                                       BasicOutputCollector collector, Tuple input) {
-        try {
-            return HPacketDeserializerBuilder
-                    .getDeserializer(HPacketFormat.valueOf(packetInfo.getSchema().getType().toUpperCase()));
-        } catch (HyperIoTRuntimeException e) {
-            log.error("Unknown packet type: {}", packetInfo.getSchema().getType());
-            HyperIoTTopologyError hyperIoTTopologyError = HyperIoTTopologyError.builder()
-                    .errorMessage("Unknown packet type")
-                    .build();
-            BoltUtil.handleHyperIoTError(collector, hyperIoTTopologyError, hprojectId,
-                    kafkaValue, Instant.now().toEpochMilli(),
-                    String.format(HPROJECT_ERROR_STREAM_ID, hprojectId));
-        }
-        return null;
+    private void handleUnknownPacketType(HPacketDescriptor descriptor, String kafkaValue, BasicOutputCollector collector) {
+        log.error("Unknown packet type: {}", descriptor.getFormat());
+        HyperIoTTopologyError hyperIoTTopologyError = HyperIoTTopologyError.builder()
+                .errorMessage("Unknown packet type")
+                .build();
+        BoltUtil.handleHyperIoTError(collector, hyperIoTTopologyError, hprojectId,
+                kafkaValue, Instant.now().toEpochMilli(),
+                String.format(HPROJECT_ERROR_STREAM_ID, hprojectId));
     }
 
 }
@@ -22,6 +22,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import it.acsoftware.hyperiot.hpacket.model.HPacket;
 import it.acsoftware.hyperiot.rule.service.RuleEngine;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.BoltUtil;
+import it.acsoftware.hyperiot.storm.runtime.bolt.util.TimelineUtil;
 import it.acsoftware.hyperiot.storm.topology.TopologyConfigKeys;
 import it.acsoftware.hyperiot.storm.util.StormConstants;
 import it.acsoftware.hyperiot.stormmanager.model.HyperIoTTopologyError;
@@ -52,6 +53,7 @@ public class EnrichmentBolt extends BaseRichBolt {
     private long hProjectId;
     private ObjectMapper objectMapper;
     private RuleEngine ruleEngine;
+    private boolean reliableMode;
 
     @Override
     public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
@@ -93,7 +95,7 @@ public class EnrichmentBolt extends BaseRichBolt {
                 long deviceId = packet.getDevice().getId();
                 long packetId = packet.getId();
                 log.trace("emitting packet {} with id {} belonging to device with id {}", packet, packetId, deviceId);
-                collector.emit(new Values(deviceId + "." + packetId, packet));
+                BoltUtil.emit(collector, reliableMode ? input : null, new Values(deviceId + "." + packetId, packet));
                 collector.ack(input);   // ack tuple
                 log.debug("Tuple sent to SelectionBolt");
             } catch (Throwable e) {
@@ -123,7 +125,7 @@ public class EnrichmentBolt extends BaseRichBolt {
         declarer.declareStream(String.format(HPROJECT_ERROR_STREAM_ID, hProjectId),
                 new Fields(StormConstants.TIMESTAMP_FIELD, StormConstants.MESSAGE_FIELD, StormConstants.RECEIVED_PACKET_FIELD));
         declarer.declareStream(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hProjectId),
-                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD));
+                TimelineUtil.getTimelineStreamFields());
     }
 
     private void ruleEngineRun(it.acsoftware.hyperiot.hpacket.model.HPacket packet) {
@@ -146,4 +148,12 @@ public class EnrichmentBolt extends BaseRichBolt {
         return this;
     }
 
+    /**
+     * @param reliableMode if true, emitted tuples are anchored to the input one
+     */
+    public EnrichmentBolt withReliableMode(boolean reliableMode) {
+        this.reliableMode = reliableMode;
+        return this;
+    }
+
 }
@@ -30,6 +30,7 @@ import it.acsoftware.hyperiot.storm.alarm.AlarmState;
 import it.acsoftware.hyperiot.storm.alarm.AlarmStateTransitionManager;
 import it.acsoftware.hyperiot.storm.alarm.HyperIoTHBaseRuleStateTableUtils;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.BoltUtil;
+import it.acsoftware.hyperiot.storm.runtime.bolt.util.TimelineUtil;
 import it.acsoftware.hyperiot.storm.topology.TopologyConfigKeys;
 import it.acsoftware.hyperiot.storm.util.StormConstants;
 import it.acsoftware.hyperiot.stormmanager.model.HyperIoTTopologyError;
@@ -63,6 +64,7 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
     private long hProjectId;
     private RuleEngine ruleEngine;
     private ObjectMapper objectMapper;
+    private boolean reliableMode;
     private static final String KAFKA_REALTIME_TOPIC_STREAM_ID = "kafkaRealtimeTopicEvent";
     private static final String EVENT_RULE_IDS_PARSING_ERROR_MESSAGE = "Event rule ids do not match regex";
     private static final String ALARM_EVENT_RULE_IDS_PARSING_ERROR_MESSAGE = "Alarm Event rule ids do not match regex";
@@ -116,7 +118,7 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         declarer.declareStream(String.format(HPROJECT_ERROR_STREAM_ID, hProjectId),
                 new Fields(StormConstants.TIMESTAMP_FIELD, StormConstants.MESSAGE_FIELD, StormConstants.RECEIVED_PACKET_FIELD));
         declarer.declareStream(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hProjectId),
-                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD));
+                TimelineUtil.getTimelineStreamFields());
     }
 
     @Override
@@ -132,7 +134,7 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         log.debug("Device Id : {}, Packet Id in Event Bolt : {}", packet.getDevice().getId(), packet.getId());
         try {
             this.ruleEngine.check(packet, System.currentTimeMillis());
-            processRuleEngineActions(packet);
+            processRuleEngineActions(packet, reliableMode ? input : null);
             collector.ack(input);
         } catch (Throwable e) {
             log.error("Error sending tuple from EventBolt: ", e);
@@ -154,13 +156,18 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
     @Override
     public void processData(HPacket packet) {
         try {
-            processRuleEngineActions(packet);
+            //actions fired asynchronously do not come from an input tuple, so they cannot be anchored
+            processRuleEngineActions(packet, null);
         } catch (Throwable e) {
             log.error("Error processing async event from rule engine:", e);
         }
     }
 
-    private void processRuleEngineActions(HPacket packet) throws ClassNotFoundException, IOException {
+    /**
+     * @param packet HPacket
+     * @param anchor input tuple which emitted tuples are anchored to, null to emit them unanchored
+     */
+    private void processRuleEngineActions(HPacket packet, Tuple anchor) throws ClassNotFoundException, IOException {
         KieSession session = ruleEngine.getSession();
         ArrayList<String> actions = session == null ? null : (ArrayList<String>) session.getGlobals().get("actions");
         if (actions != null) {
@@ -194,12 +201,12 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
                     log.debug("In Event Bolt, actionClassName is {} ", actionClassName);
                     Class<?> ruleActionClass = Class.forName(actionClassName);
                     AlarmAction action = (AlarmAction) objectMapper.readValue(jsonInstance, ruleActionClass);
-                    handleAlarm(ruleEngine.getSession(), action, packet, jsonInstance);
+                    handleAlarm(ruleEngine.getSession(), action, packet, jsonInstance, anchor);
                 } else {
                     log.info("In Event Bolt, Action {} is a regular event", jsonInstance);
                     // TODO: use HyperIoTKafkaConnector model 'SystemMessageType' enumeration
                     log.trace("emitting event signal 'PROCESS_EVENT' with JSON data {}", jsonInstance);
-                    handleEvent(packet, jsonInstance);
+                    handleEvent(packet, jsonInstance, anchor);
                 }
             }
             actions.clear();
@@ -208,11 +215,11 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         }
     }
 
-    private void handleAlarm(KieSession session, AlarmAction action, HPacket packet, String jsonInstance) {
+    private void handleAlarm(KieSession session, AlarmAction action, HPacket packet, String jsonInstance, Tuple anchor) {
         log.debug("In EventBolt handleAlarm");
         FiredRule rule = retrieveFiredRuleFromSession(session, action.getRuleId());
         if (rule != null) {
-            emitRuleStateToHBaseBolt(rule);
+            emitRuleStateToHBaseBolt(rule, anchor);
             if (alarmStateTransitionManager.ruleTriggerAlarmStateTransition(rule, action)) {
                 try {
                     log.debug("FiredRule is ruleId {} , ruleHasBeenFired {}", rule.getRuleId(), rule.isFired());
@@ -230,14 +237,14 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
                     HPacket alarmEventPacket = BoltUtil.createHPacketForEventRelatedToAlarm(packet, eventActionRule, jsonInstance, alarmState);
                     log.debug("In Event Bolt after create HPacketEvent for alarm");
                     //(emit alarm event packet on kafka)
-                    collector.emit(KAFKA_REALTIME_TOPIC_STREAM_ID, new Values(KAFKA_MESSAGE_KEY, alarmEventPacket));
+                    BoltUtil.emit(collector, anchor, KAFKA_REALTIME_TOPIC_STREAM_ID, new Values(KAFKA_MESSAGE_KEY, alarmEventPacket));
                     //If action isn't a NoAlarmAction (An action related to alarm but with no code execution associated), send to topic on which read HyperIoTRuleEventActionListener.
                     if (!(action.getClass().isAssignableFrom(NoAlarmAction.class))) {
                         log.debug("In Event Bolt, Emit to default stream to process alarm event");
-                        collector.emit(new Values("PROCESS_EVENT", jsonInstance));
+                        BoltUtil.emit(collector, anchor, new Values("PROCESS_EVENT", jsonInstance));
                     }
                     String alarmStreamId = String.format(StormConstants.ALARM_EVENT_HPROJECT_STREAM_ID_PREFIX, hProjectId);
-                    collector.emit(alarmStreamId, new Values(alarmEventPacket, deviceId, alarmState.toString()));
+                    BoltUtil.emit(collector, anchor, alarmStreamId, new Values(alarmEventPacket, deviceId, alarmState.toString()));
                 } catch (IOException e) {
                     log.error("Could not write alarm on HBase", e);
                 }
@@ -249,9 +256,9 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         }
     }
 
-    private void handleEvent(HPacket packet, String jsonInstance) {
+    private void handleEvent(HPacket packet, String jsonInstance, Tuple anchor) {
         log.debug("Emit to default stream");
-        collector.emit(new Values("PROCESS_EVENT", jsonInstance));
+        BoltUtil.emit(collector, anchor, new Values("PROCESS_EVENT", jsonInstance));
         String eventStreamId = String.format(StormConstants.EVENT_HPROJECT_STREAM_ID_PREFIX, hProjectId);
         log.debug("Emit to " + KAFKA_REALTIME_TOPIC_STREAM_ID + " stream and to "
                 + eventStreamId + " stream");
@@ -260,10 +267,10 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
             Map<String, Object> rule = objectMapper.readValue(jsonInstance, HashMap.class);
             HPacket eventPacket = BoltUtil.createHPacketEvent(packet, rule, jsonInstance);
             // emit to Kafka
-            collector.emit(KAFKA_REALTIME_TOPIC_STREAM_ID, new Values(KAFKA_MESSAGE_KEY, eventPacket));
+            BoltUtil.emit(collector, anchor, KAFKA_REALTIME_TOPIC_STREAM_ID, new Values(KAFKA_MESSAGE_KEY, eventPacket));
             // emit to Selection bolt
             int ruleId = (int) rule.get("ruleId");
-            collector.emit(eventStreamId, new Values(eventPacket, ruleId));
+            BoltUtil.emit(collector, anchor, eventStreamId, new Values(eventPacket, ruleId));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         }
@@ -291,6 +298,14 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         return this;
     }
 
+    /**
+     * @param reliableMode if true, tuples emitted while processing an input are anchored to it
+     */
+    public EventBolt withReliableMode(boolean reliableMode) {
+        this.reliableMode = reliableMode;
+        return this;
+    }
+
     private long[] extractRuleIdFromStormConfiguration(String topologyConfigKey, String errorMessage) {
         log.debug("In Event Bolt  extractRuleIdFromStormConfiguration, topologyConfigKey key is : {} ", topologyConfigKey);
         String ruleIds = config.get(topologyConfigKey).toString();
@@ -359,14 +374,14 @@ public class EventBolt extends BaseRichBolt implements RuleEngineAsynchronousObs
         }
     }
 
-    private void emitRuleStateToHBaseBolt(FiredRule firedRule) {
+    private void emitRuleStateToHBaseBolt(FiredRule firedRule, Tuple anchor) {
         try {
             log.info("In EventBolt emitRuleStateToHBaseBolt, rule id is : {} , rule is {} ", firedRule.getRuleId(), firedRule.isFired() ? "ACTIVE" : "INACTIVE");
             String ruleStateSerialized = objectMapper.writeValueAsString(firedRule);
             log.debug("In EventBolt emitRuleStateToHBaseBolt, rule state serialized is {} ", ruleStateSerialized);
             long rowKey = firedRule.getRuleId();
             log.debug("In EventBolt emitRuleStateToHBaseBolt, Emitting record to hbase....");
-            collector.emit(String.format(StormConstants.EVENT_RULE_STATE_HBASE_STREAM_ID, hProjectId), new Values(rowKey, ruleStateSerialized));
+            BoltUtil.emit(collector, anchor, String.format(StormConstants.EVENT_RULE_STATE_HBASE_STREAM_ID, hProjectId), new Values(rowKey, ruleStateSerialized));
         } catch (Throwable e) {
             log.error(e.getMessage(), e);
             log.error("In EventBolt emitRuleStateToHBaseBolt, Failed to emit rule state");
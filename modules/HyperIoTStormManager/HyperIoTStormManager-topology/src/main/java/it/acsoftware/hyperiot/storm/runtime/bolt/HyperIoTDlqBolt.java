@@ -36,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -131,12 +132,11 @@ public class HyperIoTDlqBolt extends BaseRichBolt {
                     emitMessageToHdfsBolt(tupleValue,input, KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_YEAR);
                     break;
                 }
-                case HDFS_DLQ_QUARTER_MESSAGE_STRATEGY:{
-                    emitMessageToHdfsBolt(tupleValue,input, KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_QUARTER);
-                    break;
-                }
+                case HDFS_DLQ_QUARTER_MESSAGE_STRATEGY:
                 case HDFS_DLQ_SEMESTER_MESSAGE_STRATEGY:{
-                    emitMessageToHdfsBolt(tupleValue,input, KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_SEMESTER);
+                    //Quarter and semester copies are no longer written, the packet has been written to year path too
+                    log.debug("In HyperIoTDlqBolt , discarding {} message",messageConversionStrategy);
+                    outputCollector.ack(input);
                     break;
                 }
                 default :{
@@ -165,7 +165,7 @@ public class HyperIoTDlqBolt extends BaseRichBolt {
                 new Fields(StormConstants.ROWKEY_FIELD, StormConstants.HPACKET_ID_FIELD, StormConstants.AVRO_HPACKET_FIELD));
 
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_TIMELINE,
-                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD));
+                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD, StormConstants.COUNT_FIELD));
 
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_ALARM,
                 new Fields(StormConstants.ROWKEY_FIELD, StormConstants.HDEVICE_ID_FIELD, StormConstants.ALARM_STATE_FIELD, StormConstants.EVENT_COLUMN_FIELD));
@@ -184,10 +184,6 @@ public class HyperIoTDlqBolt extends BaseRichBolt {
 
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_MONTH, new Fields(StormConstants.PACKET_FIELD));
 
-        declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_QUARTER, new Fields(StormConstants.PACKET_FIELD));
-
-        declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_SEMESTER, new Fields(StormConstants.PACKET_FIELD));
-
     }
 
     /**
@@ -221,7 +217,12 @@ public class HyperIoTDlqBolt extends BaseRichBolt {
     private void emitMessageToHBaseAvroTableBolt(Map<String,String> tupleValue, Tuple input){
         long timestamp = Long.parseLong(tupleValue.get(StormConstants.ROWKEY_FIELD));
         long packetId = Long.parseLong(tupleValue.get(StormConstants.HPACKET_ID_FIELD));
-        String avroPacket = tupleValue.get(StormConstants.AVRO_HPACKET_FIELD);
+        String avroPacketValue = tupleValue.get(StormConstants.AVRO_HPACKET_FIELD);
+        //messages queued before binary cells were introduced contain json avro
+        byte[] avroPacket = null;
+        if (avroPacketValue != null)
+            avroPacket = avroPacketValue.startsWith("{") ?
+                    avroPacketValue.getBytes(StandardCharsets.UTF_8) : Base64.getDecoder().decode(avroPacketValue);
 
         //Emit anchored tuple
         outputCollector.emit(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_AVRO,
@@ -233,11 +234,14 @@ public class HyperIoTDlqBolt extends BaseRichBolt {
         long timestamp = Long.parseLong(tupleValue.get(StormConstants.TIMESTAMP_FIELD));
         String stepString = ((String)tupleValue.get(StormConstants.STEP_FIELD)).toUpperCase(Locale.ROOT);
         TimelineColumnFamily step=  TimelineColumnFamily.valueOf(stepString);
+        //messages queued before timeline aggregation do not contain count, they are single increments
+        String countString = tupleValue.get(StormConstants.COUNT_FIELD);
+        long count = (countString != null) ? Long.parseLong(countString) : 1L;
 
         //Emit anchored tuple
         outputCollector.emit(StormConstants.KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_TIMELINE,
                 input,
-                new Values(rowKeyField,timestamp,step));
+                new Values(rowKeyField,timestamp,step,count));
     }
 
     private void emitMessageToHBaseAlarmTableBolt(Map<String,String> tupleValue, Tuple input){
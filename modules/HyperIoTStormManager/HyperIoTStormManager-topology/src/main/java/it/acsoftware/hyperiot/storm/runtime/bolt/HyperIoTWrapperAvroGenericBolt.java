@@ -30,6 +30,7 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,7 @@ import java.util.Map;
  * We need to wrap this AvroGenericRecordBolt to catch Exception relative to an HDFS's failure , such that we can
  * implement a recovery strategy.
  * For the moment the strategy to recover from an HDFS failure is to use a DLQ, and retry the operation after a certain period of time.
+ * In reliable mode the DLQ is not used: failed tuples are replayed by the kafka spout.
  */
 public class HyperIoTWrapperAvroGenericBolt extends BaseRichBolt {
 
@@ -64,6 +66,8 @@ public class HyperIoTWrapperAvroGenericBolt extends BaseRichBolt {
 
     private OutputCollector outputCollector;
 
+    private boolean reliableMode;
+
     public HyperIoTWrapperAvroGenericBolt(AvroGenericRecordBolt avroBoltDependency,String errorStreamId,MessageConversionStrategy serializationStrategy, String deserializationDlqBoltId){
         log.debug("In HyperIoTWrapperAvroGenericBolt Constructor , class name wrapped : {}",avroBoltDependency.getClass().getName());
         this.avroBoltDependency=avroBoltDependency;
@@ -92,6 +96,13 @@ public class HyperIoTWrapperAvroGenericBolt extends BaseRichBolt {
                     log.debug("In HyperIoTWrapperAvroGenericBolt ExceptionCustomAvro in execute method,Write on hdfs failed, sourceComponent is : {} , sourceStreamId is {}",
                             input.getSourceComponent(),
                             input.getSourceStreamId());
+                if (TupleUtils.isTick(input))
+                    return;
+                if (reliableMode) {
+                    log.debug("In HyperIoTWrapperAvroGenericBolt reliable mode, tuple will be replayed by the spout");
+                    outputCollector.fail(input);
+                    return;
+                }
                     //If data not arrive from dlq, send to the kafka bolt that write on dlq .
                 if(! (input.getSourceStreamId().equals(deserializationDlqBoltId) || input.getSourceComponent().equals(deserializationDlqBoltId))  ) {
                     log.debug("In HyperIoTWrapperAvroGenericBolt StreamNotCorrect Emit tuple on kafka dlq bolt ");
@@ -102,14 +113,33 @@ public class HyperIoTWrapperAvroGenericBolt extends BaseRichBolt {
             }
     }
 
+    /**
+     * Tick tuples configured by the HDFS bolt sync pending writes and ack their tuples
+     */
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return avroBoltDependency.getComponentConfiguration();
+    }
+
+    @Override
+    public void cleanup() {
+        avroBoltDependency.cleanup();
+    }
+
+    /**
+     * @param reliableMode if true, failed tuples are not sent to the DLQ since the spout replays them
+     */
+    public HyperIoTWrapperAvroGenericBolt withReliableMode(boolean reliableMode) {
+        this.reliableMode = reliableMode;
+        return this;
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_HOUR,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_DAY,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_MONTH,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_YEAR,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
-        declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_SEMESTER,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
-        declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HDFS_QUARTER,new Fields(StormConstants.TIMESTAMP_FIELD,StormConstants.ERROR_PACKET_FIELD_RETRANSMIT));
     }
 
     private void handleHdfsFailure(Tuple input){
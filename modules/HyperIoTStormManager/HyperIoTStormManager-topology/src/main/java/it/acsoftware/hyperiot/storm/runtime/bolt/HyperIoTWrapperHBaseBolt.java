@@ -30,10 +30,12 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,6 +56,7 @@ public class HyperIoTWrapperHBaseBolt extends BaseRichBolt {
 
     private OutputCollector outputCollector;
 
+    private boolean reliableMode;
 
     private HBaseBolt hBaseBoltDependency;
 
@@ -86,22 +89,58 @@ public class HyperIoTWrapperHBaseBolt extends BaseRichBolt {
                 //this method execute tuple's ack/fail.
                 hBaseBoltDependency.execute(input);
                 log.debug("In HyperIoTWrapperHBaseBolt ExecuteSuccessful");
+            }catch (HyperIoTHBaseBolt.FailedBatchException exc){
+                //tuples are written in batches, a failure concerns every tuple of the batch
+                log.debug("In HyperIoTWrapperHBaseBolt , batch of {} tuples failed ", exc.getFailedTuples().size());
+                for (Tuple failedTuple : exc.getFailedTuples())
+                    handleFailedTuple(failedTuple);
             }catch (Throwable exc){
                 log.debug("In HyperIoTWrapperHBaseBolt , exc type : {} ",exc.getClass().getName());
-                //If input source is deserializationDlq bolt means that this tuple come from dlq, so we don't need
-                // to send again to the dlq.
-                // (There is a fail in execute method, so the tuple will be resend after a certain period of time .)
-
-                if(! (input.getSourceStreamId().equals(this.deserializationDlqBoltHBaseId) ||
-                        input.getSourceComponent().equals(this.deserializationDlqBoltHBaseId))) {
-                    log.debug("In HyperIoTWrapperHBaseBolt Emit tuple on kafka dlq bolt for hbase");
-                    handleHBaseErrorFailure(input);
-                } else{
-                    log.debug("In HyperIoTWrapperHBaseBolt tuple is sent by deserialization hbase bolt");
-                }
+                if (!TupleUtils.isTick(input))
+                    handleFailedTuple(input);
             }
     }
 
+    private void handleFailedTuple(Tuple input){
+        //In reliable mode failed tuples are replayed by the kafka spout, sending them to the dlq too would duplicate them
+        if (reliableMode) {
+            log.debug("In HyperIoTWrapperHBaseBolt reliable mode, tuple will be replayed by the spout");
+            return;
+        }
+        //If input source is deserializationDlq bolt means that this tuple come from dlq, so we don't need
+        // to send again to the dlq.
+        // (There is a fail in execute method, so the tuple will be resend after a certain period of time .)
+
+        if(! (input.getSourceStreamId().equals(this.deserializationDlqBoltHBaseId) ||
+                input.getSourceComponent().equals(this.deserializationDlqBoltHBaseId))) {
+            log.debug("In HyperIoTWrapperHBaseBolt Emit tuple on kafka dlq bolt for hbase");
+            handleHBaseErrorFailure(input);
+        } else{
+            log.debug("In HyperIoTWrapperHBaseBolt tuple is sent by deserialization hbase bolt");
+        }
+    }
+
+    /**
+     * Tick tuples configured by the HBase bolt flush its pending batch
+     */
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return hBaseBoltDependency.getComponentConfiguration();
+    }
+
+    @Override
+    public void cleanup() {
+        hBaseBoltDependency.cleanup();
+    }
+
+    /**
+     * @param reliableMode if true, failed tuples are not sent to the DLQ since the spout replays them
+     */
+    public HyperIoTWrapperHBaseBolt withReliableMode(boolean reliableMode) {
+        this.reliableMode = reliableMode;
+        return this;
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declareStream(StormConstants.KAKFA_DLQ_STREAM_HBASE_AVRO,
@@ -166,7 +205,8 @@ public class HyperIoTWrapperHBaseBolt extends BaseRichBolt {
         HashMap<String,String> messageMap = new HashMap<>();
         messageMap.put(StormConstants.ROWKEY_FIELD, String.valueOf((Long)input.getValueByField(StormConstants.ROWKEY_FIELD)));
         messageMap.put(StormConstants.HPACKET_ID_FIELD, String.valueOf((Long)input.getValueByField(StormConstants.HPACKET_ID_FIELD)));
-        messageMap.put(StormConstants.AVRO_HPACKET_FIELD, (String)input.getValueByField(StormConstants.AVRO_HPACKET_FIELD));
+        //binary avro cell is sent as base64 string inside json dlq message
+        messageMap.put(StormConstants.AVRO_HPACKET_FIELD, Base64.getEncoder().encodeToString((byte[])input.getValueByField(StormConstants.AVRO_HPACKET_FIELD)));
         messageMap.put(StormConstants.KAFKA_DLQ_PACKET_SENDER_LABEL, this.serializationStrategy.name());
 
         log.debug("HyperIoTWrapperHBaseBolt HandleHBaseFailure emit bolt avro table error stream");
@@ -204,6 +244,8 @@ public class HyperIoTWrapperHBaseBolt extends BaseRichBolt {
         messageMap.put(StormConstants.ROWKEY_FIELD,(String)input.getValueByField(StormConstants.ROWKEY_FIELD));
         messageMap.put(StormConstants.TIMESTAMP_FIELD,String.valueOf((Long)input.getValueByField(StormConstants.TIMESTAMP_FIELD)));
         messageMap.put(StormConstants.STEP_FIELD,((TimelineColumnFamily)input.getValueByField(StormConstants.STEP_FIELD)).getName());
+        if (input.contains(StormConstants.COUNT_FIELD))
+            messageMap.put(StormConstants.COUNT_FIELD, String.valueOf(input.getLongByField(StormConstants.COUNT_FIELD)));
         messageMap.put(StormConstants.KAFKA_DLQ_PACKET_SENDER_LABEL, this.serializationStrategy.name());
 
         log.debug("HyperIoTWrapperHBaseBolt HandleHBaseFailure emit bolt timeline table error stream");
@@ -25,6 +25,7 @@ import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
 import it.acsoftware.hyperiot.hproject.api.hbase.timeline.HProjectTimelineUtil;
 import it.acsoftware.hyperiot.hproject.model.ModelType;
 import it.acsoftware.hyperiot.hproject.util.hbase.HProjectTimelineUtilImpl;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTHdfsLayout;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.BoltConstants;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.BoltUtil;
 import it.acsoftware.hyperiot.storm.runtime.bolt.util.TimelineUtil;
@@ -42,6 +43,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,6 +63,7 @@ public class SelectionBolt extends BaseRichBolt {
     private ObjectMapper objectMapper;
     private OutputCollector collector;
     private HProjectTimelineUtil hProjectTimelineUtil;
+    private boolean reliableMode;
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
@@ -68,9 +71,7 @@ public class SelectionBolt extends BaseRichBolt {
         declarer.declareStream(MONTH_STREAM_ID, new Fields(StormConstants.PACKET_FIELD));
         declarer.declareStream(DAY_STREAM_ID, new Fields(StormConstants.PACKET_FIELD));
         declarer.declareStream(HOUR_STREAM_ID, new Fields(StormConstants.PACKET_FIELD));
-        declarer.declareStream(QUARTER_STREAM_ID, new Fields(StormConstants.PACKET_FIELD));
-        declarer.declareStream(SEMESTER_STREAM_ID, new Fields(StormConstants.PACKET_FIELD));
-        declarer.declareStream(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hprojectId), new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD));
+        declarer.declareStream(String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hprojectId), TimelineUtil.getTimelineStreamFields());
         declarer.declareStream(String.format(AVRO_HPROJECT_STREAM_ID_PREFIX, hprojectId), new Fields(StormConstants.ROWKEY_FIELD, StormConstants.HPACKET_ID_FIELD, StormConstants.AVRO_HPACKET_FIELD, StormConstants.AVRO_HPACKET_ATTACHMENTS));
         declarer.declareStream(String.format(HDFS_ERROR_STREAM_ID_PREFIX, hprojectId), new Fields(StormConstants.TIMESTAMP_FIELD, StormConstants.MESSAGE_FIELD, StormConstants.RECEIVED_PACKET_FIELD));
         declarer.declareStream(String.format(EVENT_HPROJECT_STREAM_ID_PREFIX, hprojectId), new Fields(StormConstants.TIMESTAMP_FIELD, StormConstants.EVENT_COLUMN_FIELD));
@@ -79,12 +80,15 @@ public class SelectionBolt extends BaseRichBolt {
 
     @Override
     public void execute(Tuple input) {
-        // Pay attention! Tuples are not anchored. In case of error, they are not retransmitted
+        // In reliable mode tuples are anchored to the input one: it is replayed from the spout
+        // if HBase or HDFS bolts fail them, otherwise in case of error they are not retransmitted
+        Tuple anchor = reliableMode ? input : null;
         log.debug("Tuple received, deserialize it to HPacket object instance");
         HPacket packet = (HPacket) input.getValueByField(StormConstants.PACKET_FIELD);
         ModelType modelType;
         long timestamp;
         String avroHPacket = null;
+        byte[] binaryAvroHPacket = null;
         String rowKeyBeginning;
         try {
             if (packet.getId() == 0 && packet.getName().endsWith(BoltConstants.EVENT_PACKET_SUFFIX)) {
@@ -98,7 +102,7 @@ public class SelectionBolt extends BaseRichBolt {
                 rowKeyBeginning = String.join(".", "Alarm", String.valueOf(deviceId));
             } else {
                 log.debug("Send HPacket to HDFS");
-                sendToHDFS(packet, packet.getTrafficPlan());
+                sendToHDFS(packet, packet.getTrafficPlan(), anchor);
                 modelType = ModelType.HPACKET;
                 rowKeyBeginning = String.join(".", modelType.getSimpleName(), String.valueOf(packet.getId()));
             }
@@ -106,11 +110,17 @@ public class SelectionBolt extends BaseRichBolt {
             log.debug("Send HPacket to HBase");
             Map<Long, byte[]> attachments = stripAttachments(packet);
             //now packet has no attachments since are stripped and it can be converted to avro
-            avroHPacket = BoltUtil.getAvroHPacket(packet);
-            sendToHBase(avroHPacket, attachments, packet.getId(), modelType, timestamp, rowKeyBeginning, input);
+            //hproject table stores binary avro, events and alarms still use the json avro encoding
+            if (modelType.equals(ModelType.HPACKET))
+                binaryAvroHPacket = BoltUtil.getBinaryAvroHPacket(packet);
+            else
+                avroHPacket = BoltUtil.getAvroHPacket(packet);
+            sendToHBase(avroHPacket, binaryAvroHPacket, attachments, packet.getId(), modelType, timestamp, rowKeyBeginning, input, anchor);
         } catch (Throwable t) {
-            handleError(t, avroHPacket);
+            handleError(t, (binaryAvroHPacket != null) ? Base64.getEncoder().encodeToString(binaryAvroHPacket) : avroHPacket, anchor);
         }
+        //packets which cannot be processed are saved on error table, replaying them would give the same result
+        collector.ack(input);
     }
 
     /**
@@ -150,12 +160,12 @@ public class SelectionBolt extends BaseRichBolt {
         field.setValue(null);
     }
 
-    private void handleError(Throwable t, String avroHPacket) {
+    private void handleError(Throwable t, String avroHPacket, Tuple anchor) {
         log.error(t.getMessage(), t);
         String rowKey = String.valueOf(Instant.now().toEpochMilli());
         log.info("Send error message \"{}\" and packet \"{}\" to HBase error table",
                 t.getMessage(), avroHPacket);
-        collector.emit(String.format(HDFS_ERROR_STREAM_ID_PREFIX, hprojectId), new Values(rowKey, t.getMessage(), avroHPacket));
+        BoltUtil.emit(collector, anchor, String.format(HDFS_ERROR_STREAM_ID_PREFIX, hprojectId), new Values(rowKey, t.getMessage(), avroHPacket));
     }
 
     @Override
@@ -166,12 +176,12 @@ public class SelectionBolt extends BaseRichBolt {
         objectMapper = new ObjectMapper();
     }
 
-    private void sendToHBase(String avroHPacket, Map<Long, byte[]> attachments, long packetId, ModelType modelType, long timestamp, String rowKeyBeginning, Tuple input) throws IOException {
+    private void sendToHBase(String avroHPacket, byte[] binaryAvroHPacket, Map<Long, byte[]> attachments, long packetId, ModelType modelType, long timestamp, String rowKeyBeginning, Tuple input, Tuple anchor) throws IOException {
         log.debug("Serialized Avro String: {}", avroHPacket);
         String streamId;
         if (modelType.equals(ModelType.HPACKET)) {
             streamId = String.format(AVRO_HPROJECT_STREAM_ID_PREFIX, hprojectId);
-            collector.emit(streamId, new Values(timestamp, packetId, avroHPacket, attachments));
+            BoltUtil.emit(collector, anchor, streamId, new Values(timestamp, packetId, binaryAvroHPacket, attachments));
         } else if (modelType.equals(ModelType.EVENT)) {
             streamId = String.format(EVENT_HPROJECT_STREAM_ID_PREFIX, hprojectId);
             log.debug("In Selection bolt emit versus hbase bolt event,  streamId : {}", streamId);
@@ -179,55 +189,32 @@ public class SelectionBolt extends BaseRichBolt {
             String rowKey = String.valueOf(timestamp).concat("_").concat(String.valueOf(ruleId));
             log.debug("In Selection Bolt emit versus hbase bolt event, timestamp is : {} ", timestamp);
             log.debug("In Selection bolt emit versus hbase bolt event, rowKey is : {} ", rowKey);
-            collector.emit(streamId, new Values(rowKey, avroHPacket));
+            BoltUtil.emit(collector, anchor, streamId, new Values(rowKey, avroHPacket));
         } else if (modelType.equals(ModelType.ALARMEVENT)) {
             streamId = String.format(ALARM_EVENT_HPROJECT_STREAM_ID_PREFIX, hprojectId);
             long deviceId = ((Long) (input.getValueByField(StormConstants.ALARM_EVENT_DEVICE_ID)));
             String alarmState = (String) input.getValueByField(StormConstants.ALARM_STATE_FIELD);
             log.debug("In Selection bolt emit versus hbase bolt alarm, deviceId is : {} , alarmState is {} ", deviceId, alarmState);
-            collector.emit(streamId, new Values(timestamp, deviceId, alarmState, avroHPacket));
+            BoltUtil.emit(collector, anchor, streamId, new Values(timestamp, deviceId, alarmState, avroHPacket));
         }
-        TimelineUtil.emitTuplesToTimelineTable(collector, rowKeyBeginning, hprojectId, timestamp);
+        TimelineUtil.emitTuplesToTimelineTable(collector, anchor, rowKeyBeginning, hprojectId, timestamp);
         log.debug("Tuples emitted");
     }
 
     /**
      * Send Avro HPacket to HDFS.
-     * Depending on HPacket traffic plan, Storm can save into multiple directories.
+     * Packet is written once, to the directory of the canonical granularity of its traffic plan:
+     * directories are nested, so coarser granularities are read from the same copy (see HyperIoTHdfsLayout).
      * Actually, this is an append operation on an existing file (HDFS bolt will create it, if it does not exist)
      *
      * @param packet HPacket
      * @param plan   HPacket traffic plan
+     * @param anchor input tuple, null if tuple must not be anchored
      */
-    private void sendToHDFS(HPacket packet, HPacketTrafficPlan plan) {
-        Values values = new Values(packet);
-        log.debug("Send HPacket with {} traffic plan", plan.getName());
-        // Send always to year path: this allows to batch layer to process all data apart from traffic plan:
-        // i.e., jobs will not worry about where data are depending on traffic plan
-        collector.emit(YEAR_STREAM_ID, values);
-
-        log.debug("********TrafficPlan is : {}", plan);
-        switch (plan) {
-            case LOW:
-                break;
-            case MEDIUM:
-                collector.emit(MONTH_STREAM_ID, values);
-                break;
-            case HIGH:
-                collector.emit(DAY_STREAM_ID, values);
-                collector.emit(QUARTER_STREAM_ID, values);
-                collector.emit(SEMESTER_STREAM_ID, values);
-                break;
-            case INTENSIVE:
-                collector.emit(HOUR_STREAM_ID, values);
-                collector.emit(QUARTER_STREAM_ID, values);
-                collector.emit(SEMESTER_STREAM_ID, values);
-                break;
-            default:
-                log.error("Unknown plan {}", plan.getName());
-        }
-
-
+    private void sendToHDFS(HPacket packet, HPacketTrafficPlan plan, Tuple anchor) {
+        String streamId = HyperIoTHdfsLayout.getCanonicalGranularity(plan).getDepth();
+        log.debug("Send HPacket with {} traffic plan to {} stream", plan.getName(), streamId);
+        BoltUtil.emit(collector, anchor, streamId, new Values(packet));
     }
 
     /**
@@ -238,4 +225,12 @@ public class SelectionBolt extends BaseRichBolt {
         return this;
     }
 
+    /**
+     * @param reliableMode if true, tuples sent to HBase and HDFS bolts are anchored to the input one
+     */
+    public SelectionBolt withReliableMode(boolean reliableMode) {
+        this.reliableMode = reliableMode;
+        return this;
+    }
+
 }
@@ -0,0 +1,214 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.runtime.bolt;
+
+import it.acsoftware.hyperiot.hproject.api.hbase.timeline.HProjectTimelineUtil;
+import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineColumnFamily;
+import it.acsoftware.hyperiot.hproject.util.hbase.HProjectTimelineUtilImpl;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.storm.Config;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Pre-aggregates timeline counters before they are written to HBase.
+ * Every input tuple (row key beginning, timestamp) is expanded into one counter for each TimelineColumnFamily step;
+ * counters addressing the same row key and column are summed in memory and flushed as a single increment
+ * on tick tuples or when the number of pending input tuples reaches maxPendingTuples.
+ * Input tuples are acked only after the increments they contributed to have been emitted, anchored to them:
+ * a failed HBase write replays the input tuples, so counters are written at least once.
+ * Flush interval must be lower than topology.message.timeout.secs.
+ */
+public class TimelineAggregationBolt extends BaseRichBolt {
+
+    private static final Logger log = LoggerFactory.getLogger(TimelineAggregationBolt.class);
+
+    public static final int DEFAULT_FLUSH_INTERVAL_SECONDS = 5;
+    public static final int DEFAULT_MAX_PENDING_TUPLES = 10000;
+
+    private static final TimelineColumnFamily[] STEPS = TimelineColumnFamily.values();
+
+    private String hProjectId;
+    private int flushIntervalSecs = DEFAULT_FLUSH_INTERVAL_SECONDS;
+    private int maxPendingTuples = DEFAULT_MAX_PENDING_TUPLES;
+
+    private OutputCollector collector;
+    private HProjectTimelineUtil hProjectTimelineUtil;
+    private String outputStreamId;
+    private Map<TimelineCounterKey, TimelineCounter> counters;
+    private List<Tuple> pendingTuples;
+
+    @Override
+    public void prepare(Map stormConf, TopologyContext context, OutputCollector outputCollector) {
+        this.collector = outputCollector;
+        this.hProjectTimelineUtil = new HProjectTimelineUtilImpl();
+        this.outputStreamId = String.format(StormConstants.TIMELINE_AGGREGATED_STREAM_ID_PREFIX, hProjectId);
+        this.counters = new HashMap<>();
+        this.pendingTuples = new ArrayList<>(maxPendingTuples);
+    }
+
+    @Override
+    public void execute(Tuple input) {
+        if (TupleUtils.isTick(input)) {
+            flush();
+            return;
+        }
+        try {
+            String rowKeyBeginning = input.getStringByField(StormConstants.ROWKEY_FIELD);
+            long timestamp = input.getLongByField(StormConstants.TIMESTAMP_FIELD);
+            Instant instant = Instant.ofEpochMilli(timestamp);
+            for (TimelineColumnFamily step : STEPS) {
+                TimelineCounterKey key = new TimelineCounterKey(
+                        hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, step, timestamp), step,
+                        hProjectTimelineUtil.getStringColumnBound(instant, step));
+                counters.computeIfAbsent(key, k -> new TimelineCounter(timestamp)).add(input);
+            }
+            pendingTuples.add(input);
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not aggregate timeline tuple {}: ", input, e);
+            collector.ack(input);
+            return;
+        }
+        if (pendingTuples.size() >= maxPendingTuples)
+            flush();
+    }
+
+    /**
+     * Emits one increment for each aggregated counter, then acks the input tuples
+     */
+    private void flush() {
+        if (pendingTuples.isEmpty())
+            return;
+        log.debug("Flushing {} timeline counters aggregated from {} tuples", counters.size(), pendingTuples.size());
+        for (Map.Entry<TimelineCounterKey, TimelineCounter> entry : counters.entrySet()) {
+            TimelineCounterKey key = entry.getKey();
+            TimelineCounter counter = entry.getValue();
+            collector.emit(outputStreamId, counter.anchors,
+                    new Values(key.rowKey, counter.timestamp, key.step, counter.count));
+        }
+        for (Tuple tuple : pendingTuples)
+            collector.ack(tuple);
+        counters.clear();
+        pendingTuples.clear();
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declareStream(String.format(StormConstants.TIMELINE_AGGREGATED_STREAM_ID_PREFIX, hProjectId),
+                new Fields(StormConstants.ROWKEY_FIELD, StormConstants.TIMESTAMP_FIELD, StormConstants.STEP_FIELD,
+                        StormConstants.COUNT_FIELD));
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        Config conf = new Config();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, flushIntervalSecs);
+        return conf;
+    }
+
+    public TimelineAggregationBolt withHProject(String hProjectId) {
+        this.hProjectId = hProjectId;
+        return this;
+    }
+
+    /**
+     * @param flushIntervalSecs Seconds between two flushes of aggregated counters
+     * @return TimelineAggregationBolt
+     */
+    public TimelineAggregationBolt withFlushIntervalSecs(int flushIntervalSecs) {
+        if (flushIntervalSecs <= 0)
+            throw new IllegalArgumentException("Flush interval must be greater than 0");
+        this.flushIntervalSecs = flushIntervalSecs;
+        return this;
+    }
+
+    /**
+     * @param maxPendingTuples Number of input tuples which forces a flush before the next tick
+     * @return TimelineAggregationBolt
+     */
+    public TimelineAggregationBolt withMaxPendingTuples(int maxPendingTuples) {
+        if (maxPendingTuples <= 0)
+            throw new IllegalArgumentException("Max pending tuples must be greater than 0");
+        this.maxPendingTuples = maxPendingTuples;
+        return this;
+    }
+
+    /**
+     * HBase cell addressed by a timeline counter
+     */
+    private static final class TimelineCounterKey {
+        private final String rowKey;
+        private final TimelineColumnFamily step;
+        private final String column;
+        private final int hash;
+
+        private TimelineCounterKey(String rowKey, TimelineColumnFamily step, String column) {
+            this.rowKey = rowKey;
+            this.step = step;
+            this.column = column;
+            this.hash = Objects.hash(rowKey, step, column);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof TimelineCounterKey))
+                return false;
+            TimelineCounterKey other = (TimelineCounterKey) o;
+            return step == other.step && rowKey.equals(other.rowKey) && column.equals(other.column);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Aggregated increment with the input tuples it comes from.
+     * Timestamp is one of the aggregated ones: all of them map to the same column.
+     */
+    private static final class TimelineCounter {
+        private final long timestamp;
+        private final List<Tuple> anchors = new ArrayList<>();
+        private long count;
+
+        private TimelineCounter(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        private void add(Tuple anchor) {
+            anchors.add(anchor);
+            count++;
+        }
+    }
+
+}
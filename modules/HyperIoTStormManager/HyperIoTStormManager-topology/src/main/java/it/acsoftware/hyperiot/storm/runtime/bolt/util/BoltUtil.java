@@ -30,6 +30,7 @@ import it.acsoftware.hyperiot.hdevice.model.HDevice;
 import it.acsoftware.hyperiot.hpacket.model.*;
 import it.acsoftware.hyperiot.hproject.model.HProject;
 import it.acsoftware.hyperiot.hproject.serialization.api.HPacketSerializer;
+import it.acsoftware.hyperiot.hproject.serialization.service.BinaryAvroHPacketSerializer;
 import it.acsoftware.hyperiot.hproject.serialization.service.JsonAvroHPacketSerializer;
 import it.acsoftware.hyperiot.storm.alarm.AlarmState;
 import it.acsoftware.hyperiot.stormmanager.model.HyperIoTTopologyError;
@@ -37,6 +38,7 @@ import org.apache.storm.task.OutputCollector;
 import org.apache.storm.topology.BasicOutputCollector;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,10 +55,12 @@ public final class BoltUtil {
     private static final ObjectMapper objectMapper;
 
     private static final HPacketSerializer hPacketSerializer;
+    private static final HPacketSerializer binaryHPacketSerializer;
 
     static {
         objectMapper = new ObjectMapper();
         hPacketSerializer = JsonAvroHPacketSerializer.getInstance();
+        binaryHPacketSerializer = BinaryAvroHPacketSerializer.getInstance();
         eventFormat = EventFormatProvider.getInstance().resolveFormat(JsonFormat.CONTENT_TYPE);
     }
 
@@ -64,6 +68,30 @@ public final class BoltUtil {
         throw new IllegalStateException("Utility class");
     }
 
+    /**
+     * Emits a tuple anchored to the input one, so it is replayed by the spout if a downstream bolt fails it.
+     * Tuple is emitted unanchored if there is no anchor, i.e. reliable mode is off or tuple is not produced from an input
+     * (rule engine asynchronous actions)
+     *
+     * @param collector OutputCollector
+     * @param anchor    input tuple, null to emit unanchored
+     * @param streamId  output stream, Utils.DEFAULT_STREAM_ID for the default one
+     * @param values    tuple values
+     */
+    public static void emit(OutputCollector collector, Tuple anchor, String streamId, List<Object> values) {
+        if (anchor != null)
+            collector.emit(streamId, anchor, values);
+        else
+            collector.emit(streamId, values);
+    }
+
+    /**
+     * Emits a tuple on the default stream, see emit(OutputCollector, Tuple, String, List)
+     */
+    public static void emit(OutputCollector collector, Tuple anchor, List<Object> values) {
+        emit(collector, anchor, Utils.DEFAULT_STREAM_ID, values);
+    }
+
     /**
      * This method constructs a new HPacket, which contains event information
      * @param packet Original HPacket instance
@@ -126,6 +154,16 @@ public final class BoltUtil {
         return new String(hPacketSerializer.serialize(hPacket), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Return HPacket in the versioned binary Avro format stored inside hproject tables
+     * @param hPacket HPacket
+     * @return byte array containing avro HPacket
+     * @throws IOException Throws exception, which is managed by caller
+     */
+    public static byte[] getBinaryAvroHPacket(HPacket hPacket) throws IOException {
+        return binaryHPacketSerializer.serialize(hPacket);
+    }
+
     public static HPacket createHPacket(String name, HPacketType type, HPacketFormat format,
                                         HPacketSerialization serialization, HDevice device, String version,
                                         boolean valid, String timestampField, String timestampFormat,
@@ -0,0 +1,148 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.runtime.bolt.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketCompression;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFormat;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketBatchDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.api.HPacketDeserializer;
+import it.acsoftware.hyperiot.hproject.deserialization.model.HPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.service.builder.HPacketDeserializerBuilder;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.CompiledHPacketInfo;
+import it.acsoftware.hyperiot.hproject.deserialization.service.util.HPacketFieldPlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, per packet, deserialization descriptor.
+ * It is built once from the "packet.&lt;id&gt;" topology configuration when the bolt is prepared
+ * and holds the parsed packet definition, the resolved deserializer and the compiled field plan.
+ * Deserializer of compressed packets decompresses payloads before parsing them.
+ */
+public final class HPacketDescriptor {
+
+    private static final Logger log = LoggerFactory.getLogger(HPacketDescriptor.class);
+
+    private final long packetId;
+    private final HPacketInfo packetInfo;
+    private final HPacketDeserializer deserializer;
+    private final HPacketFieldPlan fieldPlan;
+
+    private HPacketDescriptor(long packetId, HPacketInfo packetInfo, HPacketDeserializer deserializer, HPacketFieldPlan fieldPlan) {
+        this.packetId = packetId;
+        this.packetInfo = packetInfo;
+        this.deserializer = deserializer;
+        this.fieldPlan = fieldPlan;
+    }
+
+    /**
+     * @param packetId   packet id
+     * @param jsonSchema JSON packet definition as defined inside topology configuration
+     * @param mapper     ObjectMapper used to parse the definition
+     * @return compiled descriptor
+     * @throws IOException if the packet definition is not valid
+     */
+    public static HPacketDescriptor compile(long packetId, String jsonSchema, ObjectMapper mapper) throws IOException {
+        HPacketInfo packetInfo = mapper.readValue(jsonSchema, HPacketInfo.class);
+        packetInfo.setHPacketId(packetId);
+        HPacketFieldPlan fieldPlan = HPacketFieldPlan.compile(packetInfo);
+        HPacketDeserializer deserializer = null;
+        try {
+            HPacketCompression compression = packetInfo.getCompression() == null ? HPacketCompression.NONE
+                    : HPacketCompression.valueOf(packetInfo.getCompression().toUpperCase());
+            deserializer = HPacketDeserializerBuilder
+                    .getDeserializer(HPacketFormat.valueOf(packetInfo.getSchema().getType().toUpperCase()), compression);
+        } catch (HyperIoTRuntimeException | IllegalArgumentException e) {
+            log.error("Unknown packet type {} or compression {} for packet {}", packetInfo.getSchema().getType(),
+                    packetInfo.getCompression(), packetId);
+        }
+        return new HPacketDescriptor(packetId, packetInfo, deserializer, fieldPlan);
+    }
+
+    public long getPacketId() {
+        return packetId;
+    }
+
+    /**
+     * @return deserializer for the packet format, null if the format is not supported
+     */
+    public HPacketDeserializer getDeserializer() {
+        return deserializer;
+    }
+
+    /**
+     * Deserializes a payload carrying a single reading or, if the format supports it, a batch of readings
+     *
+     * @param rawMessage  payload
+     * @param packetInfo  packet info, see createPacketInfo
+     * @return one HPacket for each reading
+     * @throws IOException if the payload cannot be parsed or the batch is not valid
+     */
+    public List<HPacket> deserializeReadings(byte[] rawMessage, HPacketInfo packetInfo) throws IOException {
+        if (deserializer instanceof HPacketBatchDeserializer)
+            return ((HPacketBatchDeserializer) deserializer).deserializeBatch(rawMessage, packetInfo);
+        return Collections.singletonList(deserializer.deserialize(rawMessage, packetInfo));
+    }
+
+    public HPacketFieldPlan getFieldPlan() {
+        return fieldPlan;
+    }
+
+    public String getFormat() {
+        return packetInfo.getSchema().getType();
+    }
+
+    /**
+     * Returns a packet info for the given project and device.
+     * Schema and timestamp definitions are shared with the descriptor, which hands its compiled field plan to deserializers.
+     *
+     * @param projectId project id
+     * @param deviceId  device id
+     * @return HPacketInfo
+     */
+    public HPacketInfo createPacketInfo(long projectId, long deviceId) {
+        HPacketInfo info = new CompiledHPacketInfo(fieldPlan);
+        info.setHProjectId(projectId);
+        info.setHDeviceId(deviceId);
+        info.setHPacketId(packetId);
+        info.setName(packetInfo.getName());
+        info.setType(packetInfo.getType());
+        info.setTrafficPlan(packetInfo.getTrafficPlan());
+        info.setCompression(packetInfo.getCompression());
+        info.setUnixTimestamp(packetInfo.isUnixTimestamp());
+        info.setUnixTimestampFormatSeconds(packetInfo.isUnixTimestampFormatSeconds());
+        info.setSchema(packetInfo.getSchema());
+        info.setTimestamp(packetInfo.getTimestamp());
+        return info;
+    }
+
+    @Override
+    public String toString() {
+        return "HPacketDescriptor{" +
+                "packetId=" + packetId +
+                ", packetInfo=" + packetInfo +
+                '}';
+    }
+}
@@ -17,36 +17,28 @@
 
 package it.acsoftware.hyperiot.storm.runtime.bolt.util;
 
-import it.acsoftware.hyperiot.hproject.api.hbase.timeline.HProjectTimelineUtil;
-import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineColumnFamily;
-import it.acsoftware.hyperiot.hproject.util.hbase.HProjectTimelineUtilImpl;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.topology.BasicOutputCollector;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
 
-import java.io.IOException;
-
-import static it.acsoftware.hyperiot.storm.util.StormConstants.TIMELINE_HPROJECT_STREAM_ID_PREFIX;
+import static it.acsoftware.hyperiot.storm.util.StormConstants.*;
 
 public final class TimelineUtil {
 
-    private static final HProjectTimelineUtil hProjectTimelineUtil;
-
-    static {
-        hProjectTimelineUtil = new HProjectTimelineUtilImpl();
-    }
-
     private TimelineUtil() {
         throw new IllegalStateException("Utility class");
     }
 
     /**
-     * Send tuples to HBase, supporting timeline queries.
+     * Send a tuple to the timeline aggregation bolt, supporting timeline queries.
      * Timeline table contains counting about how many times Storm receives an HPacket, on the basis of its timestamp.
-     * We send one tuple for each step (see it.acsoftware.hyperiot.hbase.connector.model.TimelineColumnFamily enum for its values).
-     * For every emitted tuple, there is a composed row key.
+     * A single tuple is emitted for each model instance: TimelineAggregationBolt expands it
+     * into one counter for each step (see it.acsoftware.hyperiot.hbase.connector.model.TimelineColumnFamily enum for its values)
+     * and sums counters sharing the same row key and column before sending them to HBase.
      * For example, on January 2020, the 22th, Storm receive tuple about HPacket with id 156 or a generic event.
-     * One of the emitted tuples contains the following row key: HPacket.156_2020_1 / Event_2020_1.
+     * One of the resulting counters has the following row key: HPacket.156_2020_1 / Event_2020_1.
      * On HBase, we increment cell value with column day:22
      *
      * @param collector OutputCollector
@@ -54,56 +46,36 @@ public final class TimelineUtil {
      * @param hProjectId ID of HProject
      * @param timestamp Timestamp
      */
-    public static void emitTuplesToTimelineTable(OutputCollector collector, String rowKeyBeginning, long hProjectId, long timestamp)
-            throws IOException {
-        // emit to timeline table, which counts model (i.e. HPacket or Event) instances
-        String timelineTableStreamId = String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hProjectId);
-        collector.emit(timelineTableStreamId, new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning,
-                TimelineColumnFamily.YEAR, timestamp), timestamp, TimelineColumnFamily.YEAR));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MONTH,
-                        timestamp), timestamp, TimelineColumnFamily.MONTH));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.DAY,
-                        timestamp), timestamp, TimelineColumnFamily.DAY));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.HOUR,
-                        timestamp), timestamp, TimelineColumnFamily.HOUR));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MINUTE,
-                        timestamp), timestamp, TimelineColumnFamily.MINUTE));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.SECOND,
-                        timestamp), timestamp, TimelineColumnFamily.SECOND));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MILLISECOND,
-                        timestamp), timestamp, TimelineColumnFamily.MILLISECOND));
+    public static void emitTuplesToTimelineTable(OutputCollector collector, String rowKeyBeginning, long hProjectId, long timestamp) {
+        collector.emit(getTimelineStreamId(hProjectId), new Values(rowKeyBeginning, timestamp));
+    }
+
+    /**
+     * Same as emitTuplesToTimelineTable(OutputCollector, String, long, long), tuple is anchored to the given one
+     *
+     * @param anchor input tuple, null to emit unanchored
+     */
+    public static void emitTuplesToTimelineTable(OutputCollector collector, Tuple anchor, String rowKeyBeginning, long hProjectId, long timestamp) {
+        BoltUtil.emit(collector, anchor, getTimelineStreamId(hProjectId), new Values(rowKeyBeginning, timestamp));
     }
 
-    public static void emitTuplesToTimelineTable(BasicOutputCollector collector, String rowKeyBeginning, long hProjectId, long timestamp)
-            throws IOException {
-        // emit to timeline table, which counts model (i.e. HPacket or Event) instances
-        String timelineTableStreamId = String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hProjectId);
-        collector.emit(timelineTableStreamId, new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning,
-                TimelineColumnFamily.YEAR, timestamp), timestamp, TimelineColumnFamily.YEAR));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MONTH,
-                        timestamp), timestamp, TimelineColumnFamily.MONTH));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.DAY,
-                        timestamp), timestamp, TimelineColumnFamily.DAY));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.HOUR,
-                        timestamp), timestamp, TimelineColumnFamily.HOUR));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MINUTE,
-                        timestamp), timestamp, TimelineColumnFamily.MINUTE));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.SECOND,
-                        timestamp), timestamp, TimelineColumnFamily.SECOND));
-        collector.emit(timelineTableStreamId,
-                new Values(hProjectTimelineUtil.getRowKeyPrefix(rowKeyBeginning, TimelineColumnFamily.MILLISECOND,
-                        timestamp), timestamp, TimelineColumnFamily.MILLISECOND));
+    public static void emitTuplesToTimelineTable(BasicOutputCollector collector, String rowKeyBeginning, long hProjectId, long timestamp) {
+        collector.emit(getTimelineStreamId(hProjectId), new Values(rowKeyBeginning, timestamp));
+    }
+
+    /**
+     * @param hProjectId ID of HProject
+     * @return Id of the stream consumed by TimelineAggregationBolt
+     */
+    public static String getTimelineStreamId(long hProjectId) {
+        return String.format(TIMELINE_HPROJECT_STREAM_ID_PREFIX, hProjectId);
+    }
+
+    /**
+     * @return Fields of tuples emitted by emitTuplesToTimelineTable
+     */
+    public static Fields getTimelineStreamFields() {
+        return new Fields(ROWKEY_FIELD, TIMESTAMP_FIELD);
     }
 
 }
@@ -0,0 +1,79 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+
+package it.acsoftware.hyperiot.storm.runtime.spout;
+
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.storm.kafka.spout.RecordTranslator;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Values;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Translates records of streaming topics into tuples.
+ * Emits the same fields of the default translator (topic, partition, offset, key, value),
+ * followed by the payload encoding read from record headers, by the record timestamp
+ * and by the device id read from the record key, used to group tuples by device.
+ * Records without the encoding header are Base64 encoded ones, produced before raw payloads were supported.
+ */
+public class HyperIoTStreamingRecordTranslator implements RecordTranslator<byte[], byte[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Fields FIELDS = new Fields("topic", "partition", "offset", StormConstants.KAFKA_KEY_FIELD,
+            "value", StormConstants.KAFKA_ENCODING_FIELD, StormConstants.KAFKA_TIMESTAMP_FIELD, StormConstants.HDEVICE_ID_FIELD);
+
+    @Override
+    public List<Object> apply(ConsumerRecord<byte[], byte[]> record) {
+        return new Values(record.topic(), record.partition(), record.offset(), record.key(), record.value(),
+                getEncoding(record), record.timestamp(), getDeviceId(record));
+    }
+
+    @Override
+    public Fields getFieldsFor(String stream) {
+        return FIELDS;
+    }
+
+    /**
+     * @param record Kafka record
+     * @return payload encoding, StormConstants.KAFKA_ENCODING_BASE64 when the record has no encoding header
+     */
+    public static String getEncoding(ConsumerRecord<byte[], byte[]> record) {
+        Header header = record.headers().lastHeader(StormConstants.KAFKA_ENCODING_HEADER);
+        if (header == null || header.value() == null)
+            return StormConstants.KAFKA_ENCODING_BASE64;
+        return new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param record Kafka record, its key is <deviceId>.<packetId>
+     * @return device id, empty if the record has no key
+     */
+    public static String getDeviceId(ConsumerRecord<byte[], byte[]> record) {
+        if (record.key() == null)
+            return "";
+        String key = new String(record.key(), StandardCharsets.UTF_8);
+        int separator = key.indexOf('.');
+        return (separator >= 0) ? key.substring(0, separator) : key;
+    }
+
+}
@@ -27,6 +27,7 @@ public final class StormConstants {
 
     public static final String AVRO_HPACKET_ATTACHMENTS = "avroHPacketAttachments";
     public static final String AVRO_HPROJECT_STREAM_ID_PREFIX = "hproject_%s";
+    public static final String COUNT_FIELD = "count";
     public static final String DAY_STREAM_ID = "day";
     public static final String DESERIALIZATION_BOLT_ID = "bolt-deserialization";
     public static final String DEVICEID_PACKETID_FIELD = "deviceId.packetId";
@@ -65,8 +66,6 @@ public final class StormConstants {
     public static final String HDFS_PERSISTENCE_DAY = "bolt-hyperiot-day_%s";
     public static final String HDFS_PERSISTENCE_HOUR = "bolt-hyperiot-hour_%s";
     public static final String HDFS_PERSISTENCE_MONTH = "bolt-hyperiot-month_%s";
-    public static final String HDFS_PERSISTENCE_QUARTER = "bolt-hyperiot-quarter_%s";
-    public static final String HDFS_PERSISTENCE_SEMESTER = "bolt-hyperiot-semester_%s";
     public static final String HDFS_PERSISTENCE_YEAR = "bolt-hyperiot-year_%s";
     public static final String HOUR_STREAM_ID = "hour";
     public static final String HPACKET_FIELD = "hpacket";
@@ -81,18 +80,24 @@ public final class StormConstants {
     public static final String KAFKA_REALTIME_KEY_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer";
     public static final String KAFKA_REALTIME_VALUE_SERIALIZER = "it.acsoftware.hyperiot.hproject.serialization.service.KafkaAvroHPacketSerializer";
     public static final String KAFKA_DLQ_VALUE_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer";
+    public static final String KAFKA_ENCODING_BASE64 = "base64";
+    public static final String KAFKA_ENCODING_FIELD = "encoding";
+    public static final String KAFKA_ENCODING_HEADER = "hyperiot.encoding";
+    public static final String KAFKA_ENCODING_RAW = "raw";
+    public static final String KAFKA_KEY_FIELD = "key";
     public static final String KAFKA_SPOUT_ID = "kafka-spout-raw-";
+    public static final String KAFKA_TIMESTAMP_FIELD = "kafkaTimestamp";
     public static final String MESSAGE_FIELD = "message";
     public static final String MESSAGE_TYPE_FIELD = "message_type";
     public static final String MONTH_STREAM_ID = "month";
     public static final String PACKET_FIELD = "packet";
-    public static final String QUARTER_STREAM_ID = "quarter";
     public static final String REALTIME_LAYER_KAFKA_BOLT = "bolt-kafka-realtime-";
     public static final String RECEIVED_PACKET_FIELD = "received_packet";
     public static final String ROWKEY_FIELD = "rowkey";
     public static final String SELECTION_BOLT_ID = "bolt-selection";
-    public static final String SEMESTER_STREAM_ID = "semester";
     public static final String STEP_FIELD = "step";
+    public static final String TIMELINE_AGGREGATION_BOLT_PREFIX = "bolt-timeline-aggregation-";
+    public static final String TIMELINE_AGGREGATED_STREAM_ID_PREFIX = "timeline_aggregated_hproject_%s";
     public static final String TIMELINE_HPROJECT_STREAM_ID_PREFIX = "timeline_hproject_%s";
     public static final String EVENT_RULE_STATE_HBASE_STREAM_ID = "eventRuleStateToHBase_%s";
 
@@ -106,8 +111,6 @@ public final class StormConstants {
     public static final String KAKFA_DLQ_STREAM_HDFS_DAY="dlq-bolt-stream-hdfs-day";
     public static final String KAKFA_DLQ_STREAM_HDFS_MONTH="dlq-bolt-stream-hdfs-month";
     public static final String KAKFA_DLQ_STREAM_HDFS_YEAR="dlq-bolt-stream-hdfs-year";
-    public static final String KAKFA_DLQ_STREAM_HDFS_SEMESTER="dlq-bolt-stream-hdfs-semester";
-    public static final String KAKFA_DLQ_STREAM_HDFS_QUARTER="dlq-bolt-stream-hdfs-quarter";
     public static final String KAKFA_DLQ_STREAM_HBASE_AVRO="dlq-bolt-stream-hbase-avro";
     public static final String KAKFA_DLQ_STREAM_HBASE_EVENT="dlq-bolt-stream-hbase-event";
     public static final String KAKFA_DLQ_STREAM_HBASE_TIMELINE="dlq-bolt-stream-hbase-timeline";
@@ -122,8 +125,6 @@ public final class StormConstants {
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_DAY="dlq-bolt-stream-hdfs-day-deserialization";
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_MONTH="dlq-bolt-stream-hdfs-month-deserialization";
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_YEAR="dlq-bolt-stream-hdfs-year-deserialization";
-    public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_SEMESTER="dlq-bolt-stream-hdfs-semester-deserialization";
-    public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HDFS_QUARTER="dlq-bolt-stream-hdfs-quarter-deserialization";
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_AVRO="dlq-bolt-stream-hbase-avro-deserialization";
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_EVENT="dlq-bolt-stream-hbase-event-deserialization";
     public static final String KAKFA_DLQ_STREAM_DESERIALIZATION_HBASE_TIMELINE="dlq-bolt-stream-hbase-timeline-deserialization";
@@ -19,12 +19,16 @@ package org.apache.storm.hbase.bolt;
 
 import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.storm.hbase.bolt.mapper.HBaseMapper;
 import org.apache.storm.hbase.common.ColumnList;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -36,11 +40,20 @@ import java.util.List;
  * In this way we create a condition that we can use to implement a strategy to recover from this event.
  * For the moment the strategy is to use a DLQ to store message for a certain period of time and retry
  * the operation after hbase is online.
+ *
+ * Tuples are written in batches of batchSize mutations; pending batches are flushed on tick tuples,
+ * so tuples wait at most flushIntervalSecs before being written (see getComponentConfiguration).
+ * When a batch fails every tuple of it is failed and carried by FailedBatchException.
  */
 public class HyperIoTHBaseBolt extends HBaseBolt {
 
     private static final Logger LOG = LoggerFactory.getLogger(HyperIoTHBaseBolt.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_FLUSH_INTERVAL_SECONDS = 1;
+
+    private boolean latestMutationPerRow;
+
     public HyperIoTHBaseBolt(String tableName, HBaseMapper mapper) {
         super(tableName, mapper);
     }
@@ -54,6 +67,9 @@ public class HyperIoTHBaseBolt extends HBaseBolt {
                 byte[] rowKey = this.mapper.rowKey(tuple);
                 ColumnList cols = this.mapper.columns(tuple);
                 List<Mutation> mutations = hBaseClient.constructMutationReq(rowKey, cols, writeToWAL? Durability.SYNC_WAL : Durability.SKIP_WAL);
+                //mutations of the same row inside a batch are not applied in order, only the last one is kept
+                if (latestMutationPerRow)
+                    batchMutations.removeIf(mutation -> Bytes.equals(mutation.getRow(), rowKey));
                 batchMutations.addAll(mutations);
                 batchHelper.addBatch(tuple);
                 LOG.debug("HyperIoTHBaseBolt end batchHelper.shouldHandle(tuple)");
@@ -68,10 +84,43 @@ public class HyperIoTHBaseBolt extends HBaseBolt {
             }
         } catch(Exception e){
             LOG.debug("HyperIoTHBaseBolt Exception happen, exception class is {}",e.getClass().getName());
+            List<Tuple> failedTuples = new ArrayList<>(batchHelper.getBatchTuples());
             batchHelper.fail(e);
             batchMutations.clear();
-            throw new RuntimeException("Tuple's sending to HBase failed in HyperIoTHBaseBolt");
+            //tuple has not been added to the batch yet
+            if (!TupleUtils.isTick(tuple) && !failedTuples.contains(tuple)) {
+                collector.fail(tuple);
+                failedTuples.add(tuple);
+            }
+            throw new FailedBatchException(failedTuples);
         }
         LOG.debug("HyperIoTHBaseBolt finish Execute without Exception ");
     }
+
+    /**
+     * @param latestMutationPerRow if true, a mutation replaces the pending ones of the same row.
+     *                             To be used for tables whose rows hold a state rather than a history
+     * @return HyperIoTHBaseBolt
+     */
+    public HyperIoTHBaseBolt withLatestMutationPerRow(boolean latestMutationPerRow) {
+        this.latestMutationPerRow = latestMutationPerRow;
+        return this;
+    }
+
+    /**
+     * Thrown when a batch could not be written, with the tuples which have been failed
+     */
+    public static class FailedBatchException extends RuntimeException {
+
+        private final List<Tuple> failedTuples;
+
+        public FailedBatchException(List<Tuple> failedTuples) {
+            super("Tuple's sending to HBase failed in HyperIoTHBaseBolt");
+            this.failedTuples = Collections.unmodifiableList(failedTuples);
+        }
+
+        public List<Tuple> getFailedTuples() {
+            return failedTuples;
+        }
+    }
 }
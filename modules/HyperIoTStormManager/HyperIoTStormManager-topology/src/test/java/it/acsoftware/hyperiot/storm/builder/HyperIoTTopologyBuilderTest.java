@@ -0,0 +1,61 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.builder;
+
+import org.apache.storm.Config;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests settings of bolts computed by the topology builder from topology properties
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTTopologyBuilderTest {
+
+    private static final String HDFS_TICK_INTERVAL = "it.acsoftware.hyperiot.storm.hdfs.tick.interval.seconds";
+
+    @Test
+    public void test00_hdfsTickIntervalBelowMessageTimeout() {
+        Map<String, Object> props = new HashMap<>();
+        Assert.assertEquals(HyperIoTTopologyBuilder.DEFAULT_MESSAGE_TIMEOUT_SECS / 2,
+                HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+        props.put(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, "10");
+        Assert.assertEquals(5, HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+        props.put(HDFS_TICK_INTERVAL, "3");
+        Assert.assertEquals(3, HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+    }
+
+    @Test
+    public void test01_hdfsTickIntervalIsBounded() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, "10");
+        props.put(HDFS_TICK_INTERVAL, "60");
+        Assert.assertEquals(9, HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+        props.put(HDFS_TICK_INTERVAL, "0");
+        Assert.assertEquals(1, HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+        props.put(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, "1");
+        props.remove(HDFS_TICK_INTERVAL);
+        Assert.assertEquals(1, HyperIoTTopologyBuilder.getHdfsTickTupleIntervalSeconds(props));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.builder;
+
+import it.acsoftware.hyperiot.base.exception.HyperIoTRuntimeException;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfig;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfigChange;
+import it.acsoftware.hyperiot.stormmanager.model.TopologyConfigFingerprint;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.Collections;
+
+/**
+ * Tests topology configuration fingerprints and rendering
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTTopologyConfigModelTest {
+
+    private static HyperIoTTopologyConfigModel createModel(String droolsEvent, String packetSchema) {
+        HyperIoTTopologyConfigModel model = new HyperIoTTopologyConfigModel("topology-1");
+        model.putTemplate("topology.properties", "%packets%drools.event=%drools-event%\nspout.pending=%it.acsoftware.hyperiot.storm.max.spout.pending%\n");
+        model.putTemplate("topology.yaml", "name: \"%topology-name%\"\nworkers: %topology_workers%\npending: %{it.acsoftware.hyperiot.storm.max.spout.pending}%\n%packets-config%");
+        model.putTemplate("packet-config.yaml", "  - id: \"%pid%\"\n");
+        model.putSetting("topology-name", "topology-1");
+        model.putSetting("topology_workers", 2);
+        model.putSetting("it.acsoftware.hyperiot.storm.max.spout.pending", 1000);
+        model.putRule("drools-event", droolsEvent);
+        model.putPacket(20, packetSchema);
+        model.putPacket(10, "{\"name\":\"first\"}");
+        return model;
+    }
+
+    @Test
+    public void test00_sameContentSameFingerprint() {
+        TopologyConfigFingerprint fingerprint = createModel("rule 1", "{\"name\":\"second\"}").getFingerprint();
+        TopologyConfigFingerprint other = createModel("rule 1", "{\"name\":\"second\"}").getFingerprint();
+        Assert.assertEquals(fingerprint, other);
+        Assert.assertEquals(fingerprint.hashCode(), other.hashCode());
+        Assert.assertEquals(TopologyConfigChange.NONE, fingerprint.diff(other));
+    }
+
+    @Test
+    public void test01_ruleChangesDoNotChangeStructure() {
+        TopologyConfigFingerprint running = createModel("rule 1", "{\"name\":\"second\"}").getFingerprint();
+        TopologyConfigFingerprint current = createModel("rule 2", "{\"name\":\"second\"}").getFingerprint();
+        Assert.assertEquals(running.getStructureHash(), current.getStructureHash());
+        Assert.assertEquals(TopologyConfigChange.RULES, current.diff(running));
+    }
+
+    @Test
+    public void test02_packetChangesChangeStructure() {
+        TopologyConfigFingerprint running = createModel("rule 1", "{\"name\":\"second\"}").getFingerprint();
+        TopologyConfigFingerprint current = createModel("rule 2", "{\"name\":\"renamed\"}").getFingerprint();
+        Assert.assertEquals(TopologyConfigChange.STRUCTURE, current.diff(running));
+        Assert.assertEquals(TopologyConfigChange.STRUCTURE, current.diff(null));
+    }
+
+    @Test
+    public void test03_renderReplacesPlaceholdersOnce() {
+        TopologyConfig config = HyperIoTTopologyConfigBuilder.renderTopologyConfig(
+                createModel("rule %topology-name%", "{\"name\":\"second\"}"));
+        Assert.assertEquals("topology-1", config.name);
+        Assert.assertEquals("packet.10='{\"name\":\"first\"}'\npacket.20='{\"name\":\"second\"}'\n" +
+                "drools.event=rule %topology-name%\nspout.pending=1000\n", config.properties);
+        Assert.assertEquals("name: \"topology-1\"\nworkers: 2\npending: 1000\n  - id: \"10\"\n  - id: \"20\"\n", config.yaml);
+        Assert.assertEquals(createModel("rule %topology-name%", "{\"name\":\"second\"}").getFingerprint(), config.fingerprint);
+    }
+
+    @Test
+    public void test04_unknownPlaceholdersAreKept() {
+        HyperIoTTopologyConfigModel model = createModel("rule 1", "{}");
+        Assert.assertEquals("%unknown% 2 %{other}%", model.render("%unknown% %topology_workers% %{other}%", Collections.emptyMap()));
+    }
+
+    @Test(expected = HyperIoTRuntimeException.class)
+    public void test05_missingSettingFails() {
+        createModel("rule 1", "{}").putSetting("kafka-bootstrap-servers", null);
+    }
+
+    @Test
+    public void test06_savedFingerprintRoundTrip() {
+        TopologyConfigFingerprint fingerprint = createModel("rule 1", "{\"name\":\"second\"}").getFingerprint();
+        TopologyConfigFingerprint saved = TopologyConfigFingerprint.decode(fingerprint.encode());
+        Assert.assertEquals(fingerprint, saved);
+        Assert.assertEquals(fingerprint.hashCode(), saved.hashCode());
+        Assert.assertNull(TopologyConfigFingerprint.decode("not a fingerprint"));
+        Assert.assertNull(TopologyConfigFingerprint.decode(null));
+    }
+}
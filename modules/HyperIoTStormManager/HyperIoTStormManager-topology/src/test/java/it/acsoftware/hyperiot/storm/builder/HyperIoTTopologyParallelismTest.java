@@ -0,0 +1,162 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.builder;
+
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.storm.runtime.spout.HyperIoTStreamingRecordTranslator;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.storm.generated.Bolt;
+import org.apache.storm.generated.ComponentCommon;
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.generated.Grouping;
+import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.utils.TupleUtils;
+import org.apache.storm.utils.Utils;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Tests executors computed for each performance tier and device affinity of fields grouping.
+ * Realtime bolts are declared on a topology builder and their parallelism hints and groupings are checked,
+ * spout tuples are routed with the same task selection used by Storm fields grouping.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTTopologyParallelismTest {
+
+    private static final int DEVICES = 16;
+    private static final long PROJECT_ID = 1;
+    private static final String KAFKA_SPOUT_ID = StormConstants.KAFKA_SPOUT_ID + PROJECT_ID;
+    private static final String DESERIALIZATION_OK_STREAM_ID = "deserializationOk";
+
+    @Test
+    public void test00_tiersScaleParallelism() {
+        int previous = 0;
+        for (HyperIoTTopologyPerformanceConfig tier : HyperIoTTopologyPerformanceConfig.values()) {
+            HyperIoTTopologyParallelism parallelism = new HyperIoTTopologyParallelism(tier, 100, 400);
+            Assert.assertEquals(tier.getMaxParallelism(), parallelism.getDeserializationParallelism());
+            Assert.assertEquals(tier.getMaxParallelism(), parallelism.getAvroProcessingParallelism());
+            Assert.assertTrue(parallelism.getDeserializationParallelism() >= previous);
+            previous = parallelism.getDeserializationParallelism();
+        }
+        Assert.assertTrue(HyperIoTTopologyPerformanceConfig.BEST_PERFORMANCE.getMaxParallelism() >
+                HyperIoTTopologyPerformanceConfig.LOW_PERFORMANCE.getMaxParallelism());
+    }
+
+    @Test
+    public void test01_parallelismBoundedByDevicesAndPackets() {
+        HyperIoTTopologyParallelism parallelism = new HyperIoTTopologyParallelism(
+                HyperIoTTopologyPerformanceConfig.BEST_PERFORMANCE, 3, 5);
+        Assert.assertEquals(3, parallelism.getKafkaSpoutParallelism());
+        Assert.assertEquals(3, parallelism.getEnrichmentParallelism());
+        Assert.assertEquals(3, parallelism.getEventsProcessingParallelism());
+        Assert.assertEquals(5, parallelism.getSelectionBoltParallelism());
+        Assert.assertEquals(2, parallelism.getHdfsHourParallelism());
+        Assert.assertEquals(1, parallelism.getHdfsYearParallelism());
+        Assert.assertEquals(1, parallelism.getErrorParallelism());
+        HyperIoTTopologyParallelism empty = new HyperIoTTopologyParallelism(
+                HyperIoTTopologyPerformanceConfig.BEST_PERFORMANCE, 0, 0);
+        Assert.assertEquals(1, empty.getDeserializationParallelism());
+        Assert.assertEquals(1, empty.getAvroProcessingParallelism());
+        Assert.assertEquals(1, empty.getHdfsDayParallelism());
+        Assert.assertEquals(1, empty.getErrorParallelism());
+    }
+
+    @Test
+    public void test02_realtimeBoltsGroupedByDevice() {
+        HyperIoTTopologyParallelism parallelism = new HyperIoTTopologyParallelism(
+                HyperIoTTopologyPerformanceConfig.BEST_PERFORMANCE, DEVICES, 2 * DEVICES);
+        Map<String, Bolt> bolts = buildRealtimeBolts(parallelism);
+        ComponentCommon deserialization = bolts.get(StormConstants.DESERIALIZATION_BOLT_ID).get_common();
+        Assert.assertEquals(parallelism.getDeserializationParallelism(), deserialization.get_parallelism_hint());
+        assertDeviceGrouping(deserialization, new GlobalStreamId(KAFKA_SPOUT_ID, Utils.DEFAULT_STREAM_ID));
+        ComponentCommon enrichment = bolts.get(StormConstants.ENRICHMENT_BOLT_ID).get_common();
+        Assert.assertEquals(parallelism.getEnrichmentParallelism(), enrichment.get_parallelism_hint());
+        assertDeviceGrouping(enrichment, new GlobalStreamId(StormConstants.DESERIALIZATION_BOLT_ID, DESERIALIZATION_OK_STREAM_ID));
+        ComponentCommon event = bolts.get(StormConstants.EVENT_BOLT_ID).get_common();
+        Assert.assertEquals(parallelism.getEventsProcessingParallelism(), event.get_parallelism_hint());
+        assertDeviceGrouping(event, new GlobalStreamId(StormConstants.DESERIALIZATION_BOLT_ID, DESERIALIZATION_OK_STREAM_ID));
+        Assert.assertEquals(parallelism.getSelectionBoltParallelism(),
+                bolts.get(StormConstants.SELECTION_BOLT_ID).get_common().get_parallelism_hint());
+    }
+
+    @Test
+    public void test03_packetsOfADeviceGoToOneTask() {
+        Map<String, Bolt> bolts = buildRealtimeBolts(new HyperIoTTopologyParallelism(
+                HyperIoTTopologyPerformanceConfig.BEST_PERFORMANCE, DEVICES, 2 * DEVICES));
+        //tasks are chosen on the device id only if every hop up to enrichment and events is a device fields grouping
+        ComponentCommon deserialization = bolts.get(StormConstants.DESERIALIZATION_BOLT_ID).get_common();
+        assertDeviceGrouping(deserialization, new GlobalStreamId(KAFKA_SPOUT_ID, Utils.DEFAULT_STREAM_ID));
+        assertDeviceGrouping(bolts.get(StormConstants.ENRICHMENT_BOLT_ID).get_common(),
+                new GlobalStreamId(StormConstants.DESERIALIZATION_BOLT_ID, DESERIALIZATION_OK_STREAM_ID));
+        assertDeviceGrouping(bolts.get(StormConstants.EVENT_BOLT_ID).get_common(),
+                new GlobalStreamId(StormConstants.DESERIALIZATION_BOLT_ID, DESERIALIZATION_OK_STREAM_ID));
+        int tasks = deserialization.get_parallelism_hint();
+        Assert.assertTrue(tasks > 1);
+        HyperIoTStreamingRecordTranslator translator = new HyperIoTStreamingRecordTranslator();
+        Fields fields = translator.getFieldsFor(Utils.DEFAULT_STREAM_ID);
+        int deviceIdIndex = fields.fieldIndex(StormConstants.HDEVICE_ID_FIELD);
+        //packets of the same device have different kafka keys, but the same device id
+        Set<Integer> deviceTasks = new HashSet<>();
+        for (long packetId = 1; packetId <= 2 * DEVICES; packetId++) {
+            List<Object> values = translator.apply(createRecord(8, packetId));
+            Assert.assertEquals(fields.size(), values.size());
+            Assert.assertEquals("8", values.get(deviceIdIndex));
+            deviceTasks.add(TupleUtils.chooseTaskIndex(Collections.singletonList(values.get(deviceIdIndex)), tasks));
+        }
+        Assert.assertEquals(1, deviceTasks.size());
+        //distinct devices are spread over every task
+        Set<Integer> usedTasks = new HashSet<>();
+        for (long deviceId = 1; deviceId <= DEVICES; deviceId++) {
+            List<Object> values = translator.apply(createRecord(deviceId, 1));
+            usedTasks.add(TupleUtils.chooseTaskIndex(Collections.singletonList(values.get(deviceIdIndex)), tasks));
+        }
+        Assert.assertEquals(tasks, usedTasks.size());
+        Assert.assertEquals("", HyperIoTStreamingRecordTranslator.getDeviceId(
+                new ConsumerRecord<>("streaming.1", 0, 0, null, new byte[0])));
+    }
+
+    private Map<String, Bolt> buildRealtimeBolts(HyperIoTTopologyParallelism parallelism) {
+        HProject project = new HProject();
+        project.setId(PROJECT_ID);
+        Map<String, Object> props = new HashMap<>();
+        props.put(StormConstants.KAFKA_BOOTSTRAP_SERVERS, "localhost:9092");
+        TopologyBuilder builder = new TopologyBuilder();
+        HyperIoTTopologyBuilder.buildRealtimeBoltsLayer(props, project, parallelism, builder, String.valueOf(PROJECT_ID), KAFKA_SPOUT_ID);
+        return builder.createTopology().get_bolts();
+    }
+
+    private void assertDeviceGrouping(ComponentCommon component, GlobalStreamId input) {
+        Grouping grouping = component.get_inputs().get(input);
+        Assert.assertNotNull(grouping);
+        Assert.assertTrue(grouping.is_set_fields());
+        Assert.assertEquals(Collections.singletonList(StormConstants.HDEVICE_ID_FIELD), grouping.get_fields());
+    }
+
+    private ConsumerRecord<byte[], byte[]> createRecord(long deviceId, long packetId) {
+        byte[] key = (deviceId + "." + packetId).getBytes(StandardCharsets.UTF_8);
+        return new ConsumerRecord<>("streaming." + PROJECT_ID, 0, packetId, key, new byte[0]);
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketField;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFieldMultiplicity;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFieldType;
+import it.acsoftware.hyperiot.hpacket.model.HPacketTrafficPlan;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTHdfsLayout;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperIoTPartitionGranularity;
+import it.acsoftware.hyperiot.storm.hdfs.partitioner.HyperiotPartitioner;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Tests HDFS layout on a MiniDFSCluster.
+ * Packets are written as avro files to the directories computed by HyperiotPartitioner,
+ * with one file per directory as HDFS bolts do until rotation.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHdfsLayoutTest {
+
+    private static final long PACKET_ID = 7;
+    private static final int PACKETS = 2000;
+    private static final Instant START = Instant.parse("2023-03-30T00:00:00Z");
+    private static final long PACKET_INTERVAL_MS = 90 * 1000;
+    private static final Schema SCHEMA = SchemaBuilder.record("Packet").fields()
+            .requiredLong("timestamp").requiredDouble("temperature").requiredBytes("payload").endRecord();
+    /**
+     * Granularities an intensive packet was written to before the single copy layout
+     */
+    private static final HyperIoTPartitionGranularity[] LEGACY_INTENSIVE_GRANULARITIES = {
+            HyperIoTPartitionGranularity.YEAR, HyperIoTPartitionGranularity.HOUR,
+            HyperIoTPartitionGranularity.QUARTER, HyperIoTPartitionGranularity.SEMESTER};
+
+    private static MiniDFSCluster cluster;
+    private static FileSystem fileSystem;
+    private static File baseDir;
+
+    @BeforeClass
+    public static void startCluster() throws IOException {
+        baseDir = Files.createTempDirectory("hyperiot-minidfs").toFile();
+        Configuration conf = new Configuration();
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+        cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+        fileSystem = cluster.getFileSystem();
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        if (cluster != null)
+            cluster.shutdown(true);
+    }
+
+    @Test
+    public void test00_singleCopyReducesBytesWrittenPerPacket() throws IOException {
+        Path legacyRoot = new Path("/legacy-size");
+        Path singleCopyRoot = new Path("/single-copy-size");
+        writePackets(legacyRoot, LEGACY_INTENSIVE_GRANULARITIES);
+        writePackets(singleCopyRoot, HyperIoTHdfsLayout.getCanonicalGranularity(HPacketTrafficPlan.INTENSIVE));
+        long legacyBytes = fileSystem.getContentSummary(legacyRoot).getLength();
+        long singleCopyBytes = fileSystem.getContentSummary(singleCopyRoot).getLength();
+        System.out.println(String.format("HDFS bytes per packet: legacy layout %d, single copy layout %d",
+                legacyBytes / PACKETS, singleCopyBytes / PACKETS));
+        Assert.assertTrue(legacyBytes > singleCopyBytes * 3);
+        //year directory still holds every packet
+        Assert.assertEquals(PACKETS, countRecords(new Path(singleCopyRoot, PACKET_ID + "/2023/")));
+    }
+
+    @Test
+    public void test01_coarserGranularitiesReadFromSingleCopy() throws IOException {
+        Path root = new Path("/single-copy-views");
+        writePackets(root, HyperIoTHdfsLayout.getCanonicalGranularity(HPacketTrafficPlan.INTENSIVE));
+        ZonedDateTime march = ZonedDateTime.parse("2023-03-31T12:00:00Z");
+        ZonedDateTime april = ZonedDateTime.parse("2023-04-01T12:00:00Z");
+        Assert.assertEquals(PACKETS, countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.YEAR, march));
+        Assert.assertEquals(PACKETS, countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.SEMESTER, march));
+        Assert.assertEquals(expectedPackets(HyperIoTPartitionGranularity.QUARTER, march),
+                countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.QUARTER, march));
+        Assert.assertEquals(expectedPackets(HyperIoTPartitionGranularity.QUARTER, april),
+                countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.QUARTER, april));
+        Assert.assertEquals(expectedPackets(HyperIoTPartitionGranularity.MONTH, april),
+                countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.MONTH, april));
+        Assert.assertEquals(expectedPackets(HyperIoTPartitionGranularity.DAY, march),
+                countRecords(root, HPacketTrafficPlan.INTENSIVE, HyperIoTPartitionGranularity.DAY, march));
+        //low traffic packets have year directories only, finer periods are read from them
+        Assert.assertEquals(Collections.singletonList("7/2023/"), HyperIoTHdfsLayout.getDirectories(
+                PACKET_ID, HPacketTrafficPlan.LOW, HyperIoTPartitionGranularity.DAY, march));
+        Assert.assertEquals(Arrays.asList("7/2023/1/", "7/2023/2/", "7/2023/3/"), HyperIoTHdfsLayout.getDirectories(
+                PACKET_ID, HPacketTrafficPlan.MEDIUM, HyperIoTPartitionGranularity.QUARTER, march));
+        Assert.assertEquals(Collections.singletonList("7/2023/3/"), HyperIoTHdfsLayout.getDirectories(
+                PACKET_ID, HPacketTrafficPlan.MEDIUM, HyperIoTPartitionGranularity.HOUR, march));
+    }
+
+    @Test
+    public void test02_compactionRollsUpFiles() throws IOException {
+        Path directory = new Path("/compaction/7/2023/3/30/");
+        List<GenericRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(createRecord(START.toEpochMilli() + i));
+        for (int file = 0; file < 10; file++)
+            writeFile(new Path(directory, "bolt-hyperiot-day-" + file + ".avro"), records.subList(file * 10, file * 10 + 10));
+        long bytesBefore = fileSystem.getContentSummary(directory).getLength();
+        HyperIoTHdfsCompaction compaction = new HyperIoTHdfsCompaction(fileSystem);
+        Assert.assertEquals(10, compaction.compact(directory));
+        Assert.assertEquals(1, fileSystem.listStatus(directory).length);
+        Assert.assertTrue(fileSystem.listStatus(directory)[0].getPath().getName().startsWith(HyperIoTHdfsCompaction.COMPACTED_FILE_PREFIX));
+        Assert.assertEquals(100, countRecords(directory));
+        Assert.assertTrue(fileSystem.getContentSummary(directory).getLength() < bytesBefore);
+        //a single file is left as it is
+        Assert.assertEquals(0, compaction.compact(directory));
+    }
+
+    @Test
+    public void test03_legacyLayoutMigration() throws Exception {
+        Path root = new Path("/migration");
+        writePackets(root, LEGACY_INTENSIVE_GRANULARITIES);
+        long layoutChangeTime = System.currentTimeMillis() + 1;
+        Thread.sleep(10);
+        //packets written by the new layout after deployment
+        HPacket newPacket = createPacket(Instant.parse("2023-04-02T10:00:00Z").toEpochMilli());
+        String newPath = partitioner(HyperIoTPartitionGranularity.HOUR).getPartitionPath(newPacket);
+        writeFile(new Path(root, newPath + "new.avro"), Collections.singletonList(createRecord(newPacket)));
+        Path packetDirectory = new Path(root, String.valueOf(PACKET_ID));
+        long legacyBytes = fileSystem.getContentSummary(packetDirectory).getLength();
+        HyperIoTHdfsCompaction compaction = new HyperIoTHdfsCompaction(fileSystem);
+        List<Path> duplicates = compaction.migrateLegacyLayout(packetDirectory, layoutChangeTime, true);
+        Assert.assertFalse(duplicates.isEmpty());
+        Assert.assertEquals(legacyBytes, fileSystem.getContentSummary(packetDirectory).getLength());
+        Assert.assertEquals(duplicates, compaction.migrateLegacyLayout(packetDirectory, layoutChangeTime, false));
+        //legacy year files and new files are left, each packet once
+        Assert.assertEquals(PACKETS + 1, countRecords(packetDirectory));
+        Assert.assertEquals(1, countRecords(new Path(root, newPath)));
+        Assert.assertFalse(fileSystem.exists(new Path(packetDirectory, "1")));
+        Assert.assertFalse(fileSystem.exists(new Path(packetDirectory, "2023/3")));
+        Assert.assertTrue(fileSystem.getContentSummary(packetDirectory).getLength() * 3 < legacyBytes);
+    }
+
+    @Test
+    public void test04_compactionSkipsOpenFilesAndCurrentPeriod() throws IOException {
+        Path packetDirectory = new Path("/compaction-closed/" + PACKET_ID);
+        List<GenericRecord> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            records.add(createRecord(START.toEpochMilli() + i));
+        Path passedDay = new Path(packetDirectory, "2023/3/30/");
+        Path currentDay = new Path(packetDirectory, "2023/3/31/");
+        for (int file = 0; file < 2; file++) {
+            writeFile(new Path(passedDay, "bolt-hyperiot-day-" + file + ".avro"), records);
+            writeFile(new Path(currentDay, "bolt-hyperiot-day-" + file + ".avro"), records);
+        }
+        //file still written by an HDFS bolt and file not yet renamed to its final name
+        Path openFile = new Path(passedDay, "bolt-hyperiot-day-open.avro");
+        DataFileWriter<GenericRecord> openWriter = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(SCHEMA));
+        FSDataOutputStream openStream = fileSystem.create(openFile, false);
+        openWriter.create(SCHEMA, openStream);
+        for (GenericRecord record : records)
+            openWriter.append(record);
+        openWriter.flush();
+        openStream.hflush();
+        writeFile(new Path(passedDay, "bolt-hyperiot-day-temporary.avro.tmp"), records);
+        try {
+            HyperIoTHdfsCompaction compaction = new HyperIoTHdfsCompaction(fileSystem);
+            Instant now = Instant.parse("2023-03-31T12:00:00Z");
+            Assert.assertEquals(2, compaction.compactClosedBuckets(packetDirectory, HyperIoTPartitionGranularity.DAY,
+                    ZoneOffset.UTC, now));
+            Assert.assertEquals(3, fileSystem.listStatus(passedDay).length);
+            Assert.assertTrue(fileSystem.exists(openFile));
+            Assert.assertEquals(2, fileSystem.listStatus(currentDay).length);
+            //migration does not delete open files either
+            Assert.assertFalse(compaction.migrateLegacyLayout(packetDirectory, Long.MAX_VALUE, true).contains(openFile));
+        } finally {
+            openWriter.close();
+        }
+        //year directory is read recursively: 6 files of 10 packets before compaction, none lost or duplicated
+        Assert.assertEquals(60, countRecords(new Path(packetDirectory, "2023/")));
+    }
+
+    /**
+     * Writes test packets, each one to every granularity, with one avro file per directory
+     */
+    private void writePackets(Path root, HyperIoTPartitionGranularity... granularities) throws IOException {
+        Map<String, List<GenericRecord>> files = new LinkedHashMap<>();
+        for (HyperIoTPartitionGranularity granularity : granularities) {
+            HyperiotPartitioner partitioner = partitioner(granularity);
+            for (int i = 0; i < PACKETS; i++) {
+                HPacket packet = createPacket(START.toEpochMilli() + i * PACKET_INTERVAL_MS);
+                files.computeIfAbsent(granularity.getDepth() + ":" + partitioner.getPartitionPath(packet), k -> new ArrayList<>())
+                        .add(createRecord(packet));
+            }
+        }
+        for (Map.Entry<String, List<GenericRecord>> file : files.entrySet()) {
+            String[] granularityAndPath = file.getKey().split(":");
+            writeFile(new Path(root, granularityAndPath[1] + "bolt-hyperiot-" + granularityAndPath[0] + ".avro"), file.getValue());
+        }
+    }
+
+    private void writeFile(Path path, List<GenericRecord> records) throws IOException {
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(SCHEMA))) {
+            writer.create(SCHEMA, fileSystem.create(path, false));
+            for (GenericRecord record : records)
+                writer.append(record);
+        }
+    }
+
+    private long countRecords(Path root, HPacketTrafficPlan plan, HyperIoTPartitionGranularity granularity, ZonedDateTime dateTime) throws IOException {
+        long count = 0;
+        for (String directory : HyperIoTHdfsLayout.getDirectories(PACKET_ID, plan, granularity, dateTime)) {
+            if (fileSystem.exists(new Path(root, directory)))
+                count += countRecords(new Path(root, directory));
+        }
+        return count;
+    }
+
+    private long countRecords(Path directory) throws IOException {
+        long count = 0;
+        RemoteIterator<LocatedFileStatus> files = fileSystem.listFiles(directory, true);
+        while (files.hasNext()) {
+            try (InputStream in = fileSystem.open(files.next().getPath());
+                 DataFileStream<GenericRecord> reader = new DataFileStream<>(in, new GenericDatumReader<>())) {
+                while (reader.hasNext()) {
+                    reader.next();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long expectedPackets(HyperIoTPartitionGranularity granularity, ZonedDateTime dateTime) {
+        long count = 0;
+        HyperiotPartitioner partitioner = partitioner(granularity);
+        String expected = partitioner.getPartitionPath(createPacket(dateTime.toInstant().toEpochMilli()));
+        for (int i = 0; i < PACKETS; i++) {
+            if (partitioner.getPartitionPath(createPacket(START.toEpochMilli() + i * PACKET_INTERVAL_MS)).equals(expected))
+                count++;
+        }
+        Assert.assertTrue(count > 0);
+        return count;
+    }
+
+    private HyperiotPartitioner partitioner(HyperIoTPartitionGranularity granularity) {
+        return new HyperiotPartitioner().withGranularity(granularity).withZoneId("UTC")
+                .withClock(Clock.fixed(START, ZoneOffset.UTC));
+    }
+
+    private GenericRecord createRecord(HPacket packet) {
+        return createRecord((long) packet.getFieldValue("timestamp"));
+    }
+
+    private GenericRecord createRecord(long timestamp) {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("timestamp", timestamp);
+        record.put("temperature", 20 + (timestamp % 100) / 10d);
+        record.put("payload", ByteBuffer.wrap(("{\"temperature\":" + (timestamp % 100) + ",\"humidity\":45}").getBytes()));
+        return record;
+    }
+
+    private HPacket createPacket(long timestamp) {
+        HPacket packet = new HPacket();
+        packet.setId(PACKET_ID);
+        packet.setTimestampField("timestamp");
+        HPacketField timestampField = new HPacketField();
+        timestampField.setName("timestamp");
+        timestampField.setType(HPacketFieldType.TIMESTAMP);
+        timestampField.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        timestampField.setValue(timestamp);
+        timestampField.setPacket(packet);
+        packet.setFields(Collections.singleton(timestampField));
+        return packet;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.hdfs.partitioner;
+
+import it.acsoftware.hyperiot.hpacket.model.HPacket;
+import it.acsoftware.hyperiot.hpacket.model.HPacketField;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFieldMultiplicity;
+import it.acsoftware.hyperiot.hpacket.model.HPacketFieldType;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.storm.tuple.Tuple;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+
+/**
+ * Tests HDFS directories computed from packet timestamps.
+ * Processing time is fixed, so replayed packets are always older than it.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperiotPartitionerTest {
+
+    private static final long PACKET_ID = 7;
+    private static final Clock NOW = Clock.fixed(Instant.parse("2023-05-07T10:15:00Z"), ZoneOffset.UTC);
+
+    @Test
+    public void test00_granularitiesLayout() {
+        HPacket packet = createPacket(Instant.parse("2021-08-14T09:30:00Z").toEpochMilli());
+        Assert.assertEquals("7/2021/8/14/9/", partitioner("hour").getPartitionPath(packet));
+        Assert.assertEquals("7/2021/8/14/", partitioner("day").getPartitionPath(packet));
+        Assert.assertEquals("7/2021/8/", partitioner("month").getPartitionPath(packet));
+        Assert.assertEquals("7/3/2021/", partitioner("quarter").getPartitionPath(packet));
+        Assert.assertEquals("7/2/2021/", partitioner("semester").getPartitionPath(packet));
+        Assert.assertEquals("7/2021/", partitioner("year").getPartitionPath(packet));
+        HPacket april = createPacket(Instant.parse("2021-04-01T00:00:00Z").toEpochMilli());
+        Assert.assertEquals("7/2/2021/", partitioner("quarter").getPartitionPath(april));
+        Assert.assertEquals("7/1/2021/", partitioner("semester").getPartitionPath(april));
+    }
+
+    @Test
+    public void test01_replayedPacketsLandInTheirDirectories() {
+        HyperiotPartitioner hourPartitioner = partitioner("hour");
+        HyperiotPartitioner dayPartitioner = partitioner("day");
+        String[][] replayed = {
+                {"2022-12-31T23:59:59.999Z", "7/2022/12/31/23/", "7/2022/12/31/"},
+                {"2023-01-01T00:00:00Z", "7/2023/1/1/0/", "7/2023/1/1/"},
+                {"2022-12-31T23:00:00Z", "7/2022/12/31/23/", "7/2022/12/31/"},
+                {"2023-01-01T00:59:59.999Z", "7/2023/1/1/0/", "7/2023/1/1/"},
+                {"2023-01-01T01:00:00Z", "7/2023/1/1/1/", "7/2023/1/1/"},
+                {"2020-02-29T12:00:00Z", "7/2020/2/29/12/", "7/2020/2/29/"}
+        };
+        for (String[] packet : replayed) {
+            Tuple tuple = createTuple(createPacket(Instant.parse(packet[0]).toEpochMilli()));
+            Assert.assertEquals(packet[0], packet[1], hourPartitioner.getPartitionPath(tuple));
+            Assert.assertEquals(packet[0], packet[2], dayPartitioner.getPartitionPath(tuple));
+        }
+    }
+
+    @Test
+    public void test02_latePacketsSavedToLateDirectory() {
+        HyperiotPartitioner lateDirectoryPartitioner = partitioner("day")
+                .withLateDataPolicy(HyperIoTLateDataPolicy.LATE_DIRECTORY, 3600);
+        HPacket recent = createPacket(NOW.millis() - 3600 * 1000);
+        HPacket late = createPacket(NOW.millis() - 3600 * 1000 - 1);
+        HPacket historical = createPacket(Instant.parse("2022-12-31T23:00:00Z").toEpochMilli());
+        Assert.assertEquals("7/2023/5/7/", lateDirectoryPartitioner.getPartitionPath(recent));
+        Assert.assertEquals("7/late/2023/5/7/", lateDirectoryPartitioner.getPartitionPath(late));
+        Assert.assertEquals("7/late/2022/12/31/", lateDirectoryPartitioner.getPartitionPath(historical));
+        Assert.assertEquals("7/2022/12/31/", partitioner("day").getPartitionPath(historical));
+    }
+
+    @Test
+    public void test03_processingTimeIgnoresTimestamp() {
+        HyperiotPartitioner processingTimePartitioner = partitioner("hour")
+                .withLateDataPolicy(HyperIoTLateDataPolicy.PROCESSING_TIME, 0);
+        HPacket historical = createPacket(Instant.parse("2022-12-31T23:00:00Z").toEpochMilli());
+        Assert.assertEquals("7/2023/5/7/10/", processingTimePartitioner.getPartitionPath(historical));
+    }
+
+    @Test
+    public void test04_missingTimestampUsesProcessingTime() {
+        HPacket packet = createPacket(0);
+        packet.setFields(Collections.emptySet());
+        Assert.assertEquals("7/2023/5/7/", partitioner("day").getPartitionPath(packet));
+    }
+
+    @Test
+    public void test05_directoriesFollowTimeZone() {
+        HPacket packet = createPacket(Instant.parse("2023-03-31T22:30:00Z").toEpochMilli());
+        HyperiotPartitioner rome = partitioner("quarter").withZoneId("Europe/Rome");
+        Assert.assertEquals("7/2/2023/", rome.getPartitionPath(packet));
+        Assert.assertEquals("7/1/2023/", partitioner("quarter").getPartitionPath(packet));
+        Assert.assertEquals("7/2023/4/1/0/", partitioner("hour").withZoneId("Europe/Rome").getPartitionPath(packet));
+    }
+
+    @Test
+    public void test06_unknownDepthRejected() {
+        try {
+            new HyperiotPartitioner().withDepth("week");
+            Assert.fail("Unknown depth must be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void test07_partitionerSerializedToWorkers() throws Exception {
+        HyperiotPartitioner partitioner = partitioner("day").withLateDataPolicy(HyperIoTLateDataPolicy.LATE_DIRECTORY, 60);
+        HPacket historical = createPacket(Instant.parse("2022-12-31T23:00:00Z").toEpochMilli());
+        Assert.assertEquals("7/late/2022/12/31/", partitioner.getPartitionPath(historical));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(partitioner);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            HyperiotPartitioner deserialized = (HyperiotPartitioner) in.readObject();
+            Assert.assertEquals("7/late/2022/12/31/", deserialized.getPartitionPath(historical));
+        }
+    }
+
+    private HyperiotPartitioner partitioner(String depth) {
+        return new HyperiotPartitioner().withDepth(depth).withZoneId("UTC").withClock(NOW);
+    }
+
+    private Tuple createTuple(HPacket packet) {
+        Tuple tuple = EasyMock.createMock(Tuple.class);
+        EasyMock.expect(tuple.getValueByField(StormConstants.PACKET_FIELD)).andReturn(packet).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    private HPacket createPacket(long timestamp) {
+        HPacket packet = new HPacket();
+        packet.setId(PACKET_ID);
+        packet.setTimestampField("timestamp");
+        HPacketField timestampField = new HPacketField();
+        timestampField.setName("timestamp");
+        timestampField.setType(HPacketFieldType.TIMESTAMP);
+        timestampField.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        timestampField.setValue(timestamp);
+        timestampField.setPacket(packet);
+        packet.setFields(Collections.singleton(timestampField));
+        return packet;
+    }
+
+}
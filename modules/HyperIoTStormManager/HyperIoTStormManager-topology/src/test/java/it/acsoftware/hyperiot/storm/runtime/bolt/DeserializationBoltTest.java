@@ -0,0 +1,88 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.runtime.bolt;
+
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.storm.topology.BasicOutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Tests tuples emitted by DeserializationBolt for packets whose definition is missing or cannot be compiled.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DeserializationBoltTest {
+
+    private static final String PROJECT_ID = "1";
+    private static final String ERROR_STREAM_ID = String.format(StormConstants.HPROJECT_ERROR_STREAM_ID, PROJECT_ID);
+    private static final String DESERIALIZATION_OK_STREAM_ID = "deserializationOk";
+
+    @Test
+    public void test00_brokenPacketDefinitionGoesToErrorStream() {
+        List<String> streams = new ArrayList<>();
+        DeserializationBolt bolt = prepareBolt(Collections.singletonMap("packet.5", "{\"schema\":"));
+        bolt.execute(createTuple("1.5", "{\"temperature\":22.5}"), createCollector(streams));
+        Assert.assertTrue(streams.contains(ERROR_STREAM_ID));
+        Assert.assertFalse(streams.contains(DESERIALIZATION_OK_STREAM_ID));
+    }
+
+    @Test
+    public void test01_unknownPacketIsDropped() {
+        List<String> streams = new ArrayList<>();
+        DeserializationBolt bolt = prepareBolt(Collections.singletonMap("packet.5", "{\"schema\":"));
+        bolt.execute(createTuple("1.6", "{\"temperature\":22.5}"), createCollector(streams));
+        Assert.assertTrue(streams.isEmpty());
+    }
+
+    private DeserializationBolt prepareBolt(Map<String, Object> packetDefinitions) {
+        DeserializationBolt bolt = new DeserializationBolt().withHProject(PROJECT_ID);
+        bolt.prepare(new HashMap<>(packetDefinitions), null);
+        return bolt;
+    }
+
+    private Tuple createTuple(String kafkaKey, String payload) {
+        Tuple tuple = EasyMock.createNiceMock(Tuple.class);
+        EasyMock.expect(tuple.getSourceComponent()).andReturn("kafka-spout").anyTimes();
+        EasyMock.expect(tuple.getSourceStreamId()).andReturn("default").anyTimes();
+        EasyMock.expect(tuple.getValue(0)).andReturn("streaming." + PROJECT_ID).anyTimes();
+        EasyMock.expect(tuple.getBinary(3)).andReturn(kafkaKey.getBytes(StandardCharsets.UTF_8)).anyTimes();
+        EasyMock.expect(tuple.getBinary(4)).andReturn(Base64.getEncoder()
+                .encode(payload.getBytes(StandardCharsets.UTF_8))).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BasicOutputCollector createCollector(List<String> streams) {
+        BasicOutputCollector collector = EasyMock.createNiceMock(BasicOutputCollector.class);
+        EasyMock.expect(collector.emit(EasyMock.anyString(), EasyMock.anyObject(List.class))).andAnswer(() -> {
+            streams.add((String) EasyMock.getCurrentArguments()[0]);
+            return Collections.emptyList();
+        }).anyTimes();
+        EasyMock.replay(collector);
+        return collector;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.runtime.bolt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.acsoftware.hyperiot.hdevice.model.HDevice;
+import it.acsoftware.hyperiot.hpacket.model.*;
+import it.acsoftware.hyperiot.hproject.model.HProject;
+import it.acsoftware.hyperiot.rule.service.RuleEngine;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.Utils;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.kie.api.runtime.Globals;
+import org.kie.api.runtime.KieSession;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Tests tuples emitted by SelectionBolt, EnrichmentBolt and EventBolt with and without reliable mode.
+ * Output collector is mocked and records emitted tuples with their anchor, acked and failed inputs.
+ * Rule engine is mocked, so rules are not compiled.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTReliableModeBoltTest {
+
+    private static final String PROJECT_ID = "1";
+    private static final long TIMESTAMP = 1683454500000L;
+
+    @Test
+    public void test00_selectionBoltAnchorsInReliableMode() {
+        RecordingCollector recorder = new RecordingCollector();
+        SelectionBolt bolt = new SelectionBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        bolt.prepare(new HashMap<>(), null, recorder.collector);
+        Tuple input = createTuple(StormConstants.PACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertTrue(recorder.streams().containsAll(Arrays.asList(StormConstants.DAY_STREAM_ID,
+                String.format(StormConstants.AVRO_HPROJECT_STREAM_ID_PREFIX, PROJECT_ID),
+                String.format(StormConstants.TIMELINE_HPROJECT_STREAM_ID_PREFIX, PROJECT_ID))));
+        //high traffic packets are written once to HDFS, to day directories
+        Assert.assertFalse(recorder.streams().contains(StormConstants.YEAR_STREAM_ID));
+        recorder.assertAllAnchoredTo(input);
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test01_selectionBoltDoesNotAnchorByDefault() {
+        RecordingCollector recorder = new RecordingCollector();
+        SelectionBolt bolt = new SelectionBolt().withHProject(PROJECT_ID);
+        bolt.prepare(new HashMap<>(), null, recorder.collector);
+        Tuple input = createTuple(StormConstants.PACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertFalse(recorder.emitted.isEmpty());
+        recorder.assertNoneAnchored();
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test02_selectionBoltAcksPacketsWhichCannotBeProcessed() {
+        RecordingCollector recorder = new RecordingCollector();
+        SelectionBolt bolt = new SelectionBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        bolt.prepare(new HashMap<>(), null, recorder.collector);
+        //packet without timestamp cannot be written to HBase
+        Tuple input = createTuple(StormConstants.PACKET_FIELD, createPacket(null));
+        bolt.execute(input);
+        Assert.assertTrue(recorder.streams().contains(String.format(StormConstants.HDFS_ERROR_STREAM_ID_PREFIX, PROJECT_ID)));
+        recorder.assertAllAnchoredTo(input);
+        //replaying it would give the same error
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test03_enrichmentBoltAnchorsInReliableMode() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EnrichmentBolt bolt = new EnrichmentBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        prepare(bolt, recorder, createRuleEngine(false, null));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertEquals(Collections.singletonList(Utils.DEFAULT_STREAM_ID), recorder.streams());
+        Assert.assertEquals("1.1", recorder.emitted.get(0).values.get(0));
+        recorder.assertAllAnchoredTo(input);
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test04_enrichmentBoltDoesNotAnchorByDefault() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EnrichmentBolt bolt = new EnrichmentBolt().withHProject(PROJECT_ID);
+        prepare(bolt, recorder, createRuleEngine(false, null));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertEquals(Collections.singletonList(Utils.DEFAULT_STREAM_ID), recorder.streams());
+        recorder.assertNoneAnchored();
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test05_enrichmentBoltAcksRuleEngineErrors() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EnrichmentBolt bolt = new EnrichmentBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        prepare(bolt, recorder, createRuleEngine(true, null));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        //errors are written to the error table and never reach SelectionBolt
+        Assert.assertTrue(recorder.streams().contains(String.format(StormConstants.HPROJECT_ERROR_STREAM_ID, PROJECT_ID)));
+        Assert.assertFalse(recorder.streams().contains(Utils.DEFAULT_STREAM_ID));
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test06_eventBoltAnchorsInReliableMode() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EventBolt bolt = new EventBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        prepare(bolt, recorder, createRuleEngine(false, createEventAction()));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertTrue(recorder.streams().contains(Utils.DEFAULT_STREAM_ID));
+        recorder.assertAllAnchoredTo(input);
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test07_eventBoltDoesNotAnchorByDefault() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EventBolt bolt = new EventBolt().withHProject(PROJECT_ID);
+        prepare(bolt, recorder, createRuleEngine(false, createEventAction()));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertTrue(recorder.streams().contains(Utils.DEFAULT_STREAM_ID));
+        recorder.assertNoneAnchored();
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test08_eventBoltAcksRuleEngineErrors() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EventBolt bolt = new EventBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        prepare(bolt, recorder, createRuleEngine(true, createEventAction()));
+        Tuple input = createTuple(StormConstants.HPACKET_FIELD, createPacket(TIMESTAMP));
+        bolt.execute(input);
+        Assert.assertTrue(recorder.streams().contains(String.format(StormConstants.HPROJECT_ERROR_STREAM_ID, PROJECT_ID)));
+        Assert.assertFalse(recorder.streams().contains(Utils.DEFAULT_STREAM_ID));
+        recorder.assertAcked(input);
+    }
+
+    @Test
+    public void test09_eventBoltDoesNotAnchorAsyncActions() throws Exception {
+        RecordingCollector recorder = new RecordingCollector();
+        EventBolt bolt = new EventBolt().withHProject(PROJECT_ID).withReliableMode(true);
+        prepare(bolt, recorder, createRuleEngine(false, createEventAction()));
+        //actions fired by the rule engine timer do not come from an input tuple
+        bolt.processData(createPacket(TIMESTAMP));
+        Assert.assertTrue(recorder.streams().contains(Utils.DEFAULT_STREAM_ID));
+        recorder.assertNoneAnchored();
+        Assert.assertTrue(recorder.acked.isEmpty());
+        Assert.assertTrue(recorder.failed.isEmpty());
+    }
+
+    /**
+     * Sets the fields initialized by prepare, which would compile rules and read rule states from HBase
+     */
+    private void prepare(Object bolt, RecordingCollector recorder, RuleEngine ruleEngine) throws Exception {
+        setField(bolt, "collector", recorder.collector);
+        setField(bolt, "ruleEngine", ruleEngine);
+        setField(bolt, "objectMapper", new ObjectMapper());
+    }
+
+    private void setField(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * @param failing if true, check throws an exception
+     * @param action  base64 json action returned by the session after each check, null if session is empty
+     */
+    private RuleEngine createRuleEngine(boolean failing, String action) {
+        KieSession session = null;
+        if (action != null) {
+            Globals globals = EasyMock.createNiceMock(Globals.class);
+            EasyMock.expect(globals.get("actions")).andAnswer(() -> new ArrayList<>(Collections.singletonList(action))).anyTimes();
+            EasyMock.replay(globals);
+            session = EasyMock.createNiceMock(KieSession.class);
+            EasyMock.expect(session.getGlobals()).andReturn(globals).anyTimes();
+            EasyMock.replay(session);
+        }
+        RuleEngine ruleEngine = EasyMock.createNiceMock(RuleEngine.class);
+        ruleEngine.check(EasyMock.anyObject(HPacket.class), EasyMock.anyLong());
+        if (failing)
+            EasyMock.expectLastCall().andThrow(new IllegalStateException("rule engine error")).anyTimes();
+        else
+            EasyMock.expectLastCall().anyTimes();
+        EasyMock.expect(ruleEngine.getSession()).andReturn(session).anyTimes();
+        EasyMock.expect(ruleEngine.getPacketsContentFromSession(EasyMock.anyObject())).andReturn("{}").anyTimes();
+        EasyMock.replay(ruleEngine);
+        return ruleEngine;
+    }
+
+    private String createEventAction() {
+        String json = "{\"ruleId\":1,\"ruleName\":\"rule\",\"ruleType\":\"EVENT\",\"packetIds\":[1]," +
+                "\"actionName\":\"it.acsoftware.hyperiot.rule.service.actions.SendMailAction\"}";
+        return Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Tuple createTuple(String packetField, HPacket packet) {
+        Tuple tuple = EasyMock.createMock(Tuple.class);
+        EasyMock.expect(tuple.getValueByField(packetField)).andReturn(packet).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    private HPacket createPacket(Long timestamp) {
+        HProject project = new HProject();
+        project.setId(1);
+        project.setName("project");
+        HDevice device = new HDevice();
+        device.setId(1);
+        device.setDeviceName("device");
+        device.setProject(project);
+        HPacket packet = new HPacket();
+        packet.setId(1);
+        packet.setName("packet");
+        packet.setFormat(HPacketFormat.JSON);
+        packet.setSerialization(HPacketSerialization.AVRO);
+        packet.setType(HPacketType.INPUT);
+        packet.setVersion("1");
+        packet.setDevice(device);
+        packet.setTrafficPlan(HPacketTrafficPlan.HIGH);
+        packet.setCategoryIds(new long[0]);
+        packet.setTagIds(new long[0]);
+        packet.setTimestampField("timestamp");
+        HPacketField timestampField = new HPacketField();
+        timestampField.setId(1);
+        timestampField.setName("timestamp");
+        timestampField.setType(HPacketFieldType.TIMESTAMP);
+        timestampField.setMultiplicity(HPacketFieldMultiplicity.SINGLE);
+        timestampField.setCategoryIds(new long[0]);
+        timestampField.setTagIds(new long[0]);
+        timestampField.setValue(timestamp);
+        timestampField.setPacket(packet);
+        packet.setFields(new HashSet<>(Collections.singleton(timestampField)));
+        return packet;
+    }
+
+    /**
+     * Output collector mock which records emitted tuples, acked and failed inputs
+     */
+    private static class RecordingCollector {
+        private final List<Emitted> emitted = new ArrayList<>();
+        private final List<Tuple> acked = new ArrayList<>();
+        private final List<Tuple> failed = new ArrayList<>();
+        private final OutputCollector collector;
+
+        @SuppressWarnings("unchecked")
+        RecordingCollector() {
+            collector = EasyMock.createNiceMock(OutputCollector.class);
+            EasyMock.expect(collector.emit(EasyMock.anyString(), EasyMock.anyObject(Tuple.class), EasyMock.anyObject(List.class))).andAnswer(() -> {
+                Object[] args = EasyMock.getCurrentArguments();
+                emitted.add(new Emitted((String) args[0], (Tuple) args[1], (List<Object>) args[2]));
+                return Collections.emptyList();
+            }).anyTimes();
+            EasyMock.expect(collector.emit(EasyMock.anyString(), EasyMock.anyObject(List.class))).andAnswer(() -> {
+                Object[] args = EasyMock.getCurrentArguments();
+                emitted.add(new Emitted((String) args[0], null, (List<Object>) args[1]));
+                return Collections.emptyList();
+            }).anyTimes();
+            collector.ack(EasyMock.anyObject(Tuple.class));
+            EasyMock.expectLastCall().andAnswer(() -> {
+                acked.add((Tuple) EasyMock.getCurrentArguments()[0]);
+                return null;
+            }).anyTimes();
+            collector.fail(EasyMock.anyObject(Tuple.class));
+            EasyMock.expectLastCall().andAnswer(() -> {
+                failed.add((Tuple) EasyMock.getCurrentArguments()[0]);
+                return null;
+            }).anyTimes();
+            EasyMock.replay(collector);
+        }
+
+        private List<String> streams() {
+            List<String> streams = new ArrayList<>();
+            emitted.forEach(e -> streams.add(e.streamId));
+            return streams;
+        }
+
+        private void assertAllAnchoredTo(Tuple input) {
+            //errors are not replayed, so error streams are never anchored
+            emitted.stream().filter(e -> !isErrorStream(e.streamId))
+                    .forEach(e -> Assert.assertSame("tuple on stream " + e.streamId + " is not anchored", input, e.anchor));
+        }
+
+        private void assertNoneAnchored() {
+            emitted.forEach(e -> Assert.assertNull("tuple on stream " + e.streamId + " is anchored", e.anchor));
+        }
+
+        private void assertAcked(Tuple input) {
+            Assert.assertEquals(Collections.singletonList(input), acked);
+            Assert.assertTrue(failed.isEmpty());
+        }
+
+        private boolean isErrorStream(String streamId) {
+            return streamId.equals(String.format(StormConstants.HPROJECT_ERROR_STREAM_ID, PROJECT_ID));
+        }
+    }
+
+    private static class Emitted {
+        private final String streamId;
+        private final Tuple anchor;
+        private final List<Object> values;
+
+        private Emitted(String streamId, Tuple anchor, List<Object> values) {
+            this.streamId = streamId;
+            this.anchor = anchor;
+            this.values = values;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package it.acsoftware.hyperiot.storm.runtime.bolt;
+
+import it.acsoftware.hyperiot.hproject.model.hbase.timeline.TimelineColumnFamily;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import org.apache.storm.Constants;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.*;
+
+/**
+ * Tests counters aggregated by TimelineAggregationBolt and their flush.
+ * Output collector is mocked and records emitted increments with their anchors and acked inputs.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TimelineAggregationBoltTest {
+
+    private static final String PROJECT_ID = "1";
+    private static final String ROWKEY_BEGINNING = "1_1";
+    //2023-05-07T10:15:00.000Z
+    private static final long TIMESTAMP = 1683454500000L;
+    private static final int STEPS = TimelineColumnFamily.values().length;
+
+    @Test
+    public void test00_countersAreEmittedOnTick() {
+        RecordingCollector recorder = new RecordingCollector();
+        TimelineAggregationBolt bolt = createBolt(recorder, TimelineAggregationBolt.DEFAULT_MAX_PENDING_TUPLES);
+        List<Tuple> inputs = Arrays.asList(createTuple(TIMESTAMP), createTuple(TIMESTAMP), createTuple(TIMESTAMP));
+        inputs.forEach(bolt::execute);
+        //nothing is written or acked before the flush
+        Assert.assertTrue(recorder.emitted.isEmpty());
+        Assert.assertTrue(recorder.acked.isEmpty());
+        bolt.execute(createTickTuple());
+        //tuples with the same timestamp are summed into one increment for each step
+        Assert.assertEquals(STEPS, recorder.emitted.size());
+        for (TimelineColumnFamily step : TimelineColumnFamily.values()) {
+            Emitted increment = recorder.increment(step);
+            Assert.assertEquals(3L, increment.count());
+            Assert.assertEquals(TIMESTAMP, increment.values.get(1));
+            Assert.assertEquals(inputs, increment.anchors);
+        }
+        Assert.assertEquals("1_1_2023_05_07_10_15_00", recorder.increment(TimelineColumnFamily.MILLISECOND).values.get(0));
+        Assert.assertEquals(inputs, recorder.acked);
+    }
+
+    @Test
+    public void test01_countersAreSummedByColumn() {
+        RecordingCollector recorder = new RecordingCollector();
+        TimelineAggregationBolt bolt = createBolt(recorder, TimelineAggregationBolt.DEFAULT_MAX_PENDING_TUPLES);
+        //same minute, different seconds
+        Tuple first = createTuple(TIMESTAMP);
+        Tuple second = createTuple(TIMESTAMP + 1000);
+        bolt.execute(first);
+        bolt.execute(second);
+        bolt.execute(createTickTuple());
+        Map<TimelineColumnFamily, Long> counts = new EnumMap<>(TimelineColumnFamily.class);
+        Map<TimelineColumnFamily, Integer> increments = new EnumMap<>(TimelineColumnFamily.class);
+        for (Emitted e : recorder.emitted) {
+            counts.merge(e.step(), e.count(), Long::sum);
+            increments.merge(e.step(), 1, Integer::sum);
+        }
+        for (TimelineColumnFamily step : TimelineColumnFamily.values()) {
+            //every input tuple is counted once for each step
+            Assert.assertEquals(Long.valueOf(2), counts.get(step));
+            boolean sameColumn = step.getOrder() <= TimelineColumnFamily.MINUTE.getOrder();
+            Assert.assertEquals(Integer.valueOf(sameColumn ? 1 : 2), increments.get(step));
+        }
+        Assert.assertEquals(Arrays.asList(first, second), recorder.increment(TimelineColumnFamily.MINUTE).anchors);
+        Assert.assertEquals(Arrays.asList(first, second), recorder.acked);
+    }
+
+    @Test
+    public void test02_countersAreClearedAfterFlush() {
+        RecordingCollector recorder = new RecordingCollector();
+        TimelineAggregationBolt bolt = createBolt(recorder, TimelineAggregationBolt.DEFAULT_MAX_PENDING_TUPLES);
+        //tick without pending tuples
+        bolt.execute(createTickTuple());
+        Assert.assertTrue(recorder.emitted.isEmpty());
+        Tuple first = createTuple(TIMESTAMP);
+        bolt.execute(first);
+        bolt.execute(createTickTuple());
+        Assert.assertEquals(STEPS, recorder.emitted.size());
+        recorder.emitted.clear();
+        bolt.execute(createTickTuple());
+        Assert.assertTrue(recorder.emitted.isEmpty());
+        Tuple second = createTuple(TIMESTAMP);
+        bolt.execute(second);
+        bolt.execute(createTickTuple());
+        //counters flushed before are not emitted again
+        Assert.assertEquals(STEPS, recorder.emitted.size());
+        recorder.emitted.forEach(e -> {
+            Assert.assertEquals(1L, e.count());
+            Assert.assertEquals(Collections.singletonList(second), e.anchors);
+        });
+        Assert.assertEquals(Arrays.asList(first, second), recorder.acked);
+    }
+
+    @Test
+    public void test03_maxPendingTuplesForcesFlush() {
+        RecordingCollector recorder = new RecordingCollector();
+        TimelineAggregationBolt bolt = createBolt(recorder, 2);
+        Tuple first = createTuple(TIMESTAMP);
+        Tuple second = createTuple(TIMESTAMP);
+        bolt.execute(first);
+        Assert.assertTrue(recorder.emitted.isEmpty());
+        bolt.execute(second);
+        Assert.assertEquals(STEPS, recorder.emitted.size());
+        recorder.emitted.forEach(e -> Assert.assertEquals(2L, e.count()));
+        Assert.assertEquals(Arrays.asList(first, second), recorder.acked);
+    }
+
+    private TimelineAggregationBolt createBolt(RecordingCollector recorder, int maxPendingTuples) {
+        TimelineAggregationBolt bolt = new TimelineAggregationBolt().withHProject(PROJECT_ID)
+                .withMaxPendingTuples(maxPendingTuples);
+        bolt.prepare(new HashMap<>(), null, recorder.collector);
+        return bolt;
+    }
+
+    private Tuple createTuple(long timestamp) {
+        Tuple tuple = EasyMock.createNiceMock(Tuple.class);
+        EasyMock.expect(tuple.getSourceComponent()).andReturn("timeline").anyTimes();
+        EasyMock.expect(tuple.getSourceStreamId()).andReturn(String.format(StormConstants.TIMELINE_HPROJECT_STREAM_ID_PREFIX, PROJECT_ID)).anyTimes();
+        EasyMock.expect(tuple.getStringByField(StormConstants.ROWKEY_FIELD)).andReturn(ROWKEY_BEGINNING).anyTimes();
+        EasyMock.expect(tuple.getLongByField(StormConstants.TIMESTAMP_FIELD)).andReturn(timestamp).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    private Tuple createTickTuple() {
+        Tuple tuple = EasyMock.createNiceMock(Tuple.class);
+        EasyMock.expect(tuple.getSourceComponent()).andReturn(Constants.SYSTEM_COMPONENT_ID).anyTimes();
+        EasyMock.expect(tuple.getSourceStreamId()).andReturn(Constants.SYSTEM_TICK_STREAM_ID).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    /**
+     * Output collector mock which records increments emitted with their anchors and acked inputs
+     */
+    private static class RecordingCollector {
+        private final List<Emitted> emitted = new ArrayList<>();
+        private final List<Tuple> acked = new ArrayList<>();
+        private final OutputCollector collector;
+
+        @SuppressWarnings("unchecked")
+        RecordingCollector() {
+            collector = EasyMock.createNiceMock(OutputCollector.class);
+            EasyMock.expect(collector.emit(EasyMock.anyString(), EasyMock.anyObject(Collection.class), EasyMock.anyObject(List.class))).andAnswer(() -> {
+                Object[] args = EasyMock.getCurrentArguments();
+                Assert.assertEquals(String.format(StormConstants.TIMELINE_AGGREGATED_STREAM_ID_PREFIX, PROJECT_ID), args[0]);
+                emitted.add(new Emitted(new ArrayList<>((Collection<Tuple>) args[1]), (List<Object>) args[2]));
+                return Collections.emptyList();
+            }).anyTimes();
+            collector.ack(EasyMock.anyObject(Tuple.class));
+            EasyMock.expectLastCall().andAnswer(() -> {
+                acked.add((Tuple) EasyMock.getCurrentArguments()[0]);
+                return null;
+            }).anyTimes();
+            collector.fail(EasyMock.anyObject(Tuple.class));
+            EasyMock.expectLastCall().andAnswer(() -> {
+                Assert.fail("tuple " + EasyMock.getCurrentArguments()[0] + " failed");
+                return null;
+            }).anyTimes();
+            EasyMock.replay(collector);
+        }
+
+        private Emitted increment(TimelineColumnFamily step) {
+            return emitted.stream().filter(e -> e.step() == step).findFirst()
+                    .orElseThrow(() -> new AssertionError("no increment for step " + step));
+        }
+    }
+
+    /**
+     * Emitted increment: row key, timestamp, step, count
+     */
+    private static class Emitted {
+        private final List<Tuple> anchors;
+        private final List<Object> values;
+
+        private Emitted(List<Tuple> anchors, List<Object> values) {
+            this.anchors = anchors;
+            this.values = values;
+        }
+
+        private TimelineColumnFamily step() {
+            return (TimelineColumnFamily) values.get(2);
+        }
+
+        private long count() {
+            return (Long) values.get(3);
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ Copyright 2019-2023 ACSoftware
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+
+ */
+
+package org.apache.storm.hbase.bolt;
+
+import it.acsoftware.hyperiot.storm.hbase.mapper.EventRuleStateHBaseMapper;
+import it.acsoftware.hyperiot.storm.runtime.bolt.HyperIoTWrapperHBaseBolt;
+import it.acsoftware.hyperiot.storm.util.StormConstants;
+import it.acsoftware.hyperiot.stormmanager.model.MessageConversionStrategy;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.storm.Config;
+import org.apache.storm.Constants;
+import org.apache.storm.hbase.bolt.mapper.SimpleHBaseMapper;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.easymock.EasyMock;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests batches written by HyperIoTHBaseBolt on an HBase mini cluster.
+ * Storm is simulated: tuples are executed by the test thread and tick tuples are sent every TICK_PERIOD_MS,
+ * latency is measured from the execution of a tuple to its ack.
+ * In reliable mode failures are simulated writing to a table which does not exist yet,
+ * the spout is simulated replaying failed tuples to a new bolt instance.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class HyperIoTHBaseBoltTest {
+
+    private static final String EVENT_TABLE = "event_1";
+    private static final String REPLAY_TABLE = "event_2";
+    private static final int REPLAY_TUPLES = 100;
+    private static final String EVENT_RULE_STATE_TABLE = String.format(StormConstants.EVENT_RULE_STATE_TABLE_NAME_PREFIX, 1);
+    private static final int[] BATCH_SIZES = {1, 10, 100};
+    private static final int THROUGHPUT_TUPLES = 2000;
+    private static final int LATENCY_TUPLES = 200;
+    private static final long LATENCY_TUPLE_INTERVAL_MS = 5;
+    private static final long TICK_PERIOD_MS = 200;
+
+    private static HBaseTestingUtility hBaseTestingUtility;
+    private static Map<String, Object> stormConf;
+    private static long rowKeySequence;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        hBaseTestingUtility = new HBaseTestingUtility();
+        hBaseTestingUtility.startMiniCluster();
+        hBaseTestingUtility.createTable(TableName.valueOf(EVENT_TABLE), "event");
+        hBaseTestingUtility.createTable(TableName.valueOf(EVENT_RULE_STATE_TABLE), StormConstants.HBASE_COLUMN_FAMILY_RULE);
+        Map<String, Object> hBaseConf = new HashMap<>();
+        hBaseConf.put(HConstants.ZOOKEEPER_QUORUM, hBaseTestingUtility.getConfiguration().get(HConstants.ZOOKEEPER_QUORUM));
+        hBaseConf.put(HConstants.ZOOKEEPER_CLIENT_PORT, hBaseTestingUtility.getConfiguration().get(HConstants.ZOOKEEPER_CLIENT_PORT));
+        hBaseConf.put(HConstants.HBASE_CLIENT_RETRIES_NUMBER, "1");
+        stormConf = new HashMap<>();
+        stormConf.put(StormConstants.HBASE_BOLT_CONF, hBaseConf);
+    }
+
+    @AfterClass
+    public static void stopCluster() throws Exception {
+        if (hBaseTestingUtility != null)
+            hBaseTestingUtility.shutdownMiniCluster();
+    }
+
+    @Test
+    public void test00_latencyThroughputMatrix() throws Exception {
+        Map<Integer, Double> throughput = new LinkedHashMap<>();
+        Map<Integer, Long> maxLatency = new LinkedHashMap<>();
+        long rowsBefore = countRows(EVENT_TABLE);
+        for (int batchSize : BATCH_SIZES) {
+            throughput.put(batchSize, measureThroughput(batchSize));
+            maxLatency.put(batchSize, measureMaxLatency(batchSize));
+        }
+        System.out.println("HBase event table batches (tick every " + TICK_PERIOD_MS + " ms)");
+        System.out.println("batch size | tuples/s | max latency ms");
+        for (int batchSize : BATCH_SIZES)
+            System.out.println(String.format("%10d | %8.0f | %14d", batchSize, throughput.get(batchSize), maxLatency.get(batchSize)));
+        Assert.assertEquals(BATCH_SIZES.length * (THROUGHPUT_TUPLES + LATENCY_TUPLES), countRows(EVENT_TABLE) - rowsBefore);
+        Assert.assertTrue(throughput.get(100) > throughput.get(1) * 2);
+        //tuples never wait for a full batch longer than the tick period
+        for (long latency : maxLatency.values())
+            Assert.assertTrue(latency < TICK_PERIOD_MS + TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @Test
+    public void test01_wrapperSchedulesTickTuples() {
+        HyperIoTHBaseBolt hBaseBolt = createEventBolt(100, 3);
+        HyperIoTWrapperHBaseBolt wrapper = new HyperIoTWrapperHBaseBolt(hBaseBolt,
+                MessageConversionStrategy.HBASE_DLQ_EVENT_TABLE_MESSAGE_STRATEGY, "dlq");
+        Assert.assertEquals(3, ((Number) wrapper.getComponentConfiguration().get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS)).intValue());
+    }
+
+    @Test
+    public void test02_latestRuleStateWins() throws Exception {
+        Map<Tuple, Long> acked = new HashMap<>();
+        HyperIoTHBaseBolt hBaseBolt = (HyperIoTHBaseBolt) new HyperIoTHBaseBolt(EVENT_RULE_STATE_TABLE,
+                new EventRuleStateHBaseMapper()
+                        .withColumnFamily(StormConstants.HBASE_COLUMN_FAMILY_RULE)
+                        .withRowKeyField(StormConstants.EVENT_RULE_ID))
+                .withLatestMutationPerRow(true)
+                .withConfigKey(StormConstants.HBASE_BOLT_CONF)
+                .withBatchSize(100);
+        hBaseBolt.prepare(stormConf, null, createCollector(acked, new ArrayList<>()));
+        for (int i = 0; i < 50; i++) {
+            Tuple tuple = createTuple(StormConstants.EVENT_RULE_ID, 1L, StormConstants.EVENT_RULE_STATE_INFO_FIELD, "state-" + i);
+            hBaseBolt.execute(tuple);
+        }
+        Assert.assertTrue(acked.isEmpty());
+        hBaseBolt.execute(createTickTuple());
+        Assert.assertEquals(50, acked.size());
+        try (Table table = hBaseTestingUtility.getConnection().getTable(TableName.valueOf(EVENT_RULE_STATE_TABLE))) {
+            Result result = table.get(new Get(Bytes.toBytes(1L)));
+            Assert.assertEquals("state-49", Bytes.toString(result.getValue(
+                    Bytes.toBytes(StormConstants.HBASE_COLUMN_FAMILY_RULE), Bytes.toBytes(1L))));
+        }
+        hBaseBolt.cleanup();
+    }
+
+    @Test
+    public void test03_failedBatchCarriesEveryTuple() {
+        Map<Tuple, Long> acked = new HashMap<>();
+        List<Tuple> failed = new ArrayList<>();
+        HyperIoTHBaseBolt hBaseBolt = (HyperIoTHBaseBolt) new HyperIoTHBaseBolt("missing_table", new SimpleHBaseMapper()
+                .withColumnFamily("event")
+                .withRowKeyField(StormConstants.TIMESTAMP_FIELD)
+                .withColumnFields(new Fields(StormConstants.EVENT_COLUMN_FIELD)))
+                .withConfigKey(StormConstants.HBASE_BOLT_CONF)
+                .withBatchSize(5);
+        hBaseBolt.prepare(stormConf, null, createCollector(acked, failed));
+        List<Tuple> tuples = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                Tuple tuple = createEventTuple();
+                tuples.add(tuple);
+                hBaseBolt.execute(tuple);
+            }
+            Assert.fail("Batch must fail");
+        } catch (HyperIoTHBaseBolt.FailedBatchException e) {
+            Assert.assertEquals(tuples, e.getFailedTuples());
+        }
+        Assert.assertEquals(tuples, failed);
+        Assert.assertTrue(acked.isEmpty());
+        hBaseBolt.cleanup();
+    }
+
+    @Test
+    public void test04_replayedTuplesAreNeitherLostNorDuplicated() throws Exception {
+        Map<Tuple, Long> acked = new HashMap<>();
+        List<Tuple> failed = new ArrayList<>();
+        List<Object> emitted = new ArrayList<>();
+        HyperIoTWrapperHBaseBolt wrapper = new HyperIoTWrapperHBaseBolt(createEventBolt(REPLAY_TABLE, 10, 1),
+                MessageConversionStrategy.HBASE_DLQ_EVENT_TABLE_MESSAGE_STRATEGY, "dlq").withReliableMode(true);
+        wrapper.prepare(stormConf, null, createCollector(acked, failed, emitted));
+        for (int i = 0; i < REPLAY_TUPLES; i++)
+            wrapper.execute(createTuple(StormConstants.TIMESTAMP_FIELD, "replay-" + i, StormConstants.EVENT_COLUMN_FIELD, "event-" + i));
+        wrapper.execute(createTickTuple());
+        wrapper.cleanup();
+        //every tuple is failed, so the spout replays it, and nothing is sent to the dlq
+        Assert.assertEquals(REPLAY_TUPLES, failed.size());
+        Assert.assertTrue(acked.isEmpty());
+        Assert.assertTrue(emitted.isEmpty());
+
+        hBaseTestingUtility.createTable(TableName.valueOf(REPLAY_TABLE), "event");
+        //worker restarted: failed tuples are replayed, some of them twice
+        List<Tuple> replayed = new ArrayList<>(failed);
+        replayed.addAll(failed.subList(0, REPLAY_TUPLES / 2));
+        Collections.shuffle(replayed, new Random(REPLAY_TUPLES));
+        Map<Tuple, Long> replayAcked = new HashMap<>();
+        HyperIoTWrapperHBaseBolt restarted = new HyperIoTWrapperHBaseBolt(createEventBolt(REPLAY_TABLE, 10, 1),
+                MessageConversionStrategy.HBASE_DLQ_EVENT_TABLE_MESSAGE_STRATEGY, "dlq").withReliableMode(true);
+        restarted.prepare(stormConf, null, createCollector(replayAcked, new ArrayList<>(), emitted));
+        replayed.forEach(restarted::execute);
+        restarted.execute(createTickTuple());
+        restarted.cleanup();
+        Assert.assertEquals(new HashSet<>(failed), replayAcked.keySet());
+        Assert.assertEquals(REPLAY_TUPLES, countRows(REPLAY_TABLE));
+        try (Table table = hBaseTestingUtility.getConnection().getTable(TableName.valueOf(REPLAY_TABLE))) {
+            for (int i = 0; i < REPLAY_TUPLES; i++) {
+                Result result = table.get(new Get(Bytes.toBytes("replay-" + i)));
+                Assert.assertEquals("event-" + i, Bytes.toString(result.getValue(Bytes.toBytes("event"),
+                        Bytes.toBytes(StormConstants.EVENT_COLUMN_FIELD))));
+            }
+        }
+    }
+
+    /**
+     * Executes tuples as fast as possible
+     *
+     * @return tuples written per second
+     */
+    private double measureThroughput(int batchSize) {
+        Map<Tuple, Long> acked = new HashMap<>();
+        HyperIoTHBaseBolt hBaseBolt = createEventBolt(batchSize, 1);
+        hBaseBolt.prepare(stormConf, null, createCollector(acked, new ArrayList<>()));
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < THROUGHPUT_TUPLES; i++)
+            tuples.add(createEventTuple());
+        long start = System.nanoTime();
+        for (Tuple tuple : tuples)
+            hBaseBolt.execute(tuple);
+        hBaseBolt.execute(createTickTuple());
+        long elapsed = System.nanoTime() - start;
+        hBaseBolt.cleanup();
+        Assert.assertEquals(THROUGHPUT_TUPLES, acked.size());
+        return THROUGHPUT_TUPLES / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Executes a tuple every LATENCY_TUPLE_INTERVAL_MS, sending tick tuples every TICK_PERIOD_MS
+     *
+     * @return highest time between the execution of a tuple and its ack, in milliseconds
+     */
+    private long measureMaxLatency(int batchSize) throws InterruptedException {
+        Map<Tuple, Long> acked = new HashMap<>();
+        Map<Tuple, Long> executed = new HashMap<>();
+        HyperIoTHBaseBolt hBaseBolt = createEventBolt(batchSize, 1);
+        hBaseBolt.prepare(stormConf, null, createCollector(acked, new ArrayList<>()));
+        long nextTick = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TICK_PERIOD_MS);
+        for (int i = 0; i < LATENCY_TUPLES; i++) {
+            Tuple tuple = createEventTuple();
+            executed.put(tuple, System.nanoTime());
+            hBaseBolt.execute(tuple);
+            if (System.nanoTime() >= nextTick) {
+                hBaseBolt.execute(createTickTuple());
+                nextTick += TimeUnit.MILLISECONDS.toNanos(TICK_PERIOD_MS);
+            }
+            Thread.sleep(LATENCY_TUPLE_INTERVAL_MS);
+        }
+        while (acked.size() < LATENCY_TUPLES) {
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime())));
+            hBaseBolt.execute(createTickTuple());
+            nextTick += TimeUnit.MILLISECONDS.toNanos(TICK_PERIOD_MS);
+        }
+        hBaseBolt.cleanup();
+        long maxLatency = 0;
+        for (Map.Entry<Tuple, Long> ack : acked.entrySet())
+            maxLatency = Math.max(maxLatency, ack.getValue() - executed.get(ack.getKey()));
+        return TimeUnit.NANOSECONDS.toMillis(maxLatency);
+    }
+
+    private HyperIoTHBaseBolt createEventBolt(int batchSize, int flushIntervalSecs) {
+        return createEventBolt(EVENT_TABLE, batchSize, flushIntervalSecs);
+    }
+
+    private HyperIoTHBaseBolt createEventBolt(String tableName, int batchSize, int flushIntervalSecs) {
+        return (HyperIoTHBaseBolt) new HyperIoTHBaseBolt(tableName, new SimpleHBaseMapper()
+                .withColumnFamily("event")
+                .withRowKeyField(StormConstants.TIMESTAMP_FIELD)
+                .withColumnFields(new Fields(StormConstants.EVENT_COLUMN_FIELD)))
+                .withConfigKey(StormConstants.HBASE_BOLT_CONF)
+                .withBatchSize(batchSize)
+                .withFlushIntervalSecs(flushIntervalSecs);
+    }
+
+    private OutputCollector createCollector(Map<Tuple, Long> acked, List<Tuple> failed) {
+        return createCollector(acked, failed, new ArrayList<>());
+    }
+
+    private OutputCollector createCollector(Map<Tuple, Long> acked, List<Tuple> failed, List<Object> emitted) {
+        OutputCollector collector = EasyMock.createNiceMock(OutputCollector.class);
+        EasyMock.expect(collector.emit(EasyMock.anyString(), EasyMock.anyObject())).andAnswer(() -> {
+            emitted.add(EasyMock.getCurrentArguments()[1]);
+            return Collections.emptyList();
+        }).anyTimes();
+        collector.ack(EasyMock.anyObject(Tuple.class));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            acked.put((Tuple) EasyMock.getCurrentArguments()[0], System.nanoTime());
+            return null;
+        }).anyTimes();
+        collector.fail(EasyMock.anyObject(Tuple.class));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            failed.add((Tuple) EasyMock.getCurrentArguments()[0]);
+            return null;
+        }).anyTimes();
+        EasyMock.replay(collector);
+        return collector;
+    }
+
+    private Tuple createEventTuple() {
+        return createTuple(StormConstants.TIMESTAMP_FIELD, String.valueOf(++rowKeySequence),
+                StormConstants.EVENT_COLUMN_FIELD, "{\"event\":\"temperature above threshold\"}");
+    }
+
+    private Tuple createTuple(String rowKeyField, Object rowKey, String columnField, Object column) {
+        Tuple tuple = EasyMock.createMock(Tuple.class);
+        EasyMock.expect(tuple.getValueByField(rowKeyField)).andReturn(rowKey).anyTimes();
+        EasyMock.expect(tuple.getValueByField(columnField)).andReturn(column).anyTimes();
+        EasyMock.expect(tuple.getSourceComponent()).andReturn(StormConstants.SELECTION_BOLT_ID).anyTimes();
+        EasyMock.expect(tuple.getSourceStreamId()).andReturn(EVENT_TABLE).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    private Tuple createTickTuple() {
+        Tuple tuple = EasyMock.createMock(Tuple.class);
+        EasyMock.expect(tuple.getSourceComponent()).andReturn(Constants.SYSTEM_COMPONENT_ID).anyTimes();
+        EasyMock.expect(tuple.getSourceStreamId()).andReturn(Constants.SYSTEM_TICK_STREAM_ID).anyTimes();
+        EasyMock.replay(tuple);
+        return tuple;
+    }
+
+    private long countRows(String tableName) throws Exception {
+        long rows = 0;
+        try (Table table = hBaseTestingUtility.getConnection().getTable(TableName.valueOf(tableName));
+             ResultScanner scanner = table.getScanner(new Scan())) {
+            for (Result ignored : scanner)
+                rows++;
+        }
+        return rows;
+    }
+
+}